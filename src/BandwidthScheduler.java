@@ -0,0 +1,296 @@
+import java.net.*;
+import java.util.*;
+
+/**
+ * BandwidthScheduler shares the outgoing bandwidth between file transfers and chat traffic
+ * Bulk data (file transfers) goes through token buckets: a global one shared by all transfers
+ * and one per peer, each refilled at its rate, 0 meaning unlimited
+ * Chat and control messages have a strict priority lane: they never wait for tokens,
+ * their bytes are charged to the global bucket and bulk data holds back for a short while
+ * so they do not queue behind a burst of file data
+ * https://en.wikipedia.org/wiki/Token_bucket
+ * @author conqtc
+ *
+ */
+public class BandwidthScheduler {
+
+	// largest amount of bulk data granted at once, keeps bulk writes small enough to interleave
+	public static final int QUANTUM = 64 * 1024;
+
+	// time bulk data holds back after a chat or control message
+	private static final long PRIORITY_HOLD = 2000000;
+
+	// a bucket holds at most this much time worth of tokens, limits bursts after idle periods
+	private static final double BURST_SECONDS = 0.05;
+
+	private TokenBucket global;
+
+	// rate of peers without a rate of their own
+	private long defaultPeerRate;
+
+	// rates set for specific peers
+	private HashMap<InetAddress, Long> peerRates;
+
+	private HashMap<InetAddress, TokenBucket> peerBuckets;
+
+	// System.nanoTime until which bulk data holds back
+	private volatile long priorityUntil;
+
+	// fast path: nothing to schedule while no rate is set and no chat or control message was just sent
+	private volatile boolean limited;
+
+	/**
+	 * TokenBucket holds the tokens (bytes) available at a rate
+	 * Tokens may go negative: a grant larger than the tokens left is paid back before the next one
+	 */
+	private static class TokenBucket {
+
+		private long rate;
+
+		private double tokens;
+
+		private long lastRefill;
+
+		/**
+		 * Constructor
+		 * @param rate Rate in bytes per second, 0 for unlimited
+		 */
+		private TokenBucket(long rate) {
+			this.rate = rate;
+			this.lastRefill = System.nanoTime();
+		}
+
+		/**
+		 * Add the tokens earned since the last refill
+		 * @param now Current System.nanoTime
+		 */
+		private void refill(long now) {
+			if (rate > 0)
+				tokens = Math.min(rate * BURST_SECONDS, tokens + rate * (now - lastRefill) / 1e9);
+			lastRefill = now;
+		}
+
+		/**
+		 * Get time until tokens are available again
+		 * @return Nanoseconds to wait, 0 if tokens are available
+		 */
+		private long delay() {
+			if (rate <= 0 || tokens >= 0)
+				return 0;
+			return (long) Math.ceil(-tokens * 1e9 / rate);
+		}
+
+		/**
+		 * Take tokens
+		 * @param bytes Number of bytes
+		 */
+		private void take(long bytes) {
+			if (rate > 0)
+				tokens -= bytes;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param globalRate Global rate in bytes per second, 0 for unlimited
+	 * @param peerRate Rate of each peer in bytes per second, 0 for unlimited
+	 */
+	public BandwidthScheduler(long globalRate, long peerRate) {
+		this.global = new TokenBucket(globalRate);
+		this.defaultPeerRate = peerRate;
+		this.peerRates = new HashMap<>();
+		this.peerBuckets = new HashMap<>();
+		updateLimited();
+	}
+
+	/**
+	 * Wait until bulk data can be sent to a peer, then take its tokens
+	 * Bulk data holds back behind chat and control messages even when no rate is set
+	 * Ask for QUANTUM bytes at most, a larger grant is paid back by the next ones
+	 * @param peer Peer the data is sent to
+	 * @param bytes Number of bytes about to be sent
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void acquire(InetAddress peer, long bytes) throws InterruptedException {
+		if (!limited && priorityUntil - System.nanoTime() <= 0)
+			return;
+
+		synchronized (this) {
+			TokenBucket bucket = peerBucket(peer);
+			while (true) {
+				long now = System.nanoTime();
+				global.refill(now);
+				bucket.refill(now);
+
+				long delay = Math.max(priorityUntil - now, Math.max(global.delay(), bucket.delay()));
+				if (delay <= 0)
+					break;
+
+				wait(Math.max(1, delay / 1000000), 0);
+			}
+
+			global.take(bytes);
+			bucket.take(bytes);
+		}
+	}
+
+	/**
+	 * Is any rate set, i.e. does bulk data go through the buckets
+	 * @return True if limited
+	 */
+	public boolean isLimited() {
+		return limited;
+	}
+
+	/**
+	 * Is bulk data holding back behind a chat or control message just sent
+	 * @return True while holding back
+	 */
+	public boolean isHolding() {
+		return priorityUntil - System.nanoTime() > 0;
+	}
+
+	/**
+	 * Account a chat or control message, sent straight away without waiting for tokens
+	 * @param bytes Size of the message
+	 */
+	public synchronized void sendUrgent(long bytes) {
+		charge(bytes);
+		priorityUntil = System.nanoTime() + PRIORITY_HOLD;
+	}
+
+	/**
+	 * Account a datagram which is not worth holding bulk data back for, e.g. an acknowledgement, a probe or a retransmission
+	 * @param bytes Size of the datagram
+	 */
+	public synchronized void charge(long bytes) {
+		long now = System.nanoTime();
+		global.refill(now);
+		global.take(bytes);
+	}
+
+	/**
+	 * Get the bucket of a peer, created on first use
+	 * @param peer Peer address
+	 * @return Token bucket
+	 */
+	private TokenBucket peerBucket(InetAddress peer) {
+		TokenBucket bucket = peerBuckets.get(peer);
+		if (bucket == null) {
+			bucket = new TokenBucket(peerRates.getOrDefault(peer, defaultPeerRate));
+			peerBuckets.put(peer, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Set the global rate, shared by all transfers
+	 * @param rate Rate in bytes per second, 0 for unlimited
+	 */
+	public synchronized void setGlobalRate(long rate) {
+		global = new TokenBucket(rate);
+		updateLimited();
+		notifyAll();
+	}
+
+	/**
+	 * Set the rate of each peer without a rate of its own
+	 * @param rate Rate in bytes per second, 0 for unlimited
+	 */
+	public synchronized void setDefaultPeerRate(long rate) {
+		defaultPeerRate = rate;
+		for (Map.Entry<InetAddress, TokenBucket> entry: peerBuckets.entrySet()) {
+			if (!peerRates.containsKey(entry.getKey()))
+				entry.setValue(new TokenBucket(rate));
+		}
+		updateLimited();
+		notifyAll();
+	}
+
+	/**
+	 * Set the rate of one peer
+	 * @param peer Peer address
+	 * @param rate Rate in bytes per second, 0 for unlimited, negative to use the default peer rate again
+	 */
+	public synchronized void setPeerRate(InetAddress peer, long rate) {
+		if (rate < 0) {
+			peerRates.remove(peer);
+		} else {
+			peerRates.put(peer, rate);
+		}
+		peerBuckets.put(peer, new TokenBucket(peerRates.getOrDefault(peer, defaultPeerRate)));
+		updateLimited();
+		notifyAll();
+	}
+
+	/**
+	 * Update the fast path flag
+	 */
+	private void updateLimited() {
+		boolean anyPeerRate = defaultPeerRate > 0;
+		for (long rate: peerRates.values()) {
+			anyPeerRate |= rate > 0;
+		}
+		limited = global.rate > 0 || anyPeerRate;
+	}
+
+	/**
+	 * Describe the rates in use
+	 * @param peers Online peers, used to name peers with a rate of their own
+	 * @return Description
+	 */
+	public synchronized String describe(List<Peer> peers) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("global: " + rateAsString(global.rate) + ", each peer: " + rateAsString(defaultPeerRate));
+		for (Map.Entry<InetAddress, Long> entry: peerRates.entrySet()) {
+			String name = entry.getKey().getHostAddress();
+			for (Peer peer: peers) {
+				if (peer.getAddress().equals(entry.getKey()))
+					name = peer.toString();
+			}
+			builder.append("\n" + name + ": " + rateAsString(entry.getValue()));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parse a rate, in bytes per second with an optional K, M or G suffix
+	 * @param text Rate such as 500K, 10M or off
+	 * @return Rate in bytes per second, 0 for unlimited
+	 * @throws NumberFormatException If the text is not a rate
+	 */
+	public static long rateFromString(String text) {
+		String value = text.trim().toUpperCase();
+		if (value.equals("OFF") || value.equals("UNLIMITED"))
+			return 0;
+
+		long unit = 1;
+		if (value.endsWith("K")) {
+			unit = 1024;
+		} else if (value.endsWith("M")) {
+			unit = 1048576;
+		} else if (value.endsWith("G")) {
+			unit = 1073741824;
+		}
+		if (unit > 1)
+			value = value.substring(0, value.length() - 1);
+
+		double rate = Double.parseDouble(value);
+		if (rate < 0)
+			throw new NumberFormatException("Negative rate " + text);
+		return (long) (rate * unit);
+	}
+
+	/**
+	 * Format a rate
+	 * @param rate Rate in bytes per second, 0 for unlimited
+	 * @return Rate as string
+	 */
+	public static String rateAsString(long rate) {
+		if (rate <= 0)
+			return "unlimited";
+		if (rate >= 1048576)
+			return String.format("%.1f MB/s", rate / 1048576.0);
+		return String.format("%.1f KB/s", rate / 1024.0);
+	}
+}
@@ -0,0 +1,94 @@
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * BufferPool keeps a few direct buffers of one size for reuse, so a receive loop does not allocate per packet
+ * and a transfer pipeline takes the buffers of the pipelines before it
+ * A buffer is taken for a packet or a slot and given back once its handler is done with it
+ * The pool never blocks: when every buffer is taken a new one is allocated, and buffers given back to a full pool are dropped
+ * @author conqtc
+ *
+ */
+public class BufferPool {
+
+	private int bufferSize;
+
+	private int capacity;
+
+	private ConcurrentLinkedQueue<ByteBuffer> buffers;
+
+	private AtomicInteger size;
+
+	// buffers allocated because the pool was empty, the initial ones included
+	private AtomicLong allocations;
+
+	/**
+	 * Constructor, the buffers are allocated up front
+	 * @param bufferSize Size of each buffer
+	 * @param capacity Most buffers kept
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this(bufferSize, capacity, capacity);
+	}
+
+	/**
+	 * Constructor
+	 * @param bufferSize Size of each buffer
+	 * @param capacity Most buffers kept
+	 * @param initial Buffers allocated up front, the others when first needed
+	 */
+	public BufferPool(int bufferSize, int capacity, int initial) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		this.buffers = new ConcurrentLinkedQueue<>();
+		this.size = new AtomicInteger();
+		this.allocations = new AtomicLong();
+		for (int index = 0; index < initial; index++) {
+			release(allocate());
+		}
+	}
+
+	/**
+	 * Take a buffer, a new one if the pool is empty
+	 * @return Cleared direct buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return allocate();
+
+		size.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back, dropped if the pool is full
+	 * @param buffer Buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (size.incrementAndGet() <= capacity) {
+			buffers.offer(buffer);
+		} else {
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of buffers allocated so far
+	 * @return Number of buffers, the capacity unless the pool ran dry
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * Allocate a buffer
+	 * @return Direct buffer
+	 */
+	private ByteBuffer allocate() {
+		allocations.incrementAndGet();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+}
@@ -1,5 +1,7 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
@@ -33,7 +35,6 @@ public class ChatApp {
 	public static long CRYPT_BASE = 5;
 	private long secretKey;
 	private long exchangeKey;
-	private long commonKey;
 	
 	private String uid;
 	
@@ -47,17 +48,33 @@ public class ChatApp {
 	
 	private boolean keepChatting;
 	
+	// addresses of all peers: the broadcast addresses, or the multicast group
 	private ArrayList<InetAddress> broadcastList;
 	
+	// group joined instead of the broadcast, null for the broadcast
+	private MulticastGroup multicastGroup;
+	
 	private UDPMessenger udpMessenger;
 	
-	private ArrayList<Peer> peerList;
+	// read by the main thread and both decode lanes, written by the lanes
+	private CopyOnWriteArrayList<Peer> peerList;
 	
 	private UDPPortListener portListener;
 	
-	private FileReceiveThread fileReceiver;
+	// endpoint receiving files, bound on the first file request
+	private TransferServer transferServer;
+	
+	// files being sent, keyed by transfer ID
+	private ConcurrentHashMap<String, FileTransferThread> fileTransfers;
+	
+	// swarms this peer takes part in, keyed by swarm ID
+	private ConcurrentHashMap<String, SwarmTransfer> swarms;
 	
-	private FileTransferThread fileTransfer;
+	// shares the outgoing bandwidth between chat messages and file transfers
+	private BandwidthScheduler bandwidthScheduler;
+	
+	// queues and runs the file transfers of both directions
+	private TransferManager transferManager;
 	
 	private int reachableCount;
 
@@ -78,8 +95,12 @@ public class ChatApp {
 	 * Constructor for ChatApp
 	 */
 	public ChatApp() {
-		this.peerList = new ArrayList<>();
+		this.peerList = new CopyOnWriteArrayList<>();
 		this.alias = "";
+		this.fileTransfers = new ConcurrentHashMap<>();
+		this.swarms = new ConcurrentHashMap<>();
+		this.bandwidthScheduler = new BandwidthScheduler(Settings.globalRate(), Settings.peerRate());
+		this.transferManager = new TransferManager(Settings.maxActiveTransfers(), Settings.maxPeerTransfers());
 	}
 
 	/**
@@ -91,6 +112,9 @@ public class ChatApp {
 		// utility 
 		utility = new Utility();
 
+		// multicast group, if set in place of the broadcast
+		multicastGroup = MulticastGroup.fromSettings();
+		
 		// construct UDP messenger
 		udpMessenger = new UDPMessenger(this);
 		
@@ -129,15 +153,17 @@ public class ChatApp {
 	}
 	
 	/**
-	 * Calculate exchange key to be exchanged over the network
-	 * @param exchangeKey String received which is exchange key from sender
+	 * Calculate the common key from the exchange key of a peer
+	 * Each transfer keeps its own common key, so transfers with different peers do not mix up keys
+	 * @param exchangeKey String received which is exchange key from the peer
+	 * @return Common key, -1 if the exchange key is invalid
 	 */
-	private void calculateCommonKey(String exchangeKey) {
+	private long calculateCommonKey(String exchangeKey) {
 		try {
 			long key = Long.parseLong(exchangeKey);
-			this.commonKey = powerWithModule(key, this.secretKey, ChatApp.CRYPT_MODU);
+			return powerWithModule(key, this.secretKey, ChatApp.CRYPT_MODU);
 		} catch (Exception e) {
-			this.commonKey = -1;
+			return -1;
 		}
 	}
 
@@ -145,11 +171,19 @@ public class ChatApp {
 	 * Finalization of the app
 	 */
 	private void finalizeApp() {
+		if (portListener != null)
+			portListener.stopListening();
+		
 		if (udpMessenger != null)
 			udpMessenger.destructor();
 		
 		if (utility != null)
 			utility.destructor();
+		
+		synchronized (this) {
+			if (transferServer != null)
+				transferServer.close();
+		}
 	}
 	
 	/**
@@ -174,7 +208,7 @@ public class ChatApp {
 			Utility.loglnErr("Unable to construct UDP messenger.");
 			return;
 		} catch (IOException ioe) {
-			Utility.loglnErr("Unable to start threads.");
+			Utility.loglnErr("Unable to start threads: " + ioe.getMessage());
 			return;
 		}
 		
@@ -277,31 +311,20 @@ public class ChatApp {
 			// notify BYED message to all other
 			notifyPeers(UDPMessenger.MessageType.BYED);
 			
-			// workaround, since the thread is still listening, self-send the QUIT message to listenPort
-       		try {
-	       		InetAddress local = InetAddress.getByName("localhost");
-	       		
-	       		int port = DEFAULT_PORT;
-	       		
-	    		if (_LOCAL_TEST_) {
-    				if (alias.equals("sender")) 
-    					port++;
-	    		}
-	    			       		
-       			udpMessenger.sendMessageTo(local, port, UDPMessenger.MessageType.QUIT, "xxx");
-       		} catch (UnknownHostException uhe) {
-       			appendMessageToTheChat("Unknown host: " + uhe.getMessage(), false);
-      		} catch (SocketException se) {
-      			appendMessageToTheChat("Socket error: " + se.getMessage(), false);
-       		} catch (IOException ioe) {
-       			appendMessageToTheChat("Unable to self-send 'quit' message: " + ioe.getMessage(), false);
-       		}
+			// stop listening, closing the channel ends the receive in progress
+			portListener.stopListening();
        		
        		return true;
 		} else if (command.equalsIgnoreCase("/l")) {
 			displayOnlinePeers();
 		} else if (command.startsWith("/f")) {
 			handleFileTransferCommand(command);
+		} else if (command.startsWith("/r")) {
+			handleRateCommand(command);
+		} else if (command.equalsIgnoreCase("/t") || command.equalsIgnoreCase("/transfers")) {
+			appendMessageToTheChat("(i) File transfers, " + transferManager.describe(), false);
+		} else if (command.equalsIgnoreCase("/u")) {
+			appendMessageToTheChat("(i) UDP messages: " + udpMessenger.describe() + ", " + portListener.describe(), false);
 		} else {
 			Utility.loglnErr("Unrecognized command.");
 			displayHelp();
@@ -311,7 +334,8 @@ public class ChatApp {
 	}
 
 	/**
-	 * Handle file transfer command
+	 * Handle file transfer command, to one peer (uid), to a group (uid,uid,...) or to all peers (*)
+	 * A file sent to several peers is distributed as a swarm, unless swarm transfers are disabled
 	 * http://stackoverflow.com/questions/3366281/tokenizing-a-string-but-ignoring-delimiters-within-quotes
 	 * @param command File transfer command
 	 */
@@ -331,15 +355,28 @@ public class ChatApp {
 	    // must be 3 parameters
 	    if (args.size() != 3) {
 	    	appendMessageToTheChat("Invalid syntax, valid command should be:\n" +
-	    			               "/f uid filename", false);
+	    			               "/f uid|uid,uid|* filename", false);
 	    	return;
 	    }
 	    
-	    // handle receiver uid
-	    String receiverUID = args.get(1);
-	    Peer peer = this.searchPeerByUID(receiverUID);
-	    if (peer == null) {
-	    	appendMessageToTheChat("No online peer with uid [" + receiverUID + "]", false);
+	    // handle receiver uids
+	    ArrayList<Peer> peers = new ArrayList<>();
+	    if (args.get(1).equals("*")) {
+	    	peers.addAll(peerList);
+	    } else {
+	    	for (String receiverUID: args.get(1).split(",")) {
+	    		Peer peer = this.searchPeerByUID(receiverUID);
+	    		if (peer == null) {
+	    			appendMessageToTheChat("No online peer with uid [" + receiverUID + "]", false);
+	    			return;
+	    		}
+	    		if (!peers.contains(peer))
+	    			peers.add(peer);
+	    	}
+	    }
+	    
+	    if (peers.isEmpty()) {
+	    	appendMessageToTheChat("No online peer to send to", false);
 	    	return;
 	    }
 	    
@@ -355,12 +392,143 @@ public class ChatApp {
 			return;
 		}
 		
+		// several peers share the upload of the file between them
+		if (peers.size() > 1 && Settings.swarmTransfer() && file.isFile() && file.length() > 0) {
+			SwarmTransfer swarm = new SwarmTransfer(this, file, peers);
+			if (swarms.putIfAbsent(swarm.getSwarmId(), swarm) != null) {
+				appendMessageToTheChat("File '" + file.getName() + "' is already being distributed", false);
+				return;
+			}
+			swarm.start();
+			return;
+		}
+		
+		for (Peer peer: peers) {
+			requestFileTransfer(peer, file, null);
+		}
+	}
+	
+	/**
+	 * Request to send a file to a peer, queued until the transfer manager gives it a slot, sent once the peer accepts it
+	 * @param peer Receiver
+	 * @param file File to send
+	 * @param invitation Swarm parameters added to the request, null if none
+	 * @return File transfer, null if the file is already being sent to this peer
+	 */
+	public FileTransferThread requestFileTransfer(Peer peer, File file, TransferParameters invitation) {
 		// start transferring this file to target peer
-		fileTransfer = new FileTransferThread(this, file, peer);
-		// notify target peer about the file transferring alongside with exchange key
-		sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FREQ, Long.toString(exchangeKey));
+		FileTransferThread fileTransfer = new FileTransferThread(this, file, peer);
+		if (fileTransfers.putIfAbsent(fileTransfer.getTransferId(), fileTransfer) != null) {
+			appendMessageToTheChat("File '" + file.getName() + "' is already being sent to " + peer.toString(), false);
+			return null;
+		}
+		
+		// notify target peer about the file transferring alongside with exchange key and supported payload modes
+		TransferParameters request = new TransferParameters();
+		request.put(TransferParameters.KEY, exchangeKey);
+		request.put(TransferParameters.ID, fileTransfer.getTransferId());
+		request.put(TransferParameters.PAYLOAD, payloadOffer());
+		if (Settings.aeadPayload())
+			request.put(TransferParameters.ECDH, fileTransfer.getPublicKey());
+		request.put(TransferParameters.STRIPES, Settings.maxStripes());
+		request.put(TransferParameters.CHUNK, Settings.chunkSize());
+		if (Settings.verifyChunks())
+			request.put(TransferParameters.HASH, MerkleTree.ALGORITHM);
+		if (Settings.compressChunks())
+			request.put(TransferParameters.COMPRESS, ChunkCompressor.codecAsString(ChunkCompressor.Codec.DEFLATE));
+		if (file.isDirectory())
+			request.put(TransferParameters.DIRECTORY, 1);
+		if (file.isFile() && invitation == null) {
+			request.put(TransferParameters.NAME, URLEncoder.encode(file.getName(), StandardCharsets.UTF_8));
+			if (Settings.deltaTransfer() && file.length() >= DeltaSignature.MIN_BLOCK_SIZE)
+				request.put(TransferParameters.DELTA, 1);
+			if (Settings.contentStore() && file.length() > 0)
+				offerContent(request, file);
+		}
+		fileTransfer.setRequest(request);
+		
+		// invitations of a swarm go out together, the swarm waits for their answers
+		if (invitation != null) {
+			request.putAll(invitation);
+			transferManager.start(TransferManager.Direction.SEND, fileTransfer);
+		} else {
+			transferManager.submit(TransferManager.Direction.SEND, fileTransfer);
+		}
+		return fileTransfer;
+	}
+	
+	/**
+	 * Offer the content hash of a file, a receiver already holding the content completes without the file being sent
+	 * @param request Parameters of the FREQ message
+	 * @param file File to send
+	 */
+	private void offerContent(TransferParameters request, File file) {
+		try {
+			request.put(TransferParameters.SIZE, file.length());
+			request.put(TransferParameters.CONTENT, ContentStore.contentHash(file));
+		} catch (IOException ioe) {
+			// sent as any other file
+			Utility.logln("(!) Unable to hash '" + file.getName() + "': " + ioe.getMessage());
+		}
+	}
+	
+	/**
+	 * Handle rate command, shows or changes the outgoing rates of file transfers
+	 * /r shows the rates, /r global rate, /r peer rate and /r uid rate change them
+	 * A rate is in bytes per second with an optional K, M or G suffix, 0 or off for unlimited
+	 * @param command Rate command
+	 */
+	private void handleRateCommand(String command) {
+		String[] args = command.trim().split("\\s+");
+		if (args.length == 1) {
+			appendMessageToTheChat("(i) Outgoing file transfer rates, " + bandwidthScheduler.describe(peerList), false);
+			return;
+		}
+		
+		if (args.length != 3) {
+			appendMessageToTheChat("Invalid syntax, valid command should be:\n" +
+					               "/r [global|peer|uid rate]", false);
+			return;
+		}
+		
+		long rate;
+		try {
+			rate = BandwidthScheduler.rateFromString(args[2]);
+		} catch (NumberFormatException nfe) {
+			appendMessageToTheChat("Invalid rate '" + args[2] + "', e.g. 500K, 10M or off", false);
+			return;
+		}
+		
+		if (args[1].equalsIgnoreCase("global")) {
+			bandwidthScheduler.setGlobalRate(rate);
+		} else if (args[1].equalsIgnoreCase("peer")) {
+			bandwidthScheduler.setDefaultPeerRate(rate);
+		} else {
+			Peer peer = this.searchPeerByUID(args[1]);
+			if (peer == null) {
+				appendMessageToTheChat("No online peer with uid [" + args[1] + "]", false);
+				return;
+			}
+			bandwidthScheduler.setPeerRate(peer.getAddress(), rate);
+		}
+		appendMessageToTheChat("(i) Outgoing file transfer rates, " + bandwidthScheduler.describe(peerList), false);
 	}
 	
+	/**
+	 * Build the list of payload modes offered to a receiver, xor is always offered for legacy receivers
+	 * @return Payload modes separated by comma
+	 */
+	private String payloadOffer() {
+		ArrayList<String> modes = new ArrayList<>();
+		if (Settings.allowPlainPayload())
+			modes.add(TransferParameters.payloadModeAsString(TransferParameters.PayloadMode.PLAIN));
+		if (Settings.aeadPayload())
+			modes.add(TransferParameters.payloadModeAsString(TransferParameters.PayloadMode.AES_GCM));
+		modes.add(TransferParameters.payloadModeAsString(TransferParameters.PayloadMode.XOR));
+
+		return String.join(TransferParameters.LIST_SEPARATOR, modes);
+	}
+
 	/**
 	 * Search peer by receiver id used for file transfer command
 	 * @param receiverUid Receiver UID
@@ -388,8 +556,8 @@ public class ChatApp {
 			return false;
 		}
 		
-		// is this actually a file?
-		if (!file.isFile()) {
+		// is this actually a file, or a directory sent as a whole?
+		if (!file.isFile() && !file.isDirectory()) {
 			appendMessageToTheChatNoFollowing("'" + file.getName() + "' is NOT a file.", false);
 			return false;
 		}
@@ -496,6 +664,10 @@ public class ChatApp {
 
 		broadcastList = new ArrayList<>();
 		
+		// messages to all peers go to the group instead
+		if (multicastGroup != null)
+			broadcastList.add(multicastGroup.getGroup());
+		
 		try {
 			localIP = Inet4Address.getLocalHost();
 			byte[] ip = localIP.getAddress();
@@ -507,7 +679,7 @@ public class ChatApp {
 					InetAddress broadcast = ifAddress.getBroadcast();
 					prefix = ifAddress.getNetworkPrefixLength();
 					
-					if (broadcast != null)
+					if (broadcast != null && multicastGroup == null)
 						broadcastList.add(broadcast);
 					
 					InetAddress subnetMask = getSubnetMask(prefix);
@@ -521,6 +693,9 @@ public class ChatApp {
 				}
 			}
 			
+			// datagrams are sized from the MTU of the link, at most
+			udpMessenger.getPathMtuDiscovery().setLinkMtu(networkInterface.getMTU());
+			
 			Utility.loglnMsg("Network Interfaces:");
 			// get all network interfaces
 			Enumeration<NetworkInterface> interfaceEnumeration = NetworkInterface.getNetworkInterfaces();
@@ -553,14 +728,14 @@ public class ChatApp {
 	 */
 	public void sendMessageTo(InetAddress address, UDPMessenger.MessageType type, String message) {
 		try {
-			int port = DEFAULT_PORT;
-			if (_LOCAL_TEST_) {
-				if (!alias.equals("sender")) { 
-					port++;
-				}
+			int port = getPeerPort();
+			
+			// broadcasts can not be acknowledged
+			if (Settings.reliableMessages() && (broadcastList == null || !broadcastList.contains(address))) {
+				udpMessenger.sendReliableTo(address, port, type, message);
+			} else {
+				udpMessenger.sendMessageTo(address, port, type, message);
 			}
-						
-			udpMessenger.sendMessageTo(address, port, type, message);
 		} catch (SocketException se) {
 			appendMessageToTheChat("Socket error: " + se.getMessage(), false);
 		} catch (IOException ioe) {
@@ -568,24 +743,57 @@ public class ChatApp {
 		}
 	}
 
+	/**
+	 * Send the same message to several addresses at once, a peer reached through more than one of them handles it once
+	 * @param addresses Receiver addresses, e.g. the broadcast addresses
+	 * @param type Type of the message
+	 * @param message Content of the message
+	 */
+	private void sendMessageTo(List<InetAddress> addresses, UDPMessenger.MessageType type, String message) {
+		try {
+			udpMessenger.sendMessageTo(addresses, getPeerPort(), type, message);
+		} catch (SocketException se) {
+			appendMessageToTheChat("Socket error: " + se.getMessage(), false);
+		} catch (IOException ioe) {
+			appendMessageToTheChat("Unable to send to addresses " + addresses.toString() + ": " + ioe.getMessage(), false);
+		}
+	}
+
+	/**
+	 * Get the port peers listen to
+	 * @return Port
+	 */
+	public int getPeerPort() {
+		int port = DEFAULT_PORT;
+		if (_LOCAL_TEST_) {
+			if (!alias.equals("sender")) { 
+				port++;
+			}
+		}
+		return port;
+	}
+
 	/**
 	 * Notify all other chats when ChatApp comes online by sending broadcast message to the local network
 	 * @param type Message type
 	 */
 	private void notifyPeers(UDPMessenger.MessageType type) {
-		for (InetAddress address: this.broadcastList) {
-			sendMessageTo(address, type, "xxx");
-		}
+		sendMessageTo(this.broadcastList, type, "xxx");
 	}
 	
 	/**
-	 * Send all other chats a message using broadcast address
+	 * Send all other chats a message using broadcast address, or to each online peer when messages are reliable
 	 * @param message Message content to be sent
 	 */
 	private void sendMessageToAll(String message) {
-		for (InetAddress address: this.broadcastList) {
-			sendMessageTo(address, UDPMessenger.MessageType.MESG, message);
+		if (Settings.reliableMessages()) {
+			for (Peer peer: this.peerList) {
+				sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.MESG, message);
+			}
+			return;
 		}
+		
+		sendMessageTo(this.broadcastList, UDPMessenger.MessageType.MESG, message);
 	}
 	
 	/**
@@ -593,12 +801,11 @@ public class ChatApp {
 	 * @param peer Sender
 	 */
 	public void handleNotificationMessage(Peer peer) {
-		// peer already acknowledged
-		if (isAcknowledgedPeer(peer))
+		// acknowledge this peer to the list, unless already acknowledged
+		if (!acknowledgePeer(peer))
 			return;
 		
-		// acknowledge this peer to the list
-		this.peerList.add(peer);
+		udpMessenger.getPathMtuDiscovery().discover(peer, getPeerPort());
 		
 		appendMessageToTheChat(peer.toString() + " is now online.", true);
 		
@@ -606,6 +813,21 @@ public class ChatApp {
 		sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.ACKM, "xxx");
 	}
 	
+	/**
+	 * Add a peer to the list unless it is already acknowledged, checked and added at once
+	 * @param peer Peer to be added
+	 * @return True if added, false if already acknowledged
+	 */
+	private boolean acknowledgePeer(Peer peer) {
+		synchronized (this.peerList) {
+			if (isAcknowledgedPeer(peer))
+				return false;
+			
+			this.peerList.add(peer);
+			return true;
+		}
+	}
+	
 	/**
 	 * Check if this peer is already acknowledged
 	 * @param newPeer Peer to be checked
@@ -652,12 +874,11 @@ public class ChatApp {
 	 * @param peer Sender
 	 */
 	public void handleAcknowledgeMessage(Peer peer) {
-		// peer already acknowledged
-		if (isAcknowledgedPeer(peer))
+		// acknowledge this peer to the list, unless already acknowledged
+		if (!acknowledgePeer(peer))
 			return;
 		
-		// acknowledge this peer to the list
-		this.peerList.add(peer);
+		udpMessenger.getPathMtuDiscovery().discover(peer, getPeerPort());
 		
 		appendMessageToTheChat(peer.toString() + " is found online.", true);
 	}
@@ -669,7 +890,11 @@ public class ChatApp {
 		appendMessageToTheChat("List of commands:\n" +
 	                           "/h: Display help\n" +
 	                           "/l: List all online peers\n" +
-				               "/f uid filename: send file to peer with unique id\n" +
+				               "/f uid filename: send file (or whole folder) to peer with unique id\n" +
+				               "/f uid,uid|* filename: distribute file to several or all peers as a swarm\n" +
+				               "/r [global|peer|uid rate]: show or set outgoing file transfer rates\n" +
+				               "/t: List queued, active and finished file transfers\n" +
+				               "/u: Show UDP messages received, dropped and handled\n" +
 				               "/b: Say goodbye\n", false);
 	}
 	
@@ -681,7 +906,7 @@ public class ChatApp {
 		buffer.append("(" + this.peerList.size() + ") online peer(s)\n");
 		
 		for (Peer peer: this.peerList) {
-			buffer.append(peer.toString() + "\n");
+			buffer.append(peer.toString() + (peer.getPathMtu() > 0 ? ", path MTU " + peer.getPathMtu() : "") + "\n");
 		}
 		
 		appendMessageToTheChat(buffer.toString(), false);
@@ -716,15 +941,6 @@ public class ChatApp {
 		Utility.logln("\n" + (showTime ? "[" + DateAndTime.now().toString("hh:mm a") + "] " : "") + message);
 	}
 
-	/**
-	 * Handle quit message
-	 * @param peer Sender
-	 */
-	public void handleQuitMessage(Peer peer) {
-		keepChatting = false;
-		portListener.stopListening();
-	}
-
 	/**
 	 * Handle bye message
 	 * @param peer Sender
@@ -739,15 +955,12 @@ public class ChatApp {
 		
 		appendMessageToTheChat(peer.toString() + " is now offline.", true);
 		
+		// messages to the peer are not sent again
+		udpMessenger.getReliableDelivery().forget(peer.getAddress());
+		udpMessenger.getPathMtuDiscovery().forget(peer.getAddress());
+		
 		// remove offline peer from the list
-		Iterator<Peer> iterator = this.peerList.iterator();
-		while (iterator.hasNext()) {
-			Peer currentPeer = iterator.next();
-			if (currentPeer.getAddress().equals(peer.getAddress())) {
-				iterator.remove();
-				break;
-			}
-		}
+		this.peerList.removeIf(currentPeer -> currentPeer.getAddress().equals(peer.getAddress()));
 	}
 	
 	/**
@@ -759,52 +972,260 @@ public class ChatApp {
 	}
 	
 	/**
-	 * Get common key
-	 * @return Common key
+	 * Get the endpoint receiving files, bound on first use
+	 * @return Transfer server
+	 * @throws IOException If unable to bind the transfer port
+	 */
+	public synchronized TransferServer getTransferServer() throws IOException {
+		if (transferServer == null) {
+			transferServer = new TransferServer();
+			transferServer.start();
+		}
+		return transferServer;
+	}
+	
+	/**
+	 * Get the messenger sending the UDP messages
+	 * @return UDP messenger
+	 */
+	public UDPMessenger getUDPMessenger() {
+		return this.udpMessenger;
+	}
+	
+	/**
+	 * Get the multicast group messages to all peers go to
+	 * @return Group, null if they are broadcast
+	 */
+	public MulticastGroup getMulticastGroup() {
+		return this.multicastGroup;
+	}
+	
+	/**
+	 * Get the scheduler sharing the outgoing bandwidth
+	 * @return Bandwidth scheduler
+	 */
+	public BandwidthScheduler getBandwidthScheduler() {
+		return this.bandwidthScheduler;
+	}
+	
+	/**
+	 * Callback when a file transfer thread is finished, successfully or not
+	 * @param fileTransfer File transfer
 	 */
-	public long getCommonKey() {
-		return this.commonKey;
+	public void fileTransferFinished(FileTransferThread fileTransfer) {
+		fileTransfers.remove(fileTransfer.getTransferId(), fileTransfer);
+	}
+	
+	/**
+	 * Callback when a swarm is over, successfully or not
+	 * @param swarm Swarm
+	 */
+	public void swarmFinished(SwarmTransfer swarm) {
+		swarms.remove(swarm.getSwarmId(), swarm);
+	}
+	
+	/**
+	 * Tell the swarm which invited a peer that the peer will not join it
+	 * @param transferId Transfer ID of the invitation
+	 */
+	private void declineSwarmInvitation(String transferId) {
+		for (SwarmTransfer swarm: swarms.values()) {
+			if (swarm.isOriginator() && swarm.invitationAnswered(transferId, false))
+				return;
+		}
 	}
 
 	/**
 	 * Handle file request message
 	 * @param peer Sender
-	 * @param exchangeKey Exchange key from sender
+	 * @param message Transfer parameters from sender, including the exchange key
 	 */
-	public void handleFileRequestMessage(Peer peer, String exchangeKey) {
+	public void handleFileRequestMessage(Peer peer, String message) {
 		appendMessageToTheChatNoFollowing(peer.toString() + " requested to send a file...", true);
 		
-		calculateCommonKey(exchangeKey);
+		TransferParameters request = TransferParameters.parse(message);
+		long commonKey = calculateCommonKey(request.get(TransferParameters.KEY, ""));
 		
-		// start a new file receiver thread
-		fileReceiver = new FileReceiveThread(this, peer);
-		fileReceiver.start();
+		// invited to a swarm: chunks come from the sender and from the other peers invited
+		if (request.has(TransferParameters.SWARM) && Settings.swarmTransfer()) {
+			try {
+				SwarmTransfer swarm = new SwarmTransfer(this, peer, request);
+				if (swarms.putIfAbsent(swarm.getSwarmId(), swarm) == null) {
+					swarm.start();
+				} else {
+					TransferParameters cancel = new TransferParameters();
+					cancel.put(TransferParameters.ID, request.get(TransferParameters.ID, ""));
+					cancel.put(TransferParameters.REASON, "This file is already being received");
+					sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FCAN, cancel.toString());
+				}
+				return;
+			} catch (IOException ioe) {
+				// received on its own, as any other file
+				Utility.logln("(!) Unable to join the swarm: " + ioe.getMessage());
+			}
+		}
+		
+		// transfer ID routes the connections of the sender to this transfer, legacy senders have none
+		TransferParameters accepted = new TransferParameters();
+		if (request.has(TransferParameters.ID))
+			accepted.put(TransferParameters.ID, request.get(TransferParameters.ID, ""));
+		
+		// plain payload only if both sides allow it, otherwise the strongest encryption both sides support
+		// AES-GCM records are carried by chunk frames, so legacy single streams stay with xor
+		// the AES-GCM key comes from an X25519 key agreement, a sender without a valid public key gets xor
+		List<String> offered = request.getList(TransferParameters.PAYLOAD);
+		TransferParameters.PayloadMode payloadMode = TransferParameters.PayloadMode.XOR;
+		byte[] sharedSecret = null;
+		if (Settings.allowPlainPayload() && offered.contains(TransferParameters.payloadModeAsString(TransferParameters.PayloadMode.PLAIN))) {
+			payloadMode = TransferParameters.PayloadMode.PLAIN;
+		} else if (Settings.aeadPayload() && request.has(TransferParameters.STRIPES) && request.has(TransferParameters.ECDH) && 
+		           offered.contains(TransferParameters.payloadModeAsString(TransferParameters.PayloadMode.AES_GCM))) {
+			KeyExchange keyExchange = new KeyExchange();
+			try {
+				sharedSecret = keyExchange.agree(request.get(TransferParameters.ECDH, ""));
+				accepted.put(TransferParameters.ECDH, keyExchange.getPublicKey());
+				payloadMode = TransferParameters.PayloadMode.AES_GCM;
+			} catch (GeneralSecurityException gse) {
+				Utility.logln("(!) Invalid public key from " + peer.toString() + ": " + gse.getMessage());
+			}
+		}
+		accepted.put(TransferParameters.PAYLOAD, TransferParameters.payloadModeAsString(payloadMode));
+		
+		// directory trees come over one connection, chunk parameters do not apply
+		if (request.has(TransferParameters.DIRECTORY) && request.has(TransferParameters.STRIPES)) {
+			accepted.put(TransferParameters.DIRECTORY, 1);
+		} else if (request.has(TransferParameters.DELTA) && request.has(TransferParameters.STRIPES) && hasOlderCopy(request)) {
+			// only the data not found in the copy already received comes over one connection
+			accepted.put(TransferParameters.DELTA, 1);
+		} else if (request.has(TransferParameters.STRIPES)) {
+			// stripes: the lower of both maximums, legacy senders do not offer any
+			int stripes = Math.min(Settings.maxStripes(), request.getInt(TransferParameters.STRIPES, 1));
+			accepted.put(TransferParameters.STRIPES, Math.max(1, stripes));
+			int chunkSize = Settings.clampChunkSize(request.getInt(TransferParameters.CHUNK, Settings.chunkSize()));
+			accepted.put(TransferParameters.CHUNK, chunkSize);
+			if (Settings.verifyChunks() && MerkleTree.ALGORITHM.equals(request.get(TransferParameters.HASH, "")))
+				accepted.put(TransferParameters.HASH, MerkleTree.ALGORITHM);
+			
+			// each stripe holds a compressed chunk in memory, so only for chunks of a reasonable size
+			String deflate = ChunkCompressor.codecAsString(ChunkCompressor.Codec.DEFLATE);
+			if (Settings.compressChunks() && chunkSize <= ChunkCompressor.MAX_CHUNK_SIZE && 
+			    request.getList(TransferParameters.COMPRESS).contains(deflate))
+				accepted.put(TransferParameters.COMPRESS, deflate);
+		}
+		
+		// content already held under any name completes without a transfer, read again by the receiver before it answers
+		String name = new File(URLDecoder.decode(request.get(TransferParameters.NAME, ""), StandardCharsets.UTF_8)).getName();
+		long size = request.getLong(TransferParameters.SIZE, -1);
+		if (Settings.contentStore() && !accepted.has(TransferParameters.DIRECTORY) && ContentStore.validName(name) && 
+		    ContentStore.contains(request.get(TransferParameters.CONTENT, ""), size)) {
+			accepted.put(TransferParameters.CONTENT, request.get(TransferParameters.CONTENT, ""));
+			accepted.put(TransferParameters.NAME, request.get(TransferParameters.NAME, ""));
+			accepted.put(TransferParameters.SIZE, size);
+		}
+		
+		// the receiver answers once the transfer manager gives it a slot
+		FileReceiveThread fileReceiver = new FileReceiveThread(this, peer, accepted, commonKey, sharedSecret, name);
+		transferManager.submit(TransferManager.Direction.RECEIVE, fileReceiver);
+	}
+
+	/**
+	 * Check if a copy of the file offered as a delta has already been received
+	 * @param request Parameters from the FREQ message
+	 * @return True if deltas are enabled and a file of the same name, at least one block long, is in the folder of received files
+	 */
+	private boolean hasOlderCopy(TransferParameters request) {
+		if (!Settings.deltaTransfer())
+			return false;
+		
+		String name = new File(URLDecoder.decode(request.get(TransferParameters.NAME, ""), StandardCharsets.UTF_8)).getName();
+		if (name.isEmpty() || name.equals(".") || name.equals(".."))
+			return false;
+		
+		File copy = new File(FILE_FOLDER, name);
+		return copy.isFile() && copy.length() >= DeltaSignature.MIN_BLOCK_SIZE;
 	}
 
 	/**
 	 * Handle file accepted message
 	 * @param peer Sender
-	 * @param exchangeKey Exchange key from sender
+	 * @param message Transfer parameters accepted by receiver, including the exchange key
 	 */
-	public void handleFileAcceptedMessage(Peer peer, String exchangeKey) {
-		calculateCommonKey(exchangeKey);
+	public void handleFileAcceptedMessage(Peer peer, String message) {
+		TransferParameters accepted = TransferParameters.parse(message);
+		long commonKey = calculateCommonKey(accepted.get(TransferParameters.KEY, ""));
 		
-		if (fileTransfer != null) {
+		FileTransferThread fileTransfer = findFileTransfer(peer, accepted.get(TransferParameters.ID, null));
+		if (fileTransfer != null && fileTransfer.isAwaitingAnswer()) {
+			// a peer joining the swarm receives the file from the swarm, not from this transfer
+			SwarmTransfer swarm = swarms.get(accepted.get(TransferParameters.SWARM, ""));
+			if (swarm != null && swarm.invitationAnswered(fileTransfer.getTransferId(), true)) {
+				appendMessageToTheChatNoFollowing(peer.toString() + " joined the swarm", true);
+				fileTransfer.decline(null);
+				return;
+			}
+			declineSwarmInvitation(fileTransfer.getTransferId());
+			
+			// the receiver already holds the content offered, nothing to send
+			if (accepted.has(TransferParameters.CONTENT)) {
+				appendMessageToTheChat("(i) " + peer.toString() + " already has file '" + fileTransfer.getFileName() + "', nothing sent", false);
+				fileTransfer.decline(null);
+				return;
+			}
+			
 			appendMessageToTheChatNoFollowing(peer.toString() + " is ready to receive file", true);
-			fileTransfer.start();
+			fileTransfer.accept(accepted, commonKey);
 		}
 	}
 
 	/**
 	 * Handle file cancel message
 	 * @param peer Sender
-	 * @param message Reason to cancel from sender
+	 * @param message Reason to cancel from sender, with the transfer ID unless the sender is legacy
 	 */
 	public void handleFileCancelMessage(Peer peer, String message) {
+		TransferParameters cancel = TransferParameters.parse(message);
+		String reason = cancel.has(TransferParameters.REASON) ? cancel.get(TransferParameters.REASON, "") : message;
+		
+		FileTransferThread fileTransfer = findFileTransfer(peer, cancel.get(TransferParameters.ID, null));
 		if (fileTransfer != null) {
-			appendMessageToTheChat(peer.toString() + " has cancelled the file transfer: " + message, true);
-			fileTransfer = null;
+			appendMessageToTheChat(peer.toString() + " has cancelled the file transfer: " + reason, true);
+			// a transfer not accepted yet is dropped, a running one fails on its own connections
+			if (fileTransfer.decline("Cancelled by the receiver: " + reason))
+				declineSwarmInvitation(fileTransfer.getTransferId());
+		}
+	}
+	
+	/**
+	 * Callback when reliable messages to a peer were given up, it did not acknowledge them
+	 * File requests waiting for its answer are dropped, the answer would never come
+	 * @param address Address of the peer
+	 * @param count Number of messages given up
+	 */
+	public void handleUndeliveredMessages(InetAddress address, int count) {
+		appendMessageToTheChat("(!) " + count + " message(s) to " + address.getHostAddress() + " could not be delivered, no answer", true);
+		
+		for (FileTransferThread fileTransfer: fileTransfers.values()) {
+			if (fileTransfer.getPeer().getAddress().equals(address) && fileTransfer.decline("No answer from the receiver"))
+				declineSwarmInvitation(fileTransfer.getTransferId());
+		}
+	}
+
+	/**
+	 * Find a file being sent
+	 * @param peer Receiver
+	 * @param transferId Transfer ID, null if the receiver is legacy
+	 * @return File transfer, the latest one waiting for an answer of this peer for legacy receivers, null if none
+	 */
+	private FileTransferThread findFileTransfer(Peer peer, String transferId) {
+		if (transferId != null)
+			return fileTransfers.get(transferId);
+		
+		FileTransferThread found = null;
+		for (FileTransferThread fileTransfer: fileTransfers.values()) {
+			if (fileTransfer.getPeer().getAddress().equals(peer.getAddress()) && fileTransfer.isAwaitingAnswer())
+				found = fileTransfer;
 		}
+		return found;
 	}
 
 
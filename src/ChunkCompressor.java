@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * ChunkCompressor decides per chunk whether compression pays off, and compresses or decompresses chunks
+ * A few slices of the chunk are sampled first, a chunk whose bytes look random (high entropy,
+ * e.g. media or archives) is sent as-is without reading it twice
+ * A chunk is only sent compressed if it saves at least MIN_SAVING of its size
+ * One instance is used by one stripe, buffers and (de)compressors are reused from chunk to chunk
+ * @author conqtc
+ *
+ */
+public class ChunkCompressor {
+
+	public static enum Codec {
+		NONE,		// chunk payload is sent as-is
+		DEFLATE		// chunk payload is compressed with deflate
+	}
+
+	// largest chunk size compression is negotiated for, each stripe holds about two chunks in memory
+	public static final int MAX_CHUNK_SIZE = 16 * 1048576;
+
+	// entropy (bits per byte) above which a chunk is not worth compressing
+	private static final double MAX_ENTROPY = 7.5;
+
+	// minimum fraction of the chunk saved by compression
+	private static final double MIN_SAVING = 0.1;
+
+	// number and size of the slices sampled to estimate the entropy of a chunk
+	private static final int SAMPLE_COUNT = 4;
+
+	private static final int SAMPLE_SIZE = 4096;
+
+	private ByteBuffer sample;
+
+	private int[] histogram;
+
+	// whole chunk as read from the file or as received compressed
+	private ByteBuffer input;
+
+	private ByteBuffer output;
+
+	private Deflater deflater;
+
+	private Inflater inflater;
+
+	// receives what is left once a chunk is decompressed, should stay empty
+	private byte[] overflow;
+
+	/**
+	 * Constructor, buffers are allocated on first use
+	 */
+	public ChunkCompressor() {
+		this.histogram = new int[256];
+		this.overflow = new byte[1];
+	}
+
+	/**
+	 * Compress a chunk of a file if it pays off
+	 * @param fileChannel File channel, read with positional reads only
+	 * @param position File position of the chunk
+	 * @param length Length of the chunk
+	 * @return Compressed chunk from position to limit, null if the chunk is to be sent as-is
+	 * @throws IOException If unable to read the file
+	 */
+	public ByteBuffer compress(FileChannel fileChannel, long position, int length) throws IOException {
+		if (estimateEntropy(fileChannel, position, length) > MAX_ENTROPY)
+			return null;
+
+		ByteBuffer input = inputBuffer(length);
+		readFully(fileChannel, input, position);
+		input.flip();
+
+		if (deflater == null)
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+
+		// output stops where compression would no longer pay off
+		int limit = (int) (length * (1 - MIN_SAVING));
+		if (output == null || output.capacity() < limit)
+			output = ByteBuffer.allocate(Math.max(limit, SAMPLE_SIZE));
+		output.clear();
+		output.limit(limit);
+
+		while (!deflater.finished() && output.hasRemaining()) {
+			deflater.deflate(output);
+		}
+		if (!deflater.finished())
+			return null;
+
+		output.flip();
+		return output;
+	}
+
+	/**
+	 * Estimate the entropy of a chunk from a few slices spread over it
+	 * @param fileChannel File channel
+	 * @param position File position of the chunk
+	 * @param length Length of the chunk
+	 * @return Shannon entropy in bits per byte, 0 to 8
+	 * @throws IOException If unable to read the file
+	 */
+	private double estimateEntropy(FileChannel fileChannel, long position, int length) throws IOException {
+		if (sample == null)
+			sample = ByteBuffer.allocate(SAMPLE_SIZE);
+
+		Arrays.fill(histogram, 0);
+		int total = 0;
+		int sliceCount = Math.max(1, Math.min(SAMPLE_COUNT, length / SAMPLE_SIZE));
+		for (int slice = 0; slice < sliceCount; slice++) {
+			sample.clear();
+			sample.limit(Math.min(SAMPLE_SIZE, length));
+			readFully(fileChannel, sample, position + (long) slice * (length / sliceCount));
+
+			for (int index = 0; index < sample.position(); index++) {
+				histogram[sample.get(index) & 0xFF]++;
+			}
+			total += sample.position();
+		}
+
+		double entropy = 0;
+		for (int count: histogram) {
+			if (count == 0)
+				continue;
+
+			double probability = (double) count / total;
+			entropy -= probability * Math.log(probability) / Math.log(2);
+		}
+		return entropy;
+	}
+
+	/**
+	 * Get the buffer receiving a compressed chunk
+	 * @param length Length of the compressed chunk
+	 * @return Buffer, cleared and limited to the length
+	 */
+	public ByteBuffer inputBuffer(int length) {
+		if (input == null || input.capacity() < length)
+			input = ByteBuffer.allocate(length);
+
+		input.clear();
+		input.limit(length);
+		return input;
+	}
+
+	/**
+	 * Decompress a chunk into the target file
+	 * @param compressed Compressed chunk from position to limit
+	 * @param writer Writer of the target file
+	 * @param position File position of the chunk
+	 * @param length Length of the chunk once decompressed
+	 * @return True if the chunk decompressed to exactly its length, false if it is corrupted
+	 * @throws IOException If unable to write
+	 */
+	public boolean decompress(ByteBuffer compressed, MappedFileWriter writer, long position, int length) throws IOException {
+		if (inflater == null)
+			inflater = new Inflater();
+		inflater.reset();
+		inflater.setInput(compressed);
+
+		long end = position + length;
+		try {
+			while (position < end) {
+				ByteBuffer region = writer.regionAt(position, end - position);
+				int offset = region.position();
+				int count = inflater.inflate(region);
+				if (count == 0)
+					return false;	// shorter than the chunk
+
+				writer.commit(region, position, offset, count);
+				position += count;
+			}
+
+			// the end of the stream may not be consumed yet when the output is exactly full
+			if (!inflater.finished() && inflater.inflate(overflow) > 0)
+				return false;	// longer than the chunk
+		} catch (DataFormatException dfe) {
+			return false;
+		}
+
+		return inflater.finished();
+	}
+
+	/**
+	 * Get codec as string
+	 * @param codec Codec
+	 * @return Codec as string
+	 */
+	public static String codecAsString(Codec codec) {
+		return codec.name().toLowerCase();
+	}
+
+	/**
+	 * Get codec from the byte of a frame header
+	 * @param value Byte value
+	 * @return Codec, null if unknown
+	 */
+	public static Codec codecFromByte(int value) {
+		Codec[] codecs = Codec.values();
+		return (value >= 0 && value < codecs.length) ? codecs[value] : null;
+	}
+
+	/**
+	 * Fill the remaining of a buffer from the file
+	 * @param fileChannel File channel
+	 * @param buffer Buffer to fill
+	 * @param position File position to read from
+	 * @throws IOException If unable to read or the file is shorter than expected
+	 */
+	private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position() - start) < 0)
+				throw new EOFException("File was truncated while compressing");
+		}
+	}
+}
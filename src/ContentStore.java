@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.concurrent.*;
+
+/**
+ * ContentStore keeps the files received by content instead of by name
+ * Each content is stored once in the store folder, named after its hash (the root of its Merkle tree with CHUNK_SIZE chunks),
+ * and the files in the folder of received files are name entries pointing at it (hard links, copies where links are not supported)
+ * The same file received under several names or from several peers takes the disk space once,
+ * and a sender offering the hash of content already held completes without sending anything
+ * A name already taken by other content is never overwritten, the content held so far keeps a name of its own
+ * @author conqtc
+ *
+ */
+public class ContentStore {
+
+	// folder of the content, inside the folder of received files
+	public static final String STORE_FOLDER = ".store";
+
+	// chunk size of the Merkle tree giving the hash of a content, the default chunk size of transfers so their trees serve as is
+	public static final int CHUNK_SIZE = 4 * 1048576;
+
+	// content hash of the files offered, computed again only once a file changes
+	private static final ConcurrentHashMap<String, OfferedFile> OFFERED = new ConcurrentHashMap<>();
+
+	/**
+	 * OfferedFile is the content hash of a file as it was when hashed
+	 */
+	private static class OfferedFile {
+
+		private long size;
+
+		private long lastModified;
+
+		private String hash;
+	}
+
+	/**
+	 * Get the content hash of a file to offer, files hashed before are hashed again only if they changed since
+	 * @param file File to send
+	 * @return Content hash (hex)
+	 * @throws IOException If unable to read the file
+	 */
+	public static String contentHash(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		OfferedFile offered = OFFERED.get(path);
+		if (offered != null && offered.size == size && offered.lastModified == lastModified)
+			return offered.hash;
+
+		long startTime = System.nanoTime();
+		offered = new OfferedFile();
+		offered.size = size;
+		offered.lastModified = lastModified;
+		offered.hash = MerkleTree.toHex(hash(file, size));
+		OFFERED.put(path, offered);
+		Utility.logln("    content hash of '" + file.getName() + "': " + offered.hash.substring(0, 16) + "... (" +
+		              Utility.formatRate(size, System.nanoTime() - startTime) + ")");
+		return offered.hash;
+	}
+
+	/**
+	 * Check if some content might be held, without reading it
+	 * @param hex Content hash (hex)
+	 * @param size Size of the content
+	 * @return True if the store has content of this hash and size
+	 */
+	public static boolean contains(String hex, long size) {
+		File object = objectFile(MerkleTree.fromHex(hex));
+		return object != null && object.isFile() && object.length() == size;
+	}
+
+	/**
+	 * Give a name to content already held, read again first as a name entry may have been edited since
+	 * @param hex Content hash (hex)
+	 * @param name Name of the file
+	 * @param size Size of the content
+	 * @return Name entry, null if the content is not held
+	 * @throws IOException If unable to read the content or to create the name entry
+	 */
+	public static synchronized File complete(String hex, String name, long size) throws IOException {
+		byte[] hash = MerkleTree.fromHex(hex);
+		File object = objectFile(hash);
+		if (!validName(name) || object == null || !object.isFile() || object.length() != size)
+			return null;
+
+		if (!MessageDigest.isEqual(hash(object, size), hash)) {
+			// changed through one of its names, dropped from the store, the names keep their data
+			Utility.logln("    content " + hex.substring(0, 16) + "... changed since it was received, dropped from the store");
+			Files.delete(object.toPath());
+			return null;
+		}
+
+		return link(object, name);
+	}
+
+	/**
+	 * Store the data of a file received and give it its name
+	 * Without the store, the data simply takes the name, as it always did
+	 * @param data File holding the data, e.g. the partial file, moved into the store or deleted if the content is already held
+	 * @param name Name of the file
+	 * @param root Root of the Merkle tree of the data with CHUNK_SIZE chunks if verified while receiving, null to hash the data
+	 * @return Name entry
+	 * @throws IOException If the name is not valid, or unable to read the data or to create the name entry
+	 */
+	public static synchronized File commit(File data, String name, byte[] root) throws IOException {
+		if (!validName(name))
+			throw new IOException("Invalid file '" + name + "'");
+
+		if (!Settings.contentStore()) {
+			File target = new File(ChatApp.FILE_FOLDER, name);
+			Files.move(data.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return target;
+		}
+
+		long size = data.length();
+		byte[] hash = (root != null) ? root : hash(data, size);
+		File object = objectFile(hash);
+		object.getParentFile().mkdirs();
+
+		if (object.isFile() && object.length() == size && MessageDigest.isEqual(hash(object, size), hash)) {
+			// received again, the content held so far is kept
+			Files.delete(data.toPath());
+		} else {
+			Files.move(data.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		return link(object, name);
+	}
+
+	/**
+	 * Create the name entry of some content
+	 * A name taken by other content is kept: that content is renamed, e.g. "report (1).pdf"
+	 * @param object Content in the store
+	 * @param name Name of the file
+	 * @return Name entry
+	 * @throws IOException If unable to create the name entry
+	 */
+	private static File link(File object, String name) throws IOException {
+		File target = new File(ChatApp.FILE_FOLDER, name);
+		if (target.exists()) {
+			if (Files.isSameFile(target.toPath(), object.toPath()))
+				return target;
+
+			File kept = freeName(name);
+			Files.move(target.toPath(), kept.toPath());
+			Utility.logln("    '" + name + "' held other content, kept as '" + kept.getName() + "'");
+		}
+
+		try {
+			Files.createLink(target.toPath(), object.toPath());
+		} catch (UnsupportedOperationException | IOException e) {
+			// file systems without hard links get a copy
+			Files.copy(object.toPath(), target.toPath());
+		}
+		return target;
+	}
+
+	/**
+	 * Find a name not taken yet, numbered before the extension
+	 * @param name Name of the file
+	 * @return File not existing yet in the folder of received files
+	 */
+	private static File freeName(String name) {
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0) ? name.substring(0, dot) : name;
+		String extension = (dot > 0) ? name.substring(dot) : "";
+
+		for (int number = 1; ; number++) {
+			File file = new File(ChatApp.FILE_FOLDER, base + " (" + number + ")" + extension);
+			if (!file.exists())
+				return file;
+		}
+	}
+
+	/**
+	 * Hash the content of a file, in parallel on the shared hashing pool
+	 * @param file File
+	 * @param size Size of the file
+	 * @return Root of its Merkle tree with CHUNK_SIZE chunks
+	 * @throws IOException If unable to read the file
+	 */
+	private static byte[] hash(File file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return MerkleTree.build(channel, size, CHUNK_SIZE).getRoot();
+		}
+	}
+
+	/**
+	 * Get the file holding some content in the store
+	 * @param hash Content hash
+	 * @return File, null if the hash is not valid
+	 */
+	private static File objectFile(byte[] hash) {
+		if (hash == null)
+			return null;
+
+		return new File(new File(ChatApp.FILE_FOLDER, STORE_FOLDER), MerkleTree.toHex(hash));
+	}
+
+	/**
+	 * Check if a name received from a peer stays in the folder of received files
+	 * @param name Name of the file
+	 * @return True if valid
+	 */
+	public static boolean validName(String name) {
+		return name != null && !name.isEmpty() && name.equals(new File(name).getName()) &&
+		       !name.equals(".") && !name.equals("..") && !name.equals(STORE_FOLDER);
+	}
+}
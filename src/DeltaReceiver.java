@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ * DeltaReceiver receives a file sent by a DeltaSender, rebuilt from the copy already in the folder of received files
+ * The signature of the copy is computed in parallel, the file is rebuilt as a partial file next to it,
+ * then checked against the Merkle root of the sender before it takes the name of the copy
+ * @author conqtc
+ *
+ */
+public class DeltaReceiver {
+
+	private FileReceiveThread receiver;
+
+	private SocketChannel channel;
+
+	private StripeReceiver.Header header;
+
+	private File target;
+
+	private File partialFile;
+
+	// bytes of the file received as literal data and copied from the old copy
+	private long literalBytes;
+
+	private long copiedBytes;
+
+	// bytes on the wire both ways, the signature included
+	private long wireBytes;
+
+	private long lastProgress;
+
+	/**
+	 * Constructor
+	 * @param receiver Owning file receiver
+	 * @param channel Connection routed to the transfer, in blocking mode
+	 * @param header Stream header read from the connection
+	 * @throws IOException If the file name is not valid
+	 */
+	public DeltaReceiver(FileReceiveThread receiver, SocketChannel channel, StripeReceiver.Header header) throws IOException {
+		String name = new File(header.getFileName()).getName();
+		if (name.isEmpty() || name.equals(".") || name.equals("..") || header.getFileSize() < 0)
+			throw new IOException("Invalid file '" + header.getFileName() + "'");
+
+		this.receiver = receiver;
+		this.channel = channel;
+		this.header = header;
+		this.target = new File(ChatApp.FILE_FOLDER, name);
+		this.partialFile = new File(ChatApp.FILE_FOLDER, name + FileReceiveThread.PARTIAL_EXTENSION);
+	}
+
+	/**
+	 * Receive the file
+	 * @throws Exception If something went wrong while receiving, or the file rebuilt does not match
+	 */
+	public void receive() throws Exception {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), DeltaSender.SEGMENT_SIZE));
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+		PayloadCodec codec = new PayloadCodec(receiver.getPayloadMode(), receiver.getRecordCipher(), receiver.getKey());
+
+		// a partial file left by a striped attempt is rebuilt from scratch, its checkpoint is of no use
+		new File(ChatApp.FILE_FOLDER, partialFile.getName() + TransferCheckpoint.EXTENSION).delete();
+		byte[] contentHash;
+
+		try (FileChannel old = target.isFile() ? FileChannel.open(target.toPath(), StandardOpenOption.READ) : null;
+		     FileChannel partial = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long oldSize = (old != null) ? old.size() : 0;
+			int blockSize = DeltaSignature.blockSizeFor(oldSize);
+			long signatureStart = System.nanoTime();
+			DeltaSignature signature = DeltaSignature.compute(old, oldSize, blockSize);
+			ByteBuffer encoded = signature.encode();
+			Utility.logln("    signature of the old copy: " + signature.getBlockCount() + " block(s) of " + blockSize + " bytes, computed on " +
+			              Runtime.getRuntime().availableProcessors() + " core(s) (" + Utility.formatRate(oldSize, System.nanoTime() - signatureStart) + ")");
+
+			dos.writeLong(oldSize);
+			dos.writeInt(blockSize);
+			dos.writeInt(signature.getBlockCount());
+			wireBytes = 16 + codec.wireLength(encoded.remaining());
+			codec.write(dos, -1, encoded);
+			dos.flush();
+
+			rebuild(dis, codec, old, partial, signature);
+
+			// the file rebuilt must be the file of the sender
+			int rootChunkSize = Settings.clampChunkSize(dis.readInt());
+			byte[] root = new byte[MerkleTree.HASH_SIZE];
+			dis.readFully(root);
+			wireBytes += 5 + MerkleTree.HASH_SIZE;
+			boolean verified = partial.size() == header.getFileSize() &&
+			                   MessageDigest.isEqual(MerkleTree.build(partial, header.getFileSize(), rootChunkSize).getRoot(), root);
+			dos.writeByte(verified ? 1 : 0);
+			dos.flush();
+			if (!verified)
+				throw new IOException("File rebuilt from the old copy does not match the file sent");
+			contentHash = (rootChunkSize == ContentStore.CHUNK_SIZE) ? root : null;
+		} catch (Exception e) {
+			partialFile.delete();
+			throw e;
+		}
+
+		// the old copy keeps a name of its own if the content store is used
+		ContentStore.commit(partialFile, target.getName(), contentHash);
+	}
+
+	/**
+	 * Rebuild the file from the instructions of the sender, until END
+	 * @param dis Input stream of the socket
+	 * @param codec Codec decrypting the literal data
+	 * @param old Old copy, null if none
+	 * @param partial Partial file, written sequentially
+	 * @param signature Signature of the old copy
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private void rebuild(DataInputStream dis, PayloadCodec codec, FileChannel old, FileChannel partial, DeltaSignature signature) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(DeltaSender.SEGMENT_SIZE);
+		long blockSize = signature.getBlockSize();
+		int sequence = 0;
+		lastProgress = System.nanoTime();
+
+		while (true) {
+			byte type = dis.readByte();
+			if (type == DeltaSender.END)
+				return;
+
+			if (type == DeltaSender.COPY) {
+				int block = dis.readInt();
+				int blocks = dis.readInt();
+				wireBytes += 9;
+				if (block < 0 || blocks <= 0 || (long) block + blocks > signature.getBlockCount())
+					throw new IOException("Invalid blocks " + block + "+" + blocks + " of the old copy");
+
+				long position = block * blockSize;
+				long end = position + blocks * blockSize;
+				while (position < end) {
+					long count = old.transferTo(position, end - position, partial);
+					if (count <= 0)
+						throw new EOFException("Old copy was truncated while rebuilding the file");
+					position += count;
+				}
+				copiedBytes += blocks * blockSize;
+			} else if (type == DeltaSender.LITERAL) {
+				int length = dis.readInt();
+				if (length <= 0 || length > DeltaSender.SEGMENT_SIZE)
+					throw new IOException("Invalid literal of " + length + " bytes");
+
+				data.clear();
+				data.limit(length);
+				codec.read(dis, sequence++, data);
+				data.flip();
+				while (data.hasRemaining()) {
+					partial.write(data);
+				}
+				literalBytes += length;
+				wireBytes += 5 + codec.wireLength(length);
+			} else {
+				throw new IOException("Invalid instruction " + type);
+			}
+
+			if (literalBytes + copiedBytes > header.getFileSize())
+				throw new IOException("File rebuilt from the old copy is larger than the file sent");
+			reportProgress();
+		}
+	}
+
+	/**
+	 * Log the progress every progress interval
+	 */
+	private void reportProgress() {
+		long now = System.nanoTime();
+		if (now - lastProgress >= DirectorySender.PROGRESS_INTERVAL) {
+			lastProgress = now;
+			long rebuilt = literalBytes + copiedBytes;
+			Utility.logln("    " + rebuilt * 100 / Math.max(1, header.getFileSize()) + "% rebuilt: " + literalBytes / 1048576 + " MB received, " +
+			              copiedBytes / 1048576 + " MB copied from the old copy");
+		}
+	}
+
+	/**
+	 * Get bytes of the file received as literal data
+	 * @return Number of bytes
+	 */
+	public long getLiteralBytes() {
+		return this.literalBytes;
+	}
+
+	/**
+	 * Get bytes of the file copied from the old copy
+	 * @return Number of bytes
+	 */
+	public long getCopiedBytes() {
+		return this.copiedBytes;
+	}
+
+	/**
+	 * Get bytes on the wire both ways, the signature included
+	 * @return Number of bytes
+	 */
+	public long getWireBytes() {
+		return this.wireBytes;
+	}
+
+	/**
+	 * Get the file being received
+	 * @return Target file
+	 */
+	public File getTarget() {
+		return this.target;
+	}
+}
@@ -0,0 +1,379 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * DeltaSender sends a file the receiver already has an older copy of, rsync style, over one connection
+ * The receiver answers the stream header with the signature of its copy, the file is then matched against it
+ * in parallel regions and only the data not found in the old copy goes on the wire, with references to the blocks found
+ * Stream: the stream header (file name, size, chunk size 0, transfer ID), then the receiver answers
+ *     long size of its copy, int block size, int number of blocks, then the encoded signature as one payload block (sequence -1)
+ * then one instruction after another:
+ *     COPY: int first block, int number of blocks, copied from the old copy
+ *     LITERAL: int length, then the data as one payload block, numbered from 0
+ *     END: int chunk size, Merkle root of the file built with that chunk size
+ * The receiver rebuilds the file next to its copy and answers 1 once the root matches, 0 otherwise
+ * @author conqtc
+ *
+ */
+public class DeltaSender {
+
+	public static final byte END = 0;
+
+	public static final byte COPY = 1;
+
+	public static final byte LITERAL = 2;
+
+	// largest literal sent at once, longer runs of new data are split
+	public static final int SEGMENT_SIZE = 256 * 1024;
+
+	// smallest region matched by one task, a match can not cross the end of a region
+	private static final long MIN_REGION_SIZE = 16 * 1048576;
+
+	// largest region, mapped at once
+	private static final long MAX_REGION_SIZE = 1024 * 1048576;
+
+	private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+	private FileTransferThread transfer;
+
+	private FileChannel channel;
+
+	private long fileSize;
+
+	private DeltaSignature signature;
+
+	// bytes of the file sent as literal data and found in the old copy
+	private long literalBytes;
+
+	private long matchedBytes;
+
+	// bytes on the wire both ways, the signature included
+	private long wireBytes;
+
+	private int regionCount;
+
+	/**
+	 * Instruction is a run of blocks found in the old copy, or a run of new data
+	 */
+	private static class Instruction {
+
+		private byte type;
+
+		// COPY: first block and number of blocks
+		private int block;
+
+		private int count;
+
+		// LITERAL: position and length of the data in the file
+		private long position;
+
+		private long length;
+	}
+
+	/**
+	 * Constructor
+	 * @param transfer Owning file transfer
+	 * @param channel File channel of the file to send, read with positional reads only
+	 */
+	public DeltaSender(FileTransferThread transfer, FileChannel channel) {
+		this.transfer = transfer;
+		this.channel = channel;
+	}
+
+	/**
+	 * Send the file
+	 * @param address Receiver address
+	 * @throws Exception If something went wrong while reading or sending, or the receiver could not rebuild the file
+	 */
+	public void send(InetAddress address) throws Exception {
+		fileSize = channel.size();
+		try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(address, ChatApp.DEFAULT_PORT - 2))) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.socket().getOutputStream(), OUTPUT_BUFFER_SIZE));
+			dos.writeUTF(transfer.getFileName());
+			dos.writeLong(fileSize);
+			dos.writeInt(0);
+			dos.writeUTF(transfer.getTransferId());
+			dos.flush();
+
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.socket().getInputStream()));
+			PayloadCodec codec = new PayloadCodec(transfer.getPayloadMode(), transfer.getRecordCipher(), transfer.getKey());
+			long oldSize = dis.readLong();
+			int blockSize = dis.readInt();
+			int blockCount = dis.readInt();
+			if (blockCount < 0 || blockCount > oldSize / Math.max(1, blockSize))
+				throw new IOException("Invalid signature of " + blockCount + " block(s)");
+
+			ByteBuffer encoded = ByteBuffer.allocate(blockCount * DeltaSignature.ENTRY_SIZE);
+			codec.read(dis, -1, encoded);
+			encoded.flip();
+			signature = DeltaSignature.decode(oldSize, blockSize, encoded);
+			wireBytes = 16 + codec.wireLength(encoded.capacity());
+			Utility.logln("    signature of the old copy: " + blockCount + " block(s) of " + blockSize + " bytes (" +
+			              wireBytes / 1024 + " KB)");
+
+			long matchStart = System.nanoTime();
+			List<Instruction> instructions = match();
+			Utility.logln("    matched in " + regionCount + " region(s) (" + Utility.formatRate(fileSize, System.nanoTime() - matchStart) +
+			              "): " + matchedBytes / 1024 + " KB found in the old copy, " + literalBytes / 1024 + " KB to send");
+
+			// the root of the store chunk size doubles as the content hash of the file rebuilt, see ContentStore
+			int rootChunkSize = ContentStore.CHUNK_SIZE;
+			MerkleTree merkleTree = MerkleTree.build(channel, fileSize, rootChunkSize);
+
+			sendInstructions(dos, codec, instructions);
+			dos.writeByte(END);
+			dos.writeInt(rootChunkSize);
+			dos.write(merkleTree.getRoot());
+			dos.flush();
+			wireBytes += 5 + MerkleTree.HASH_SIZE;
+
+			if (dis.readByte() != 1)
+				throw new IOException("Receiver could not rebuild the file from its old copy");
+		}
+	}
+
+	/**
+	 * Match the file against the signature, regions of the file are matched in parallel
+	 * @return Instructions rebuilding the file, in order
+	 * @throws IOException If unable to read the file
+	 */
+	private List<Instruction> match() throws IOException {
+		regionCount = (int) Math.max((fileSize + MAX_REGION_SIZE - 1) / MAX_REGION_SIZE,
+		                             Math.min(Runtime.getRuntime().availableProcessors(), fileSize / MIN_REGION_SIZE));
+		regionCount = Math.max(1, regionCount);
+		long regionSize = (fileSize + regionCount - 1) / regionCount;
+
+		ArrayList<MatchTask> tasks = new ArrayList<>();
+		for (long start = 0; start < fileSize; start += regionSize) {
+			tasks.add(new MatchTask(start, Math.min(regionSize, fileSize - start)));
+		}
+
+		try {
+			MerkleTree.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} catch (UncheckedIOException uioe) {
+			throw new IOException(uioe.getMessage(), uioe);
+		}
+
+		// regions are joined, a run going on in the next region is merged into one instruction
+		ArrayList<Instruction> instructions = new ArrayList<>();
+		for (MatchTask task: tasks) {
+			for (Instruction instruction: task.instructions) {
+				Instruction last = instructions.isEmpty() ? null : instructions.get(instructions.size() - 1);
+				if (last != null && last.type == LITERAL && instruction.type == LITERAL) {
+					last.length += instruction.length;
+				} else if (last != null && last.type == COPY && instruction.type == COPY && last.block + last.count == instruction.block) {
+					last.count += instruction.count;
+				} else {
+					instructions.add(instruction);
+				}
+
+				if (instruction.type == LITERAL) {
+					literalBytes += instruction.length;
+				} else {
+					matchedBytes += (long) instruction.count * signature.getBlockSize();
+				}
+			}
+		}
+		return instructions;
+	}
+
+	/**
+	 * Write the instructions, literal data is read from the file as it goes
+	 * @param dos Output stream of the socket
+	 * @param codec Codec encrypting the literal data
+	 * @param instructions Instructions rebuilding the file
+	 * @throws IOException If unable to read or send
+	 */
+	private void sendInstructions(DataOutputStream dos, PayloadCodec codec, List<Instruction> instructions) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(SEGMENT_SIZE);
+		int sequence = 0;
+
+		for (Instruction instruction: instructions) {
+			if (instruction.type == COPY) {
+				dos.writeByte(COPY);
+				dos.writeInt(instruction.block);
+				dos.writeInt(instruction.count);
+				wireBytes += 9;
+				transfer.bytesSent((long) instruction.count * signature.getBlockSize());
+				continue;
+			}
+
+			long position = instruction.position;
+			long end = instruction.position + instruction.length;
+			while (position < end) {
+				data.clear();
+				data.limit((int) Math.min(SEGMENT_SIZE, end - position));
+				while (data.hasRemaining()) {
+					if (channel.read(data, position + data.position()) < 0)
+						throw new EOFException("File was truncated while sending");
+				}
+				data.flip();
+				int length = data.limit();
+
+				int wireLength = codec.wireLength(length);
+				transfer.throttle(wireLength);
+				dos.writeByte(LITERAL);
+				dos.writeInt(length);
+				codec.write(dos, sequence++, data);
+				wireBytes += 5 + wireLength;
+				transfer.bytesSent(length);
+				position += length;
+			}
+		}
+	}
+
+	/**
+	 * Get bytes of the file sent as literal data
+	 * @return Number of bytes
+	 */
+	public long getLiteralBytes() {
+		return this.literalBytes;
+	}
+
+	/**
+	 * Get bytes of the file found in the old copy
+	 * @return Number of bytes
+	 */
+	public long getMatchedBytes() {
+		return this.matchedBytes;
+	}
+
+	/**
+	 * Get bytes on the wire both ways, the signature included
+	 * @return Number of bytes
+	 */
+	public long getWireBytes() {
+		return this.wireBytes;
+	}
+
+	/**
+	 * MatchTask slides the weak checksum over one region of the file, one byte at a time until a block is found
+	 */
+	private class MatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private long start;
+
+		private long length;
+
+		private ArrayList<Instruction> instructions;
+
+		/**
+		 * Constructor
+		 * @param start Position of the region
+		 * @param length Length of the region
+		 */
+		private MatchTask(long start, long length) {
+			this.start = start;
+			this.length = length;
+			this.instructions = new ArrayList<>();
+		}
+
+		/**
+		 * Implementation of RecursiveAction
+		 */
+		protected void compute() {
+			try {
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				scan(region);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		/**
+		 * Scan the region
+		 * @param region Mapped region
+		 */
+		private void scan(ByteBuffer region) {
+			int size = region.limit();
+			int blockSize = signature.getBlockSize();
+			int literalStart = 0;
+			int position = 0;
+			// a and b sums of the window, computed again after each block found
+			int a = 0;
+			int b = 0;
+			boolean fresh = true;
+
+			while (signature.getBlockCount() > 0 && position + blockSize <= size) {
+				if (fresh) {
+					a = 0;
+					b = 0;
+					for (int index = 0; index < blockSize; index++) {
+						int value = region.get(position + index) & 0xFF;
+						a += value;
+						b += (blockSize - index) * value;
+					}
+					fresh = false;
+				}
+
+				region.limit(position + blockSize);
+				region.position(position);
+				int block = signature.find(DeltaSignature.pack(a, b), region);
+				region.limit(size);
+				if (block >= 0) {
+					literal(literalStart, position);
+					copy(block);
+					position += blockSize;
+					literalStart = position;
+					fresh = true;
+					continue;
+				}
+
+				// roll the window one byte forward
+				if (position + blockSize < size) {
+					int out = region.get(position) & 0xFF;
+					a += (region.get(position + blockSize) & 0xFF) - out;
+					b += a - blockSize * out;
+				}
+				position++;
+			}
+			literal(literalStart, size);
+		}
+
+		/**
+		 * Add a run of new data
+		 * @param from Offset of the first byte in the region
+		 * @param to Offset after the last byte
+		 */
+		private void literal(int from, int to) {
+			if (from >= to)
+				return;
+
+			Instruction instruction = new Instruction();
+			instruction.type = LITERAL;
+			instruction.position = start + from;
+			instruction.length = to - from;
+			instructions.add(instruction);
+		}
+
+		/**
+		 * Add a block found in the old copy, merged with the previous one if they follow each other
+		 * @param block Index of the block
+		 */
+		private void copy(int block) {
+			Instruction last = instructions.isEmpty() ? null : instructions.get(instructions.size() - 1);
+			if (last != null && last.type == COPY && last.block + last.count == block) {
+				last.count++;
+				return;
+			}
+
+			Instruction instruction = new Instruction();
+			instruction.type = COPY;
+			instruction.block = block;
+			instruction.count = 1;
+			instructions.add(instruction);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * DeltaSignature holds the block checksums of a file, the receiver side of an rsync style delta transfer
+ * Each full block of the file has a weak rolling checksum, cheap to slide one byte at a time over the new file,
+ * and a strong hash, only checked when the weak checksum matches
+ * Blocks are hashed in parallel on the shared hashing pool
+ * https://rsync.samba.org/tech_report/node3.html
+ * @author conqtc
+ *
+ */
+public class DeltaSignature {
+
+	// bytes of the strong hash kept per block, the whole file is verified against its Merkle root anyway
+	public static final int STRONG_SIZE = 16;
+
+	// bytes per block in the encoded signature: weak checksum, strong hash
+	public static final int ENTRY_SIZE = 4 + STRONG_SIZE;
+
+	public static final int MIN_BLOCK_SIZE = 2048;
+
+	public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	// bytes read and hashed by one task of the pool
+	private static final int TASK_SIZE = 4 * 1048576;
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> newDigest());
+
+	private long fileSize;
+
+	private int blockSize;
+
+	private int blockCount;
+
+	private int[] weak;
+
+	// strong hash of each block, STRONG_SIZE bytes each
+	private byte[] strong;
+
+	// hash table of the weak checksums: first block of each bucket and next block of the same bucket, both plus one
+	private int[] buckets;
+
+	private int[] next;
+
+	// shift keeping the top bits of the mixed checksum, as many as the bucket index needs
+	private int bucketShift;
+
+	/**
+	 * Constructor
+	 * @param fileSize Size of the file
+	 * @param blockSize Size of each block
+	 * @param weak Weak checksum of each full block
+	 * @param strong Strong hash of each full block
+	 */
+	private DeltaSignature(long fileSize, int blockSize, int[] weak, byte[] strong) {
+		this.fileSize = fileSize;
+		this.blockSize = blockSize;
+		this.blockCount = weak.length;
+		this.weak = weak;
+		this.strong = strong;
+
+		int bucketCount = Integer.highestOneBit(Math.max(1, blockCount) * 2);
+		this.buckets = new int[bucketCount];
+		this.bucketShift = Integer.numberOfLeadingZeros(bucketCount) + 1;
+		this.next = new int[blockCount];
+		// blocks are chained in reverse, so the first block of equal ones is found first
+		for (int block = blockCount - 1; block >= 0; block--) {
+			int bucket = bucketOf(weak[block]);
+			next[block] = buckets[bucket];
+			buckets[bucket] = block + 1;
+		}
+	}
+
+	/**
+	 * Get the block size used for a file, about the square root of its size as rsync does
+	 * @param fileSize Size of the file
+	 * @return Block size, a power of two between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE
+	 */
+	public static int blockSizeFor(long fileSize) {
+		long root = Long.highestOneBit(Math.max(1, (long) Math.sqrt(fileSize)));
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+	}
+
+	/**
+	 * Compute the signature of a file, its full blocks are hashed in parallel
+	 * The last partial block is left out, it is sent as literal data if still needed
+	 * @param channel File channel, read with positional reads only, null if there is no file
+	 * @param fileSize Size of the file, 0 if there is no file
+	 * @param blockSize Size of each block
+	 * @return Signature of the file
+	 * @throws IOException If unable to read the file
+	 */
+	public static DeltaSignature compute(FileChannel channel, long fileSize, int blockSize) throws IOException {
+		int blockCount = (int) Math.min(Integer.MAX_VALUE / ENTRY_SIZE, fileSize / blockSize);
+		int[] weak = new int[blockCount];
+		byte[] strong = new byte[blockCount * STRONG_SIZE];
+
+		try {
+			MerkleTree.invoke(new SignatureTask(channel, blockSize, weak, strong, 0, blockCount));
+		} catch (UncheckedIOException uioe) {
+			throw new IOException(uioe.getMessage(), uioe);
+		}
+
+		return new DeltaSignature(fileSize, blockSize, weak, strong);
+	}
+
+	/**
+	 * Encode the checksums of the blocks
+	 * @return Heap buffer, ENTRY_SIZE bytes per block
+	 */
+	public ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(blockCount * ENTRY_SIZE);
+		for (int block = 0; block < blockCount; block++) {
+			buffer.putInt(weak[block]);
+			buffer.put(strong, block * STRONG_SIZE, STRONG_SIZE);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decode the checksums of the blocks
+	 * @param fileSize Size of the file
+	 * @param blockSize Size of each block
+	 * @param buffer Encoded checksums, ENTRY_SIZE bytes per block
+	 * @return Signature
+	 * @throws IOException If the sizes do not match
+	 */
+	public static DeltaSignature decode(long fileSize, int blockSize, ByteBuffer buffer) throws IOException {
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || buffer.remaining() % ENTRY_SIZE != 0 ||
+		    buffer.remaining() / ENTRY_SIZE != fileSize / blockSize)
+			throw new IOException("Invalid signature of " + buffer.remaining() / ENTRY_SIZE + " block(s) of " + blockSize + " bytes");
+
+		int blockCount = buffer.remaining() / ENTRY_SIZE;
+		int[] weak = new int[blockCount];
+		byte[] strong = new byte[blockCount * STRONG_SIZE];
+		for (int block = 0; block < blockCount; block++) {
+			weak[block] = buffer.getInt();
+			buffer.get(strong, block * STRONG_SIZE, STRONG_SIZE);
+		}
+		return new DeltaSignature(fileSize, blockSize, weak, strong);
+	}
+
+	/**
+	 * Find a block with the same content as a window of the new file
+	 * @param checksum Weak checksum of the window
+	 * @param window Window of the new file, from position to limit, left unchanged
+	 * @return Index of the block, -1 if none
+	 */
+	public int find(int checksum, ByteBuffer window) {
+		int candidate = buckets[bucketOf(checksum)];
+		if (candidate == 0)
+			return -1;
+
+		// the strong hash is only worth computing once a weak checksum matches
+		byte[] hash = null;
+		for (; candidate != 0; candidate = next[candidate - 1]) {
+			int block = candidate - 1;
+			if (weak[block] != checksum)
+				continue;
+
+			if (hash == null)
+				hash = strongHash(window.duplicate());
+			if (Arrays.equals(hash, 0, STRONG_SIZE, strong, block * STRONG_SIZE, (block + 1) * STRONG_SIZE))
+				return block;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compute the weak checksum of a window, a and b sums of rsync packed in one int
+	 * @param window Window, from position to limit, left unchanged
+	 * @return Weak checksum
+	 */
+	public static int weakChecksum(ByteBuffer window) {
+		int length = window.remaining();
+		int a = 0;
+		int b = 0;
+		for (int index = 0; index < length; index++) {
+			int value = window.get(window.position() + index) & 0xFF;
+			a += value;
+			b += (length - index) * value;
+		}
+		return pack(a, b);
+	}
+
+	/**
+	 * Pack the a and b sums into a weak checksum
+	 * @param a Sum of the bytes
+	 * @param b Sum of the bytes weighted by their distance to the end of the window
+	 * @return Weak checksum
+	 */
+	public static int pack(int a, int b) {
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/**
+	 * Compute the strong hash of a window
+	 * @param window Window, from position to limit, consumed
+	 * @return Strong hash, STRONG_SIZE bytes
+	 */
+	private static byte[] strongHash(ByteBuffer window) {
+		MessageDigest digest = DIGESTS.get();
+		digest.update(window);
+		return Arrays.copyOf(digest.digest(), STRONG_SIZE);
+	}
+
+	/**
+	 * Get the bucket of a weak checksum
+	 * @param checksum Weak checksum
+	 * @return Bucket index
+	 */
+	private int bucketOf(int checksum) {
+		return ((checksum * 0x9E3779B9) >>> bucketShift) & (buckets.length - 1);
+	}
+
+	/**
+	 * Get size of the file
+	 * @return File size
+	 */
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	/**
+	 * Get size of each block
+	 * @return Block size in bytes
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * Get number of full blocks
+	 * @return Number of blocks
+	 */
+	public int getBlockCount() {
+		return this.blockCount;
+	}
+
+	/**
+	 * Create a message digest for the strong hashes
+	 * @return Message digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(MerkleTree.ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * SignatureTask hashes a range of blocks, split in halves until it fits in one read of TASK_SIZE bytes
+	 */
+	private static class SignatureTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private FileChannel channel;
+
+		private int blockSize;
+
+		private int[] weak;
+
+		private byte[] strong;
+
+		private int from;
+
+		private int to;
+
+		/**
+		 * Constructor
+		 * @param channel File channel
+		 * @param blockSize Size of each block
+		 * @param weak Array receiving the weak checksums
+		 * @param strong Array receiving the strong hashes
+		 * @param from First block of the range
+		 * @param to Block after the last one of the range
+		 */
+		private SignatureTask(FileChannel channel, int blockSize, int[] weak, byte[] strong, int from, int to) {
+			this.channel = channel;
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Implementation of RecursiveAction
+		 */
+		protected void compute() {
+			if (to - from > Math.max(1, TASK_SIZE / blockSize)) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SignatureTask(channel, blockSize, weak, strong, from, middle),
+				          new SignatureTask(channel, blockSize, weak, strong, middle, to));
+				return;
+			}
+
+			if (from >= to)
+				return;
+
+			// the whole range is read at once, then hashed block by block
+			ByteBuffer buffer = ByteBuffer.allocate((to - from) * blockSize);
+			long position = (long) from * blockSize;
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						throw new EOFException("Unexpected end of file while computing the signature");
+				}
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+
+			for (int block = from; block < to; block++) {
+				buffer.limit((block - from + 1) * blockSize);
+				buffer.position((block - from) * blockSize);
+				weak[block] = weakChecksum(buffer);
+				System.arraycopy(strongHash(buffer), 0, strong, block * STRONG_SIZE, STRONG_SIZE);
+			}
+		}
+	}
+}
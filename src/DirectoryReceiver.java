@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.crypto.*;
+
+/**
+ * DirectoryReceiver receives a directory tree streamed by a DirectorySender over one connection
+ * This thread reads and decrypts the entries, a writer thread creates the directories and files,
+ * so file creation overlaps with the socket reads
+ * Small files are handed over to the writer in packs, the pack is handed over early whenever the socket runs dry
+ * Entry paths are checked to stay inside the target directory
+ * @author conqtc
+ *
+ */
+public class DirectoryReceiver {
+
+	// packs decoded ahead of the file writes
+	private static final int QUEUE_CAPACITY = 64;
+
+	// size of the socket input buffer, many small files come in one read
+	private static final int INPUT_BUFFER_SIZE = 256 * 1024;
+
+	private FileReceiveThread receiver;
+
+	private SocketChannel channel;
+
+	// directory receiving the tree
+	private File root;
+
+	private ArrayBlockingQueue<ArrayList<Segment>> packs;
+
+	private ArrayList<Segment> pack;
+
+	private long packBytes;
+
+	private Writer writer;
+
+	private int fileCount;
+
+	private int directoryCount;
+
+	private long byteReceives;
+
+	private long lastProgress;
+
+	/**
+	 * Segment is one entry to create, or the next part of the file being written
+	 */
+	private static class Segment {
+
+		// entry type, -1 for the next part of a file
+		private byte type;
+
+		private File target;
+
+		private long lastModified;
+
+		private ByteBuffer data;
+
+		// last part of the file
+		private boolean last;
+	}
+
+	/**
+	 * Constructor
+	 * @param receiver Owning file receiver
+	 * @param channel Connection routed to the transfer, in blocking mode
+	 * @param directoryName Name of the directory sent, from the stream header
+	 * @throws IOException If the name is not valid
+	 */
+	public DirectoryReceiver(FileReceiveThread receiver, SocketChannel channel, String directoryName) throws IOException {
+		String name = new File(directoryName).getName();
+		if (name.isEmpty() || name.equals(".") || name.equals(".."))
+			throw new IOException("Invalid directory name '" + directoryName + "'");
+
+		this.receiver = receiver;
+		this.channel = channel;
+		this.root = new File(ChatApp.FILE_FOLDER, name);
+		this.packs = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		this.pack = new ArrayList<>();
+	}
+
+	/**
+	 * Receive the directory tree
+	 * @return Number of entries written
+	 * @throws Exception If something went wrong while receiving or writing
+	 */
+	public int receive() throws Exception {
+		if (!root.isDirectory() && !root.mkdirs())
+			throw new IOException("Unable to create directory '" + root + "'");
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), INPUT_BUFFER_SIZE));
+		DataOutputStream dos = new DataOutputStream(channel.socket().getOutputStream());
+
+		writer = new Writer();
+		writer.start();
+		try {
+			// ready, the sender waits for this byte before streaming the entries
+			dos.writeByte(1);
+			dos.flush();
+
+			receiveEntries(dis);
+			put(new Segment());
+			if (!pack.isEmpty())
+				flush();
+			writer.join();
+			if (writer.error != null)
+				throw writer.error;
+
+			dos.writeInt(fileCount + directoryCount);
+			dos.flush();
+			return fileCount + directoryCount;
+		} finally {
+			writer.interrupt();
+		}
+	}
+
+	/**
+	 * Read the entries until the end of the tree, each one is queued for the writer thread
+	 * @param dis Input stream of the socket
+	 * @throws IOException If something went wrong while receiving
+	 */
+	private void receiveEntries(DataInputStream dis) throws IOException {
+		TransferParameters.PayloadMode payloadMode = receiver.getPayloadMode();
+		ByteBuffer record = (payloadMode == TransferParameters.PayloadMode.AES_GCM) ?
+		                    ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE)) : null;
+		lastProgress = System.nanoTime();
+
+		for (int entryIndex = 0; ; entryIndex++) {
+			// nothing more to read for now, the writer gets what is decoded so far
+			if (dis.available() == 0 && !pack.isEmpty())
+				flush();
+
+			byte type = dis.readByte();
+			if (type == DirectorySender.END)
+				return;
+
+			if (type != DirectorySender.DIRECTORY && type != DirectorySender.FILE)
+				throw new IOException("Invalid entry type " + type);
+
+			Segment segment = new Segment();
+			segment.type = type;
+			segment.target = resolve(dis.readUTF());
+			if (type == DirectorySender.DIRECTORY) {
+				directoryCount++;
+				put(segment);
+				continue;
+			}
+
+			long size = dis.readLong();
+			segment.lastModified = dis.readLong();
+			if (size < 0)
+				throw new IOException("Invalid size " + size + " of '" + segment.target + "'");
+			fileCount++;
+
+			long position = 0;
+			int recordIndex = 0;
+			do {
+				ByteBuffer data = ByteBuffer.allocate((int) Math.min(DirectorySender.SEGMENT_SIZE, size - position));
+				if (payloadMode == TransferParameters.PayloadMode.AES_GCM) {
+					while (data.hasRemaining()) {
+						int plainLength = Math.min(RecordCipher.RECORD_SIZE, data.remaining());
+						record.clear();
+						record.limit(RecordCipher.sealedLength(plainLength));
+						dis.readFully(record.array(), 0, record.limit());
+						try {
+							receiver.getRecordCipher().open(entryIndex, recordIndex++, record, data);
+						} catch (AEADBadTagException abte) {
+							throw new IOException("Entry '" + segment.target.getName() + "' failed authentication");
+						} catch (GeneralSecurityException gse) {
+							throw new IOException("Unable to open entry '" + segment.target.getName() + "'", gse);
+						}
+					}
+				} else {
+					dis.readFully(data.array(), 0, data.capacity());
+					receiver.decrypt(data, 0, data.capacity());
+				}
+				data.clear();
+				position += data.limit();
+
+				segment.data = data;
+				segment.last = (position == size);
+				put(segment);
+				segment = new Segment();
+				segment.type = -1;
+
+				byteReceives += data.limit();
+				reportProgress();
+			} while (position < size);
+		}
+	}
+
+	/**
+	 * Resolve the path of an entry inside the target directory
+	 * @param path Path relative to the root, '/' separated
+	 * @return Target file
+	 * @throws IOException If the path is not a plain relative path
+	 */
+	private File resolve(String path) throws IOException {
+		for (String part: path.split("/", -1)) {
+			if (part.isEmpty() || part.equals(".") || part.equals("..") || part.indexOf('\\') >= 0 || part.indexOf(':') >= 0)
+				throw new IOException("Invalid entry path '" + path + "'");
+		}
+
+		return new File(root, path.replace('/', File.separatorChar));
+	}
+
+	/**
+	 * Add a segment to the pack, the pack goes to the writer thread once full
+	 * @param segment Segment, of type END to stop the writer
+	 * @throws IOException If the writer thread has failed
+	 */
+	private void put(Segment segment) throws IOException {
+		pack.add(segment);
+		packBytes += (segment.data != null) ? segment.data.capacity() : 0;
+		if (pack.size() >= DirectorySender.PACK_ENTRIES || packBytes >= DirectorySender.SEGMENT_SIZE)
+			flush();
+	}
+
+	/**
+	 * Queue the pack for the writer thread
+	 * @throws IOException If the writer thread has failed
+	 */
+	private void flush() throws IOException {
+		try {
+			while (!packs.offer(pack, 100, TimeUnit.MILLISECONDS)) {
+				if (!writer.isAlive())
+					throw (writer.error != null) ? writer.error : new IOException("Directory writer stopped");
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted while receiving the directory");
+		}
+		pack = new ArrayList<>();
+		packBytes = 0;
+	}
+
+	/**
+	 * Log the progress every progress interval
+	 */
+	private void reportProgress() {
+		long now = System.nanoTime();
+		if (now - lastProgress >= DirectorySender.PROGRESS_INTERVAL) {
+			lastProgress = now;
+			Utility.logln("    " + fileCount + " file(s) received: " + byteReceives + " bytes (~" + byteReceives / 1048576 + " MB)");
+		}
+	}
+
+	/**
+	 * Get number of files received
+	 * @return Number of files
+	 */
+	public int getFileCount() {
+		return this.fileCount;
+	}
+
+	/**
+	 * Get number of directories received, the root excluded
+	 * @return Number of directories
+	 */
+	public int getDirectoryCount() {
+		return this.directoryCount;
+	}
+
+	/**
+	 * Get number of bytes received
+	 * @return Number of bytes
+	 */
+	public long getByteReceives() {
+		return this.byteReceives;
+	}
+
+	/**
+	 * Get the directory receiving the tree
+	 * @return Directory
+	 */
+	public File getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * Writer creates the directories and files queued by the receiving thread
+	 */
+	private class Writer extends Thread {
+
+		private volatile IOException error;
+
+		// file being written, and the segment of its entry
+		private FileChannel file;
+
+		private Segment current;
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			try {
+				while (true) {
+					for (Segment segment: packs.take()) {
+						if (segment.type == DirectorySender.END)
+							return;
+						write(segment);
+					}
+				}
+			} catch (IOException ioe) {
+				error = ioe;
+			} catch (InterruptedException ie) {
+				// receiver is gone
+			} finally {
+				try {
+					if (file != null)
+						file.close();
+				} catch (IOException ioe) {
+					// nothing to do
+				}
+			}
+		}
+
+		/**
+		 * Create a directory, or write a part of a file
+		 * @param segment Segment
+		 * @throws IOException If unable to write
+		 */
+		private void write(Segment segment) throws IOException {
+			if (segment.type == DirectorySender.DIRECTORY) {
+				if (!segment.target.isDirectory() && !segment.target.mkdirs())
+					throw new IOException("Unable to create directory '" + segment.target + "'");
+				return;
+			}
+
+			if (segment.type == DirectorySender.FILE) {
+				current = segment;
+				file = FileChannel.open(segment.target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				                        StandardOpenOption.TRUNCATE_EXISTING);
+			}
+
+			while (segment.data.hasRemaining()) {
+				file.write(segment.data);
+			}
+
+			if (segment.last) {
+				file.close();
+				file = null;
+				current.target.setLastModified(current.lastModified);
+			}
+		}
+	}
+}
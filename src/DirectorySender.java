@@ -0,0 +1,408 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * DirectorySender streams a whole directory tree over one connection, archive style
+ * A reader thread walks the tree lazily and reads files ahead into a bounded queue,
+ * so file opens and reads overlap with the socket writes
+ * Small files are packed together, so they cost one hand-over between the threads per pack rather than per file,
+ * and share the socket buffer
+ * Stream: the stream header (directory name, size -1, chunk size 0, transfer ID), then the receiver
+ * answers one ready byte, then one entry after another:
+ *     byte type (DIRECTORY, FILE, END), UTF relative path ('/' separated),
+ *     FILE only: long size, long last modified time, then the payload of the file
+ * The payload is encrypted according to the payload mode, AES-GCM records use the entry index as chunk index
+ * After END the receiver answers the number of entries written
+ * @author conqtc
+ *
+ */
+public class DirectorySender {
+
+	public static final byte END = 0;
+
+	public static final byte DIRECTORY = 1;
+
+	public static final byte FILE = 2;
+
+	// largest part of a file read at once, bigger files are read in several segments
+	public static final int SEGMENT_SIZE = 256 * 1024;
+
+	// packs read ahead of the socket, bounds the memory used to about QUEUE_CAPACITY * SEGMENT_SIZE
+	private static final int QUEUE_CAPACITY = 64;
+
+	// largest number of entries in one pack
+	public static final int PACK_ENTRIES = 256;
+
+	// size of the socket output buffer, many small files go out in one write
+	private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+	// interval between two progress lines, the size of the tree is not known up front
+	public static final long PROGRESS_INTERVAL = 2000000000L;
+
+	private FileTransferThread transfer;
+
+	private File root;
+
+	// packs of segments, each holds up to PACK_ENTRIES entries or SEGMENT_SIZE bytes
+	private ArrayBlockingQueue<ArrayList<Segment>> packs;
+
+	private volatile boolean stopped;
+
+	private int fileCount;
+
+	private int directoryCount;
+
+	private int skippedCount;
+
+	private long byteSends;
+
+	private long lastProgress;
+
+	// index of the current entry and of its next record, AES-GCM records are bound to both
+	private int entryIndex = -1;
+
+	private int recordIndex;
+
+	// output buffer of sealed records, allocated once for AES-GCM payload
+	private ByteBuffer sealed;
+
+	/**
+	 * Segment is one entry header, with the first part of its file, or the next part of the file being sent
+	 */
+	private static class Segment {
+
+		// entry type, -1 for the next part of a file
+		private byte type;
+
+		private String path;
+
+		private long size;
+
+		private long lastModified;
+
+		private ByteBuffer data;
+
+		// error of the reader thread, ends the stream
+		private IOException error;
+	}
+
+	/**
+	 * Constructor
+	 * @param transfer Owning file transfer
+	 * @param root Directory to send
+	 */
+	public DirectorySender(FileTransferThread transfer, File root) {
+		this.transfer = transfer;
+		this.root = root;
+		this.packs = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Send the directory tree
+	 * @param address Receiver address
+	 * @return Number of entries written by the receiver
+	 * @throws Exception If something went wrong while reading or sending
+	 */
+	public int send(InetAddress address) throws Exception {
+		Reader reader = new Reader();
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, ChatApp.DEFAULT_PORT - 2))) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), OUTPUT_BUFFER_SIZE));
+			dos.writeUTF(root.getName());
+			dos.writeLong(-1);
+			dos.writeInt(0);
+			dos.writeUTF(transfer.getTransferId());
+			dos.flush();
+
+			DataInputStream dis = new DataInputStream(channel.socket().getInputStream());
+			if (dis.readByte() != 1)
+				throw new IOException("Receiver is not ready for the directory");
+
+			reader.start();
+			sendEntries(dos);
+			dos.flush();
+
+			int written = dis.readInt();
+			if (written != fileCount + directoryCount)
+				throw new IOException("Receiver wrote " + written + "/" + (fileCount + directoryCount) + " entries");
+			return written;
+		} finally {
+			stopped = true;
+			packs.clear();
+			reader.interrupt();
+		}
+	}
+
+	/**
+	 * Write the packs of the reader thread until the end of the tree
+	 * @param dos Output stream of the socket
+	 * @throws Exception If something went wrong while reading or sending
+	 */
+	private void sendEntries(DataOutputStream dos) throws Exception {
+		if (transfer.getPayloadMode() == TransferParameters.PayloadMode.AES_GCM)
+			sealed = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+		lastProgress = System.nanoTime();
+
+		while (true) {
+			for (Segment segment: packs.take()) {
+				if (!sendSegment(dos, segment))
+					return;
+			}
+			reportProgress();
+		}
+	}
+
+	/**
+	 * Write one segment
+	 * @param dos Output stream of the socket
+	 * @param segment Segment
+	 * @return False at the end of the tree
+	 * @throws Exception If the reader thread failed or something went wrong while sending
+	 */
+	private boolean sendSegment(DataOutputStream dos, Segment segment) throws Exception {
+		if (segment.error != null)
+			throw segment.error;
+
+		if (segment.type >= 0) {
+			dos.writeByte(segment.type);
+			if (segment.type == END)
+				return false;
+
+			dos.writeUTF(segment.path);
+			entryIndex++;
+			recordIndex = 0;
+			if (segment.type == DIRECTORY) {
+				directoryCount++;
+				return true;
+			}
+
+			dos.writeLong(segment.size);
+			dos.writeLong(segment.lastModified);
+			fileCount++;
+		}
+
+		ByteBuffer data = segment.data;
+		int length = data.remaining();
+		switch (transfer.getPayloadMode()) {
+		case AES_GCM:
+			// segments are a whole number of records, so records are cut the same way on both sides
+			while (data.hasRemaining()) {
+				ByteBuffer record = data.duplicate();
+				record.limit(record.position() + Math.min(RecordCipher.RECORD_SIZE, record.remaining()));
+				data.position(record.limit());
+
+				sealed.clear();
+				transfer.getRecordCipher().seal(entryIndex, recordIndex++, record, sealed);
+				sealed.flip();
+				transfer.throttle(sealed.remaining());
+				dos.write(sealed.array(), 0, sealed.limit());
+			}
+			break;
+		case XOR:
+			FileTransferThread.xorEncrypt(data.array(), data.limit(), transfer.getKey());
+			transfer.writeThrottled(dos, data.array(), 0, data.limit());
+			break;
+		default:
+			transfer.writeThrottled(dos, data.array(), 0, data.limit());
+		}
+		transfer.bytesSent(length);
+		byteSends += length;
+		return true;
+	}
+
+	/**
+	 * Log the progress every progress interval
+	 */
+	private void reportProgress() {
+		long now = System.nanoTime();
+		if (now - lastProgress >= PROGRESS_INTERVAL) {
+			lastProgress = now;
+			Utility.logln("    " + fileCount + " file(s) sent: " + byteSends + " bytes (~" + byteSends / 1048576 + " MB)");
+		}
+	}
+
+	/**
+	 * Get number of files sent
+	 * @return Number of files
+	 */
+	public int getFileCount() {
+		return this.fileCount;
+	}
+
+	/**
+	 * Get number of directories sent, the root excluded
+	 * @return Number of directories
+	 */
+	public int getDirectoryCount() {
+		return this.directoryCount;
+	}
+
+	/**
+	 * Get number of entries which could not be read and were left out
+	 * @return Number of entries
+	 */
+	public int getSkippedCount() {
+		return this.skippedCount;
+	}
+
+	/**
+	 * Reader walks the tree and reads each file into segments, ahead of the socket writes
+	 * Symbolic links and special files are left out, so is any entry which can not be read
+	 */
+	private class Reader extends Thread {
+
+		private ArrayList<Segment> pack = new ArrayList<>();
+
+		private long packBytes;
+
+		/**
+		 * Constructor
+		 */
+		private Reader() {
+			setDaemon(true);
+		}
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			Segment end = new Segment();
+			try {
+				Path base = root.toPath();
+				Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+					public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+						if (!directory.equals(base))
+							put(header(DIRECTORY, base.relativize(directory), 0, 0));
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+						if (attributes.isRegularFile())
+							readFile(file, base.relativize(file));
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+						skipped(file, ioe);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+				end.type = END;
+			} catch (InterruptedIOException iioe) {
+				// sender is gone
+				return;
+			} catch (IOException ioe) {
+				end.error = ioe;
+			} catch (RuntimeException re) {
+				end.error = new IOException(re.toString(), re);
+			}
+
+			try {
+				put(end);
+				flush();
+			} catch (InterruptedIOException iioe) {
+				// sender is gone
+			}
+		}
+
+		/**
+		 * Read a file into segments, the first one carries the entry header
+		 * @param file File to read
+		 * @param path Path relative to the root
+		 * @throws IOException If the file changed size while being read, InterruptedIOException if the sender is gone
+		 */
+		private void readFile(Path file, Path path) throws IOException {
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.READ);
+			} catch (IOException ioe) {
+				skipped(file, ioe);
+				return;
+			}
+
+			try {
+				long size = channel.size();
+				long position = 0;
+				Segment segment = header(FILE, path, size, Files.getLastModifiedTime(file).toMillis());
+				do {
+					ByteBuffer data = ByteBuffer.allocate((int) Math.min(SEGMENT_SIZE, size - position));
+					while (data.hasRemaining()) {
+						if (channel.read(data, position + data.position()) < 0)
+							throw new EOFException("File '" + path + "' was truncated while sending");
+					}
+					data.flip();
+					position += data.limit();
+
+					segment.data = data;
+					put(segment);
+					segment = new Segment();
+					segment.type = -1;
+				} while (position < size);
+			} finally {
+				channel.close();
+			}
+		}
+
+		/**
+		 * Build the segment of an entry header
+		 * @param type Entry type
+		 * @param path Path relative to the root
+		 * @param size File size
+		 * @param lastModified Last modified time of the file
+		 * @return Segment
+		 */
+		private Segment header(byte type, Path path, long size, long lastModified) {
+			Segment segment = new Segment();
+			segment.type = type;
+			segment.path = path.toString().replace(File.separatorChar, '/');
+			segment.size = size;
+			segment.lastModified = lastModified;
+			return segment;
+		}
+
+		/**
+		 * Log an entry left out
+		 * @param file Entry
+		 * @param ioe Why it can not be read
+		 */
+		private void skipped(Path file, IOException ioe) {
+			skippedCount++;
+			Utility.logln("    skipping '" + file + "': " + ioe.getMessage());
+		}
+
+		/**
+		 * Add a segment to the pack, the pack goes to the sender once full
+		 * @param segment Segment
+		 * @throws InterruptedIOException If the sender is gone
+		 */
+		private void put(Segment segment) throws InterruptedIOException {
+			pack.add(segment);
+			packBytes += (segment.data != null) ? segment.data.remaining() : 0;
+			if (pack.size() >= PACK_ENTRIES || packBytes >= SEGMENT_SIZE)
+				flush();
+		}
+
+		/**
+		 * Queue the pack for the sender
+		 * @throws InterruptedIOException If the sender is gone
+		 */
+		private void flush() throws InterruptedIOException {
+			try {
+				if (!stopped) {
+					packs.put(pack);
+					pack = new ArrayList<>();
+					packBytes = 0;
+					return;
+				}
+			} catch (InterruptedException ie) {
+				// sender is gone
+			}
+			throw new InterruptedIOException("Directory is no longer being sent");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.util.*;
+
+/**
+ * DuplicateFilter drops the copies of a message received more than once, e.g. through several broadcast addresses or interfaces
+ * Every binary message carries a sequence of its sender, told apart by its address and alias; for each sender a bitmap remembers
+ * the sequences received just behind the highest one, as the anti-replay window of IPsec does (RFC 6479):
+ * the bitmap is a ring of words, sliding forward clears whole words, so each message costs O(1) and each sender a fixed few bytes
+ * A sequence too far behind the window can not be told from a copy received before, it is dropped as RFC 6479 does;
+ * senders start their sequence from the clock (see UDPMessenger) so after a restart they land ahead of the window
+ * Senders are forgotten least recently heard first once there are too many, so memory stays bounded
+ * Used by the decode thread only
+ * @author conqtc
+ *
+ */
+public class DuplicateFilter {
+
+	// sequences remembered per sender, a power of two and a multiple of 64, the last word is cleared in advance
+	private static final int WINDOW = 1024;
+
+	private static final int WORDS = WINDOW / 64;
+
+	// senders remembered at most
+	private static final int MAX_SENDERS = 1024;
+
+	/**
+	 * Window is the sequences received from one sender
+	 */
+	private static class Window {
+
+		private int highest;
+
+		// bit (sequence % WINDOW) is set when received
+		private long[] bits = new long[WORDS];
+	}
+
+	private LinkedHashMap<String, Window> windows;
+
+	private volatile long duplicates;
+
+	/**
+	 * Constructor
+	 */
+	public DuplicateFilter() {
+		// in access order, the eldest is the sender heard least recently
+		this.windows = new LinkedHashMap<String, Window>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+				return size() > MAX_SENDERS;
+			}
+		};
+	}
+
+	/**
+	 * Check a message received and remember it
+	 * @param sender Sender of the message, its address and alias
+	 * @param sequence Sequence of the message
+	 * @return True if it was received before, false the first time
+	 */
+	public boolean isDuplicate(String sender, int sequence) {
+		Window window = windows.get(sender);
+		if (window == null) {
+			window = new Window();
+			window.highest = sequence;
+			windows.put(sender, window);
+		} else {
+			// differences wrap as the sequence does
+			int ahead = sequence - window.highest;
+			if (ahead > 0) {
+				// clear the words the window slides over, all of them at most
+				int words = Math.min(((sequence >>> 6) - (window.highest >>> 6)) & (-1 >>> 6), WORDS);
+				for (int word = 1; word <= words; word++)
+					window.bits[((window.highest >>> 6) + word) & (WORDS - 1)] = 0;
+				window.highest = sequence;
+			} else if (ahead <= -(WINDOW - 64)) {
+				// stale or delayed copy
+				duplicates++;
+				return true;
+			}
+		}
+
+		int index = sequence & (WINDOW - 1);
+		long mask = 1L << (index & 63);
+		if ((window.bits[index >>> 6] & mask) != 0) {
+			duplicates++;
+			return true;
+		}
+
+		window.bits[index >>> 6] |= mask;
+		return false;
+	}
+
+	/**
+	 * Describe the duplicates dropped
+	 * @return Description, e.g. "duplicate(s) 3"
+	 */
+	public String describe() {
+		return "duplicate(s) " + duplicates;
+	}
+}
@@ -1,76 +1,165 @@
 import java.io.*;
 import java.net.*;
-
-import javax.crypto.*;
-import javax.crypto.spec.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * FileReceiveThread is a thread used to receive a file
+ * FileReceiveThread is a job used to receive a file, run by the transfer manager
+ * The receiver answers the request once the job has its slot
  */
-public class FileReceiveThread extends Thread {
+public class FileReceiveThread implements TransferManager.Transfer {
 
 	private ChatApp app;
 	
 	private Peer peer;
 	
+	// minimum percent increase before the progress is logged
+	private static final int MINIMUM_STEP = 18;
+	
+	// extension of a file being received
+	public static final String PARTIAL_EXTENSION = ".part";
+	
+	// time given to the sender to open its first connection
+	private static final long CONNECT_TIMEOUT = 30000;
+	
+	// parameters accepted for this transfer, sent back in the FACT message
+	private TransferParameters accepted;
+	
+	private TransferParameters.PayloadMode payloadMode;
+	
+	// opens the payload from AES-GCM records, null for other payload modes
+	private volatile RecordCipher recordCipher;
+	
+	// number of stripes accepted, 0 for a legacy single raw stream
+	private int stripes;
+	
+	private int lastPercent;
+	
+	// common key calculated from the exchange key of the sender
+	private long commonKey;
+	
+	// secret of the key agreement the AES-GCM key is derived from, null for other payload modes
+	private byte[] sharedSecret;
+	
+	// stripes handed over by the transfer server
+	private ArrayList<StripeReceiver> receivers;
+	
+	// connection of a legacy sender handed over by the transfer server
+	private SocketChannel legacyChannel;
+	
+	// a directory tree is received instead of a file, over one connection
+	private boolean directory;
+	
+	// the file is rebuilt from an older copy already received, over one connection
+	private boolean delta;
+	
+	// the one connection of a directory tree or of a delta, and its stream header
+	private SocketChannel streamChannel;
+	
+	private StripeReceiver.Header streamHeader;
+	
+	// false once no more connection is taken
+	private boolean accepting;
+	
+	private volatile MappedFileWriter writer;
+	
+	private String fileName;
+	
+	private long fileSize;
+	
+	private int chunkSize;
+	
+	private int chunkCount;
+	
+	private String transferId;
+	
+	// chunks completed, persisted next to the partial file
+	private TransferCheckpoint checkpoint;
+	
+	private File partialFile;
+	
+	private AtomicLong byteReceives;
+	
+	// bytes kept from an earlier attempt
+	private long resumedBytes;
+	
+	private boolean verifyChunks;
+	
+	private boolean hashesRequested;
+	
+	// frames carry a codec byte, compressed chunks are decompressed into the file
+	private boolean compressChunks;
+	
+	private AtomicInteger compressedChunks;
+	
+	// bytes of the chunks received and of their payload on the wire, to report the compression ratio
+	private AtomicLong chunkBytes;
+	
+	private AtomicLong wireBytes;
+	
+	// chunk hashes, completed once the first stripe has received them
+	private CompletableFuture<MerkleTree> merkleTree;
+	
+	private AtomicInteger corruptedChunks;
+	
+	private int activeStripes;
+	
+	private volatile Exception failure;
+	
+	// receiver of a directory tree or of a delta, for its progress
+	private volatile DirectoryReceiver directoryReceiver;
+	
+	private volatile DeltaReceiver deltaReceiver;
+	
+	// error the transfer failed with, null if it did not fail
+	private volatile String error;
+	
+	// name of the file in the request, empty if the sender did not give it
+	private String offeredName;
+	
 	/**
 	 * Constructor
 	 * @param app ChatApp reference object
 	 * @param peer Peer to receive file from
+	 * @param accepted Parameters accepted for this transfer, including the transfer ID unless the sender is legacy
+	 * @param commonKey Common key calculated from the exchange key of the sender
+	 * @param sharedSecret Secret agreed on with the sender, null unless the payload is AES-GCM
+	 * @param offeredName Name of the file in the request, empty if the sender did not give it
 	 */
-	public FileReceiveThread(ChatApp app, Peer peer) {
+	public FileReceiveThread(ChatApp app, Peer peer, TransferParameters accepted, long commonKey, byte[] sharedSecret, String offeredName) {
 		this.app = app;
+		this.offeredName = offeredName;
 		this.peer = peer;
+		this.accepted = accepted;
+		this.commonKey = commonKey;
+		this.sharedSecret = sharedSecret;
+		this.transferId = accepted.get(TransferParameters.ID, null);
+		this.receivers = new ArrayList<>();
+		this.accepting = true;
+		this.payloadMode = TransferParameters.payloadModeFromString(accepted.get(TransferParameters.PAYLOAD, "xor"));
+		this.stripes = accepted.getInt(TransferParameters.STRIPES, 0);
+		this.directory = accepted.has(TransferParameters.DIRECTORY);
+		this.delta = accepted.has(TransferParameters.DELTA);
+		this.byteReceives = new AtomicLong();
+		this.verifyChunks = MerkleTree.ALGORITHM.equals(accepted.get(TransferParameters.HASH, ""));
+		this.merkleTree = new CompletableFuture<>();
+		this.corruptedChunks = new AtomicInteger();
+		this.compressChunks = ChunkCompressor.codecAsString(ChunkCompressor.Codec.DEFLATE).equals(accepted.get(TransferParameters.COMPRESS, ""));
+		this.compressedChunks = new AtomicInteger();
+		this.chunkBytes = new AtomicLong();
+		this.wireBytes = new AtomicLong();
 	}
 	
 	/**
-	 * http://stackoverflow.com/questions/31674270/send-file-encrypted-server-and-receive-file-decrypted-client-with-aes-256
-	 * @param encMsgtoDec parameter to decrypt
-	 * @param key parameter to decrypt
-	 * @param iv parameter to decrypt
-	 * @return decrypted byte array
-	 * @throws Exception If something went wrong
-	 */
-	public byte[] decrypt(byte[] encMsgtoDec, byte[] key, byte[] iv) throws Exception {
-	    //prepare key
-	    SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-
-	    //prepare cipher
-	    //String cipherALG = "AES/CBC/PKCS5padding"; // use your preferred algorithm 
-	    String cipherALG = "AES/GCM/NoPadding";	// don't care about iv for now
-	    Cipher cipher = Cipher.getInstance(cipherALG);
-	    String string = cipher.getAlgorithm();
-
-	    //as iv (Initial Vector) is only required for CBC mode
-	    if (string.contains("CBC")) {
-	        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);      
-	        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-	    } else {
-	        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-	    }
-
-	    byte[] decMsg = cipher.doFinal(encMsgtoDec);        
-	    return decMsg;
-	}
-
-	/**
-	 * Simple xor decryption with the common key calculated
-	 * @param data Byte array of data to decrypt
-	 * @param length Length of data 
-	 * @param key Common key used to decrypt
-	 */
-	private void xorDecrypt(byte[] data, int length, byte key) {
-		for (int index = 0; index < length; index++) {
-			data[index] = (byte) (data[index] ^ key);
-		}
-	}
-
-	
-	/**
-	 * Main entry point of the thread
+	 * Main entry point of the job
 	 */
 	public void run() {
-	   	ServerSocket serverSocket = null;
+		TransferServer server = null;
       	try {
       		// check if sub folder exists, create new if not
       		File file = new File(ChatApp.FILE_FOLDER);
@@ -79,72 +168,748 @@ public class FileReceiveThread extends Thread {
       			file.mkdir();
       		}
       		
-      		// create new socket on the port
-	        serverSocket = new ServerSocket(ChatApp.DEFAULT_PORT - 2);
-	        
-	        // server socket created ok, notify sender
-	        app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FACT, Long.toString(app.getExchangeKey()));
-	        
-        	// wait and listen
-        	Socket clientSocket = serverSocket.accept();        	
-        	DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-        	
-        	String fileName = dis.readUTF();
-        	long fileSize = dis.readLong();
-        	long fileSizeInMb = fileSize / 1048576;
-        	Utility.logln("\n(i) Receiving '" + fileName +"'");
-        	Utility.logln("    file size " + fileSize + " bytes (~" + fileSizeInMb + " MB)");
-        	
-        	FileOutputStream fos = new FileOutputStream(ChatApp.FILE_FOLDER + "/" + fileName);
-        	
-	        byte[] chunkData = new byte[ChatApp.DATA_CHUNK_SIZE];
-	        int byteReads = 0;
-	        
-	        long byteReceives = 0;
-	        int percent = 0;
-	        int lastPercent = 0;
-	        int minimumStep = 18;
+      		// content already held completes here, the sender opens no connection
+      		if (accepted.has(TransferParameters.CONTENT) && completeFromStore())
+      			return;
+      		
+      		// connections of this transfer are routed here by the shared transfer server
+      		server = app.getTransferServer();
+      		server.register(this);
 	        
-	        byte key = (byte) app.getCommonKey();
+	        // registered ok, notify sender with the negotiated parameters
+	        TransferParameters reply = accepted.copy();
+	        reply.put(TransferParameters.KEY, app.getExchangeKey());
+	        app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FACT, reply.toString());
 	        
-	        while ((byteReads = dis.read(chunkData)) > 0) {
-	        	// decrypt before write byteReads of data to the output file
-	        	xorDecrypt(chunkData, byteReads, key);
-	        	
-	        	fos.write(chunkData, 0, byteReads);
-	        	byteReceives += byteReads;
-	        	
-				percent = (int)(100 * byteReceives / fileSize);
-				if (percent >= lastPercent + minimumStep) {
-					lastPercent = percent;
-					Utility.logln("    " + percent + "% received: " + 
-					                    byteReceives + "/" + fileSize + " bytes (~" +
-							            byteReceives/1048576 + "/" + fileSizeInMb + " MB)");
-				}
+	        if (directory) {
+	        	receiveDirectory();
+	        } else if (delta) {
+	        	receiveDelta();
+	        } else if (stripes > 0) {
+	        	receiveStriped();
+	        } else {
+	        	// sender only speaks the legacy single raw stream
+	        	receiveSingleStream();
 	        }
-	        
-			if (lastPercent < 100) {
-				Utility.logln("    100% received: " + 
-	                    byteReceives + "/" + fileSize + " bytes (" +
-			            byteReceives/1048576 + "/" + fileSizeInMb + " MB)");
-			}
-			app.appendMessageToTheChat("(i) File '" + fileName + "' received!", false);
-	        
-	        if (fos != null) 
-	        	fos.close();
       	} catch (Exception e) {
+      		error = e.toString();
          	app.appendMessageToTheChat("(x) " + e.toString(), false);
-         	app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FCAN, e.getMessage());
+         	app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FCAN, cancelMessage(e.getMessage()));
       	} finally {
-      		// close everything nicely
-      		if (serverSocket != null) {
-      			try {
-      				serverSocket.close();
-      			} catch (IOException ie) {
-      				app.appendMessageToTheChat("(x) Unable to close server socket", false);
-      			}
+      		if (server != null)
+      			server.unregister(this);
+      		
+      		synchronized (this) {
+      			accepting = false;
       		}
       	}
 
 	}
+	
+	/**
+	 * Complete the transfer with the content offered by the sender if it is already held
+	 * @return True if completed, false if the content is not held after all and the file is to be received
+	 * @throws IOException If unable to read the content or to create the name entry
+	 */
+	private boolean completeFromStore() throws IOException {
+		String name = new File(URLDecoder.decode(accepted.get(TransferParameters.NAME, ""), StandardCharsets.UTF_8)).getName();
+		File target = ContentStore.complete(accepted.get(TransferParameters.CONTENT, ""), name, accepted.getLong(TransferParameters.SIZE, -1));
+		if (target == null) {
+			accepted.remove(TransferParameters.CONTENT).remove(TransferParameters.NAME).remove(TransferParameters.SIZE);
+			return false;
+		}
+		
+		TransferParameters reply = accepted.copy();
+		reply.put(TransferParameters.KEY, app.getExchangeKey());
+		app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FACT, reply.toString());
+		app.appendMessageToTheChat("(i) File '" + target.getName() + "' received! (content already held, nothing transferred)", false);
+		return true;
+	}
+	
+	/**
+	 * Build the content of the FCAN message, legacy senders expect the reason only
+	 * @param reason Reason to cancel
+	 * @return Message content
+	 */
+	private String cancelMessage(String reason) {
+		if (transferId == null)
+			return reason;
+		
+		TransferParameters cancel = new TransferParameters();
+		cancel.put(TransferParameters.ID, transferId);
+		cancel.put(TransferParameters.REASON, String.valueOf(reason).replace(TransferParameters.PAIR_SEPARATOR, ","));
+		return cancel.toString();
+	}
+	
+	/**
+	 * Take a stripe connection routed to this transfer by the transfer server
+	 * @param channel Connection, in blocking mode
+	 * @param header Stream header already read from the connection
+	 */
+	public synchronized void attach(SocketChannel channel, StripeReceiver.Header header) {
+		if (!accepting) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+			return;
+		}
+		
+		if (directory || delta) {
+			// the whole tree or delta comes over the first connection
+			streamChannel = channel;
+			streamHeader = header;
+			accepting = false;
+			notifyAll();
+			return;
+		}
+		
+		StripeReceiver stripe = new StripeReceiver(this, channel, header);
+		receivers.add(stripe);
+		activeStripes++;
+		stripe.start();
+		notifyAll();
+	}
+	
+	/**
+	 * Take the connection of a legacy sender routed to this transfer by the transfer server
+	 * @param channel Connection, in blocking mode
+	 */
+	public synchronized void attachLegacy(SocketChannel channel) {
+		if (!accepting || legacyChannel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+			return;
+		}
+		
+		legacyChannel = channel;
+		accepting = false;
+		notifyAll();
+	}
+	
+	/**
+	 * Wait until the sender opens its first connection
+	 * @param deadline Time (System.currentTimeMillis) to give up
+	 * @throws IOException If the sender did not connect in time
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void awaitConnection(long deadline) throws IOException, InterruptedException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			accepting = false;
+			throw new IOException("Sender did not connect within " + CONNECT_TIMEOUT / 1000 + " seconds");
+		}
+		wait(remaining);
+	}
+	
+	/**
+	 * Receive the file over a single connection carrying the raw payload, as sent by legacy senders
+	 * @throws Exception If something went wrong while receiving
+	 */
+	private void receiveSingleStream() throws Exception {
+		// wait for the connection routed by the transfer server
+		SocketChannel clientChannel;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (legacyChannel == null) {
+				awaitConnection(deadline);
+			}
+			clientChannel = legacyChannel;
+		}
+		
+		// DataInputStream does not read ahead, so the channel can take over after the header
+		DataInputStream dis = new DataInputStream(clientChannel.socket().getInputStream());
+		String fileName = dis.readUTF();
+		long fileSize = dis.readLong();
+		long fileSizeInMb = fileSize / 1048576;
+		Utility.logln("\n(i) Receiving '" + fileName +"'");
+		Utility.logln("    file size " + fileSize + " bytes (~" + fileSizeInMb + " MB)");
+		Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode));
+		
+		String name = new File(fileName).getName();
+		File target = new File(ChatApp.FILE_FOLDER, name + PARTIAL_EXTENSION);
+		long byteReceives;
+		if (Settings.mappedReceive() && fileSize > 0) {
+			byteReceives = receiveMapped(clientChannel, target, fileSize);
+		} else {
+			Utility.logln("    receive path: stream");
+			byteReceives = receiveStream(dis, target, fileSize);
+		}
+		
+		if (lastPercent < 100) {
+			Utility.logln("    100% received: " + 
+			              byteReceives + "/" + fileSize + " bytes (" +
+			              byteReceives/1048576 + "/" + fileSizeInMb + " MB)");
+		}
+		
+		if (byteReceives < fileSize)
+			throw new EOFException("Connection closed after " + byteReceives + "/" + fileSize + " bytes");
+		
+		ContentStore.commit(target, name, null);
+		app.appendMessageToTheChat("(i) File '" + fileName + "' received!", false);
+		clientChannel.close();
+	}
+	
+	/**
+	 * Receive a directory tree streamed entry by entry over one connection
+	 * @throws Exception If something went wrong while receiving
+	 */
+	private void receiveDirectory() throws Exception {
+		SocketChannel channel = awaitStreamChannel();
+		try {
+			if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+				recordCipher = RecordCipher.forTransfer(sharedSecret, transferId);
+			
+			directoryReceiver = new DirectoryReceiver(this, channel, streamHeader.getFileName());
+			Utility.logln("\n(i) Receiving directory '" + directoryReceiver.getRoot().getName() + "'");
+			Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode) + ", streamed over one connection");
+			
+			long startTime = System.nanoTime();
+			directoryReceiver.receive();
+			long elapsed = System.nanoTime() - startTime;
+			
+			app.appendMessageToTheChat("(i) Directory '" + directoryReceiver.getRoot().getName() + "' received! (" + 
+			                           directoryReceiver.getFileCount() + " file(s), " + directoryReceiver.getDirectoryCount() + " folder(s), " + 
+			                           Utility.formatRate(directoryReceiver.getByteReceives(), elapsed) + ", " + 
+			                           String.format("%.0f", directoryReceiver.getFileCount() * 1e9 / Math.max(1, elapsed)) + " files/s)", false);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Receive a file rebuilt from the older copy already received, only the data not found in the copy comes over the connection
+	 * @throws Exception If something went wrong while receiving
+	 */
+	private void receiveDelta() throws Exception {
+		SocketChannel channel = awaitStreamChannel();
+		try {
+			if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+				recordCipher = RecordCipher.forTransfer(sharedSecret, transferId);
+			
+			deltaReceiver = new DeltaReceiver(this, channel, streamHeader);
+			Utility.logln("\n(i) Receiving '" + deltaReceiver.getTarget().getName() + "' as a delta of the copy already received");
+			Utility.logln("    file size " + streamHeader.getFileSize() + " bytes (~" + streamHeader.getFileSize() / 1048576 + " MB)");
+			Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode) + ", streamed over one connection");
+			
+			long startTime = System.nanoTime();
+			deltaReceiver.receive();
+			long elapsed = System.nanoTime() - startTime;
+			
+			long fileSize = streamHeader.getFileSize();
+			app.appendMessageToTheChat("(i) File '" + deltaReceiver.getTarget().getName() + "' received! (delta, " + 
+			                           deltaReceiver.getCopiedBytes() / 1024 + " KB reused, " + deltaReceiver.getLiteralBytes() / 1024 + " KB new, " + 
+			                           deltaReceiver.getWireBytes() / 1024 + " KB on the wire, " + 
+			                           String.format("%.1f", 100.0 - deltaReceiver.getWireBytes() * 100.0 / Math.max(1, fileSize)) + "% saved, " + 
+			                           Utility.formatRate(fileSize, elapsed) + ")", false);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Wait for the one connection of a directory tree or of a delta
+	 * @return Connection
+	 * @throws IOException If the sender did not connect in time
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private synchronized SocketChannel awaitStreamChannel() throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (streamChannel == null) {
+			awaitConnection(deadline);
+		}
+		return streamChannel;
+	}
+	
+	/**
+	 * Receive the file over as many stripes (connections) as the sender opens
+	 * Each stripe is handled by a StripeReceiver writing chunks at their offsets
+	 * @throws Exception If something went wrong while receiving
+	 */
+	private void receiveStriped() throws Exception {
+		long startTime = System.nanoTime();
+		
+		try {
+			synchronized (this) {
+				// sender ends its stripes only once every chunk has been taken
+				long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+				while (!isComplete() && failure == null && (receivers.isEmpty() || activeStripes > 0)) {
+					if (receivers.isEmpty()) {
+						awaitConnection(deadline);
+					} else {
+						wait();
+					}
+				}
+				accepting = false;
+			}
+			
+			for (StripeReceiver stripe: receivers) {
+				stripe.join();
+			}
+		} finally {
+			if (writer != null)
+				writer.close();
+		}
+		long elapsed = System.nanoTime() - startTime;
+		
+		if (!isComplete()) {
+			// keep the partial file and its checkpoint, the same transfer sent again resumes from here
+			String reason = (failure != null) ? failure.getMessage() : "connection closed";
+			if (checkpoint == null)
+				throw new IOException(reason);
+			
+			checkpoint.close();
+			throw new IOException(reason + " (" + checkpoint.getCompletedCount() + "/" + chunkCount + 
+			                      " chunks kept, send again to resume)");
+		}
+		
+		// complete, the partial file takes its final name, the tree of verified chunks gives its content hash if built the same way
+		checkpoint.delete();
+		MerkleTree tree = merkleTree.getNow(null);
+		boolean treeHashed = tree != null && chunkSize == ContentStore.CHUNK_SIZE && resumedBytes == 0;
+		ContentStore.commit(partialFile, fileName, treeHashed ? tree.getRoot() : null);
+		
+		if (lastPercent < 100) {
+			Utility.logln("    100% received: " + 
+                    fileSize + "/" + fileSize + " bytes (" +
+		            fileSize/1048576 + "/" + fileSize/1048576 + " MB)");
+		}
+		app.appendMessageToTheChat("(i) File '" + fileName + "' received! (" + receivers.size() + " stream(s), " + 
+		                           Utility.formatRate(byteReceives.get(), elapsed) + 
+		                           (resumedBytes > 0 ? ", resumed after " + resumedBytes / 1048576 + " MB" : "") + 
+		                           (verifyChunks ? ", verified" : "") +
+		                           (corruptedChunks.get() > 0 ? ", " + corruptedChunks.get() + " corrupted chunk(s) received again" : "") + 
+		                           (compressChunks ? ", " + compressionSummary() : "") + ")", false);
+	}
+	
+	/**
+	 * Summarize compression of the chunks received
+	 * @return Number of chunks compressed and the compression ratio
+	 */
+	private String compressionSummary() {
+		long wire = Math.max(1, wireBytes.get());
+		return compressedChunks.get() + " chunk(s) compressed, ratio " + String.format("%.2f", (double) chunkBytes.get() / wire) + 
+		       ", " + wire / 1048576 + " MB on the wire";
+	}
+	
+	/**
+	 * Prepare the target file from a stripe header, the first stripe creates it
+	 * The file is received as a partial file with a checkpoint, resumed if both are kept from an earlier attempt
+	 * @param fileName Name of the file
+	 * @param fileSize Size of the file
+	 * @param chunkSize Size of each chunk
+	 * @param transferId Transfer ID
+	 * @throws IOException If unable to create the file or the header does not match the first one
+	 */
+	public synchronized void prepare(String fileName, long fileSize, int chunkSize, String transferId) throws IOException {
+		if (writer != null) {
+			if (!new File(fileName).getName().equals(this.fileName) || fileSize != this.fileSize || 
+			    chunkSize != this.chunkSize || !transferId.equals(this.transferId))
+				throw new IOException("Stripe header does not match the transfer");
+			return;
+		}
+		
+		if (chunkSize <= 0)
+			throw new IOException("Invalid chunk size " + chunkSize);
+		
+		this.fileName = new File(fileName).getName();
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		this.transferId = transferId;
+		
+		Utility.logln("\n(i) Receiving '" + this.fileName +"'");
+		Utility.logln("    file size " + fileSize + " bytes (~" + fileSize / 1048576 + " MB)");
+		Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode) + ", " + chunkCount + " chunk(s)");
+		if (Settings.mappedReceive()) {
+			Utility.logln("    receive path: memory-mapped (window " + Settings.mapWindowSize() / 1048576 + " MB, flush " + 
+			              Settings.mapFlushPolicy().name().toLowerCase() + ")");
+		} else {
+			Utility.logln("    receive path: positional writes");
+		}
+		
+		this.partialFile = new File(ChatApp.FILE_FOLDER, this.fileName + PARTIAL_EXTENSION);
+		File checkpointFile = new File(ChatApp.FILE_FOLDER, partialFile.getName() + TransferCheckpoint.EXTENSION);
+		if (!partialFile.exists())
+			checkpointFile.delete();
+		
+		this.checkpoint = TransferCheckpoint.open(checkpointFile, transferId, fileSize, chunkSize);
+		if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+			this.recordCipher = RecordCipher.forTransfer(sharedSecret, transferId);
+		MappedFileWriter writer = new MappedFileWriter(partialFile, fileSize, Settings.mapWindowSize(), Settings.mapFlushPolicy(), 
+		                                               Settings.mappedReceive());
+		if (checkpoint.isResumed()) {
+			resumedBytes = checkpoint.countCompletedBytes(0, fileSize);
+			writer.setPrewritten(checkpoint::countCompletedBytes);
+			Utility.logln("    resuming: " + checkpoint.getCompletedCount() + "/" + chunkCount + " chunk(s) already received");
+		}
+		this.writer = writer;
+	}
+	
+	/**
+	 * Callback when a stripe is finished
+	 * The transfer stops taking connections once no more stripe is expected
+	 * @param stripe Stripe finished
+	 * @param error Error if the stripe failed, null otherwise
+	 */
+	public synchronized void stripeFinished(StripeReceiver stripe, Exception error) {
+		if (error != null && failure == null)
+			failure = error;
+		
+		activeStripes--;
+		notifyAll();
+	}
+	
+	/**
+	 * Should a stripe ask the sender for the chunk hashes, only the first one does
+	 * @return True if the hashes are needed
+	 */
+	public synchronized boolean requestHashes() {
+		if (!verifyChunks || hashesRequested)
+			return false;
+		
+		hashesRequested = true;
+		return true;
+	}
+	
+	/**
+	 * Set the chunk hashes received from the sender
+	 * Verifications waiting for them start straight away
+	 * @param leaves Hash of each chunk
+	 * @param root Root hash sent alongside
+	 * @throws IOException If the leaves do not build the same root
+	 */
+	public void setMerkleTree(byte[][] leaves, byte[] root) throws IOException {
+		MerkleTree tree = new MerkleTree(leaves);
+		if (!MessageDigest.isEqual(tree.getRoot(), root))
+			throw new IOException("Chunk hashes do not match their root hash");
+		
+		Utility.logln("    verifying chunks against root " + MerkleTree.toHex(root).substring(0, 16) + "...");
+		merkleTree.complete(tree);
+	}
+	
+	/**
+	 * Callback when a whole chunk is written
+	 * Without verification it is recorded in the checkpoint and acknowledged straight away,
+	 * otherwise it is verified on the hashing pool, off the network-read thread
+	 * @param stripe Stripe which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 * @throws IOException If unable to update the checkpoint
+	 */
+	public void chunkWritten(StripeReceiver stripe, int chunkIndex) throws IOException {
+		if (!verifyChunks) {
+			checkpoint.markCompleted(chunkIndex);
+			stripe.sendVerdict(chunkIndex, true);
+			return;
+		}
+		
+		stripe.verificationStarted();
+		merkleTree.thenAcceptAsync(tree -> verifyChunk(stripe, tree, chunkIndex), MerkleTree::execute);
+	}
+	
+	/**
+	 * Callback when a chunk is received, before it is verified
+	 * @param length Length of the chunk
+	 * @param wireLength Length of its payload on the wire
+	 * @param codec Codec of the payload
+	 */
+	public void chunkReceived(int length, int wireLength, ChunkCompressor.Codec codec) {
+		chunkBytes.addAndGet(length);
+		wireBytes.addAndGet(wireLength);
+		if (codec != ChunkCompressor.Codec.NONE)
+			compressedChunks.incrementAndGet();
+	}
+	
+	/**
+	 * Callback when a chunk can not be written as received, it is asked again to the sender
+	 * @param stripe Stripe which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 * @param reason Why the chunk is rejected
+	 */
+	public void chunkRejected(StripeReceiver stripe, int chunkIndex, String reason) {
+		corruptedChunks.incrementAndGet();
+		Utility.logln("    chunk " + chunkIndex + " " + reason + ", asking for it again");
+		stripe.sendVerdict(chunkIndex, false);
+	}
+	
+	/**
+	 * Verify a written chunk against its hash, a corrupted chunk is asked again to the sender
+	 * @param stripe Stripe which received the chunk
+	 * @param tree Chunk hashes
+	 * @param chunkIndex Index of the chunk
+	 */
+	private void verifyChunk(StripeReceiver stripe, MerkleTree tree, int chunkIndex) {
+		boolean verified = false;
+		try {
+			long position = (long) chunkIndex * chunkSize;
+			byte[] hash = MerkleTree.hashRegion(writer.getChannel(), position, getChunkLength(chunkIndex));
+			if (tree.matches(chunkIndex, hash)) {
+				checkpoint.markCompleted(chunkIndex);
+				verified = true;
+			} else {
+				corruptedChunks.incrementAndGet();
+				Utility.logln("    chunk " + chunkIndex + " is corrupted, asking for it again");
+			}
+		} catch (IOException ioe) {
+			Utility.logln("    unable to verify chunk " + chunkIndex + ": " + ioe.getMessage());
+		} finally {
+			stripe.sendVerdict(chunkIndex, verified);
+			stripe.verificationDone();
+		}
+	}
+	
+	/**
+	 * Callback when bytes are received by a stripe
+	 * @param count Number of bytes
+	 */
+	public void bytesReceived(long count) {
+		long total = resumedBytes + byteReceives.addAndGet(count);
+		synchronized (this) {
+			reportProgress(total, fileSize);
+		}
+	}
+	
+	/**
+	 * Are all chunks received
+	 * @return True if complete
+	 */
+	private boolean isComplete() {
+		return writer != null && checkpoint.getCompletedCount() >= chunkCount;
+	}
+	
+	/**
+	 * Decrypt a region of a buffer in place according to the payload mode
+	 * @param buffer Buffer holding the data
+	 * @param offset Offset of the first byte
+	 * @param length Length of data
+	 */
+	public void decrypt(ByteBuffer buffer, int offset, int length) {
+		if (payloadMode != TransferParameters.PayloadMode.PLAIN)
+			// xor is its own inverse
+			FileTransferThread.xorEncrypt(buffer, offset, length, (byte) commonKey);
+	}
+	
+	/**
+	 * Get payload mode
+	 * @return Payload mode
+	 */
+	public TransferParameters.PayloadMode getPayloadMode() {
+		return this.payloadMode;
+	}
+	
+	/**
+	 * Get key used to decrypt the payload
+	 * @return Key
+	 */
+	public byte getKey() {
+		return (byte) commonKey;
+	}
+	
+	/**
+	 * Get record cipher opening the payload
+	 * @return Record cipher, null if the payload mode is not AES-GCM
+	 */
+	public RecordCipher getRecordCipher() {
+		return this.recordCipher;
+	}
+	
+	/**
+	 * Do frames carry a codec byte
+	 * @return True if compression is negotiated
+	 */
+	public boolean isCompressing() {
+		return this.compressChunks;
+	}
+	
+	/**
+	 * Get transfer ID
+	 * @return Transfer ID, null for a legacy sender
+	 */
+	public String getTransferId() {
+		return this.transferId;
+	}
+	
+	/**
+	 * Get the sender
+	 * @return Peer sending the file
+	 */
+	public Peer getPeer() {
+		return this.peer;
+	}
+	
+	/**
+	 * Get name of the file, known from the request or from the stream header
+	 * @return File name
+	 */
+	public String getFileName() {
+		if (directoryReceiver != null)
+			return directoryReceiver.getRoot().getName();
+		if (deltaReceiver != null)
+			return deltaReceiver.getTarget().getName();
+		if (fileName != null)
+			return fileName;
+		return offeredName.isEmpty() ? (directory ? "directory" : "file") : offeredName;
+	}
+	
+	/**
+	 * Get bytes received so far
+	 * @return Number of bytes
+	 */
+	public long getBytesTransferred() {
+		if (directoryReceiver != null)
+			return directoryReceiver.getByteReceives();
+		if (deltaReceiver != null)
+			return deltaReceiver.getLiteralBytes() + deltaReceiver.getCopiedBytes();
+		return byteReceives.get();
+	}
+	
+	/**
+	 * Get the error the transfer failed with
+	 * @return Error, null if it did not fail
+	 */
+	public String getError() {
+		return this.error;
+	}
+	
+	/**
+	 * Get the writer of the target file
+	 * @return Writer
+	 */
+	public MappedFileWriter getWriter() {
+		return this.writer;
+	}
+	
+	/**
+	 * Get checkpoint of the transfer
+	 * @return Checkpoint
+	 */
+	public TransferCheckpoint getCheckpoint() {
+		return this.checkpoint;
+	}
+	
+	/**
+	 * Get chunk size
+	 * @return Chunk size in bytes
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+	
+	/**
+	 * Get number of chunks of the file
+	 * @return Number of chunks
+	 */
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+	
+	/**
+	 * Get expected length of a chunk, the last one may be shorter
+	 * @param chunkIndex Index of the chunk
+	 * @return Length in bytes, -1 if the index is out of range
+	 */
+	public int getChunkLength(int chunkIndex) {
+		if (chunkIndex < 0 || chunkIndex >= chunkCount)
+			return -1;
+		
+		return (int) Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize);
+	}
+	
+	/**
+	 * Receive the file content through a heap buffer and a file output stream
+	 * @param dis Input stream of the socket
+	 * @param target Target file
+	 * @param fileSize Size of the file
+	 * @return Number of bytes received
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private long receiveStream(DataInputStream dis, File target, long fileSize) throws IOException {
+		FileOutputStream fos = new FileOutputStream(target);
+		
+        byte[] chunkData = new byte[ChatApp.DATA_CHUNK_SIZE];
+        int byteReads = 0;
+        long byteReceives = 0;
+        
+        byte key = (byte) commonKey;
+        boolean encrypted = (payloadMode != TransferParameters.PayloadMode.PLAIN);
+        
+        try {
+	        while ((byteReads = dis.read(chunkData)) > 0) {
+	        	// decrypt before write byteReads of data to the output file
+	        	if (encrypted)
+	        		FileTransferThread.xorEncrypt(chunkData, byteReads, key);
+	        	
+	        	fos.write(chunkData, 0, byteReads);
+	        	byteReceives += byteReads;
+	        	reportProgress(byteReceives, fileSize);
+	        }
+        } finally {
+        	fos.close();
+        }
+        
+        return byteReceives;
+	}
+	
+	/**
+	 * Receive the file content straight into memory-mapped windows of the preallocated target file
+	 * and decrypt it in place
+	 * @param channel Channel of the socket
+	 * @param target Target file
+	 * @param fileSize Size of the file
+	 * @return Number of bytes received
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private long receiveMapped(SocketChannel channel, File target, long fileSize) throws IOException {
+		MappedFileWriter writer = new MappedFileWriter(target, fileSize, Settings.mapWindowSize(), Settings.mapFlushPolicy(), true);
+		Utility.logln("    receive path: memory-mapped (window " + Settings.mapWindowSize() / 1048576 + " MB, flush " + 
+		              Settings.mapFlushPolicy().name().toLowerCase() + ")");
+		
+		long byteReceives = 0;
+		byte key = (byte) commonKey;
+		boolean encrypted = (payloadMode != TransferParameters.PayloadMode.PLAIN);
+		
+		try {
+			while (byteReceives < fileSize) {
+				ByteBuffer region = writer.regionAt(byteReceives, fileSize - byteReceives);
+				int offset = region.position();
+				int byteReads = channel.read(region);
+				if (byteReads < 0)
+					break;
+				
+				if (encrypted)
+					FileTransferThread.xorEncrypt(region, offset, byteReads, key);
+				
+				writer.commit(region, byteReceives, offset, byteReads);
+				byteReceives += byteReads;
+				reportProgress(byteReceives, fileSize);
+			}
+		} finally {
+			writer.close();
+		}
+		
+		if (!writer.isMapped())
+			Utility.logln("    receive path: fell back to channel writes");
+		
+		return byteReceives;
+	}
+	
+	/**
+	 * Log the progress each time it grows by the minimum step
+	 * @param byteReceives Number of bytes received so far
+	 * @param fileSize Size of the file
+	 */
+	private void reportProgress(long byteReceives, long fileSize) {
+		// an empty file is all received at once
+		int percent = fileSize > 0 ? (int)(100 * byteReceives / fileSize) : 100;
+		if (percent >= lastPercent + MINIMUM_STEP) {
+			lastPercent = percent;
+			Utility.logln("    " + percent + "% received: " + 
+			                    byteReceives + "/" + fileSize + " bytes (~" +
+					            byteReceives/1048576 + "/" + fileSize/1048576 + " MB)");
+		}
+	}
 }
@@ -1,19 +1,136 @@
 import java.io.*;
 import java.net.*;
-
-import javax.crypto.*;
-import javax.crypto.spec.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * FileTransferThread is a thread used to transfer a file to a specific target peer
+ * FileTransferThread is a job used to transfer a file to a specific target peer, run by the transfer manager
+ * The request goes out once the job has its slot, the file once the receiver has answered
  */
-public class FileTransferThread extends Thread {
+public class FileTransferThread implements TransferManager.Transfer {
 	
 	private ChatApp app;
 	
 	private File file;
 	
 	private Peer peer;
+	
+	// number of bytes handed to the kernel per transferTo call
+	private static final long ZERO_COPY_STEP = 8 * 1048576;
+	
+	// minimum percent increase before the progress is logged
+	private static final int MINIMUM_STEP = 13;
+	
+	// interval between two throughput measurements used to adapt the number of stripes
+	private static final long ADAPT_INTERVAL = 1000;
+	
+	// a new stripe is kept opening while throughput grows by at least this factor
+	private static final double ADAPT_GAIN = 1.1;
+	
+	// a chunk failing verification more often than this fails the transfer
+	private static final int MAX_RETRIES = 3;
+	
+	// time given to the receiver to answer the request
+	private static final long ANSWER_TIMEOUT = 10 * 60000;
+	
+	// FREQ message content, sent when the job starts
+	private TransferParameters request;
+	
+	// true once the request is sent, until the receiver answers
+	private boolean awaitingAnswer;
+	
+	private boolean answered;
+	
+	// false if the receiver did not take the file, e.g. it cancelled or joined a swarm instead
+	private boolean acceptedAnswer;
+	
+	// error the transfer failed with, null if it did not fail
+	private volatile String error;
+	
+	private TransferParameters.PayloadMode payloadMode;
+	
+	// common key calculated from the exchange key of the receiver
+	private long commonKey;
+	
+	// seals the payload in AES-GCM records, null for other payload modes
+	private RecordCipher recordCipher;
+	
+	// key agreement the AES-GCM key is derived from, and the public key of the receiver
+	private KeyExchange keyExchange;
+	
+	private String receiverKey;
+	
+	// maximum number of stripes (connections) accepted by the receiver, 0 for a legacy single raw stream
+	private int maxStripes;
+	
+	// the receiver takes a directory tree, streamed over one connection
+	private boolean directoryAccepted;
+	
+	// the receiver has an older copy of the file, only a delta is sent over one connection
+	private boolean deltaAccepted;
+	
+	private int chunkSize;
+	
+	private int lastPercent;
+	
+	private FileChannel fileChannel;
+	
+	private long fileSize;
+	
+	private int chunkCount;
+	
+	// chunks still to be sent, known once the receiver has answered with its manifest
+	private BitSet pending;
+	
+	// chunks sent but not yet acknowledged by the receiver
+	private int inFlight;
+	
+	// number of times each chunk has been sent again after failing verification
+	private HashMap<Integer, Integer> retries;
+	
+	private int corruptedChunks;
+	
+	// chunk hashes, null if the receiver does not verify chunks
+	private MerkleTree merkleTree;
+	
+	private boolean verifyChunks;
+	
+	// chunks are compressed when it pays off, each frame carries its codec
+	private boolean compressChunks;
+	
+	private AtomicInteger compressedChunks;
+	
+	// bytes of the chunks sent and of their payload on the wire, to report the compression ratio
+	private AtomicLong chunkBytes;
+	
+	private AtomicLong wireBytes;
+	
+	// bytes of the chunks the receiver already has from an earlier attempt
+	private long skippedBytes;
+	
+	private String transferId;
+	
+	private AtomicLong byteSends;
+	
+	private ArrayList<StripeSender> stripes;
+	
+	// sizes the socket buffers and the write buffer from the round-trip time and throughput measured
+	private TransferTuner tuner;
+	
+	// last throughput sample of the legacy single stream
+	private long sampleTime;
+	
+	private long sampleBytes;
+	
+	private int activeStripes;
+	
+	private volatile Exception failure;
+	
+	private Exception lastError;
 
 	/**
 	 * Constructor
@@ -22,62 +139,682 @@ public class FileTransferThread extends Thread {
 	 * @param peer Receiver peer
 	 */
 	public FileTransferThread(ChatApp app, File file, Peer peer) {
+		this.request = new TransferParameters();
 		this.app = app;
 		this.file = file;
 		this.peer = peer;
+		this.payloadMode = TransferParameters.PayloadMode.XOR;
+		// the same file to the same peer always gets the same ID, so a new attempt resumes the previous one
+		this.transferId = UUID.nameUUIDFromBytes((app.getuid() + "|" + peer.getUID() + "|" + file.getAbsolutePath() + "|" + 
+		                                          file.length() + "|" + file.lastModified()).getBytes()).toString();
+		this.byteSends = new AtomicLong();
+		this.compressedChunks = new AtomicInteger();
+		this.chunkBytes = new AtomicLong();
+		this.wireBytes = new AtomicLong();
+		this.stripes = new ArrayList<>();
+		this.retries = new HashMap<>();
+		this.tuner = new TransferTuner();
+		this.keyExchange = new KeyExchange();
 	}
 	
 	/**
-	 * http://stackoverflow.com/questions/31674270/send-file-encrypted-server-and-receive-file-decrypted-client-with-aes-256
-	 * @param msg Parameter of the encryption
-	 * @param key Parameter of the encryption
-	 * @param iv Parameter of the encryption
-	 * @return Encrypted byte array
-	 * @throws Exception If something went wrong
-	 */
-	public byte[] encrypt(byte[] msg, byte[] key, byte[] iv) throws Exception {
-	    //prepare key
-	    SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-
-	    //prepare cipher
-	    //String cipherALG = "AES/CBC/PKCS5padding"; // use your preferred algorithm 
-	    String cipherALG = "AES/GCM/NoPadding";	// don't care about iv for now
-	    Cipher cipher = Cipher.getInstance(cipherALG);
-	    String string = cipher.getAlgorithm();
-
-	    //as iv (Initial Vector) is only required for CBC mode
-	    if (string.contains("CBC")) {
-	        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);      
-	        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-	    } else {
-	        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-	    }
-
-	    byte[] encMessage = cipher.doFinal(msg);        
-	    return encMessage;
+	 * Set the content of the request sent when the job starts
+	 * @param request Parameters of the FREQ message
+	 */
+	public void setRequest(TransferParameters request) {
+		this.request = request;
+	}
+	
+	/**
+	 * Callback when the receiver accepts the file
+	 * @param accepted Parameters from the FACT message
+	 * @param commonKey Common key calculated from the exchange key of the receiver
+	 * @return True if the transfer was waiting for an answer, false otherwise
+	 */
+	public synchronized boolean accept(TransferParameters accepted, long commonKey) {
+		if (!awaitingAnswer || answered)
+			return false;
+		
+		setAcceptedParameters(accepted, commonKey);
+		answered = true;
+		acceptedAnswer = true;
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Callback when the receiver does not take the file
+	 * @param reason Reason, null if nothing is left to send, e.g. the receiver already holds the file
+	 * @return True if the transfer was waiting for an answer, false otherwise
+	 */
+	public synchronized boolean decline(String reason) {
+		if (!awaitingAnswer || answered)
+			return false;
+		
+		error = reason;
+		answered = true;
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Is the request sent and not answered yet
+	 * @return True if waiting for the answer of the receiver
+	 */
+	public synchronized boolean isAwaitingAnswer() {
+		return awaitingAnswer && !answered;
+	}
+	
+	/**
+	 * Send the request and wait for the answer of the receiver
+	 * @return True if the receiver accepted the file
+	 */
+	private boolean requestAndAwaitAnswer() {
+		synchronized (this) {
+			awaitingAnswer = true;
+		}
+		app.sendMessageTo(peer.getAddress(), UDPMessenger.MessageType.FREQ, request.toString());
+		
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT;
+			try {
+				while (!answered) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						decline(peer.toString() + " did not answer within " + ANSWER_TIMEOUT / 60000 + " minutes");
+						app.appendMessageToTheChat("(x) " + error, false);
+						break;
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				decline("Interrupted while waiting for the answer of " + peer.toString());
+			}
+			return acceptedAnswer;
+		}
+	}
+	
+	/**
+	 * Set parameters accepted by the receiver
+	 * @param accepted Parameters from the FACT message
+	 * @param commonKey Common key calculated from the exchange key of the receiver
+	 */
+	private void setAcceptedParameters(TransferParameters accepted, long commonKey) {
+		this.commonKey = commonKey;
+		this.receiverKey = accepted.get(TransferParameters.ECDH, "");
+		this.payloadMode = TransferParameters.payloadModeFromString(accepted.get(TransferParameters.PAYLOAD, "xor"));
+		this.maxStripes = Math.max(0, accepted.getInt(TransferParameters.STRIPES, 0));
+		this.chunkSize = accepted.getInt(TransferParameters.CHUNK, Settings.chunkSize());
+		this.verifyChunks = MerkleTree.ALGORITHM.equals(accepted.get(TransferParameters.HASH, ""));
+		this.compressChunks = ChunkCompressor.codecAsString(ChunkCompressor.Codec.DEFLATE).equals(accepted.get(TransferParameters.COMPRESS, ""));
+		this.directoryAccepted = accepted.has(TransferParameters.DIRECTORY);
+		this.deltaAccepted = accepted.has(TransferParameters.DELTA);
+	}
+	
+	/**
+	 * Get the public key of the key agreement, sent in the request
+	 * @return Public key, hex
+	 */
+	public String getPublicKey() {
+		return keyExchange.getPublicKey();
+	}
+	
+	/**
+	 * Derive the AES-GCM record cipher from the key agreement with the receiver
+	 * @return Record cipher
+	 * @throws GeneralSecurityException If the receiver did not answer with a valid public key
+	 */
+	private RecordCipher newRecordCipher() throws GeneralSecurityException {
+		return RecordCipher.forTransfer(keyExchange.agree(receiverKey), transferId);
 	}
 	
 	/**
-	 * Main entry of the thread
+	 * Main entry of the job
 	 * https://en.wikipedia.org/wiki/Diffie%E2%80%93Hellman_key_exchange
 	 * http://stackoverflow.com/questions/31674270/send-file-encrypted-server-and-receive-file-decrypted-client-with-aes-256
 	 * http://stackoverflow.com/questions/6052429/java-sending-encrypted-file-over-socket
 	 * http://buchananweb.co.uk/security02.aspx
 	 */
 	public void run() {
+		try {
+			if (!requestAndAwaitAnswer())
+				return;
+			
+			if (file.isDirectory()) {
+				runDirectory();
+			} else if (deltaAccepted) {
+				runDelta();
+			} else if (maxStripes > 0) {
+				runStriped();
+			} else {
+				// receiver does not understand chunk frames
+				runSingleStream();
+			}
+		} finally {
+			app.fileTransferFinished(this);
+		}
+	}
+	
+	/**
+	 * Send the file over one or more stripes (connections), each carrying chunk frames
+	 * Stripe frames: int chunk index, int length, payload; chunk index -1 ends the stripe
+	 * The number of stripes grows while the measured throughput keeps growing
+	 */
+	private void runStriped() {
+		try {
+			fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			fileSize = fileChannel.size();
+			chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+			
+			long fileSizeInMb = fileSize / 1048576;
+			Utility.logln("\n(i) Sending file '" + file.getName() + "'");
+			Utility.logln("    file size: " + fileSize + " bytes (~" + fileSizeInMb + " MB)");
+			String sendPath = "buffered (xor)";
+			if (payloadMode == TransferParameters.PayloadMode.PLAIN) {
+				sendPath = "zero-copy (transferTo)";
+			} else if (payloadMode == TransferParameters.PayloadMode.AES_GCM) {
+				sendPath = "sealed (AES-GCM, " + RecordCipher.RECORD_SIZE / 1024 + " KB records)";
+				recordCipher = newRecordCipher();
+			}
+			Utility.logln("    send path: " + sendPath + ", " + chunkCount + " chunk(s) over up to " + maxStripes + " stream(s)");
+			
+			if (verifyChunks) {
+				long hashStart = System.nanoTime();
+				merkleTree = MerkleTree.build(fileChannel, fileSize, chunkSize);
+				Utility.logln("    hashed " + chunkCount + " chunk(s) on " + Runtime.getRuntime().availableProcessors() + " core(s) (" + 
+				              Utility.formatRate(fileSize, System.nanoTime() - hashStart) + "), root " + 
+				              MerkleTree.toHex(merkleTree.getRoot()).substring(0, 16) + "...");
+			}
+			
+			long startTime = System.nanoTime();
+			addStripe();
+			
+			long lastSample = startTime;
+			long lastBytes = 0;
+			double bestRate = 0;
+			boolean tuning = (maxStripes > 1);
+			
+			while (true) {
+				// sleep until the next sample, waking up early only when every stripe is finished
+				synchronized (this) {
+					long remaining;
+					while (activeStripes > 0 && (remaining = ADAPT_INTERVAL - (System.nanoTime() - lastSample) / 1000000) > 0) {
+						wait(remaining);
+					}
+					if (activeStripes == 0)
+						break;
+				}
+				
+				long now = System.nanoTime();
+				long bytes = byteSends.get();
+				double rate = (bytes - lastBytes) * 1e9 / Math.max(1, now - lastSample);
+				if (tuner.rateSample(bytes - lastBytes, now - lastSample, countWorkingStripes()))
+					tuneStripes();
+				lastSample = now;
+				lastBytes = bytes;
+				reportProgress(skippedBytes + bytes, fileSize);
+				
+				// hill climbing: add a stripe while it pays off, give the last one back if it made things worse
+				if (tuning && failure == null && hasPendingChunk()) {
+					if (rate > bestRate * ADAPT_GAIN && stripes.size() < maxStripes) {
+						bestRate = Math.max(bestRate, rate);
+						addStripe();
+					} else {
+						tuning = false;
+						if (stripes.size() > 1 && rate * ADAPT_GAIN < bestRate) {
+							stripes.get(stripes.size() - 1).retire();
+						}
+						Utility.logln("    settled on " + countWorkingStripes() + " stream(s)");
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - startTime;
+			Utility.logln("    tuning: " + tuner.describe());
+			
+			if (failure != null)
+				throw failure;
+			if (!isAcknowledged())
+				throw (lastError != null) ? lastError : new IOException("Unable to open any stream");
+			
+			if (lastPercent < 100) {
+				Utility.logln("    100% sent: " + 
+	                    fileSize + "/" + fileSize + " bytes (" +
+			            fileSize/1048576 + "/" + fileSizeInMb + " MB)");
+			}
+			app.appendMessageToTheChat("(i) All sent! (" + sendPath + ", " + stripes.size() + " stream(s), " + 
+			                           Utility.formatRate(byteSends.get(), elapsed) + 
+			                           (skippedBytes > 0 ? ", resumed after " + skippedBytes / 1048576 + " MB" : "") + 
+			                           (corruptedChunks > 0 ? ", " + corruptedChunks + " chunk(s) sent again" : "") + 
+			                           (compressChunks ? ", " + compressionSummary() : "") + ")", false);
+		} catch (Exception e) {
+			error = e.toString();
+			app.appendMessageToTheChat("(x) Error while sending file: " + e.toString(), false);
+		} finally {
+			try {
+				if (fileChannel != null)
+					fileChannel.close();
+			} catch (Exception e) {
+				app.appendMessageToTheChat("(x) Error while closing: " + e.toString(), false);
+			}
+		}
+	}
+	
+	/**
+	 * Send a directory tree over one connection, entry by entry, file reads pipelined ahead of the socket
+	 */
+	private void runDirectory() {
+		try {
+			if (!directoryAccepted)
+				throw new IOException("Receiver does not take directories");
+			
+			Utility.logln("\n(i) Sending directory '" + file.getName() + "'");
+			if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+				recordCipher = newRecordCipher();
+			Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode) + ", streamed over one connection");
+			
+			long startTime = System.nanoTime();
+			DirectorySender sender = new DirectorySender(this, file);
+			sender.send(peer.getAddress());
+			long elapsed = System.nanoTime() - startTime;
+			
+			app.appendMessageToTheChat("(i) All sent! (" + sender.getFileCount() + " file(s), " + sender.getDirectoryCount() + " folder(s), " + 
+			                           Utility.formatRate(byteSends.get(), elapsed) + ", " + 
+			                           String.format("%.0f", sender.getFileCount() * 1e9 / Math.max(1, elapsed)) + " files/s" + 
+			                           (sender.getSkippedCount() > 0 ? ", " + sender.getSkippedCount() + " unreadable entries left out" : "") + ")", false);
+		} catch (Exception e) {
+			error = e.toString();
+			app.appendMessageToTheChat("(x) Error while sending directory: " + e.toString(), false);
+		}
+	}
+	
+	/**
+	 * Send the file as a delta of the older copy the receiver has, over one connection
+	 */
+	private void runDelta() {
+		try {
+			fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			fileSize = fileChannel.size();
+			
+			Utility.logln("\n(i) Sending file '" + file.getName() + "' as a delta of the copy the receiver has");
+			Utility.logln("    file size: " + fileSize + " bytes (~" + fileSize / 1048576 + " MB)");
+			if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+				recordCipher = newRecordCipher();
+			Utility.logln("    payload: " + TransferParameters.payloadModeAsString(payloadMode) + ", streamed over one connection");
+			
+			long startTime = System.nanoTime();
+			DeltaSender sender = new DeltaSender(this, fileChannel);
+			sender.send(peer.getAddress());
+			long elapsed = System.nanoTime() - startTime;
+			
+			app.appendMessageToTheChat("(i) All sent! (delta, " + sender.getMatchedBytes() / 1024 + " KB reused, " + 
+			                           sender.getLiteralBytes() / 1024 + " KB new, " + sender.getWireBytes() / 1024 + " KB on the wire, " + 
+			                           String.format("%.1f", 100.0 - sender.getWireBytes() * 100.0 / Math.max(1, fileSize)) + "% saved, " + 
+			                           Utility.formatRate(fileSize, elapsed) + ")", false);
+		} catch (Exception e) {
+			error = e.toString();
+			app.appendMessageToTheChat("(x) Error while sending file: " + e.toString(), false);
+		} finally {
+			try {
+				if (fileChannel != null)
+					fileChannel.close();
+			} catch (Exception e) {
+				app.appendMessageToTheChat("(x) Error while closing: " + e.toString(), false);
+			}
+		}
+	}
+	
+	/**
+	 * Open one more stripe
+	 */
+	private void addStripe() {
+		StripeSender stripe = new StripeSender(this, peer.getAddress(), stripes.size());
+		stripes.add(stripe);
+		synchronized (this) {
+			activeStripes++;
+		}
+		stripe.start();
+	}
+	
+	/**
+	 * Apply the socket buffer chosen by the tuner to every stripe
+	 */
+	private synchronized void tuneStripes() {
+		for (StripeSender stripe: stripes) {
+			stripe.tune();
+		}
+	}
+	
+	/**
+	 * Count stripes which are not retired
+	 * @return Number of working stripes
+	 */
+	private int countWorkingStripes() {
+		int count = 0;
+		for (StripeSender stripe: stripes) {
+			if (!stripe.isRetired())
+				count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Callback when a stripe is finished
+	 * @param stripe Stripe finished
+	 * @param error Error if the stripe failed, null otherwise
+	 */
+	public synchronized void stripeFinished(StripeSender stripe, Exception error) {
+		if (error != null) {
+			lastError = error;
+			// a stripe failing before carrying any chunk loses nothing, the others go on
+			if (stripe.hasSentChunk() && failure == null)
+				failure = error;
+		}
+		
+		activeStripes--;
+		notifyAll();
+	}
+	
+	/**
+	 * Callback when a chunk has been sent by a stripe
+	 * @param length Length of the chunk
+	 * @param wireLength Length of its payload on the wire
+	 * @param codec Codec of the payload
+	 */
+	public void chunkSent(int length, int wireLength, ChunkCompressor.Codec codec) {
+		chunkBytes.addAndGet(length);
+		wireBytes.addAndGet(wireLength);
+		if (codec != ChunkCompressor.Codec.NONE)
+			compressedChunks.incrementAndGet();
+	}
+	
+	/**
+	 * Summarize compression of the chunks sent
+	 * @return Number of chunks compressed and the compression ratio
+	 */
+	private String compressionSummary() {
+		long wire = Math.max(1, wireBytes.get());
+		return compressedChunks.get() + " chunk(s) compressed, ratio " + String.format("%.2f", (double) chunkBytes.get() / wire) + 
+		       ", " + wire / 1048576 + " MB on the wire";
+	}
+	
+	/**
+	 * Callback when a stripe has received the manifest of the receiver,
+	 * only the first one matters, chunks completed later are not sent anyway
+	 * @param completed Bitmap of chunks already received (BitSet order)
+	 */
+	public synchronized void setManifest(byte[] completed) {
+		if (pending != null)
+			return;
+		
+		BitSet received = BitSet.valueOf(completed);
+		pending = new BitSet(chunkCount);
+		pending.set(0, chunkCount);
+		pending.andNot(received);
+		
+		int skipped = chunkCount - pending.cardinality();
+		if (skipped > 0) {
+			for (int index = received.nextSetBit(0); index >= 0 && index < chunkCount; index = received.nextSetBit(index + 1)) {
+				skippedBytes += Math.min(chunkSize, fileSize - (long) index * chunkSize);
+			}
+			Utility.logln("    resuming: " + skipped + "/" + chunkCount + " chunk(s) already received");
+		}
+	}
+	
+	/**
+	 * Take the next chunk to be sent
+	 * When nothing is pending but some chunks are still unacknowledged, wait as they may be sent again
+	 * @return Chunk index, -1 if every chunk is acknowledged or the transfer failed
+	 */
+	public synchronized int nextChunk() {
+		while (failure == null && pending != null) {
+			int chunkIndex = pending.nextSetBit(0);
+			if (chunkIndex >= 0) {
+				pending.clear(chunkIndex);
+				inFlight++;
+				return chunkIndex;
+			}
+			
+			if (inFlight == 0)
+				break;
+			
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				break;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Callback when the receiver has verified a chunk
+	 * A chunk failing verification is queued again, on its own
+	 * @param chunkIndex Index of the chunk
+	 * @param verified True if the chunk is good
+	 */
+	public synchronized void chunkVerified(int chunkIndex, boolean verified) {
+		inFlight--;
+		
+		if (!verified) {
+			int count = retries.getOrDefault(chunkIndex, 0) + 1;
+			retries.put(chunkIndex, count);
+			corruptedChunks++;
+			
+			if (count > MAX_RETRIES) {
+				if (failure == null)
+					failure = new IOException("Chunk " + chunkIndex + " failed verification " + count + " times");
+			} else {
+				Utility.logln("    chunk " + chunkIndex + " failed verification, sending it again");
+				pending.set(chunkIndex);
+			}
+		}
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Is there any chunk not yet taken by a stripe
+	 * @return True if some chunk is still pending
+	 */
+	private synchronized boolean hasPendingChunk() {
+		return pending == null || !pending.isEmpty();
+	}
+	
+	/**
+	 * Are all chunks sent and acknowledged
+	 * @return True if acknowledged
+	 */
+	private synchronized boolean isAcknowledged() {
+		return pending != null && pending.isEmpty() && inFlight == 0;
+	}
+	
+	/**
+	 * Get Merkle tree of the file
+	 * @return Merkle tree, null if chunks are not verified
+	 */
+	public MerkleTree getMerkleTree() {
+		return this.merkleTree;
+	}
+	
+	/**
+	 * Get the receiver
+	 * @return Peer receiving the file
+	 */
+	public Peer getPeer() {
+		return this.peer;
+	}
+	
+	/**
+	 * Get transfer ID
+	 * @return Transfer ID
+	 */
+	public String getTransferId() {
+		return this.transferId;
+	}
+	
+	/**
+	 * Callback when bytes are sent by a stripe
+	 * @param count Number of bytes
+	 */
+	public void bytesSent(long count) {
+		byteSends.addAndGet(count);
+	}
+	
+	/**
+	 * Get bytes sent so far
+	 * @return Number of bytes
+	 */
+	public long getBytesTransferred() {
+		return byteSends.get();
+	}
+	
+	/**
+	 * Get the error the transfer failed with
+	 * @return Error, null if it did not fail
+	 */
+	public String getError() {
+		return this.error;
+	}
+	
+	/**
+	 * Get file channel, shared by all stripes for positional reads
+	 * @return File channel
+	 */
+	public FileChannel getFileChannel() {
+		return this.fileChannel;
+	}
+	
+	/**
+	 * Get name of the file
+	 * @return File name
+	 */
+	public String getFileName() {
+		return this.file.getName();
+	}
+	
+	/**
+	 * Get size of the file
+	 * @return File size
+	 */
+	public long getFileSize() {
+		return this.fileSize;
+	}
+	
+	/**
+	 * Get chunk size
+	 * @return Chunk size in bytes
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+	
+	/**
+	 * Get payload mode
+	 * @return Payload mode
+	 */
+	public TransferParameters.PayloadMode getPayloadMode() {
+		return this.payloadMode;
+	}
+	
+	/**
+	 * Get key used to encrypt the payload
+	 * @return Key
+	 */
+	public byte getKey() {
+		return (byte) commonKey;
+	}
+	
+	/**
+	 * Are chunks compressed when it pays off
+	 * @return True if compression is negotiated
+	 */
+	public boolean isCompressing() {
+		return this.compressChunks;
+	}
+	
+	/**
+	 * Get record cipher sealing the payload
+	 * @return Record cipher, null if the payload mode is not AES-GCM
+	 */
+	public RecordCipher getRecordCipher() {
+		return this.recordCipher;
+	}
+	
+	/**
+	 * Wait until the bandwidth scheduler lets file data through to the peer
+	 * Granted a quantum at a time, so a large write does not run the buckets deep into debt ahead of chat messages
+	 * @param bytes Number of bytes about to be sent
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void throttle(long bytes) throws InterruptedIOException {
+		try {
+			for (long granted = 0; granted < bytes; granted += BandwidthScheduler.QUANTUM)
+				app.getBandwidthScheduler().acquire(peer.getAddress(), Math.min(BandwidthScheduler.QUANTUM, bytes - granted));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+		}
+	}
+	
+	/**
+	 * Write file data to the peer a quantum at a time, each let through by the bandwidth scheduler
+	 * @param dos Output stream of the socket
+	 * @param data Data
+	 * @param offset Offset of the first byte
+	 * @param length Length of the data
+	 * @throws IOException If interrupted while waiting or something went wrong while sending
+	 */
+	public void writeThrottled(DataOutputStream dos, byte[] data, int offset, int length) throws IOException {
+		for (int written = 0; written < length; ) {
+			int step = Math.min(BandwidthScheduler.QUANTUM, length - written);
+			throttle(step);
+			dos.write(data, offset + written, step);
+			written += step;
+		}
+	}
+	
+	/**
+	 * Get the largest step sent at once without going back to the bandwidth scheduler
+	 * @param step Step wanted
+	 * @return Step, capped to the scheduler quantum if a rate is set or chat and control messages are being sent
+	 */
+	public long throttleStep(long step) {
+		BandwidthScheduler scheduler = app.getBandwidthScheduler();
+		if (scheduler.isLimited() || scheduler.isHolding())
+			return Math.min(step, BandwidthScheduler.QUANTUM);
+		return step;
+	}
+	
+	/**
+	 * Get the tuner of the socket buffers and the write buffer
+	 * @return Tuner
+	 */
+	public TransferTuner getTuner() {
+		return this.tuner;
+	}
+	
+	/**
+	 * Send the file over a single connection as raw payload, as understood by legacy receivers
+	 */
+	private void runSingleStream() {
 		FileInputStream fis = null;
-		Socket socket = null;
+		SocketChannel socketChannel = null;
 		DataOutputStream dos = null;
 		
-		int byteReads = 0;
-		byte[] chunkData = new byte[ChatApp.DATA_CHUNK_SIZE];
 		try {
 			// open file
 			fis = new FileInputStream(file);
-			// open server socket, listen on port 4006 (6 and 8 are my lucky numbers :D)
-			socket = new Socket(peer.getAddress(), ChatApp.DEFAULT_PORT - 2);
+			// open socket channel, connect to port 4006 (6 and 8 are my lucky numbers :D)
+			// the time to connect is one round trip, the first sample of the tuner
+			socketChannel = SocketChannel.open();
+			tuner.apply(socketChannel);
+			long connectStart = System.nanoTime();
+			socketChannel.connect(new InetSocketAddress(peer.getAddress(), ChatApp.DEFAULT_PORT - 2));
+			tuner.rttSample(System.nanoTime() - connectStart);
 			// output stream
-			dos = new DataOutputStream(socket.getOutputStream());
+			dos = new DataOutputStream(socketChannel.socket().getOutputStream());
 			
 			long fileSize = file.length();
 			long fileSizeInMb = fileSize / 1048576;
@@ -88,36 +825,33 @@ public class FileTransferThread extends Thread {
 			dos.writeUTF(file.getName());
 			// and file size in bytes
 			dos.writeLong(fileSize);
+			dos.flush();
 			
-			long byteSends = 0;
-			int percent = 0;
-			int lastPercent = 0;
-			int minimumStep = 13;
-			
-			byte key = (byte) app.getCommonKey();
-			
-			while ((byteReads = fis.read(chunkData)) > 0) {
-				// encrypt before sending
-				xorEncrypt(chunkData, byteReads, key);
-				dos.write(chunkData, 0, byteReads);
-				
-				byteSends += byteReads;
-				percent = (int)(100 * byteSends / fileSize);
-				if (percent >= lastPercent + minimumStep) {
-					lastPercent = percent;
-					Utility.logln("    " + percent + "% sent: " + 
-					                    byteSends + "/" + fileSize + " bytes (~" +
-							            byteSends/1048576 + "/" + fileSizeInMb + " MB)");
-				}
+			String sendPath;
+			long startTime = System.nanoTime();
+			sampleTime = startTime;
+			sampleBytes = 0;
+			if (payloadMode == TransferParameters.PayloadMode.PLAIN) {
+				// payload needs no transformation, let the kernel move the bytes
+				sendPath = "zero-copy (transferTo)";
+				Utility.logln("    send path: " + sendPath);
+				sendZeroCopy(fis.getChannel(), socketChannel, fileSize);
+			} else {
+				sendPath = "buffered (xor)";
+				Utility.logln("    send path: " + sendPath);
+				sendBuffered(fis, dos, socketChannel, fileSize);
 			}
+			long elapsed = System.nanoTime() - startTime;
+			Utility.logln("    tuning: " + tuner.describe());
 			
 			if (lastPercent < 100) {
 				Utility.logln("    100% sent: " + 
-	                    byteSends + "/" + fileSize + " bytes (" +
-			            byteSends/1048576 + "/" + fileSizeInMb + " MB)");
+	                    fileSize + "/" + fileSize + " bytes (" +
+			            fileSize/1048576 + "/" + fileSizeInMb + " MB)");
 			}
-			app.appendMessageToTheChat("(i) All sent!", false);
+			app.appendMessageToTheChat("(i) All sent! (" + sendPath + ", " + Utility.formatRate(fileSize, elapsed) + ")", false);
 		} catch (Exception e) { 
+			error = e.toString();
 			app.appendMessageToTheChat("(x) Error while sending file: " + e.toString(), false);
 		} finally {
 			// close everything nicely
@@ -125,8 +859,8 @@ public class FileTransferThread extends Thread {
 				if (dos != null)
 					dos.close();
 				
-				if (socket != null) 
-					socket.close();
+				if (socketChannel != null) 
+					socketChannel.close();
 				
 				if (fis != null) 
 					fis.close();
@@ -138,15 +872,129 @@ public class FileTransferThread extends Thread {
 
 	}
 
+	/**
+	 * Send the file content through a user space buffer, encrypting each chunk
+	 * The buffer follows the tuner, it was DATA_CHUNK_SIZE (4 KB) before
+	 * @param fis Input stream of the file
+	 * @param dos Output stream of the socket
+	 * @param socketChannel Channel of the socket, tuned as the transfer goes
+	 * @param fileSize Size of the file
+	 * @throws IOException If something went wrong while reading or sending
+	 */
+	private void sendBuffered(FileInputStream fis, DataOutputStream dos, SocketChannel socketChannel, long fileSize) throws IOException {
+		int byteReads = 0;
+		byte[] chunkData = new byte[tuner.getStepSize()];
+		long byteSends = 0;
+		
+		byte key = (byte) commonKey;
+		
+		while ((byteReads = fis.read(chunkData)) > 0) {
+			// encrypt before sending
+			xorEncrypt(chunkData, byteReads, key);
+			writeThrottled(dos, chunkData, 0, byteReads);
+			
+			byteSends += byteReads;
+			reportProgress(byteSends, fileSize);
+			if (sampleSingleStream(socketChannel, byteSends) && chunkData.length != tuner.getStepSize())
+				chunkData = new byte[tuner.getStepSize()];
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Send the file content straight from the file channel to the socket channel
+	 * FileChannel.transferTo maps to sendfile on Linux so the bytes never enter user space
+	 * @param fileChannel Channel of the file
+	 * @param socketChannel Channel of the socket
+	 * @param fileSize Size of the file
+	 * @throws IOException If something went wrong while sending
+	 */
+	private void sendZeroCopy(FileChannel fileChannel, SocketChannel socketChannel, long fileSize) throws IOException {
+		long byteSends = 0;
+		
+		while (byteSends < fileSize) {
+			// transfer in steps so the progress can still be reported
+			long count = throttleStep(Math.min(fileSize - byteSends, ZERO_COPY_STEP));
+			throttle(count);
+			long sent = fileChannel.transferTo(byteSends, count, socketChannel);
+			if (sent <= 0)
+				throw new EOFException("File '" + file.getName() + "' was truncated while sending");
+			
+			byteSends += sent;
+			reportProgress(byteSends, fileSize);
+			sampleSingleStream(socketChannel, byteSends);
+		}
+	}
+	
+	/**
+	 * Measure the throughput of the legacy single stream every adapt interval, its socket follows the tuner
+	 * @param socketChannel Channel of the socket
+	 * @param byteSends Number of bytes sent so far
+	 * @return True if the tuner changed the socket buffer or the write buffer
+	 * @throws IOException If unable to set the socket buffer
+	 */
+	private boolean sampleSingleStream(SocketChannel socketChannel, long byteSends) throws IOException {
+		long now = System.nanoTime();
+		if (now - sampleTime < ADAPT_INTERVAL * 1000000)
+			return false;
+		
+		boolean changed = tuner.rateSample(byteSends - sampleBytes, now - sampleTime, 1);
+		if (changed)
+			tuner.apply(socketChannel);
+		sampleTime = now;
+		sampleBytes = byteSends;
+		return changed;
+	}
+
+	/**
+	 * Log the progress each time it grows by the minimum step
+	 * @param byteSends Number of bytes sent so far
+	 * @param fileSize Size of the file
+	 */
+	private void reportProgress(long byteSends, long fileSize) {
+		// an empty file is all sent at once
+		int percent = fileSize > 0 ? (int)(100 * byteSends / fileSize) : 100;
+		if (percent >= lastPercent + MINIMUM_STEP) {
+			lastPercent = percent;
+			Utility.logln("    " + percent + "% sent: " + 
+			                    byteSends + "/" + fileSize + " bytes (~" +
+					            byteSends/1048576 + "/" + fileSize/1048576 + " MB)");
+		}
+	}
+
 	/**
 	 * Simple xor encryption using common key calculated
 	 * @param data Data to be encrypted
 	 * @param length Length of the data
 	 * @param key Key used to encrypt
 	 */
-	private void xorEncrypt(byte[] data, int length, byte key) {
+	public static void xorEncrypt(byte[] data, int length, byte key) {
 		for (int index = 0; index < length; index++) {
 			data[index] = (byte) (data[index] ^ key);
 		}
 	}
+	
+	/**
+	 * Simple xor encryption of a region of a buffer, in place, e.g. a pooled direct buffer or a mapped window, also used to decrypt
+	 * Works a long (8 bytes) at a time, the key is repeated over the long so byte order does not matter
+	 * @param buffer Buffer holding the data
+	 * @param offset Offset of the first byte
+	 * @param length Length of the data
+	 * @param key Key used to encrypt
+	 */
+	public static void xorEncrypt(ByteBuffer buffer, int offset, int length, byte key) {
+		long wideKey = key & 0xFF;
+		wideKey |= wideKey << 8;
+		wideKey |= wideKey << 16;
+		wideKey |= wideKey << 32;
+		
+		int index = offset;
+		int end = offset + length;
+		for (; index + 8 <= end; index += 8) {
+			buffer.putLong(index, buffer.getLong(index) ^ wideKey);
+		}
+		for (; index < end; index++) {
+			buffer.put(index, (byte) (buffer.get(index) ^ key));
+		}
+	}
 }
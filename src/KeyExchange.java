@@ -0,0 +1,76 @@
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+
+import javax.crypto.*;
+
+/**
+ * KeyExchange is the X25519 (elliptic curve Diffie-Hellman, RFC 7748) key agreement the AES-GCM keys are derived from
+ * Each transfer or swarm connection generates a fresh key pair, the public keys are exchanged in the clear
+ * (FREQ/FACT parameters or the swarm hello), the secret agreed on never goes over the wire
+ * The public keys are not authenticated: a passive eavesdropper learns nothing, a man in the middle is not detected
+ * @author conqtc
+ *
+ */
+public class KeyExchange {
+
+	public static final String ALGORITHM = "X25519";
+
+	private KeyPair keyPair;
+
+	/**
+	 * Constructor, generates a fresh key pair
+	 */
+	public KeyExchange() {
+		try {
+			this.keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+		} catch (NoSuchAlgorithmException nsae) {
+			// X25519 is required on every Java platform since Java 11
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * Get the public key to send to the peer
+	 * @return Public key, X.509 encoded
+	 */
+	public byte[] getEncodedPublicKey() {
+		return keyPair.getPublic().getEncoded();
+	}
+
+	/**
+	 * Get the public key to send to the peer as a transfer parameter
+	 * @return Public key, X.509 encoded as hex
+	 */
+	public String getPublicKey() {
+		return HexFormat.of().formatHex(getEncodedPublicKey());
+	}
+
+	/**
+	 * Agree on the shared secret with the public key of the peer
+	 * @param peerKey Public key of the peer, X.509 encoded
+	 * @return Shared secret, the same on both sides
+	 * @throws GeneralSecurityException If the public key is not a valid X25519 key
+	 */
+	public byte[] agree(byte[] peerKey) throws GeneralSecurityException {
+		PublicKey publicKey = KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(peerKey));
+		KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+		agreement.init(keyPair.getPrivate());
+		agreement.doPhase(publicKey, true);
+		return agreement.generateSecret();
+	}
+
+	/**
+	 * Agree on the shared secret with the public key of the peer received as a transfer parameter
+	 * @param peerKey Public key of the peer, X.509 encoded as hex
+	 * @return Shared secret, the same on both sides
+	 * @throws GeneralSecurityException If the public key is missing or not a valid X25519 key
+	 */
+	public byte[] agree(String peerKey) throws GeneralSecurityException {
+		try {
+			return agree(HexFormat.of().parseHex(peerKey));
+		} catch (IllegalArgumentException iae) {
+			throw new InvalidKeyException("Public key is not hex: " + peerKey);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * ListenerBenchmark measures the UDP receive loop over loopback at a given packet rate:
+ * packets received per second and bytes allocated per second by the receiving thread, for each way of receiving
+ * Usage: java ListenerBenchmark [packets per second] [seconds]
+ * @author conqtc
+ *
+ */
+public class ListenerBenchmark {
+
+	private static final int PORT = ChatApp.DEFAULT_PORT + 10;
+
+	// packets sent back to back before the sender checks its schedule
+	private static final int BURST = 100;
+
+	/**
+	 * Main entry
+	 * @param args Optional packet rate, 100000 by default, and duration of each run in seconds, 3 by default
+	 * @throws Exception If a socket fails
+	 */
+	public static void main(String[] args) throws Exception {
+		int rate = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+		System.out.println("(i) UDP receive loop at " + rate + " packets/s for " + seconds + " s per run, over loopback");
+		run("socket, new buffer per packet", rate, seconds, new SocketLoop(false));
+		run("socket, one reused buffer", rate, seconds, new SocketLoop(true));
+		run("channel, pooled direct buffers", rate, seconds, new ChannelLoop());
+	}
+
+	/**
+	 * Run one receive loop against a paced sender and print what it received and allocated
+	 * @param name Name of the run
+	 * @param rate Packets sent per second
+	 * @param seconds Duration of the run
+	 * @param loop Receive loop
+	 * @throws Exception If a socket fails
+	 */
+	private static void run(String name, int rate, int seconds, Loop loop) throws Exception {
+		loop.open();
+		Thread receiver = new Thread(loop, "receiver");
+		receiver.start();
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedStart = threads.getThreadAllocatedBytes(receiver.getId());
+		long receivedStart = loop.received;
+		long sent = send(rate, seconds);
+		long allocated = threads.getThreadAllocatedBytes(receiver.getId()) - allocatedStart;
+		long received = loop.received - receivedStart;
+
+		loop.close();
+		receiver.join();
+		System.out.println(String.format("    %-32s %9d packets/s received (%5.1f%% of %d sent)  %10.1f KB/s allocated  %6.1f bytes/packet",
+		                                 name, received / seconds, received * 100.0 / sent, sent,
+		                                 allocated / 1024.0 / seconds, (double) allocated / Math.max(1, received)));
+	}
+
+	/**
+	 * Send binary chat messages to the loop at a steady rate
+	 * @param rate Packets per second
+	 * @param seconds Duration
+	 * @return Number of packets sent
+	 * @throws Exception If sending fails
+	 */
+	private static long send(int rate, int seconds) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		WireFormat.encode(buffer, UDPMessenger.MessageType.MESG, 1, "b7e2c41d", "alice", "see you at the station at 6");
+		byte[] data = new byte[buffer.limit()];
+		buffer.get(data);
+
+		long sent = 0;
+		try (DatagramSocket socket = new DatagramSocket()) {
+			DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), PORT);
+			long start = System.nanoTime();
+			long end = start + seconds * 1000000000L;
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				// behind schedule: send a burst, ahead of it: wait
+				if (sent < (now - start) * rate / 1000000000L) {
+					for (int index = 0; index < BURST; index++) {
+						socket.send(packet);
+					}
+					sent += BURST;
+				} else {
+					Thread.onSpinWait();
+				}
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Loop is one way of receiving, it decodes each packet in place as the listener does
+	 */
+	private static abstract class Loop implements Runnable {
+
+		protected volatile long received;
+
+		protected WireFormat.Message message = new WireFormat.Message();
+
+		/**
+		 * Bind the port
+		 * @throws Exception If unable to bind
+		 */
+		abstract void open() throws Exception;
+
+		/**
+		 * Close the port, the loop ends
+		 * @throws Exception If unable to close
+		 */
+		abstract void close() throws Exception;
+
+		/**
+		 * Decode a packet and count it
+		 * @param buffer Buffer holding the packet
+		 */
+		protected void handle(ByteBuffer buffer) {
+			if (WireFormat.decode(buffer, message))
+				received++;
+		}
+	}
+
+	/**
+	 * SocketLoop receives with a blocking DatagramSocket, as the listener did
+	 */
+	private static class SocketLoop extends Loop {
+
+		private boolean reuse;
+
+		private DatagramSocket socket;
+
+		/**
+		 * Constructor
+		 * @param reuse True to receive every packet into one buffer, false for a new buffer and packet each time
+		 */
+		private SocketLoop(boolean reuse) {
+			this.reuse = reuse;
+		}
+
+		void open() throws Exception {
+			socket = new DatagramSocket(PORT);
+		}
+
+		void close() {
+			socket.close();
+		}
+
+		/**
+		 * Implementation of Runnable
+		 */
+		public void run() {
+			byte[] data = new byte[WireFormat.MAX_MESSAGE_SIZE];
+			DatagramPacket packet = new DatagramPacket(data, data.length);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			try {
+				while (true) {
+					if (!reuse) {
+						data = new byte[WireFormat.MAX_MESSAGE_SIZE];
+						packet = new DatagramPacket(data, data.length);
+						buffer = ByteBuffer.wrap(data);
+					}
+					packet.setLength(data.length);
+					socket.receive(packet);
+					buffer.clear();
+					buffer.limit(packet.getLength());
+					handle(buffer);
+				}
+			} catch (Exception e) {
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * ChannelLoop receives with a blocking DatagramChannel into pooled direct buffers, as the listener does
+	 */
+	private static class ChannelLoop extends Loop {
+
+		private DatagramChannel channel;
+
+		private BufferPool pool = new BufferPool(WireFormat.MAX_MESSAGE_SIZE, 4);
+
+		void open() throws Exception {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(PORT));
+		}
+
+		void close() throws Exception {
+			channel.close();
+		}
+
+		/**
+		 * Implementation of Runnable
+		 */
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer buffer = pool.acquire();
+					try {
+						channel.receive(buffer);
+						buffer.flip();
+						handle(buffer);
+					} finally {
+						pool.release(buffer);
+					}
+				}
+			} catch (Exception e) {
+				// closed
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * MappedFileWriter writes a file of known size through memory-mapped windows,
+ * data is received straight into the mapped region instead of a heap buffer
+ * Several threads may write different regions at the same time
+ * Falls back to positional channel writes when a window can not be mapped
+ * @author conqtc
+ *
+ */
+public class MappedFileWriter {
+
+	public static enum FlushPolicy {
+		WINDOW,	// force each window to disk before moving to the next one
+		END,	// force the whole file once when closing
+		NONE	// leave it to the operating system
+	}
+
+	private RandomAccessFile file;
+
+	private FileChannel channel;
+
+	private long fileSize;
+
+	private int windowSize;
+
+	private FlushPolicy flushPolicy;
+
+	// windows currently mapped, keyed by window index, released once fully written
+	private ConcurrentHashMap<Long, Window> windows;
+
+	private volatile boolean mapped;
+
+	// heap buffers used once mapping is no longer possible, one per receiving thread
+	private ThreadLocal<ByteBuffer> fallbackBuffers;
+
+	// counts bytes of a region written by an earlier attempt (start, length), e.g. when resuming
+	private LongBinaryOperator prewritten;
+
+	/**
+	 * Window encapsulates one mapped region of the file
+	 */
+	private static class Window {
+
+		private MappedByteBuffer buffer;
+
+		private long start;
+
+		// bytes not yet written into this window
+		private AtomicLong remaining;
+
+		/**
+		 * Constructor
+		 * @param buffer Mapped buffer
+		 * @param start File position of the first byte of the window
+		 * @param prewritten Bytes of the window already written
+		 */
+		private Window(MappedByteBuffer buffer, long start, long prewritten) {
+			this.buffer = buffer;
+			this.start = start;
+			this.remaining = new AtomicLong(buffer.capacity() - prewritten);
+		}
+	}
+
+	/**
+	 * Constructor, preallocates the target file to its final size
+	 * Existing content of the file is kept
+	 * @param target Target file
+	 * @param fileSize Exact size of the file
+	 * @param windowSize Size of each mapped window in bytes
+	 * @param flushPolicy When mapped data is forced to disk
+	 * @param mapped False to write through positional channel writes only
+	 * @throws IOException If unable to create or preallocate the file
+	 */
+	public MappedFileWriter(File target, long fileSize, int windowSize, FlushPolicy flushPolicy, boolean mapped) throws IOException {
+		this.file = new RandomAccessFile(target, "rw");
+		this.channel = file.getChannel();
+		this.fileSize = fileSize;
+		this.windowSize = Math.max(windowSize, ChatApp.DATA_CHUNK_SIZE);
+		this.flushPolicy = flushPolicy;
+		this.windows = new ConcurrentHashMap<>();
+		this.mapped = mapped;
+		this.fallbackBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(ChatApp.DATA_CHUNK_SIZE));
+
+		// preallocate so the file does not grow chunk by chunk
+		this.file.setLength(fileSize);
+	}
+
+	/**
+	 * Set the function counting bytes already written by an earlier attempt,
+	 * so windows of a resumed file are still released once their missing part is written
+	 * @param prewritten Function of (start, length) returning the number of bytes already written
+	 */
+	public void setPrewritten(LongBinaryOperator prewritten) {
+		this.prewritten = prewritten;
+	}
+
+	/**
+	 * Get the channel of the file, e.g. to read back written regions
+	 * @return File channel
+	 */
+	public FileChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Is the writer still writing through mapped windows
+	 * @return True if mapped, false if it has fallen back to channel writes
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Get a writable region starting at a file position
+	 * The returned buffer is positioned at the file position, its limit is the end of the requested
+	 * length or of the window containing the position, whichever comes first
+	 * Regions of different positions can be filled concurrently
+	 * @param position File position
+	 * @param length Number of bytes wanted
+	 * @return Buffer to receive data into
+	 */
+	public ByteBuffer regionAt(long position, long length) {
+		Window window = mapped ? windowAt(position) : windows.get(position / windowSize);
+
+		if (window == null) {
+			ByteBuffer buffer = fallbackBuffers.get();
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length));
+			return buffer;
+		}
+
+		int offset = (int) (position - window.start);
+		ByteBuffer region = window.buffer.duplicate();
+		region.limit((int) Math.min(window.buffer.capacity(), offset + length));
+		region.position(offset);
+		return region;
+	}
+
+	/**
+	 * Commit data received into a region returned by regionAt
+	 * Mapped data is already in place, fallback data is written at its position
+	 * @param region Region returned by regionAt
+	 * @param position File position of the first byte
+	 * @param offset Offset of the first byte in the region
+	 * @param length Number of bytes
+	 * @throws IOException If unable to write
+	 */
+	public void commit(ByteBuffer region, long position, int offset, int length) throws IOException {
+		long index = position / windowSize;
+		Window window = windows.get(index);
+
+		if (window == null) {
+			ByteBuffer data = region.duplicate();
+			data.limit(offset + length);
+			data.position(offset);
+			while (data.hasRemaining()) {
+				position += channel.write(data, position);
+			}
+			return;
+		}
+
+		// last bytes of the window, it will not be touched again
+		if (window.remaining.addAndGet(-length) <= 0) {
+			windows.remove(index);
+			releaseWindow(window);
+		}
+	}
+
+	/**
+	 * Get the window containing a file position, mapping it if needed
+	 * @param position File position
+	 * @return Window, null if unable to map
+	 */
+	private Window windowAt(long position) {
+		long index = position / windowSize;
+		try {
+			return windows.computeIfAbsent(index, key -> mapWindow(key));
+		} catch (UncheckedIOException | OutOfMemoryError e) {
+			// address space exhausted (e.g. 32 bit JVM), continue with plain writes
+			Utility.logln("    unable to map window at " + (index * windowSize) + " (" + e.getMessage() + 
+			              "), falling back to channel writes");
+			mapped = false;
+			return null;
+		}
+	}
+
+	/**
+	 * Map a window, windows are aligned to the window size
+	 * @param index Index of the window
+	 * @return Mapped window
+	 */
+	private Window mapWindow(long index) {
+		long start = index * windowSize;
+		long length = Math.min(windowSize, fileSize - start);
+
+		try {
+			long written = (prewritten != null) ? prewritten.applyAsLong(start, length) : 0;
+			return new Window(channel.map(FileChannel.MapMode.READ_WRITE, start, length), start, written);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/**
+	 * Release a window, forcing it to disk if required
+	 * The mapping itself is released by the garbage collector
+	 * @param window Window to release
+	 */
+	private void releaseWindow(Window window) {
+		if (flushPolicy == FlushPolicy.WINDOW)
+			window.buffer.force();
+	}
+
+	/**
+	 * Close the writer
+	 * @throws IOException If unable to flush or close the file
+	 */
+	public void close() throws IOException {
+		// windows not completely written, e.g. after a broken connection
+		for (Window window: windows.values()) {
+			releaseWindow(window);
+		}
+		windows.clear();
+
+		// fsync also writes back dirty pages of earlier mappings of the file
+		if (flushPolicy == FlushPolicy.END)
+			channel.force(true);
+
+		file.close();
+	}
+
+	/**
+	 * Get flush policy from string
+	 * @param policy String
+	 * @return Flush policy, WINDOW if unknown
+	 */
+	public static FlushPolicy flushPolicyFromString(String policy) {
+		for (FlushPolicy value: FlushPolicy.values()) {
+			if (value.name().equalsIgnoreCase(policy))
+				return value;
+		}
+
+		return FlushPolicy.WINDOW;
+	}
+}
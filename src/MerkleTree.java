@@ -0,0 +1,278 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.concurrent.*;
+
+/**
+ * MerkleTree holds the chunk hashes (leaves) of a file and the root hash built from them
+ * Chunk hashing runs on a fork-join pool so it scales with the number of cores
+ * https://en.wikipedia.org/wiki/Merkle_tree
+ * @author conqtc
+ *
+ */
+public class MerkleTree {
+
+	public static final String ALGORITHM = "SHA-256";
+
+	public static final int HASH_SIZE = 32;
+
+	// size of each read while hashing a chunk
+	private static final int READ_SIZE = 256 * 1024;
+
+	// shared by senders hashing files and receivers verifying chunks
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> newDigest());
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_SIZE));
+
+	private byte[][] leaves;
+
+	private byte[] root;
+
+	/**
+	 * Constructor, builds the root from the leaves
+	 * @param leaves Hash of each chunk
+	 */
+	public MerkleTree(byte[][] leaves) {
+		this.leaves = leaves;
+		this.root = buildRoot(leaves);
+	}
+
+	/**
+	 * Hash all chunks of a file in parallel and build the tree
+	 * @param channel File channel, read with positional reads only
+	 * @param fileSize Size of the file
+	 * @param chunkSize Size of each chunk
+	 * @return Merkle tree of the file
+	 * @throws IOException If unable to read the file
+	 */
+	public static MerkleTree build(FileChannel channel, long fileSize, int chunkSize) throws IOException {
+		int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		byte[][] leaves = new byte[chunkCount][];
+
+		try {
+			POOL.invoke(new HashTask(channel, fileSize, chunkSize, leaves, 0, chunkCount));
+		} catch (UncheckedIOException uioe) {
+			throw new IOException(uioe.getMessage(), uioe);
+		}
+
+		return new MerkleTree(leaves);
+	}
+
+	/**
+	 * Run a task on the shared hashing pool
+	 * @param task Task to run
+	 */
+	public static void execute(Runnable task) {
+		POOL.execute(task);
+	}
+
+	/**
+	 * Run a fork-join task on the shared hashing pool and wait for it
+	 * @param task Task to run
+	 * @return Result of the task
+	 */
+	public static <T> T invoke(ForkJoinTask<T> task) {
+		return POOL.invoke(task);
+	}
+
+	/**
+	 * Hash a region of a file
+	 * @param channel File channel
+	 * @param position Position of the region
+	 * @param length Length of the region
+	 * @return Hash of the region
+	 * @throws IOException If unable to read the file
+	 */
+	public static byte[] hashRegion(FileChannel channel, long position, long length) throws IOException {
+		MessageDigest digest = DIGESTS.get();
+		ByteBuffer buffer = BUFFERS.get();
+		long end = position + length;
+
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int count = channel.read(buffer, position);
+			if (count < 0)
+				throw new EOFException("Unexpected end of file while hashing");
+
+			buffer.flip();
+			digest.update(buffer);
+			position += count;
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Build the root hash, each level hashes pairs of the level below, an odd node is carried up
+	 * @param leaves Hash of each chunk
+	 * @return Root hash
+	 */
+	private static byte[] buildRoot(byte[][] leaves) {
+		MessageDigest digest = DIGESTS.get();
+		if (leaves.length == 0)
+			return digest.digest();
+
+		byte[][] level = leaves;
+		while (level.length > 1) {
+			byte[][] parents = new byte[(level.length + 1) / 2][];
+			for (int index = 0; index < parents.length; index++) {
+				int left = index * 2;
+				if (left + 1 < level.length) {
+					digest.update(level[left]);
+					digest.update(level[left + 1]);
+					parents[index] = digest.digest();
+				} else {
+					parents[index] = level[left];
+				}
+			}
+			level = parents;
+		}
+
+		return level[0];
+	}
+
+	/**
+	 * Check if a chunk matches its leaf
+	 * @param chunkIndex Index of the chunk
+	 * @param hash Hash of the received chunk
+	 * @return True if it matches
+	 */
+	public boolean matches(int chunkIndex, byte[] hash) {
+		return MessageDigest.isEqual(leaves[chunkIndex], hash);
+	}
+
+	/**
+	 * Get the hash of a chunk
+	 * @param chunkIndex Index of the chunk
+	 * @return Leaf hash
+	 */
+	public byte[] getLeaf(int chunkIndex) {
+		return this.leaves[chunkIndex];
+	}
+
+	/**
+	 * Get number of leaves
+	 * @return Number of chunks
+	 */
+	public int getLeafCount() {
+		return this.leaves.length;
+	}
+
+	/**
+	 * Get the root hash
+	 * @return Root hash
+	 */
+	public byte[] getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * Format a hash as hex string
+	 * @param hash Hash
+	 * @return Hex string
+	 */
+	public static String toHex(byte[] hash) {
+		StringBuilder builder = new StringBuilder();
+		for (byte value: hash) {
+			builder.append(String.format("%02x", value));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parse a hash from a hex string
+	 * @param hex Hex string
+	 * @return Hash, null if the string is not a hash
+	 */
+	public static byte[] fromHex(String hex) {
+		if (hex == null || hex.length() != HASH_SIZE * 2)
+			return null;
+
+		byte[] hash = new byte[HASH_SIZE];
+		for (int index = 0; index < HASH_SIZE; index++) {
+			int high = Character.digit(hex.charAt(2 * index), 16);
+			int low = Character.digit(hex.charAt(2 * index + 1), 16);
+			if (high < 0 || low < 0)
+				return null;
+			hash[index] = (byte) ((high << 4) | low);
+		}
+		return hash;
+	}
+
+	/**
+	 * Create a message digest
+	 * @return Message digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * HashTask hashes a range of chunks, split in halves until one chunk is left
+	 */
+	private static class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private FileChannel channel;
+
+		private long fileSize;
+
+		private int chunkSize;
+
+		private byte[][] leaves;
+
+		private int from;
+
+		private int to;
+
+		/**
+		 * Constructor
+		 * @param channel File channel
+		 * @param fileSize Size of the file
+		 * @param chunkSize Size of each chunk
+		 * @param leaves Array receiving the hashes
+		 * @param from First chunk of the range
+		 * @param to Chunk after the last one of the range
+		 */
+		private HashTask(FileChannel channel, long fileSize, int chunkSize, byte[][] leaves, int from, int to) {
+			this.channel = channel;
+			this.fileSize = fileSize;
+			this.chunkSize = chunkSize;
+			this.leaves = leaves;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Implementation of RecursiveAction
+		 */
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HashTask(channel, fileSize, chunkSize, leaves, from, middle),
+				          new HashTask(channel, fileSize, chunkSize, leaves, middle, to));
+				return;
+			}
+
+			if (from >= to)
+				return;
+
+			long position = (long) from * chunkSize;
+			try {
+				leaves[from] = hashRegion(channel, position, Math.min(chunkSize, fileSize - position));
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,427 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * MessagePipeline moves the UDP messages from the listener to their handlers in stages, so reception never waits for a handler
+ *     receive (listener thread) -> decode queue -> decode thread -> lane queue -> lane thread -> handler
+ * Packets are received into slots holding pooled direct buffers, a slot goes back to the free queue as soon as it is decoded
+ * Each lane runs the handlers of a group of message types in order, on a thread of its own:
+ * chat and presence messages on one, file transfer control messages on the other, so a slow file request never holds up the chat
+ * Queues are bounded and nothing waits on them: with no free slot the packet is still pulled from the socket and dropped,
+ * with a full lane the message is dropped, both are counted, so the socket buffer keeps draining whatever the handlers do
+ * Fragments of messages longer than a datagram are put back together in a ReassemblyTable, the whole message goes on as any other
+ * Reliable messages go through ReliableDelivery, which queues them in order and leaves one a full lane can not take unacknowledged
+ * @author conqtc
+ *
+ */
+public class MessagePipeline {
+
+	// packets received and not decoded yet, at most
+	public static final int SLOT_COUNT = 256;
+
+	// messages decoded and not handled yet, at most, per lane
+	public static final int LANE_QUEUE_SIZE = 256;
+
+	// most packets decoded per take from the decode queue
+	private static final int DECODE_BATCH = 32;
+
+	// time between two logs of dropped messages
+	private static final long DROP_LOG_INTERVAL = 5000;
+
+	public static enum Lane {
+		CHAT,		// presence and chat messages
+		FILE		// file transfer control messages
+	}
+
+	private static final Lane[] LANES = Lane.values();
+
+	/**
+	 * Slot is one packet received and waiting to be decoded
+	 */
+	public static class Slot {
+
+		// data received, a direct buffer of WireFormat.MAX_MESSAGE_SIZE bytes, flipped
+		ByteBuffer buffer;
+
+		InetAddress address;
+	}
+
+	/**
+	 * Event is one message decoded and waiting for its handler
+	 */
+	private static class Event {
+
+		private UDPMessenger.MessageType type;
+
+		private Peer peer;
+
+		private String message;
+	}
+
+	private ChatApp app;
+
+	private BufferPool pool;
+
+	private ReliableDelivery reliableDelivery;
+
+	private ReassemblyTable reassemblyTable;
+
+	private DuplicateFilter duplicateFilter;
+
+	// hands a reliable message over to its lane, false if the lane is full
+	private Predicate<Object> deliverReliable;
+
+	private ArrayBlockingQueue<Slot> freeSlots;
+
+	private ArrayBlockingQueue<Slot> decodeQueue;
+
+	private ArrayBlockingQueue<Event>[] laneQueues;
+
+	private Thread decodeThread;
+
+	private Thread[] laneThreads;
+
+	private AtomicLong received;
+
+	// messages decoded, several per packet when batched
+	private AtomicLong messages;
+
+	private AtomicLong invalid;
+
+	// packets dropped because every slot was waiting to be decoded
+	private AtomicLong slotDrops;
+
+	private AtomicLongArray handled;
+
+	private AtomicLongArray laneDrops;
+
+	private volatile long lastDropLog;
+
+	/**
+	 * Constructor, the buffers are taken from the pool
+	 * @param app ChatApp reference object
+	 * @param pool Pool of receive buffers
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public MessagePipeline(ChatApp app, BufferPool pool) {
+		this.app = app;
+		this.pool = pool;
+		this.reliableDelivery = app.getUDPMessenger().getReliableDelivery();
+		this.reassemblyTable = new ReassemblyTable();
+		this.duplicateFilter = new DuplicateFilter();
+		this.deliverReliable = event -> queue((Event) event);
+		this.freeSlots = new ArrayBlockingQueue<>(SLOT_COUNT);
+		this.decodeQueue = new ArrayBlockingQueue<>(SLOT_COUNT);
+		for (int index = 0; index < SLOT_COUNT; index++) {
+			Slot slot = new Slot();
+			slot.buffer = pool.acquire();
+			freeSlots.add(slot);
+		}
+
+		this.laneQueues = new ArrayBlockingQueue[LANES.length];
+		this.laneThreads = new Thread[LANES.length];
+		for (Lane lane: LANES) {
+			laneQueues[lane.ordinal()] = new ArrayBlockingQueue<>(LANE_QUEUE_SIZE);
+			laneThreads[lane.ordinal()] = newThread("udp-" + lane.name().toLowerCase(), () -> runLane(lane));
+		}
+		this.decodeThread = newThread("udp-decode", () -> runDecode());
+
+		this.received = new AtomicLong();
+		this.messages = new AtomicLong();
+		this.invalid = new AtomicLong();
+		this.slotDrops = new AtomicLong();
+		this.handled = new AtomicLongArray(LANES.length);
+		this.laneDrops = new AtomicLongArray(LANES.length);
+	}
+
+	/**
+	 * Start the decode and lane threads
+	 */
+	public void start() {
+		decodeThread.start();
+		for (Thread thread: laneThreads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop the decode and lane threads, messages still queued are dropped
+	 */
+	public void stop() {
+		decodeThread.interrupt();
+		for (Thread thread: laneThreads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Take a free slot to receive into, never waits
+	 * @return Cleared slot, null if every slot is waiting to be decoded
+	 */
+	public Slot freeSlot() {
+		Slot slot = freeSlots.poll();
+		if (slot != null)
+			slot.buffer.clear();
+		return slot;
+	}
+
+	/**
+	 * Hand a received packet over to the decode stage, never waits as the queue holds every slot
+	 * @param slot Slot holding the packet
+	 */
+	public void received(Slot slot) {
+		received.incrementAndGet();
+		decodeQueue.add(slot);
+	}
+
+	/**
+	 * Callback when a packet was pulled from the socket with no free slot to keep it
+	 */
+	public void dropped() {
+		received.incrementAndGet();
+		slotDrops.incrementAndGet();
+		logDrops();
+	}
+
+	/**
+	 * Describe what went through the pipeline
+	 * @return Description, e.g. "received 90 packet(s), 1200 message(s), invalid 0, dropped 0 (no free slot), chat lane: handled 1190, ..."
+	 */
+	public String describe() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("received ").append(received.get()).append(" packet(s), ").append(messages.get()).append(" message(s)");
+		builder.append(", invalid ").append(invalid.get()).append(", ").append(reassemblyTable.describe());
+		builder.append(", ").append(duplicateFilter.describe());
+		builder.append(", dropped ").append(slotDrops.get()).append(" (no free slot), ").append(decodeQueue.size()).append(" to decode");
+		for (Lane lane: LANES) {
+			builder.append(", ").append(lane.name().toLowerCase()).append(" lane: handled ").append(handled.get(lane.ordinal()));
+			builder.append(", dropped ").append(laneDrops.get(lane.ordinal()));
+			builder.append(", queued ").append(laneQueues[lane.ordinal()].size());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Decode stage: turn packets into events and give the slots back straight away
+	 * Packets waiting are taken in batches, one lock of the queue for all of them
+	 */
+	private void runDecode() {
+		WireFormat.Message message = new WireFormat.Message();
+		ArrayList<Slot> batch = new ArrayList<>(DECODE_BATCH);
+		try {
+			while (true) {
+				batch.add(decodeQueue.take());
+				decodeQueue.drainTo(batch, DECODE_BATCH - 1);
+				for (Slot slot: batch) {
+					try {
+						decode(slot, message);
+					} finally {
+						freeSlots.add(slot);
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException ie) {
+			// stopped
+		} finally {
+			for (Slot slot: freeSlots) {
+				pool.release(slot.buffer);
+			}
+		}
+	}
+
+	/**
+	 * Decode one packet and queue its messages on the lanes of their types
+	 * A binary packet may hold a batch of messages, queued in order
+	 * @param slot Slot holding the packet
+	 * @param message Message to decode into
+	 */
+	private void decode(Slot slot, WireFormat.Message message) {
+		ByteBuffer buffer = slot.buffer;
+		while (buffer.hasRemaining()) {
+			if (!WireFormat.decode(buffer, message)) {
+				invalid.incrementAndGet();
+				return;	// invalid message, do nothing
+			}
+			buffer.position(message.getEnd());
+			messages.incrementAndGet();
+			app.getUDPMessenger().messageReceived(slot.address, message.isBinary());
+
+			if (message.getType() == UDPMessenger.MessageType.FRAG) {
+				ByteBuffer whole = reassemblyTable.add(slot.address, message);
+				if (whole == null)
+					continue;
+
+				// the packet is done with the message, it is decoded again from the whole one
+				if (!WireFormat.decode(whole, message) || message.getType() == UDPMessenger.MessageType.FRAG || message.getEnd() != whole.limit()) {
+					invalid.incrementAndGet();
+					continue;
+				}
+			}
+			handle(slot.address, message);
+		}
+	}
+
+	/**
+	 * Handle a message decoded, queued on the lane of its type unless it is a copy of one received before
+	 * @param address Address of the sender
+	 * @param message Message decoded
+	 */
+	private void handle(InetAddress address, WireFormat.Message message) {
+		if (message.getType() == UDPMessenger.MessageType.SACK) {
+			reliableDelivery.acknowledged(address, message.getSession(), message.getSequence(), message.getSelectiveAcks());
+			return;
+		}
+
+		if (message.getType() == UDPMessenger.MessageType.MTUP) {
+			try {
+				app.getUDPMessenger().answerProbe(address, app.getPeerPort(), message.getSequence());
+			} catch (IOException ioe) {
+				// nothing to do, the prober sends again
+			}
+			return;
+		}
+
+		if (message.getType() == UDPMessenger.MessageType.MTUA) {
+			app.getUDPMessenger().getPathMtuDiscovery().answered(address, message.getSequence());
+			return;
+		}
+
+		// a reliable message takes its place in the sequence even if it is not handled
+		Lane lane = laneOf(message.getType());
+		if (lane == null && !message.isReliable())
+			return;
+
+		String uid = message.getField(WireFormat.UID);
+		String alias = message.getField(WireFormat.ALIAS);
+		// reliable messages are numbered per peer and filtered by the reliable delivery, text messages are not numbered
+		// senders are told apart by their full address, the uid only holds its last two bytes
+		if (!message.isReliable() && message.isBinary() && duplicateFilter.isDuplicate(address.getHostAddress() + ChatApp.SEPARATOR + alias, message.getSequence()))
+			return;
+
+		Event event = new Event();
+		event.type = message.getType();
+		event.peer = new Peer(uid, alias, address);
+		event.message = message.getField(WireFormat.MESSAGE);
+		if (message.isReliable()) {
+			reliableDelivery.received(address, message.getSession(), message.getSequence(), event, deliverReliable);
+		} else if (!queue(event)) {
+			laneDrops.incrementAndGet(lane.ordinal());
+			logDrops();
+		}
+	}
+
+	/**
+	 * Queue a message on its lane, never waits
+	 * @param event Message decoded
+	 * @return True if queued or not handled, false if the lane is full
+	 */
+	private boolean queue(Event event) {
+		Lane lane = laneOf(event.type);
+		return lane == null || laneQueues[lane.ordinal()].offer(event);
+	}
+
+	/**
+	 * Lane stage: run the handlers of the lane one after another
+	 * @param lane Lane
+	 */
+	private void runLane(Lane lane) {
+		ArrayBlockingQueue<Event> queue = laneQueues[lane.ordinal()];
+		try {
+			while (true) {
+				Event event = queue.take();
+				try {
+					dispatch(event);
+				} catch (RuntimeException re) {
+					// a failing handler must not stop the lane
+					Utility.loglnErr("Error while handling " + UDPMessenger.messageTypeAsString(event.type) + " message: " + re);
+				}
+				handled.incrementAndGet(lane.ordinal());
+			}
+		} catch (InterruptedException ie) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Run the handler of a message
+	 * @param event Message decoded
+	 */
+	private void dispatch(Event event) {
+		switch (event.type) {
+		case NOTF:
+			app.handleNotificationMessage(event.peer);
+			break;
+		case ACKM:
+			app.handleAcknowledgeMessage(event.peer);
+			break;
+		case MESG:
+			app.handleChatMessage(event.peer, event.message);
+			break;
+		case BYED:
+			app.handleByeMessage(event.peer);
+			break;
+		case FREQ:
+			app.handleFileRequestMessage(event.peer, event.message);
+			break;
+		case FACT:
+			app.handleFileAcceptedMessage(event.peer, event.message);
+			break;
+		case FCAN:
+			app.handleFileCancelMessage(event.peer, event.message);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Get the lane of a message type
+	 * @param type Message type
+	 * @return Lane, null if the type is not handled, e.g. QUIT self-sent by older versions to stop listening
+	 */
+	private static Lane laneOf(UDPMessenger.MessageType type) {
+		switch (type) {
+		case NOTF:
+		case ACKM:
+		case MESG:
+		case BYED:
+			return Lane.CHAT;
+		case FREQ:
+		case FACT:
+		case FCAN:
+			return Lane.FILE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Log the drops, at most once per interval so logging does not add to the load
+	 */
+	private void logDrops() {
+		long now = System.currentTimeMillis();
+		if (now - lastDropLog < DROP_LOG_INTERVAL)
+			return;
+
+		lastDropLog = now;
+		Utility.loglnErr("UDP messages dropped, handlers can not keep up: " + describe());
+	}
+
+	/**
+	 * Create a daemon thread of the pipeline
+	 * @param name Thread name
+	 * @param runnable Stage
+	 * @return Thread, not started
+	 */
+	private static Thread newThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * MulticastGroup is the transport of the messages to all peers when an IP multicast group takes the place of the subnet broadcast:
+ * only the hosts which joined the group get them, instead of every host of the segment
+ * The listener joins the group on each selected interface, a message to the group is sent out of each of them,
+ * as many hops away as the TTL allows (1 keeps it on the segment, as a broadcast)
+ * The group is one more address to send to: ChatApp sends to it instead of the broadcast addresses, the handlers do not change;
+ * a peer listening on several of the interfaces gets the copies with the same sequence, DuplicateFilter drops all but one
+ * Options, e.g. java -Dchatapp.udp.transport=multicast -Dchatapp.udp.group=239.255.42.42 -Dchatapp.udp.ttl=2 -Dchatapp.udp.interfaces=eth0,wlan0
+ * @author conqtc
+ *
+ */
+public class MulticastGroup {
+
+	private InetAddress group;
+
+	private int ttl;
+
+	private List<NetworkInterface> interfaces;
+
+	/**
+	 * Constructor
+	 * @param group Address of the group
+	 * @param ttl Hops a message goes through at most
+	 * @param interfaces Interfaces the group is joined and sent on
+	 */
+	public MulticastGroup(InetAddress group, int ttl, List<NetworkInterface> interfaces) {
+		this.group = group;
+		this.ttl = ttl;
+		this.interfaces = interfaces;
+	}
+
+	/**
+	 * Create the group set by the options
+	 * @return Group, null if the transport is the subnet broadcast
+	 * @throws IOException If the group is not a multicast address or no interface can join it
+	 */
+	public static MulticastGroup fromSettings() throws IOException {
+		if (!Settings.multicastTransport())
+			return null;
+
+		InetAddress group = InetAddress.getByName(Settings.multicastGroup());
+		if (!group.isMulticastAddress())
+			throw new IOException("Not a multicast group: " + group.getHostAddress());
+
+		ArrayList<NetworkInterface> interfaces = new ArrayList<>();
+		String names = Settings.multicastInterfaces();
+		if (!names.isEmpty()) {
+			for (String name: names.split(",")) {
+				NetworkInterface networkInterface = NetworkInterface.getByName(name.trim());
+				if (networkInterface == null)
+					throw new IOException("No such interface: " + name.trim());
+				interfaces.add(networkInterface);
+			}
+		} else {
+			// every interface up which can multicast, the loopback only if there is no other
+			ArrayList<NetworkInterface> loopbacks = new ArrayList<>();
+			for (NetworkInterface networkInterface: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				if (!networkInterface.isUp() || !networkInterface.supportsMulticast() || !hasAddressOf(networkInterface, group))
+					continue;
+
+				if (networkInterface.isLoopback()) {
+					loopbacks.add(networkInterface);
+				} else {
+					interfaces.add(networkInterface);
+				}
+			}
+			if (interfaces.isEmpty())
+				interfaces.addAll(loopbacks);
+		}
+
+		if (interfaces.isEmpty())
+			throw new IOException("No interface to join multicast group " + group.getHostAddress() + " on");
+
+		return new MulticastGroup(group, Settings.multicastTtl(), interfaces);
+	}
+
+	/**
+	 * Get the address of the group
+	 * @return Address
+	 */
+	public InetAddress getGroup() {
+		return this.group;
+	}
+
+	/**
+	 * Get the protocol family of the group, the channel joining it must be of the same
+	 * @return Protocol family
+	 */
+	public ProtocolFamily getProtocolFamily() {
+		return group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+	}
+
+	/**
+	 * Join the group on each interface
+	 * @param channel Channel bound to the port of the peers
+	 * @throws IOException If unable to join the group on one of the interfaces
+	 */
+	public void join(DatagramChannel channel) throws IOException {
+		for (NetworkInterface networkInterface: interfaces) {
+			channel.join(group, networkInterface);
+			Utility.logln("    Joined multicast group " + group.getHostAddress() + " on " + networkInterface.getName());
+		}
+	}
+
+	/**
+	 * Send a datagram to the group out of each interface
+	 * @param socket Socket to send through
+	 * @param packet Packet addressed to the group
+	 * @throws IOException If something goes wrong while sending on one of the interfaces, the others are sent anyway
+	 */
+	public void send(DatagramSocket socket, DatagramPacket packet) throws IOException {
+		socket.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+
+		IOException failure = null;
+		for (NetworkInterface networkInterface: interfaces) {
+			try {
+				socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				socket.send(packet);
+			} catch (IOException ioe) {
+				failure = ioe;
+			}
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Describe the group
+	 * @return Description, e.g. "multicast group 239.255.42.42, TTL 1, on eth0, wlan0"
+	 */
+	public String describe() {
+		StringBuilder builder = new StringBuilder("multicast group " + group.getHostAddress() + ", TTL " + ttl + ", on ");
+		for (int index = 0; index < interfaces.size(); index++) {
+			if (index > 0)
+				builder.append(", ");
+			builder.append(interfaces.get(index).getName());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Check if an interface has an address of the family of the group
+	 * @param networkInterface Interface
+	 * @param group Address of the group
+	 * @return True if it has one
+	 */
+	private static boolean hasAddressOf(NetworkInterface networkInterface, InetAddress group) {
+		for (InterfaceAddress interfaceAddress: networkInterface.getInterfaceAddresses()) {
+			if (interfaceAddress.getAddress().getClass() == group.getClass())
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * PathMtuDiscovery finds the largest datagram which reaches each peer whole, so batches and fragments are never cut into IP fragments,
+ * one of which lost would lose them all
+ * Java can not set the don't fragment bit of a datagram, so the path is searched with acknowledged probes as PLPMTUD does (RFC 8899):
+ * a probe is padded to the size tried and the peer answers it, the size is raised on an answer and lowered once its probes are all lost;
+ * the link MTU is tried first, most paths are as wide as their link, then each probe halves the range left
+ * Datagrams no longer than the link MTU are sent with the don't fragment bit by the operating system (Linux does by default),
+ * so a narrower router on the way drops a probe too large instead of cutting it, and a probe the kernel knows is too large fails to send
+ * Until its search is done a peer gets datagrams of the base size, addresses which are not peers (broadcasts) get the link MTU
+ * The path MTU found is kept in the Peer, it is searched again after a while as paths change
+ * It shares the lock of the messenger, the probes wait on its timer wheel
+ * @author conqtc
+ *
+ */
+public class PathMtuDiscovery {
+
+	// IPv4 and UDP headers, a datagram carries this much less than the MTU
+	public static final int HEADER_OVERHEAD = 28;
+
+	// datagram every path takes whole, as QUIC assumes (RFC 9000)
+	public static final int BASE_SIZE = 1200;
+
+	// largest datagram on Ethernet, until the MTU of the local link is known
+	private static final int DEFAULT_LINK_SIZE = 1472;
+
+	// time in milliseconds a probe waits for its answer, and probes of a size lost before it is known too large
+	private static final long PROBE_TIMEOUT = 1000;
+
+	private static final int PROBE_ATTEMPTS = 3;
+
+	// the search stops when the range left is narrower than this many bytes
+	private static final int PRECISION = 16;
+
+	// time in milliseconds before the path MTU of a peer is searched again
+	private static final long RAISE_INTERVAL = 600000;
+
+	/**
+	 * Path is the search of the path MTU to one peer
+	 */
+	private static class Path {
+
+		private Peer peer;
+
+		private int port;
+
+		// largest datagram answered, and largest one not known to be too large
+		private int low;
+
+		private int high;
+
+		// size of the probe waiting for its answer, 0 when not searching
+		private int probing;
+
+		private int attempts;
+
+		// probe timeout while searching, then the time to search again
+		private TimerWheel.Timeout timer;
+	}
+
+	private UDPMessenger messenger;
+
+	private TimerWheel wheel;
+
+	private boolean enabled;
+
+	// largest datagram of the local link
+	private int linkSize;
+
+	private HashMap<InetAddress, Path> paths;
+
+	private long probes;
+
+	private long searched;
+
+	/**
+	 * Constructor
+	 * @param messenger Messenger the probes are sent through, its lock is shared
+	 * @param wheel Timer wheel of the messenger
+	 * @param enabled False to give every address the link MTU without probing
+	 */
+	public PathMtuDiscovery(UDPMessenger messenger, TimerWheel wheel, boolean enabled) {
+		this.messenger = messenger;
+		this.wheel = wheel;
+		this.enabled = enabled;
+		this.linkSize = DEFAULT_LINK_SIZE;
+		this.paths = new HashMap<>();
+	}
+
+	/**
+	 * Set the MTU of the local link, the largest path MTU searched
+	 * @param mtu MTU in bytes, from NetworkInterface.getMTU
+	 */
+	public void setLinkMtu(int mtu) {
+		if (mtu <= HEADER_OVERHEAD)
+			return;
+
+		synchronized (messenger) {
+			// nothing longer fits in the receive buffer of a peer
+			this.linkSize = Math.min(mtu - HEADER_OVERHEAD, WireFormat.MAX_MESSAGE_SIZE);
+		}
+	}
+
+	/**
+	 * Start searching the path MTU to a peer, nothing happens if it is already known or being searched
+	 * @param peer Peer, its path MTU is set once found
+	 * @param port Port of the peer
+	 */
+	public void discover(Peer peer, int port) {
+		if (!enabled)
+			return;
+
+		synchronized (messenger) {
+			if (paths.containsKey(peer.getAddress()))
+				return;
+
+			Path path = new Path();
+			path.peer = peer;
+			path.port = port;
+			paths.put(peer.getAddress(), path);
+			search(path);
+		}
+	}
+
+	/**
+	 * Callback when a peer answered a probe
+	 * @param address Address of the peer
+	 * @param size Size of the probe answered
+	 */
+	public void answered(InetAddress address, int size) {
+		synchronized (messenger) {
+			Path path = paths.get(address);
+			// answer of a probe given up already
+			if (path == null || path.probing == 0 || size != path.probing)
+				return;
+
+			path.timer.cancel();
+			path.low = size;
+			path.attempts = 0;
+			next(path);
+		}
+	}
+
+	/**
+	 * Forget a peer gone offline
+	 * @param address Address of the peer
+	 */
+	public void forget(InetAddress address) {
+		synchronized (messenger) {
+			Path path = paths.remove(address);
+			if (path != null && path.timer != null)
+				path.timer.cancel();
+		}
+	}
+
+	/**
+	 * Get the largest datagram to send to an address
+	 * @param address Address to be sent
+	 * @return Size in bytes, the path MTU without the headers
+	 */
+	public int datagramSize(InetAddress address) {
+		synchronized (messenger) {
+			Path path = enabled ? paths.get(address) : null;
+			if (path == null)
+				return linkSize;
+
+			int mtu = path.peer.getPathMtu();
+			return mtu > 0 ? Math.min(mtu - HEADER_OVERHEAD, linkSize) : Math.min(BASE_SIZE, linkSize);
+		}
+	}
+
+	/**
+	 * Describe the searches
+	 * @return Description, e.g. "path MTU: 14 probe(s), 3 searched, 3 peer(s)"
+	 */
+	public String describe() {
+		synchronized (messenger) {
+			return "path MTU: " + probes + " probe(s), " + searched + " searched, " + paths.size() + " peer(s)";
+		}
+	}
+
+	/**
+	 * Search the path MTU to a peer from the base size to the link MTU
+	 * @param path Path
+	 */
+	private void search(Path path) {
+		path.low = Math.min(BASE_SIZE, linkSize);
+		path.high = linkSize;
+		path.attempts = 0;
+		if (path.high - path.low < PRECISION) {
+			found(path);
+		} else {
+			probe(path, path.high);
+		}
+	}
+
+	/**
+	 * Go on with the search after a probe was answered or given up
+	 * @param path Path
+	 */
+	private void next(Path path) {
+		if (path.high - path.low < PRECISION) {
+			found(path);
+		} else {
+			probe(path, (path.low + path.high + 1) / 2);
+		}
+	}
+
+	/**
+	 * Send a probe and wait for its answer
+	 * @param path Path
+	 * @param size Size of the probe
+	 */
+	private void probe(Path path, int size) {
+		path.probing = size;
+		path.attempts++;
+		probes++;
+		try {
+			messenger.sendProbe(path.peer.getAddress(), path.port, size);
+		} catch (IOException ioe) {
+			// too large for the path MTU the kernel knows of, or not sent at all: either way not answered
+			path.attempts = PROBE_ATTEMPTS;
+		}
+
+		path.timer = wheel.schedule(() -> timedOut(path), PROBE_TIMEOUT);
+	}
+
+	/**
+	 * Callback when a probe was not answered in time, it is sent again or its size is too large
+	 * @param path Path
+	 */
+	private void timedOut(Path path) {
+		synchronized (messenger) {
+			if (paths.get(path.peer.getAddress()) != path || path.probing == 0)
+				return;
+
+			if (path.attempts < PROBE_ATTEMPTS) {
+				probe(path, path.probing);
+				return;
+			}
+
+			path.high = path.probing - 1;
+			path.attempts = 0;
+			next(path);
+		}
+	}
+
+	/**
+	 * End the search, the largest size answered is the path MTU
+	 * @param path Path
+	 */
+	private void found(Path path) {
+		path.probing = 0;
+		path.peer.setPathMtu(path.low + HEADER_OVERHEAD);
+		searched++;
+
+		path.timer = wheel.schedule(() -> {
+			synchronized (messenger) {
+				if (paths.get(path.peer.getAddress()) == path)
+					search(path);
+			}
+		}, RAISE_INTERVAL);
+	}
+}
@@ -0,0 +1,128 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * PayloadBenchmark measures the cost of each payload transformation of a file transfer
+ * on one core, from memory to memory so that disk and network are left out
+ * Usage: java PayloadBenchmark [megabytes]
+ * @author conqtc
+ *
+ */
+public class PayloadBenchmark {
+
+	// rounds run before measuring, so the JIT has compiled the hot loops
+	private static final int WARM_UP_ROUNDS = 3;
+
+	private static final int MEASURED_ROUNDS = 5;
+
+	/**
+	 * Main entry
+	 * @param args Optional amount of data per round in MB, 256 by default
+	 * @throws Exception If a cipher fails
+	 */
+	public static void main(String[] args) throws Exception {
+		int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+		long total = (long) megabytes * 1048576;
+
+		System.out.println("(i) Payload cost per core, " + megabytes + " MB per round, best of " + MEASURED_ROUNDS + " rounds");
+		report("xor (" + ChatApp.DATA_CHUNK_SIZE + " bytes buffers)", total, () -> xor(total));
+		report("aes-gcm seal (" + RecordCipher.RECORD_SIZE / 1024 + " KB records)", total, () -> seal(total));
+		report("aes-gcm open (" + RecordCipher.RECORD_SIZE / 1024 + " KB records)", total, () -> open(total));
+	}
+
+	/**
+	 * Run a benchmark and print its throughput and its cost per GB
+	 * @param name Name of the benchmark
+	 * @param total Bytes processed per round
+	 * @param round One round of the benchmark
+	 * @throws Exception If the round fails
+	 */
+	private static void report(String name, long total, Round round) throws Exception {
+		for (int index = 0; index < WARM_UP_ROUNDS; index++) {
+			round.run();
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int index = 0; index < MEASURED_ROUNDS; index++) {
+			long start = System.nanoTime();
+			round.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		double secondsPerGb = best / 1e9 * 1073741824.0 / total;
+		System.out.println(String.format("    %-32s %10s  %6.3f s/GB", name, Utility.formatRate(total, best), secondsPerGb));
+	}
+
+	/**
+	 * Xor data the way the buffered send path does
+	 * @param total Bytes to process
+	 */
+	private static void xor(long total) {
+		byte[] data = new byte[ChatApp.DATA_CHUNK_SIZE];
+		new Random(1).nextBytes(data);
+
+		for (long done = 0; done < total; done += data.length) {
+			FileTransferThread.xorEncrypt(data, data.length, (byte) 0x5a);
+		}
+	}
+
+	/**
+	 * Seal records the way the sealed send path does
+	 * @param total Bytes to process
+	 * @throws Exception If the cipher fails
+	 */
+	private static void seal(long total) throws Exception {
+		RecordCipher cipher = RecordCipher.forTransfer(new byte[32], "benchmark");
+		ByteBuffer plain = randomRecord();
+		ByteBuffer sealed = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+
+		int recordIndex = 0;
+		for (long done = 0; done < total; done += RecordCipher.RECORD_SIZE) {
+			plain.clear();
+			sealed.clear();
+			cipher.seal(0, recordIndex++, plain, sealed);
+		}
+	}
+
+	/**
+	 * Open records the way the sealed receive path does
+	 * @param total Bytes to process
+	 * @throws Exception If the cipher fails
+	 */
+	private static void open(long total) throws Exception {
+		RecordCipher cipher = RecordCipher.forTransfer(new byte[32], "benchmark");
+		ByteBuffer sealed = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+		cipher.seal(0, 0, randomRecord(), sealed);
+		sealed.flip();
+
+		// received data lands in a mapped window, i.e. a direct buffer
+		ByteBuffer plain = ByteBuffer.allocateDirect(RecordCipher.RECORD_SIZE);
+		for (long done = 0; done < total; done += RecordCipher.RECORD_SIZE) {
+			sealed.rewind();
+			plain.clear();
+			cipher.open(0, 0, sealed, plain);
+		}
+	}
+
+	/**
+	 * Create a record of random data
+	 * @return Buffer holding one record of plaintext
+	 */
+	private static ByteBuffer randomRecord() {
+		byte[] data = new byte[RecordCipher.RECORD_SIZE];
+		new Random(1).nextBytes(data);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Round is one round of a benchmark
+	 */
+	private static interface Round {
+
+		/**
+		 * Run the round
+		 * @throws Exception If the round fails
+		 */
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+
+import javax.crypto.*;
+
+/**
+ * PayloadCodec encrypts and decrypts blocks of data written to or read from a stream, according to the payload mode
+ * AES-GCM blocks are cut into records bound to the sequence number of the block and to the record index,
+ * xor blocks are xor-ed with the common key, plain blocks go as-is
+ * Both sides must use the same block lengths and sequence numbers
+ * @author conqtc
+ *
+ */
+public class PayloadCodec {
+
+	private TransferParameters.PayloadMode payloadMode;
+
+	private RecordCipher recordCipher;
+
+	private byte key;
+
+	// one sealed record, allocated once for AES-GCM payload
+	private ByteBuffer record;
+
+	/**
+	 * Constructor
+	 * @param payloadMode Payload mode
+	 * @param recordCipher Record cipher, null if the payload mode is not AES-GCM
+	 * @param key Common key used by the xor payload mode
+	 */
+	public PayloadCodec(TransferParameters.PayloadMode payloadMode, RecordCipher recordCipher, byte key) {
+		this.payloadMode = payloadMode;
+		this.recordCipher = recordCipher;
+		this.key = key;
+		if (payloadMode == TransferParameters.PayloadMode.AES_GCM)
+			this.record = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+	}
+
+	/**
+	 * Get the length of a block on the wire
+	 * @param length Length of the block
+	 * @return Number of bytes written for the block
+	 */
+	public int wireLength(int length) {
+		if (payloadMode != TransferParameters.PayloadMode.AES_GCM)
+			return length;
+		return length + RecordCipher.recordCount(length) * RecordCipher.OVERHEAD;
+	}
+
+	/**
+	 * Write a block, the data is encrypted in place for the xor payload mode
+	 * @param dos Output stream
+	 * @param sequence Sequence number of the block
+	 * @param data Heap buffer holding the block, from position to limit, consumed
+	 * @throws IOException If unable to write or to seal the block
+	 */
+	public void write(DataOutputStream dos, int sequence, ByteBuffer data) throws IOException {
+		switch (payloadMode) {
+		case AES_GCM:
+			int recordIndex = 0;
+			while (data.hasRemaining()) {
+				ByteBuffer plain = data.duplicate();
+				plain.limit(plain.position() + Math.min(RecordCipher.RECORD_SIZE, plain.remaining()));
+				data.position(plain.limit());
+
+				record.clear();
+				try {
+					recordCipher.seal(sequence, recordIndex++, plain, record);
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Unable to seal block " + sequence, gse);
+				}
+				dos.write(record.array(), 0, record.position());
+			}
+			break;
+		case XOR:
+			FileTransferThread.xorEncrypt(data, data.position(), data.remaining(), key);
+			dos.write(data.array(), data.position(), data.remaining());
+			data.position(data.limit());
+			break;
+		default:
+			dos.write(data.array(), data.position(), data.remaining());
+			data.position(data.limit());
+		}
+	}
+
+	/**
+	 * Read a block written by the other side
+	 * @param dis Input stream
+	 * @param sequence Sequence number of the block
+	 * @param data Heap buffer receiving the block, filled from position to limit
+	 * @throws IOException If unable to read, or the block failed authentication
+	 */
+	public void read(DataInputStream dis, int sequence, ByteBuffer data) throws IOException {
+		if (payloadMode == TransferParameters.PayloadMode.AES_GCM) {
+			int recordIndex = 0;
+			while (data.hasRemaining()) {
+				record.clear();
+				record.limit(RecordCipher.sealedLength(Math.min(RecordCipher.RECORD_SIZE, data.remaining())));
+				dis.readFully(record.array(), 0, record.limit());
+				try {
+					recordCipher.open(sequence, recordIndex++, record, data);
+				} catch (AEADBadTagException abte) {
+					throw new IOException("Block " + sequence + " failed authentication");
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Unable to open block " + sequence, gse);
+				}
+			}
+			return;
+		}
+
+		dis.readFully(data.array(), data.position(), data.remaining());
+		if (payloadMode == TransferParameters.PayloadMode.XOR)
+			FileTransferThread.xorEncrypt(data, data.position(), data.remaining(), key);
+		data.position(data.limit());
+	}
+}
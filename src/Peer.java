@@ -13,6 +13,9 @@ public class Peer {
 	
 	private InetAddress address;
 	
+	// path MTU in bytes found by PathMtuDiscovery, 0 until found
+	private volatile int pathMtu;
+	
 	/**
 	 * Constructor
 	 * @param uid UID of this peer
@@ -41,6 +44,21 @@ public class Peer {
 		return this.address;
 	}
 	
+	/**
+	 * Get path MTU
+	 * @return Path MTU to this peer in bytes, 0 if not found yet
+	 */
+	public int getPathMtu() {
+		return this.pathMtu;
+	}
+	
+	/**
+	 * Set path MTU
+	 * @param pathMtu Path MTU to this peer in bytes
+	 */
+	public void setPathMtu(int pathMtu) {
+		this.pathMtu = pathMtu;
+	}
 	
 	/**
 	 * toString method
@@ -0,0 +1,147 @@
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * ReassemblyTable puts the fragments of messages longer than a datagram back together
+ * Messages being reassembled are kept in the order their first fragment came, so the oldest is always at the head:
+ * each fragment received first drops the messages at the head which waited too long, then the oldest ones while the table
+ * holds too many messages or too many bytes, so partial messages whose fragments were lost never pile up and no timer is needed
+ * Used by the decode thread only
+ * @author conqtc
+ *
+ */
+public class ReassemblyTable {
+
+	// messages being reassembled at most, and their bytes in total
+	private static final int MAX_ENTRIES = 32;
+
+	private static final int MAX_BYTES = 1048576;
+
+	// time in milliseconds a message waits for its missing fragments
+	private static final long TIMEOUT = 3000;
+
+	/**
+	 * Key is the sender of a message and its message id
+	 */
+	private static class Key {
+
+		private InetAddress address;
+
+		private int id;
+
+		/**
+		 * Constructor
+		 * @param address Address of the sender
+		 * @param id Message id
+		 */
+		private Key(InetAddress address, int id) {
+			this.address = address;
+			this.id = id;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+
+			Key key = (Key) other;
+			return id == key.id && address.equals(key.address);
+		}
+
+		public int hashCode() {
+			return 31 * address.hashCode() + id;
+		}
+	}
+
+	/**
+	 * Entry is a message being reassembled
+	 */
+	private static class Entry {
+
+		private byte[] data;
+
+		// bytes received, duplicated fragments are counted once
+		private BitSet received;
+
+		// System.nanoTime when dropped if not complete
+		private long deadline;
+	}
+
+	private LinkedHashMap<Key, Entry> entries;
+
+	private int bytes;
+
+	private volatile long reassembled;
+
+	private volatile long expired;
+
+	/**
+	 * Constructor
+	 */
+	public ReassemblyTable() {
+		this.entries = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Add a fragment
+	 * @param address Address of the sender
+	 * @param fragment Fragment decoded
+	 * @return Whole message once its last missing fragment came, null otherwise
+	 */
+	public ByteBuffer add(InetAddress address, WireFormat.Message fragment) {
+		long now = System.nanoTime();
+		int total = fragment.getFragmentTotal();
+		Key key = new Key(address, fragment.getSequence());
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			expire(now, total);
+			entry = new Entry();
+			entry.data = new byte[total];
+			entry.received = new BitSet(total);
+			entry.deadline = now + TIMEOUT * 1000000L;
+			entries.put(key, entry);
+			bytes += total;
+		} else if (entry.data.length != total) {
+			// not the message it claims to be a piece of
+			return null;
+		}
+
+		int offset = fragment.getFragmentOffset();
+		int length = fragment.getFieldLength(WireFormat.MESSAGE);
+		fragment.copyField(WireFormat.MESSAGE, entry.data, offset);
+		entry.received.set(offset, offset + length);
+		if (entry.received.nextClearBit(0) < total)
+			return null;
+
+		entries.remove(key);
+		bytes -= total;
+		reassembled++;
+		return ByteBuffer.wrap(entry.data);
+	}
+
+	/**
+	 * Describe the messages reassembled
+	 * @return Description, e.g. "reassembled 12, expired 1"
+	 */
+	public String describe() {
+		return "reassembled " + reassembled + ", expired " + expired;
+	}
+
+	/**
+	 * Drop the messages which waited too long, then the oldest ones until a new message of the given length fits
+	 * @param now System.nanoTime
+	 * @param length Length of the new message
+	 */
+	private void expire(long now, int length) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.deadline - now > 0 && entries.size() < MAX_ENTRIES && bytes + length <= MAX_BYTES)
+				return;
+
+			iterator.remove();
+			bytes -= entry.data.length;
+			expired++;
+		}
+	}
+}
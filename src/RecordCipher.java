@@ -0,0 +1,170 @@
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.atomic.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * RecordCipher is the authenticated encryption (AES-GCM) record layer of file payloads
+ * A chunk is cut into fixed-size records, each sealed on its own:
+ *     nonce (12 bytes) | ciphertext | tag (16 bytes)
+ * Nonces are explicit: a random salt followed by a counter, so a chunk sent again never reuses one
+ * The position of the record (chunk index, record index) is authenticated as associated data,
+ * so records can not be moved around
+ * Cipher objects are reused per thread, the hot loop only works on preallocated buffers
+ * @author conqtc
+ *
+ */
+public class RecordCipher {
+
+	public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	// plaintext bytes per record
+	public static final int RECORD_SIZE = 64 * 1024;
+
+	public static final int NONCE_SIZE = 12;
+
+	public static final int TAG_SIZE = 16;
+
+	// bytes added to each record
+	public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> newCipher());
+
+	private static final ThreadLocal<byte[]> NONCES = ThreadLocal.withInitial(() -> new byte[NONCE_SIZE]);
+
+	private static final ThreadLocal<ByteBuffer> ASSOCIATED_DATA = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8));
+
+	private SecretKeySpec key;
+
+	private int nonceSalt;
+
+	private AtomicLong nonceCounter;
+
+	/**
+	 * Constructor
+	 * @param key AES key
+	 */
+	public RecordCipher(byte[] key) {
+		this.key = new SecretKeySpec(key, "AES");
+		this.nonceSalt = new SecureRandom().nextInt();
+		this.nonceCounter = new AtomicLong();
+	}
+
+	/**
+	 * Derive the record cipher of a transfer from the secret of the key agreement
+	 * @param sharedSecret Secret agreed on by both peers, see KeyExchange
+	 * @param context Transfer ID, or anything else both peers know which tells this cipher from the others of the same secret
+	 * @return Record cipher
+	 */
+	public static RecordCipher forTransfer(byte[] sharedSecret, String context) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(("ChatApp file payload|" + context + "|").getBytes("UTF-8"));
+			digest.update(sharedSecret);
+			return new RecordCipher(digest.digest());
+		} catch (Exception e) {
+			// SHA-256 and UTF-8 are required on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get number of records of a chunk
+	 * @param length Plaintext length of the chunk
+	 * @return Number of records
+	 */
+	public static int recordCount(int length) {
+		return (length + RECORD_SIZE - 1) / RECORD_SIZE;
+	}
+
+	/**
+	 * Get length of a record on the wire
+	 * @param plainLength Plaintext length of the record
+	 * @return Sealed length
+	 */
+	public static int sealedLength(int plainLength) {
+		return plainLength + OVERHEAD;
+	}
+
+	/**
+	 * Seal one record
+	 * @param chunkIndex Index of the chunk
+	 * @param recordIndex Index of the record in the chunk
+	 * @param plain Plaintext, from position to limit, consumed
+	 * @param sealed Output, the sealed record is written from its position
+	 * @throws GeneralSecurityException If the cipher fails
+	 */
+	public void seal(int chunkIndex, int recordIndex, ByteBuffer plain, ByteBuffer sealed) throws GeneralSecurityException {
+		byte[] nonce = NONCES.get();
+		long counter = nonceCounter.getAndIncrement();
+		putInt(nonce, 0, nonceSalt);
+		putInt(nonce, 4, (int) (counter >>> 32));
+		putInt(nonce, 8, (int) counter);
+
+		Cipher cipher = CIPHERS.get();
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+		cipher.updateAAD(associatedData(chunkIndex, recordIndex));
+
+		sealed.put(nonce);
+		cipher.doFinal(plain, sealed);
+	}
+
+	/**
+	 * Open one record
+	 * @param chunkIndex Index of the chunk
+	 * @param recordIndex Index of the record in the chunk
+	 * @param sealed Sealed record, from position to limit, consumed
+	 * @param plain Output, the plaintext is written from its position
+	 * @throws GeneralSecurityException If the record is not authentic (AEADBadTagException) or the cipher fails
+	 */
+	public void open(int chunkIndex, int recordIndex, ByteBuffer sealed, ByteBuffer plain) throws GeneralSecurityException {
+		byte[] nonce = NONCES.get();
+		sealed.get(nonce);
+
+		Cipher cipher = CIPHERS.get();
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+		cipher.updateAAD(associatedData(chunkIndex, recordIndex));
+		cipher.doFinal(sealed, plain);
+	}
+
+	/**
+	 * Build the associated data of a record: chunk index, record index
+	 * @param chunkIndex Index of the chunk
+	 * @param recordIndex Index of the record in the chunk
+	 * @return Associated data, reused per thread
+	 */
+	private static ByteBuffer associatedData(int chunkIndex, int recordIndex) {
+		ByteBuffer data = ASSOCIATED_DATA.get();
+		data.clear();
+		data.putInt(chunkIndex).putInt(recordIndex).flip();
+		return data;
+	}
+
+	/**
+	 * Write an integer in big endian
+	 * @param array Target array
+	 * @param offset Offset in the array
+	 * @param value Value to write
+	 */
+	private static void putInt(byte[] array, int offset, int value) {
+		array[offset] = (byte) (value >>> 24);
+		array[offset + 1] = (byte) (value >>> 16);
+		array[offset + 2] = (byte) (value >>> 8);
+		array[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Create a cipher
+	 * @return Cipher
+	 */
+	private static Cipher newCipher() {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch (GeneralSecurityException gse) {
+			// AES/GCM/NoPadding is required on every Java platform
+			throw new IllegalStateException(gse);
+		}
+	}
+}
@@ -0,0 +1,590 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * ReliableDelivery makes the UDP messages sent to a peer reliable and ordered, on top of the batches of UDPMessenger
+ * Messages to each peer are numbered by a sequence of their own, the receiver acknowledges them with a SACK:
+ * the last sequence received with every one before it (cumulative) and a bitmap of those received after a gap (selective),
+ * so only what is missing is sent again
+ * A message is sent again at once when a message sent after it is acknowledged, as RACK does (RFC 8985): datagrams keep their order,
+ * otherwise the oldest one is sent again when not acknowledged within the retransmission timeout,
+ * computed from the measured round trips as TCP does (RFC 6298, Karn's rule) and doubled each time it expires
+ * The receiver hands the messages over in order, those after a gap are held until it is filled
+ * The timers of all peers run on one TimerWheel, no thread per message or per peer
+ * Sequences start again in a new session when the sender restarts or gives up on a peer, a newer session resets the receiver
+ * It shares the lock of the messenger, whose batches it sends through
+ * @author conqtc
+ *
+ */
+public class ReliableDelivery {
+
+	// messages sent and not acknowledged yet, at most, per peer, also the most held by the receiver after a gap
+	public static final int WINDOW = 64;
+
+	// messages waiting for the window of a peer to open, at most
+	private static final int MAX_BACKLOG = 1024;
+
+	// retransmission timeout in milliseconds before the first round trip is measured, and its bounds
+	private static final long INITIAL_RTO = 1000;
+
+	private static final long MIN_RTO = 100;
+
+	private static final long MAX_RTO = 8000;
+
+	// times a message is sent again before the peer is given up
+	private static final int MAX_RETRANSMITS = 8;
+
+	// time in milliseconds the receiver waits for more messages before acknowledging, unless this many are not acknowledged yet
+	private static final long ACK_DELAY = 20;
+
+	private static final int ACK_EVERY = 16;
+
+	/**
+	 * Pending is a message sent and not acknowledged yet
+	 */
+	private static class Pending {
+
+		private int sequence;
+
+		// message as encoded, sent again as is
+		private byte[] data;
+
+		// System.nanoTime when last sent
+		private long sentAt;
+
+		private int retransmits;
+	}
+
+	/**
+	 * Sender is the sending side of a peer
+	 */
+	private static class Sender {
+
+		private InetAddress address;
+
+		private int port;
+
+		private int session;
+
+		// oldest sequence not acknowledged, next one to send and next one to number
+		private int base = 1;
+
+		private int next = 1;
+
+		private int numbered = 1;
+
+		// messages sent from base to next, by sequence % WINDOW, null once acknowledged
+		private Pending[] window = new Pending[WINDOW];
+
+		// messages numbered and waiting for the window to open
+		private ArrayDeque<Pending> backlog = new ArrayDeque<>();
+
+		// smoothed round trip time and its variation in milliseconds, 0 until measured
+		private double smoothedRtt;
+
+		private double rttVariation;
+
+		private long rto = INITIAL_RTO;
+
+		// timeouts in a row, each doubles the timeout until a new message is acknowledged
+		private int backoff;
+
+		private TimerWheel.Timeout timer;
+	}
+
+	/**
+	 * Receiver is the receiving side of a peer
+	 */
+	private static class Receiver {
+
+		private InetAddress address;
+
+		private int session;
+
+		private boolean started;
+
+		// next sequence to hand over
+		private int expected = 1;
+
+		// messages received from expected on, by sequence % WINDOW, null if not received
+		private Object[] held = new Object[WINDOW];
+
+		private Predicate<Object> deliver;
+
+		private int unacknowledged;
+
+		private TimerWheel.Timeout ackTimer;
+
+		// set when a handler could not take the next message, retried with the acknowledgement
+		private boolean stalled;
+	}
+
+	private UDPMessenger messenger;
+
+	private ChatApp app;
+
+	private TimerWheel wheel;
+
+	private ByteBuffer encodeBuffer;
+
+	// last session started, from the time this instance started so a restart begins newer ones
+	private int lastSession;
+
+	private HashMap<InetAddress, Sender> senders;
+
+	private HashMap<InetAddress, Receiver> receivers;
+
+	private long sent;
+
+	private long retransmitted;
+
+	private long undelivered;
+
+	private long delivered;
+
+	private long duplicates;
+
+	/**
+	 * Constructor
+	 * @param messenger Messenger the messages and acknowledgements are sent through, its lock is shared
+	 * @param app ChatApp reference object
+	 * @param wheel Timer wheel of the messenger
+	 */
+	public ReliableDelivery(UDPMessenger messenger, ChatApp app, TimerWheel wheel) {
+		this.messenger = messenger;
+		this.app = app;
+		this.wheel = wheel;
+		this.encodeBuffer = ByteBuffer.allocate(WireFormat.MAX_FRAGMENTED_SIZE);
+		this.lastSession = (int) (System.currentTimeMillis() / 1000);
+		this.senders = new HashMap<>();
+		this.receivers = new HashMap<>();
+	}
+
+	/**
+	 * Send a message reliably, it waits if the window of the peer is full
+	 * @param address Address of the peer, not a broadcast address
+	 * @param port Port of the peer
+	 * @param type Message type
+	 * @param message Content of the message
+	 * @throws IOException If the message does not fit in a datagram or too many messages are waiting for the peer
+	 */
+	public void send(InetAddress address, int port, UDPMessenger.MessageType type, String message) throws IOException {
+		synchronized (messenger) {
+			Sender sender = senders.get(address);
+			if (sender == null) {
+				sender = new Sender();
+				sender.address = address;
+				sender.session = ++lastSession;
+				senders.put(address, sender);
+			}
+			sender.port = port;
+
+			if (sender.backlog.size() >= MAX_BACKLOG)
+				throw new IOException("Too many messages waiting for " + address.getHostAddress());
+
+			WireFormat.encodeReliable(encodeBuffer, type, sender.numbered, sender.session, app.getuid(), app.getAlias(), message);
+			Pending pending = new Pending();
+			pending.sequence = sender.numbered++;
+			pending.data = new byte[encodeBuffer.remaining()];
+			encodeBuffer.get(pending.data);
+			sent++;
+
+			if (sender.backlog.isEmpty() && sender.next - sender.base < WINDOW) {
+				transmit(sender, pending);
+			} else {
+				sender.backlog.add(pending);
+			}
+		}
+	}
+
+	/**
+	 * Callback when a SACK is received
+	 * @param address Address of the peer
+	 * @param session Session the acknowledgement is for
+	 * @param cumulative Last sequence received with every one before it
+	 * @param selective Bitmap of the sequences received after a gap, bit i for cumulative + 2 + i
+	 */
+	public void acknowledged(InetAddress address, int session, int cumulative, long selective) {
+		synchronized (messenger) {
+			Sender sender = senders.get(address);
+			// a late acknowledgement of a session given up
+			if (sender == null || sender.session != session || cumulative - sender.next >= 0)
+				return;
+
+			long now = System.nanoTime();
+			long sample = -1;
+			// when the latest message acknowledged was sent, anything sent before it and still missing is lost
+			long latestSent = Long.MIN_VALUE;
+			boolean progress = false;
+			// cumulative part, the window slides
+			while (cumulative - sender.base >= 0) {
+				Pending pending = take(sender, sender.base);
+				if (pending != null) {
+					if (pending.retransmits == 0)
+						sample = now - pending.sentAt;
+					latestSent = Math.max(latestSent, pending.sentAt);
+				}
+				sender.base++;
+				progress = true;
+			}
+
+			// selective part
+			for (int bit = 0; bit < WINDOW && selective != 0; bit++, selective >>>= 1) {
+				int sequence = cumulative + 2 + bit;
+				if ((selective & 1) == 0 || sequence - sender.base < 0 || sequence - sender.next >= 0)
+					continue;
+
+				Pending pending = take(sender, sequence);
+				if (pending != null) {
+					if (pending.retransmits == 0)
+						sample = now - pending.sentAt;
+					latestSent = Math.max(latestSent, pending.sentAt);
+				}
+			}
+
+			// the window slides over messages acknowledged selectively too
+			while (sender.base != sender.next && sender.window[Math.floorMod(sender.base, WINDOW)] == null) {
+				sender.base++;
+				progress = true;
+			}
+
+			if (sample >= 0)
+				measured(sender, sample / 1000000.0);
+
+			// datagrams to a peer keep their order, a message sent before one which got through was lost
+			for (int sequence = sender.base; latestSent != Long.MIN_VALUE && sequence != sender.next; sequence++) {
+				Pending pending = sender.window[Math.floorMod(sequence, WINDOW)];
+				// one sent as often as allowed waits for the timeout, which gives the peer up
+				if (pending != null && pending.sentAt - latestSent < 0 && pending.retransmits < MAX_RETRANSMITS)
+					retransmit(sender, pending);
+			}
+
+			// the window opened
+			while (!sender.backlog.isEmpty() && sender.next - sender.base < WINDOW) {
+				transmit(sender, sender.backlog.poll());
+			}
+
+			if (progress)
+				sender.backoff = 0;
+
+			if (sender.base == sender.next) {
+				cancelTimer(sender);
+			} else if (progress) {
+				startTimer(sender);
+			}
+		}
+	}
+
+	/**
+	 * Callback when a reliable message is received, it is handed over in order and acknowledged
+	 * @param address Address of the peer
+	 * @param session Session of the peer
+	 * @param sequence Sequence of the message
+	 * @param item Message decoded
+	 * @param deliver Handing over of a message, false if it can not be taken now and should be tried again later
+	 */
+	public void received(InetAddress address, int session, int sequence, Object item, Predicate<Object> deliver) {
+		synchronized (messenger) {
+			Receiver receiver = receivers.get(address);
+			if (receiver == null) {
+				receiver = new Receiver();
+				receiver.address = address;
+				receivers.put(address, receiver);
+			}
+			receiver.deliver = deliver;
+
+			if (!receiver.started || session - receiver.session > 0) {
+				// first message of the peer, or the peer started again
+				reset(receiver, session);
+			} else if (session != receiver.session) {
+				// late message of an older session
+				return;
+			}
+
+			int distance = sequence - receiver.expected;
+			int index = Math.floorMod(sequence, WINDOW);
+			boolean acknowledgeNow = false;
+			if (distance < 0 || (distance < WINDOW && receiver.held[index] != null)) {
+				// got it already, the acknowledgement was likely lost
+				duplicates++;
+				acknowledgeNow = true;
+			} else if (distance >= WINDOW) {
+				// too far ahead, sent again later
+				acknowledgeNow = true;
+			} else {
+				receiver.held[index] = item;
+				// a gap shows at once, so the sender can fill it without waiting for its timeout
+				acknowledgeNow = distance > 0;
+				deliver(receiver);
+			}
+
+			receiver.unacknowledged++;
+			if (acknowledgeNow || receiver.unacknowledged >= ACK_EVERY) {
+				acknowledge(receiver);
+			} else if (receiver.ackTimer == null) {
+				final Receiver target = receiver;
+				receiver.ackTimer = wheel.schedule(() -> acknowledgeLater(target), ACK_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Forget a peer gone offline, the messages not acknowledged yet are dropped
+	 * @param address Address of the peer
+	 */
+	public void forget(InetAddress address) {
+		synchronized (messenger) {
+			Sender sender = senders.remove(address);
+			if (sender != null)
+				cancelTimer(sender);
+
+			Receiver receiver = receivers.remove(address);
+			if (receiver != null && receiver.ackTimer != null)
+				receiver.ackTimer.cancel();
+		}
+	}
+
+	/**
+	 * Describe what was sent and received reliably
+	 * @return Description, e.g. "reliable: sent 120, sent again 3, undelivered 0, received 118, duplicate(s) 2, 4 peer(s)"
+	 */
+	public String describe() {
+		synchronized (messenger) {
+			int waiting = 0;
+			for (Sender sender: senders.values()) {
+				waiting += sender.numbered - sender.base;
+			}
+			return "reliable: sent " + sent + ", sent again " + retransmitted + ", undelivered " + undelivered + ", not acknowledged " + waiting +
+			       ", received " + delivered + ", duplicate(s) " + duplicates + ", " + Math.max(senders.size(), receivers.size()) + " peer(s)";
+		}
+	}
+
+	/**
+	 * Send a message for the first time
+	 * @param sender Peer
+	 * @param pending Message
+	 */
+	private void transmit(Sender sender, Pending pending) {
+		sender.window[Math.floorMod(pending.sequence, WINDOW)] = pending;
+		sender.next = pending.sequence + 1;
+		send(sender, pending, true);
+		if (sender.timer == null)
+			startTimer(sender);
+	}
+
+	/**
+	 * Send a message again
+	 * @param sender Peer
+	 * @param pending Message
+	 */
+	private void retransmit(Sender sender, Pending pending) {
+		pending.retransmits++;
+		retransmitted++;
+		send(sender, pending, false);
+	}
+
+	/**
+	 * Queue a message on the batch of the peer
+	 * @param sender Peer
+	 * @param pending Message
+	 * @param urgent True the first time it is sent, file transfers do not hold back for retransmissions
+	 */
+	private void send(Sender sender, Pending pending, boolean urgent) {
+		pending.sentAt = System.nanoTime();
+		try {
+			messenger.queue(sender.address, sender.port, ByteBuffer.wrap(pending.data), urgent);
+		} catch (IOException ioe) {
+			// as if lost, sent again on timeout
+		}
+	}
+
+	/**
+	 * Take a message out of the window once acknowledged
+	 * @param sender Peer
+	 * @param sequence Sequence of the message
+	 * @return Message, null if acknowledged before
+	 */
+	private Pending take(Sender sender, int sequence) {
+		int index = Math.floorMod(sequence, WINDOW);
+		Pending pending = sender.window[index];
+		sender.window[index] = null;
+		return pending;
+	}
+
+	/**
+	 * Update the retransmission timeout with a round trip measured, as RFC 6298 does
+	 * @param sender Peer
+	 * @param rtt Round trip time in milliseconds
+	 */
+	private void measured(Sender sender, double rtt) {
+		if (sender.smoothedRtt == 0) {
+			sender.smoothedRtt = rtt;
+			sender.rttVariation = rtt / 2;
+		} else {
+			sender.rttVariation = 0.75 * sender.rttVariation + 0.25 * Math.abs(sender.smoothedRtt - rtt);
+			sender.smoothedRtt = 0.875 * sender.smoothedRtt + 0.125 * rtt;
+		}
+		sender.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long) Math.ceil(sender.smoothedRtt + Math.max(UDPMessenger.TIMER_TICK, 4 * sender.rttVariation))));
+	}
+
+	/**
+	 * Start the retransmission timer of a peer again
+	 * @param sender Peer
+	 */
+	private void startTimer(Sender sender) {
+		cancelTimer(sender);
+		sender.timer = wheel.schedule(() -> timedOut(sender), Math.min(MAX_RTO, sender.rto << Math.min(sender.backoff, 16)));
+	}
+
+	/**
+	 * Cancel the retransmission timer of a peer
+	 * @param sender Peer
+	 */
+	private void cancelTimer(Sender sender) {
+		if (sender.timer != null) {
+			sender.timer.cancel();
+			sender.timer = null;
+		}
+	}
+
+	/**
+	 * Retransmission timer of a peer, the oldest message not acknowledged is sent again and the timeout doubles
+	 * Its acknowledgement tells what else is missing
+	 * @param sender Peer
+	 */
+	private void timedOut(Sender sender) {
+		int dropped = 0;
+		synchronized (messenger) {
+			sender.timer = null;
+			if (senders.get(sender.address) != sender || sender.base == sender.next)
+				return;
+
+			// the window starts with a message not acknowledged
+			Pending pending = sender.window[Math.floorMod(sender.base, WINDOW)];
+			if (pending.retransmits >= MAX_RETRANSMITS) {
+				dropped = giveUp(sender);
+			} else {
+				retransmit(sender, pending);
+			}
+
+			if (dropped == 0) {
+				sender.backoff++;
+				startTimer(sender);
+			}
+		}
+
+		// the app may send messages of its own, outside the lock
+		if (dropped > 0)
+			app.handleUndeliveredMessages(sender.address, dropped);
+	}
+
+	/**
+	 * Give up on a peer not acknowledging, the messages waiting are dropped and the next one starts a new session
+	 * @param sender Peer
+	 * @return Number of messages dropped
+	 */
+	private int giveUp(Sender sender) {
+		int count = 0;
+		for (int sequence = sender.base; sequence != sender.next; sequence++) {
+			if (take(sender, sequence) != null)
+				count++;
+		}
+		count += sender.backlog.size();
+		sender.backlog.clear();
+		undelivered += count;
+
+		sender.session = ++lastSession;
+		sender.base = 1;
+		sender.next = 1;
+		sender.numbered = 1;
+		sender.rto = INITIAL_RTO;
+		sender.backoff = 0;
+		sender.smoothedRtt = 0;
+		sender.rttVariation = 0;
+		return count;
+	}
+
+	/**
+	 * Start receiving a session of a peer, the messages held from an older one are dropped
+	 * @param receiver Peer
+	 * @param session Session
+	 */
+	private void reset(Receiver receiver, int session) {
+		receiver.started = true;
+		receiver.session = session;
+		receiver.expected = 1;
+		receiver.stalled = false;
+		Arrays.fill(receiver.held, null);
+	}
+
+	/**
+	 * Hand over the messages held, in order, until a gap or a handler which can not take more
+	 * @param receiver Peer
+	 */
+	private void deliver(Receiver receiver) {
+		receiver.stalled = false;
+		while (true) {
+			int index = Math.floorMod(receiver.expected, WINDOW);
+			Object item = receiver.held[index];
+			if (item == null)
+				return;
+
+			if (!receiver.deliver.test(item)) {
+				// not acknowledged, tried again with the next acknowledgement
+				receiver.stalled = true;
+				return;
+			}
+			receiver.held[index] = null;
+			receiver.expected++;
+			delivered++;
+		}
+	}
+
+	/**
+	 * Delayed acknowledgement timer of a peer
+	 * @param receiver Peer
+	 */
+	private void acknowledgeLater(Receiver receiver) {
+		synchronized (messenger) {
+			receiver.ackTimer = null;
+			if (receivers.get(receiver.address) != receiver)
+				return;
+
+			if (receiver.stalled)
+				deliver(receiver);
+			acknowledge(receiver);
+		}
+	}
+
+	/**
+	 * Send the acknowledgement of what a peer sent, a message held but not handed over yet is left out so it comes again
+	 * @param receiver Peer
+	 */
+	private void acknowledge(Receiver receiver) {
+		long selective = 0;
+		for (int bit = 0; bit < WINDOW - 1; bit++) {
+			if (receiver.held[Math.floorMod(receiver.expected + 1 + bit, WINDOW)] != null)
+				selective |= 1L << bit;
+		}
+
+		receiver.unacknowledged = 0;
+		if (receiver.ackTimer != null) {
+			receiver.ackTimer.cancel();
+			receiver.ackTimer = null;
+		}
+		// a handler which could not take a message is tried again soon
+		if (receiver.stalled) {
+			final Receiver target = receiver;
+			receiver.ackTimer = wheel.schedule(() -> acknowledgeLater(target), ACK_DELAY);
+		}
+
+		try {
+			messenger.sendAck(receiver.address, app.getPeerPort(), receiver.session, receiver.expected - 1, selective);
+		} catch (IOException ioe) {
+			// as if lost, the peer sends again
+		}
+	}
+}
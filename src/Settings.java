@@ -0,0 +1,347 @@
+/**
+ * Settings class provides tunable options of the app
+ * Options are read from system properties, for example:
+ *     java -Dchatapp.transfer.plain=true ChatApp alias
+ * @author conqtc
+ *
+ */
+public class Settings {
+
+	public static final String PREFIX = "chatapp.";
+
+	// allow file payload to be sent without encryption (enables zero-copy sending)
+	private static boolean allowPlainPayload = getBoolean("transfer.plain", false);
+	
+	// offer and accept authenticated encryption (AES-GCM records) of file payload
+	private static boolean aeadPayload = getBoolean("transfer.aead", true);
+	
+	// maximum number of parallel stripes (connections) per file transfer
+	private static int maxStripes = getInt("transfer.stripes", 4);
+	
+	// maximum number of files received at the same time
+	private static int maxIncomingTransfers = getInt("transfer.incoming", 8);
+	
+	// size of each chunk of a file transfer in bytes
+	private static int chunkSize = getInt("transfer.chunk", 4 * 1048576);
+	
+	// verify each chunk against a Merkle tree of chunk hashes
+	private static boolean verifyChunks = getBoolean("transfer.verify", true);
+	
+	// compress chunks of a file transfer when it pays off
+	private static boolean compressChunks = getBoolean("transfer.compress", true);
+	
+	// file transfers running at once in each direction, in total and with the same peer, others are queued
+	private static int maxActiveTransfers = getInt("transfer.active", 4);
+	
+	private static int maxPeerTransfers = getInt("transfer.peer", 2);
+	
+	// offer swarms for files sent to a group of peers, and join swarms offered by others
+	private static boolean swarmTransfer = getBoolean("transfer.swarm", true);
+	
+	// offer deltas of files the receiver already has an older copy of, and take them
+	private static boolean deltaTransfer = getBoolean("transfer.delta", true);
+	
+	// keep received files by content, offer the content hash of files sent so content already held is not sent again
+	private static boolean contentStore = getBoolean("receive.store", true);
+	
+	// receive files through memory-mapped windows
+	private static boolean mappedReceive = getBoolean("receive.mmap", true);
+	
+	// size of each mapped window in bytes
+	private static int mapWindowSize = getInt("receive.window", 64 * 1048576);
+	
+	// when mapped data is forced to disk: window, end or none
+	private static String mapFlushPolicy = System.getProperty(PREFIX + "receive.flush", "window");
+	
+	// outgoing file data rate shared by all transfers, e.g. 10M, 0 or off for unlimited
+	private static String globalRate = System.getProperty(PREFIX + "rate.global", "0");
+	
+	// outgoing file data rate to each peer, e.g. 500K, 0 or off for unlimited
+	private static String peerRate = System.getProperty(PREFIX + "rate.peer", "0");
+	
+	// format of the UDP messages sent: binary, or text while some peers are older, both are always accepted
+	private static String messageFormat = System.getProperty(PREFIX + "udp.format", "binary");
+	
+	// time in milliseconds UDP messages to the same address wait to be sent in one datagram, 0 to send each at once
+	private static int batchWindow = getInt("udp.batch", 5);
+	
+	// send chat and control messages to each peer reliably, in order and again until acknowledged, instead of once to the broadcast address
+	private static boolean reliableMessages = getBoolean("udp.reliable", false);
+	
+	// probe the path MTU to each peer to size its datagrams, otherwise every datagram is as large as the local link allows
+	private static boolean pathMtuDiscovery = getBoolean("udp.pmtu", true);
+	
+	// transport of the messages to all peers: broadcast to the subnet, or multicast to a group only peers join
+	private static String transport = System.getProperty(PREFIX + "udp.transport", "broadcast");
+	
+	// multicast group, hops its messages go through at most, and interfaces it is joined on (comma separated, empty for all)
+	private static String multicastGroup = System.getProperty(PREFIX + "udp.group", "239.255.42.42");
+	
+	private static int multicastTtl = getInt("udp.ttl", 1);
+	
+	private static String multicastInterfaces = System.getProperty(PREFIX + "udp.interfaces", "");
+
+	/**
+	 * Read a boolean option
+	 * @param name Option name without prefix
+	 * @param defaultValue Default value
+	 * @return Option value
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getProperty(PREFIX + name);
+		if (Utility.stringIsNullOrEmpty(value))
+			return defaultValue;
+
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Read an integer option
+	 * @param name Option name without prefix
+	 * @param defaultValue Default value
+	 * @return Option value
+	 */
+	public static int getInt(String name, int defaultValue) {
+		try {
+			return Integer.parseInt(System.getProperty(PREFIX + name).trim());
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Read a long option
+	 * @param name Option name without prefix
+	 * @param defaultValue Default value
+	 * @return Option value
+	 */
+	public static long getLong(String name, long defaultValue) {
+		try {
+			return Long.parseLong(System.getProperty(PREFIX + name).trim());
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Is plain (unencrypted) file payload allowed
+	 * @return True if allowed
+	 */
+	public static boolean allowPlainPayload() {
+		return allowPlainPayload;
+	}
+
+	/**
+	 * Is authenticated encryption (AES-GCM records) of file payload enabled
+	 * @return True if enabled
+	 */
+	public static boolean aeadPayload() {
+		return aeadPayload;
+	}
+
+	/**
+	 * Get maximum number of parallel stripes per file transfer
+	 * @return Number of stripes, at least 1
+	 */
+	public static int maxStripes() {
+		return Math.max(1, maxStripes);
+	}
+	
+	/**
+	 * Get maximum number of files received at the same time
+	 * @return Number of transfers, at least 1
+	 */
+	public static int maxIncomingTransfers() {
+		return Math.max(1, maxIncomingTransfers);
+	}
+	
+	/**
+	 * Get size of each chunk of a file transfer
+	 * @return Chunk size in bytes, between 64 KB and 64 MB
+	 */
+	public static int chunkSize() {
+		return clampChunkSize(chunkSize);
+	}
+	
+	/**
+	 * Clamp a chunk size into the supported range
+	 * @param size Chunk size in bytes
+	 * @return Chunk size between 64 KB and 64 MB
+	 */
+	public static int clampChunkSize(int size) {
+		return Math.max(64 * 1024, Math.min(64 * 1048576, size));
+	}
+	
+	/**
+	 * Are chunks verified against a Merkle tree of chunk hashes
+	 * @return True if enabled
+	 */
+	public static boolean verifyChunks() {
+		return verifyChunks;
+	}
+	
+	/**
+	 * Are chunks compressed when it pays off
+	 * @return True if enabled
+	 */
+	public static boolean compressChunks() {
+		return compressChunks;
+	}
+	
+	/**
+	 * Get maximum number of file transfers running at once in each direction
+	 * @return Number of transfers, at least 1
+	 */
+	public static int maxActiveTransfers() {
+		return Math.max(1, maxActiveTransfers);
+	}
+	
+	/**
+	 * Get maximum number of file transfers running at once in each direction with the same peer
+	 * @return Number of transfers, at least 1
+	 */
+	public static int maxPeerTransfers() {
+		return Math.max(1, maxPeerTransfers);
+	}
+	
+	/**
+	 * Are swarms offered and joined
+	 * @return True if enabled
+	 */
+	public static boolean swarmTransfer() {
+		return swarmTransfer;
+	}
+	
+	/**
+	 * Are deltas offered and taken
+	 * @return True if enabled
+	 */
+	public static boolean deltaTransfer() {
+		return deltaTransfer;
+	}
+	
+	/**
+	 * Are received files kept by content and content hashes offered
+	 * @return True if enabled
+	 */
+	public static boolean contentStore() {
+		return contentStore;
+	}
+	
+	/**
+	 * Are files received through memory-mapped windows
+	 * @return True if enabled
+	 */
+	public static boolean mappedReceive() {
+		return mappedReceive;
+	}
+	
+	/**
+	 * Get size of each mapped window used to receive files
+	 * @return Window size in bytes
+	 */
+	public static int mapWindowSize() {
+		return mapWindowSize;
+	}
+	
+	/**
+	 * Get flush policy of mapped windows
+	 * @return Flush policy
+	 */
+	public static MappedFileWriter.FlushPolicy mapFlushPolicy() {
+		return MappedFileWriter.flushPolicyFromString(mapFlushPolicy);
+	}
+	
+	/**
+	 * Get outgoing file data rate shared by all transfers
+	 * @return Rate in bytes per second, 0 for unlimited
+	 */
+	public static long globalRate() {
+		return parseRate(globalRate);
+	}
+	
+	/**
+	 * Get outgoing file data rate to each peer
+	 * @return Rate in bytes per second, 0 for unlimited
+	 */
+	public static long peerRate() {
+		return parseRate(peerRate);
+	}
+	
+	/**
+	 * Are UDP messages sent in the binary format
+	 * @return True for binary, false for text
+	 */
+	public static boolean binaryMessages() {
+		return !messageFormat.trim().equalsIgnoreCase("text");
+	}
+	
+	/**
+	 * Get the time UDP messages to the same address wait to be sent together
+	 * @return Batch window in milliseconds, 0 to send each message at once
+	 */
+	public static int batchWindow() {
+		return batchWindow;
+	}
+	
+	/**
+	 * Are chat and control messages sent reliably to each peer
+	 * @return True if reliable
+	 */
+	public static boolean reliableMessages() {
+		return reliableMessages;
+	}
+	
+	/**
+	 * Is the path MTU to each peer probed
+	 * @return True if probed
+	 */
+	public static boolean pathMtuDiscovery() {
+		return pathMtuDiscovery;
+	}
+	
+	/**
+	 * Are messages to all peers multicast to a group
+	 * @return True for multicast, false for the subnet broadcast
+	 */
+	public static boolean multicastTransport() {
+		return transport.trim().equalsIgnoreCase("multicast");
+	}
+	
+	/**
+	 * Get the multicast group
+	 * @return Group address or host name
+	 */
+	public static String multicastGroup() {
+		return multicastGroup.trim();
+	}
+	
+	/**
+	 * Get the time to live of multicast messages
+	 * @return Hops at most, 1 to 255
+	 */
+	public static int multicastTtl() {
+		return Math.max(1, Math.min(255, multicastTtl));
+	}
+	
+	/**
+	 * Get the interfaces the multicast group is joined on
+	 * @return Interface names, comma separated, empty for every interface which can multicast
+	 */
+	public static String multicastInterfaces() {
+		return multicastInterfaces.trim();
+	}
+	
+	/**
+	 * Parse a rate option
+	 * @param value Option value
+	 * @return Rate in bytes per second, 0 for unlimited or invalid value
+	 */
+	private static long parseRate(String value) {
+		try {
+			return BandwidthScheduler.rateFromString(value);
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
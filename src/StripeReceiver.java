@@ -0,0 +1,570 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+
+import javax.crypto.*;
+
+/**
+ * StripeReceiver is a thread receiving chunk frames from one connection (stripe)
+ * and writing each chunk at its offset of the target file
+ * Encrypted payload goes through a pipeline: this thread reads the frames from the socket, a write stage
+ * decrypts them into the file, so socket reads go on while records are opened and pages written
+ * Plain payload is read straight into the file
+ * The verdict of each chunk is sent back on the same connection
+ * @author conqtc
+ *
+ */
+public class StripeReceiver extends Thread {
+
+	private FileReceiveThread receiver;
+
+	private SocketChannel channel;
+
+	// buffer of the verdict sent back for each chunk
+	private ByteBuffer verdict;
+
+	// verifications of chunks of this stripe not yet done
+	private int outstanding;
+
+	// opened record waiting to be copied into the file, when it does not fit in one region
+	private ByteBuffer staging;
+
+	// stages of the pipeline of encrypted payload
+	private static final int NETWORK = 0;
+
+	private static final int WRITE = 1;
+
+	private TransferPipeline pipeline;
+
+	private WriteStage writeStage;
+
+	// decompresses compressed chunks, null if compression is not negotiated
+	private ChunkCompressor compressor;
+
+	// stream header, already read when the connection was routed to the receiver
+	private Header header;
+
+	/**
+	 * Header is the stream header sent first on every stripe: UTF file name, long file size, int chunk size, UTF transfer ID
+	 */
+	public static class Header {
+
+		private String fileName;
+
+		private long fileSize;
+
+		private int chunkSize;
+
+		private String transferId;
+
+		/**
+		 * Parse a header from the bytes received so far
+		 * @param buffer Buffer holding the received bytes, from 0 to its position
+		 * @return Header, null if more bytes are needed
+		 * @throws IOException If the bytes do not form a valid header
+		 */
+		public static Header parse(ByteBuffer buffer) throws IOException {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+			Header header = new Header();
+			try {
+				header.fileName = dis.readUTF();
+				header.fileSize = dis.readLong();
+				header.chunkSize = dis.readInt();
+				header.transferId = dis.readUTF();
+			} catch (EOFException eofe) {
+				return null;
+			}
+
+			// the sender waits for the manifest after the header, nothing else may follow
+			if (dis.available() > 0)
+				throw new IOException("Unexpected data after the stream header");
+
+			return header;
+		}
+
+		/**
+		 * Get transfer ID
+		 * @return Transfer ID
+		 */
+		public String getTransferId() {
+			return this.transferId;
+		}
+
+		/**
+		 * Get file name
+		 * @return File name
+		 */
+		public String getFileName() {
+			return this.fileName;
+		}
+
+		/**
+		 * Get file size
+		 * @return File size in bytes
+		 */
+		public long getFileSize() {
+			return this.fileSize;
+		}
+
+		/**
+		 * Get chunk size
+		 * @return Chunk size in bytes
+		 */
+		public int getChunkSize() {
+			return this.chunkSize;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param receiver Owning file receiver
+	 * @param channel Accepted socket channel, in blocking mode
+	 * @param header Stream header read from the channel
+	 */
+	public StripeReceiver(FileReceiveThread receiver, SocketChannel channel, Header header) {
+		this.receiver = receiver;
+		this.channel = channel;
+		this.header = header;
+		this.verdict = ByteBuffer.allocate(5);
+	}
+
+	/**
+	 * Main entry of the thread
+	 */
+	public void run() {
+		Exception error = null;
+
+		try {
+			// verdicts are tiny, do not let them wait for more data
+			channel.socket().setTcpNoDelay(true);
+
+			receiver.prepare(header.fileName, header.fileSize, header.chunkSize, header.transferId);
+
+			// DataInputStream does not read ahead, so the channel can take over after the hashes
+			DataInputStream dis = new DataInputStream(channel.socket().getInputStream());
+
+			// answer with the manifest, so the sender skips chunks kept from an earlier attempt
+			byte[] completed = receiver.getCheckpoint().toBitmap();
+			boolean needHashes = receiver.requestHashes();
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+			dos.writeInt(completed.length);
+			dos.write(completed);
+			dos.writeBoolean(needHashes);
+			dos.flush();
+
+			if (needHashes)
+				receiveHashes(dis);
+
+			// frame header: int chunk index, int payload length, and the codec byte if compression is negotiated
+			ByteBuffer frame = ByteBuffer.allocate(receiver.isCompressing() ? 9 : 8);
+			if (receiver.isCompressing())
+				compressor = new ChunkCompressor();
+			if (receiver.getPayloadMode() != TransferParameters.PayloadMode.PLAIN) {
+				pipeline = new TransferPipeline(new String[] { "network", "write" }, false);
+				writeStage = new WriteStage();
+				writeStage.start();
+			}
+
+			while (true) {
+				frame.clear();
+				readFully(frame);
+				frame.flip();
+
+				int chunkIndex = frame.getInt();
+				int length = frame.getInt();
+				ChunkCompressor.Codec codec = ChunkCompressor.Codec.NONE;
+				if (frame.hasRemaining()) {
+					codec = ChunkCompressor.codecFromByte(frame.get());
+					if (codec == null)
+						throw new IOException("Invalid frame: unknown codec for chunk " + chunkIndex);
+				}
+
+				if (chunkIndex < 0) {	// end of stripe
+					if (pipeline != null)
+						finishPipeline();
+					awaitVerdicts();
+					break;
+				}
+
+				if (codec == ChunkCompressor.Codec.NONE)
+					receiver.chunkReceived(length, length, codec);
+				if (pipeline != null) {
+					queueChunk(chunkIndex, length, codec);
+				} else if (codec == ChunkCompressor.Codec.DEFLATE) {
+					receiveCompressedChunk(chunkIndex, length);
+				} else {
+					receiveChunk(chunkIndex, length);
+				}
+			}
+		} catch (Exception e) {
+			// the pipeline is closed when the write stage fails, its error is the one that matters
+			error = (writeStage != null && writeStage.error != null) ? writeStage.error : e;
+		} finally {
+			if (pipeline != null) {
+				pipeline.close();
+				Utility.logln("    stripe " + pipeline.describe());
+				pipeline.leave();
+			}
+
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+
+			receiver.stripeFinished(this, error);
+		}
+	}
+
+	/**
+	 * Receive the payload of one chunk frame straight into the target file
+	 * @param chunkIndex Index of the chunk
+	 * @param length Length of the payload
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private void receiveChunk(int chunkIndex, int length) throws IOException {
+		if (length != receiver.getChunkLength(chunkIndex))
+			throw new IOException("Invalid frame: chunk " + chunkIndex + " with " + length + " bytes");
+
+		MappedFileWriter writer = receiver.getWriter();
+		long position = (long) chunkIndex * receiver.getChunkSize();
+		long end = position + length;
+
+		while (position < end) {
+			ByteBuffer region = writer.regionAt(position, end - position);
+			int offset = region.position();
+			readFully(region);
+
+			int count = region.position() - offset;
+			writer.commit(region, position, offset, count);
+
+			position += count;
+			receiver.bytesReceived(count);
+		}
+
+		receiver.chunkWritten(this, chunkIndex);
+	}
+
+	/**
+	 * Receive a compressed chunk frame and decompress it into the target file
+	 * @param chunkIndex Index of the chunk
+	 * @param length Length of the compressed payload
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private void receiveCompressedChunk(int chunkIndex, int length) throws IOException {
+		int chunkLength = checkCompressedFrame(chunkIndex, length);
+		ByteBuffer compressed = compressor.inputBuffer(length);
+		readFully(compressed);
+		compressed.flip();
+
+		long position = (long) chunkIndex * receiver.getChunkSize();
+		boolean intact = compressor.decompress(compressed, receiver.getWriter(), position, chunkLength);
+		receiver.bytesReceived(chunkLength);
+		receiver.chunkReceived(chunkLength, length, ChunkCompressor.Codec.DEFLATE);
+
+		if (intact) {
+			receiver.chunkWritten(this, chunkIndex);
+		} else {
+			receiver.chunkRejected(this, chunkIndex, "could not be decompressed");
+		}
+	}
+
+	/**
+	 * Check the length of a compressed chunk frame
+	 * @param chunkIndex Index of the chunk
+	 * @param length Length of the compressed payload
+	 * @return Length of the chunk once decompressed
+	 * @throws IOException If the frame is not valid
+	 */
+	private int checkCompressedFrame(int chunkIndex, int length) throws IOException {
+		int chunkLength = receiver.getChunkLength(chunkIndex);
+		if (chunkLength < 0 || length <= 0 || length > chunkLength)
+			throw new IOException("Invalid frame: chunk " + chunkIndex + " compressed to " + length + " bytes");
+		return chunkLength;
+	}
+
+	/**
+	 * Read the payload of one chunk frame into the pipeline, one record (AES-GCM) or one part (xor) per slot
+	 * @param chunkIndex Index of the chunk
+	 * @param length Plaintext length of the payload
+	 * @param codec Codec of the payload
+	 * @throws IOException If the frame is not valid or something went wrong while receiving,
+	 *                     InterruptedIOException if the write stage has failed
+	 */
+	private void queueChunk(int chunkIndex, int length, ChunkCompressor.Codec codec) throws IOException {
+		if (codec == ChunkCompressor.Codec.DEFLATE) {
+			checkCompressedFrame(chunkIndex, length);
+		} else if (length != receiver.getChunkLength(chunkIndex)) {
+			throw new IOException("Invalid frame: chunk " + chunkIndex + " with " + length + " bytes");
+		}
+
+		boolean sealed = (receiver.getRecordCipher() != null);
+		for (int offset = 0, recordIndex = 0; offset < length; recordIndex++) {
+			TransferPipeline.Slot slot = pipeline.take(NETWORK);
+			int plainLength = Math.min(RecordCipher.RECORD_SIZE, length - offset);
+			slot.data.limit(sealed ? RecordCipher.sealedLength(plainLength) : plainLength);
+			readFully(slot.data);
+			slot.data.flip();
+			offset += plainLength;
+
+			slot.chunkIndex = chunkIndex;
+			slot.recordIndex = recordIndex;
+			slot.first = (recordIndex == 0);
+			slot.last = (offset == length);
+			slot.frameLength = length;
+			slot.codec = codec;
+			slot.plainLength = plainLength;
+			pipeline.put(NETWORK, slot);
+		}
+	}
+
+	/**
+	 * Let the write stage finish the frames queued so far
+	 * @throws Exception If the write stage has failed
+	 */
+	private void finishPipeline() throws Exception {
+		TransferPipeline.Slot end = pipeline.take(NETWORK);
+		end.end = true;
+		pipeline.put(NETWORK, end);
+		writeStage.join();
+		if (writeStage.error != null)
+			throw writeStage.error;
+	}
+
+	/**
+	 * Write data at a file position through the regions of the writer
+	 * @param writer Writer of the target file
+	 * @param data Data to write, consumed
+	 * @param position File position of the first byte
+	 * @throws IOException If unable to write
+	 */
+	public static void writeAt(MappedFileWriter writer, ByteBuffer data, long position) throws IOException {
+		while (data.hasRemaining()) {
+			ByteBuffer region = writer.regionAt(position, data.remaining());
+			int offset = region.position();
+			int count = region.remaining();
+
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + count);
+			region.put(part);
+			data.position(data.position() + count);
+
+			writer.commit(region, position, offset, count);
+			position += count;
+		}
+	}
+
+	/**
+	 * Receive the chunk hashes: int count, leaves, root
+	 * @param dis Input stream of the connection
+	 * @throws IOException If the hashes are invalid or unable to read them
+	 */
+	private void receiveHashes(DataInputStream dis) throws IOException {
+		int count = dis.readInt();
+		if (count != receiver.getChunkCount())
+			throw new IOException("Expected " + receiver.getChunkCount() + " chunk hashes, got " + count);
+
+		byte[][] leaves = new byte[count][MerkleTree.HASH_SIZE];
+		for (int index = 0; index < count; index++) {
+			dis.readFully(leaves[index]);
+		}
+		byte[] root = new byte[MerkleTree.HASH_SIZE];
+		dis.readFully(root);
+
+		receiver.setMerkleTree(leaves, root);
+	}
+
+	/**
+	 * Callback before a verification of a chunk of this stripe starts
+	 */
+	public synchronized void verificationStarted() {
+		outstanding++;
+	}
+
+	/**
+	 * Send the verdict of a chunk back to the sender
+	 * @param chunkIndex Index of the chunk
+	 * @param verified True if the chunk is good
+	 */
+	public synchronized void sendVerdict(int chunkIndex, boolean verified) {
+		verdict.clear();
+		verdict.putInt(chunkIndex).put((byte) (verified ? 1 : 0)).flip();
+		try {
+			while (verdict.hasRemaining()) {
+				channel.write(verdict);
+			}
+		} catch (IOException ioe) {
+			// connection lost, the sender fails this stripe on its own
+		}
+	}
+
+	/**
+	 * Callback when a verification of a chunk of this stripe is done and its verdict sent
+	 */
+	public synchronized void verificationDone() {
+		outstanding--;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every verdict of this stripe is sent
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private synchronized void awaitVerdicts() throws InterruptedException {
+		while (outstanding > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * WriteStage decrypts (xor) or opens (AES-GCM records) the parts read by the network stage into the target file
+	 * A record failing authentication rejects the whole chunk, the rest of its parts are still taken
+	 */
+	private class WriteStage extends Thread {
+
+		private volatile Exception error;
+
+		// file position of the next part of an uncompressed chunk
+		private long position;
+
+		// every record of the current chunk is authentic so far
+		private boolean authentic;
+
+		// payload of the current compressed chunk
+		private ByteBuffer compressed;
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			try {
+				while (true) {
+					TransferPipeline.Slot slot = pipeline.take(WRITE);
+					boolean end = slot.end;
+					if (!end)
+						write(slot);
+					pipeline.put(WRITE, slot);
+					if (end)
+						return;
+				}
+			} catch (InterruptedIOException iioe) {
+				// pipeline closed, the network stage has failed
+			} catch (Exception e) {
+				error = e;
+				pipeline.close();
+			} finally {
+				pipeline.leave();
+			}
+		}
+
+		/**
+		 * Write one part
+		 * @param slot Slot holding the part
+		 * @throws IOException If unable to write
+		 */
+		private void write(TransferPipeline.Slot slot) throws IOException {
+			if (slot.first) {
+				position = (long) slot.chunkIndex * receiver.getChunkSize();
+				authentic = true;
+				if (slot.codec == ChunkCompressor.Codec.DEFLATE)
+					compressed = compressor.inputBuffer(slot.frameLength);
+			}
+
+			if (slot.codec == ChunkCompressor.Codec.DEFLATE) {
+				writeCompressed(slot);
+				return;
+			}
+
+			RecordCipher cipher = receiver.getRecordCipher();
+			MappedFileWriter writer = receiver.getWriter();
+			if (cipher == null) {
+				receiver.decrypt(slot.data, 0, slot.data.limit());
+				writeAt(writer, slot.data, position);
+			} else if (authentic) {
+				try {
+					ByteBuffer region = writer.regionAt(position, slot.plainLength);
+					int offset = region.position();
+					if (region.remaining() == slot.plainLength) {
+						// common case, the record is opened straight into the mapped window
+						cipher.open(slot.chunkIndex, slot.recordIndex, slot.data, region);
+						writer.commit(region, position, offset, slot.plainLength);
+					} else {
+						// record crosses a window or the writer has fallen back to heap buffers
+						if (staging == null)
+							staging = ByteBuffer.allocate(RecordCipher.RECORD_SIZE);
+						staging.clear();
+						cipher.open(slot.chunkIndex, slot.recordIndex, slot.data, staging);
+						staging.flip();
+						writeAt(writer, staging, position);
+					}
+				} catch (AEADBadTagException abte) {
+					authentic = false;
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Unable to open record " + slot.recordIndex + " of chunk " + slot.chunkIndex, gse);
+				}
+			}
+
+			position += slot.plainLength;
+			receiver.bytesReceived(slot.plainLength);
+			if (slot.last) {
+				if (authentic) {
+					receiver.chunkWritten(StripeReceiver.this, slot.chunkIndex);
+				} else {
+					receiver.chunkRejected(StripeReceiver.this, slot.chunkIndex, "failed authentication");
+				}
+			}
+		}
+
+		/**
+		 * Collect one part of a compressed chunk, the chunk is decompressed into the file with its last part
+		 * @param slot Slot holding the part
+		 * @throws IOException If unable to write
+		 */
+		private void writeCompressed(TransferPipeline.Slot slot) throws IOException {
+			RecordCipher cipher = receiver.getRecordCipher();
+			if (cipher == null) {
+				receiver.decrypt(slot.data, 0, slot.data.limit());
+				compressed.put(slot.data);
+			} else if (authentic) {
+				try {
+					cipher.open(slot.chunkIndex, slot.recordIndex, slot.data, compressed);
+				} catch (AEADBadTagException abte) {
+					authentic = false;
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Unable to open record " + slot.recordIndex + " of chunk " + slot.chunkIndex, gse);
+				}
+			}
+			if (!slot.last)
+				return;
+
+			int chunkLength = receiver.getChunkLength(slot.chunkIndex);
+			long chunkPosition = (long) slot.chunkIndex * receiver.getChunkSize();
+			boolean intact = false;
+			if (authentic) {
+				compressed.flip();
+				intact = compressor.decompress(compressed, receiver.getWriter(), chunkPosition, chunkLength);
+			}
+			receiver.bytesReceived(chunkLength);
+			receiver.chunkReceived(chunkLength, slot.frameLength, ChunkCompressor.Codec.DEFLATE);
+
+			if (intact) {
+				receiver.chunkWritten(StripeReceiver.this, slot.chunkIndex);
+			} else {
+				receiver.chunkRejected(StripeReceiver.this, slot.chunkIndex, authentic ? "could not be decompressed" : "failed authentication");
+			}
+		}
+	}
+
+	/**
+	 * Fill the remaining of a buffer from the channel
+	 * @param buffer Buffer to fill
+	 * @throws IOException If the connection is closed before the buffer is filled
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Connection closed in the middle of a frame");
+		}
+	}
+}
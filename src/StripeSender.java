@@ -0,0 +1,484 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+
+/**
+ * StripeSender is a thread sending chunks of a file over one connection (stripe)
+ * Chunks are taken from the owning FileTransferThread until none is left
+ * Encrypted payload goes through a pipeline: a disk stage reads (and compresses) the chunks, a crypto stage
+ * encrypts them and this thread writes them to the socket, so disk, CPU and network work at the same time
+ * Plain payload is sent zero-copy by the kernel, there is nothing to overlap
+ * @author conqtc
+ *
+ */
+public class StripeSender extends Thread {
+
+	private FileTransferThread transfer;
+
+	private InetAddress address;
+
+	private int stripeIndex;
+
+	private volatile boolean retired;
+
+	private volatile boolean sentChunk;
+	
+	// compresses chunks worth it, null if compression is not negotiated
+	private ChunkCompressor compressor;
+	
+	// stages of the pipeline of encrypted payload
+	private static final int DISK = 0;
+	
+	private static final int CRYPTO = 1;
+	
+	private static final int NETWORK = 2;
+	
+	private TransferPipeline pipeline;
+
+	// connection of the stripe, null until opened
+	private volatile SocketChannel channel;
+
+	/**
+	 * Constructor
+	 * @param transfer Owning file transfer
+	 * @param address Receiver address
+	 * @param stripeIndex Index of this stripe, used for logging
+	 */
+	public StripeSender(FileTransferThread transfer, InetAddress address, int stripeIndex) {
+		this.transfer = transfer;
+		this.address = address;
+		this.stripeIndex = stripeIndex;
+	}
+
+	/**
+	 * Stop taking new chunks, the stripe ends after the current one
+	 */
+	public void retire() {
+		this.retired = true;
+	}
+
+	/**
+	 * Apply the socket buffer chosen by the tuner of the transfer
+	 */
+	public void tune() {
+		SocketChannel channel = this.channel;
+		if (channel == null)
+			return;
+
+		try {
+			transfer.getTuner().apply(channel);
+		} catch (IOException ioe) {
+			// keeps the buffer it has
+		}
+	}
+
+	/**
+	 * Is this stripe retired
+	 * @return True if retired
+	 */
+	public boolean isRetired() {
+		return this.retired;
+	}
+
+	/**
+	 * Has this stripe sent at least one chunk
+	 * @return True if sent
+	 */
+	public boolean hasSentChunk() {
+		return this.sentChunk;
+	}
+
+	/**
+	 * Main entry of the thread
+	 */
+	public void run() {
+		SocketChannel channel = null;
+		Exception error = null;
+
+		try {
+			// buffers chosen so far are set before connecting, so the window scale covers them
+			// the time to connect is one round trip
+			channel = SocketChannel.open();
+			transfer.getTuner().apply(channel);
+			long connectStart = System.nanoTime();
+			channel.connect(new InetSocketAddress(address, ChatApp.DEFAULT_PORT - 2));
+			transfer.getTuner().rttSample(System.nanoTime() - connectStart);
+			this.channel = channel;
+
+			channel.socket().setTcpNoDelay(true);
+
+			// stream header, the same on every stripe
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+			dos.writeUTF(transfer.getFileName());
+			dos.writeLong(transfer.getFileSize());
+			dos.writeInt(transfer.getChunkSize());
+			dos.writeUTF(transfer.getTransferId());
+			dos.flush();
+
+			// manifest of the receiver: chunks already received by an earlier attempt
+			DataInputStream dis = new DataInputStream(channel.socket().getInputStream());
+			int length = dis.readInt();
+			if (length < 0 || length > (transfer.getFileSize() / transfer.getChunkSize() + 8) / 8)
+				throw new IOException("Invalid manifest of " + length + " bytes");
+			byte[] completed = new byte[length];
+			dis.readFully(completed);
+			transfer.setManifest(completed);
+
+			// the first stripe of the receiver asks for the chunk hashes
+			if (dis.readBoolean()) {
+				MerkleTree tree = transfer.getMerkleTree();
+				if (tree == null)
+					throw new IOException("Receiver asked for chunk hashes which were not negotiated");
+
+				dos.writeInt(tree.getLeafCount());
+				for (int index = 0; index < tree.getLeafCount(); index++) {
+					dos.write(tree.getLeaf(index));
+				}
+				dos.write(tree.getRoot());
+				dos.flush();
+			}
+
+			// verdicts of the receiver come back on the same connection
+			VerdictReader reader = new VerdictReader(dis);
+			reader.start();
+
+			// frame header: int chunk index, int payload length, and the codec byte if compression is negotiated
+			ByteBuffer header = ByteBuffer.allocate(9);
+			if (transfer.isCompressing())
+				compressor = new ChunkCompressor();
+			if (transfer.getPayloadMode() == TransferParameters.PayloadMode.PLAIN) {
+				while (!retired) {
+					int chunkIndex = transfer.nextChunk();
+					if (chunkIndex < 0)
+						break;
+
+					sentChunk = true;
+					sendChunk(channel, chunkIndex, header);
+				}
+			} else {
+				sendPipelined(channel, header);
+			}
+
+			// end of stripe
+			writeHeader(channel, header, -1, 0, ChunkCompressor.Codec.NONE);
+
+			// receiver closes the connection once the verdicts of this stripe are all sent
+			reader.join();
+		} catch (Exception e) {
+			if (sentChunk || stripeIndex == 0)
+				Utility.logln("    stream " + stripeIndex + " failed: " + e.getMessage());
+			error = e;
+		} finally {
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+
+			transfer.stripeFinished(this, error);
+		}
+	}
+
+	/**
+	 * Send one chunk frame of plain payload
+	 * @param channel Socket channel
+	 * @param chunkIndex Index of the chunk
+	 * @param header Buffer used for the frame header
+	 * @throws IOException If something went wrong while reading or sending
+	 */
+	private void sendChunk(SocketChannel channel, int chunkIndex, ByteBuffer header) throws IOException {
+		FileChannel fileChannel = transfer.getFileChannel();
+		long position = (long) chunkIndex * transfer.getChunkSize();
+		int length = (int) Math.min(transfer.getChunkSize(), transfer.getFileSize() - position);
+
+		ByteBuffer compressed = (compressor != null) ? compressor.compress(fileChannel, position, length) : null;
+		if (compressed != null) {
+			int wireLength = compressed.remaining();
+			writeHeader(channel, header, chunkIndex, wireLength, ChunkCompressor.Codec.DEFLATE);
+			writeThrottled(channel, compressed);
+			transfer.bytesSent(length);
+			transfer.chunkSent(length, wireLength, ChunkCompressor.Codec.DEFLATE);
+			return;
+		}
+
+		writeHeader(channel, header, chunkIndex, length, ChunkCompressor.Codec.NONE);
+		transfer.chunkSent(length, length, ChunkCompressor.Codec.NONE);
+
+		// zero-copy, the kernel moves the bytes from the page cache to the socket
+		long end = position + length;
+		while (position < end) {
+			long count = transfer.throttleStep(end - position);
+			transfer.throttle(count);
+			long sent = fileChannel.transferTo(position, count, channel);
+			if (sent <= 0)
+				throw new EOFException("File '" + transfer.getFileName() + "' was truncated while sending");
+			position += sent;
+			transfer.bytesSent(sent);
+		}
+	}
+
+	/**
+	 * Send chunk frames of encrypted payload through the pipeline, this thread is the network stage
+	 * Each slot carries one record (AES-GCM) or one part of the frame (xor), the first one also carries the frame header
+	 * @param channel Socket channel
+	 * @param header Buffer used for the frame header
+	 * @throws Exception If a stage failed or something went wrong while sending
+	 */
+	private void sendPipelined(SocketChannel channel, ByteBuffer header) throws Exception {
+		boolean sealing = (transfer.getPayloadMode() == TransferParameters.PayloadMode.AES_GCM);
+		pipeline = new TransferPipeline(new String[] { "disk", "crypto", "network" }, sealing);
+		DiskStage diskStage = new DiskStage();
+		CryptoStage cryptoStage = new CryptoStage();
+		diskStage.start();
+		cryptoStage.start();
+
+		try {
+			while (true) {
+				TransferPipeline.Slot slot = pipeline.take(NETWORK);
+				if (slot.error != null)
+					throw slot.error;
+				if (slot.end)
+					break;
+
+				if (slot.first)
+					writeHeader(channel, header, slot.chunkIndex, slot.frameLength, slot.codec);
+				transfer.throttle(slot.result.remaining());
+				writeFully(channel, slot.result);
+				transfer.bytesSent(slot.plainLength);
+				pipeline.put(NETWORK, slot);
+			}
+		} finally {
+			// the disk stage may be waiting for a chunk, it leaves on its own once it gets one
+			pipeline.close();
+			cryptoStage.join();
+			Utility.logln("    stream " + stripeIndex + " " + pipeline.describe());
+			pipeline.leave();
+		}
+	}
+
+	/**
+	 * Write a payload in steps granted by the bandwidth scheduler
+	 * @param channel Socket channel
+	 * @param payload Payload from position to limit, consumed
+	 * @throws IOException If unable to send
+	 */
+	private void writeThrottled(SocketChannel channel, ByteBuffer payload) throws IOException {
+		while (payload.hasRemaining()) {
+			ByteBuffer step = payload.duplicate();
+			step.limit(step.position() + (int) transfer.throttleStep(step.remaining()));
+			payload.position(step.limit());
+
+			transfer.throttle(step.remaining());
+			writeFully(channel, step);
+		}
+	}
+
+	/**
+	 * Write a frame header
+	 * @param channel Socket channel
+	 * @param header Buffer used for the frame header
+	 * @param chunkIndex Index of the chunk, -1 to end the stripe
+	 * @param length Length of the payload following the header
+	 * @param codec Codec of the payload, only written if compression is negotiated
+	 * @throws IOException If unable to send
+	 */
+	private void writeHeader(SocketChannel channel, ByteBuffer header, int chunkIndex, int length, ChunkCompressor.Codec codec) throws IOException {
+		header.clear();
+		header.putInt(chunkIndex).putInt(length);
+		if (compressor != null)
+			header.put((byte) codec.ordinal());
+		header.flip();
+		writeFully(channel, header);
+	}
+
+	/**
+	 * Fill a buffer from the file, up to its limit
+	 * @param fileChannel File channel
+	 * @param data Buffer to fill, from its position
+	 * @param position File position to read from
+	 * @throws IOException If unable to read or the file is shorter than expected
+	 */
+	private void readAt(FileChannel fileChannel, ByteBuffer data, long position) throws IOException {
+		long start = position - data.position();
+		while (data.hasRemaining()) {
+			if (fileChannel.read(data, start + data.position()) < 0)
+				throw new EOFException("File '" + transfer.getFileName() + "' was truncated while sending");
+		}
+	}
+
+	/**
+	 * DiskStage takes the chunks of this stripe and reads them into the pipeline,
+	 * compressed chunks are cut into parts once compressed
+	 */
+	private class DiskStage extends Thread {
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			try {
+				while (!retired) {
+					int chunkIndex = transfer.nextChunk();
+					if (chunkIndex < 0)
+						break;
+
+					sentChunk = true;
+					readChunk(chunkIndex);
+				}
+
+				TransferPipeline.Slot end = pipeline.take(DISK);
+				end.end = true;
+				pipeline.put(DISK, end);
+			} catch (InterruptedIOException iioe) {
+				// pipeline closed, the network stage has failed
+			} catch (Exception e) {
+				try {
+					TransferPipeline.Slot failed = pipeline.take(DISK);
+					failed.error = e;
+					pipeline.put(DISK, failed);
+				} catch (InterruptedIOException iioe) {
+					// pipeline closed, the network stage has failed
+				}
+			} finally {
+				pipeline.leave();
+			}
+		}
+
+		/**
+		 * Read one chunk into slots of at most one record each
+		 * @param chunkIndex Index of the chunk
+		 * @throws IOException If unable to read the file, InterruptedIOException if the pipeline is closed
+		 */
+		private void readChunk(int chunkIndex) throws IOException {
+			FileChannel fileChannel = transfer.getFileChannel();
+			long position = (long) chunkIndex * transfer.getChunkSize();
+			int length = (int) Math.min(transfer.getChunkSize(), transfer.getFileSize() - position);
+
+			ByteBuffer compressed = (compressor != null) ? compressor.compress(fileChannel, position, length) : null;
+			int frameLength = (compressed != null) ? compressed.remaining() : length;
+			ChunkCompressor.Codec codec = (compressed != null) ? ChunkCompressor.Codec.DEFLATE : ChunkCompressor.Codec.NONE;
+			transfer.chunkSent(length, frameLength, codec);
+
+			for (int offset = 0, recordIndex = 0; offset < frameLength; recordIndex++) {
+				TransferPipeline.Slot slot = pipeline.take(DISK);
+				ByteBuffer data = slot.data;
+				data.limit(Math.min(RecordCipher.RECORD_SIZE, frameLength - offset));
+				if (compressed != null) {
+					ByteBuffer part = compressed.duplicate();
+					part.position(compressed.position() + offset).limit(compressed.position() + offset + data.limit());
+					data.put(part);
+				} else {
+					readAt(fileChannel, data, position + offset);
+				}
+				data.flip();
+				offset += data.limit();
+
+				slot.chunkIndex = chunkIndex;
+				slot.recordIndex = recordIndex;
+				slot.first = (recordIndex == 0);
+				slot.last = (offset == frameLength);
+				slot.frameLength = frameLength;
+				slot.codec = codec;
+				// a compressed chunk counts as sent once its last part is
+				slot.plainLength = (compressed == null) ? data.limit() : (slot.last ? length : 0);
+				pipeline.put(DISK, slot);
+			}
+		}
+	}
+
+	/**
+	 * CryptoStage encrypts the parts read by the disk stage: seals each one as an AES-GCM record, or xors it in place
+	 */
+	private class CryptoStage extends Thread {
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			try {
+				while (true) {
+					TransferPipeline.Slot slot = pipeline.take(CRYPTO);
+					boolean done = (slot.end || slot.error != null);
+					if (!done) {
+						try {
+							encrypt(slot);
+						} catch (GeneralSecurityException | RuntimeException e) {
+							slot.error = e;
+							done = true;
+						}
+					}
+					pipeline.put(CRYPTO, slot);
+					if (done)
+						return;
+				}
+			} catch (InterruptedIOException iioe) {
+				// pipeline closed
+			} finally {
+				pipeline.leave();
+			}
+		}
+
+		/**
+		 * Encrypt one part
+		 * @param slot Slot holding the part
+		 * @throws GeneralSecurityException If unable to seal the record
+		 */
+		private void encrypt(TransferPipeline.Slot slot) throws GeneralSecurityException {
+			if (slot.output != null) {
+				slot.output.clear();
+				transfer.getRecordCipher().seal(slot.chunkIndex, slot.recordIndex, slot.data, slot.output);
+				slot.output.flip();
+				slot.result = slot.output;
+			} else {
+				FileTransferThread.xorEncrypt(slot.data, 0, slot.data.limit(), transfer.getKey());
+				slot.result = slot.data;
+			}
+		}
+	}
+
+	/**
+	 * VerdictReader reads the verdict of each chunk sent on this stripe: int chunk index, boolean verified
+	 */
+	private class VerdictReader extends Thread {
+
+		private DataInputStream dis;
+
+		/**
+		 * Constructor
+		 * @param dis Input stream of the connection
+		 */
+		private VerdictReader(DataInputStream dis) {
+			this.dis = dis;
+		}
+
+		/**
+		 * Main entry of the thread, ends when the receiver closes the connection
+		 */
+		public void run() {
+			try {
+				while (true) {
+					int chunkIndex = dis.readInt();
+					boolean verified = dis.readBoolean();
+					transfer.chunkVerified(chunkIndex, verified);
+				}
+			} catch (IOException ioe) {
+				// connection closed
+			}
+		}
+	}
+
+	/**
+	 * Write the whole buffer to the channel
+	 * @param channel Socket channel
+	 * @param buffer Buffer to write
+	 * @throws IOException If unable to write
+	 */
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,705 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+
+import javax.crypto.*;
+
+/**
+ * SwarmConnection is a connection between two members of a swarm, both ends request and serve chunks
+ * The connection starts with the stream header carrying the swarm ID, so the transfer server routes it,
+ * then both ends say hello (uid and X25519 public key, see KeyExchange) and announce the chunks they hold
+ * Messages: byte type, followed by
+ *     BITFIELD: int length, bitmap of the chunks held
+ *     HAVE, REQUEST, REJECT: int chunk index
+ *     PIECE: int chunk index, int length, sealed records (AES-GCM) of the chunk
+ *     GET_HASHES: nothing
+ *     HASHES: int count, hash of each chunk
+ * This thread reads, a writer thread sends the queued messages first and the requested chunks next
+ * @author conqtc
+ *
+ */
+public class SwarmConnection extends Thread {
+
+	private static final byte HELLO = 0;
+
+	private static final byte BITFIELD = 1;
+
+	private static final byte HAVE = 2;
+
+	private static final byte REQUEST = 3;
+
+	private static final byte PIECE = 4;
+
+	private static final byte REJECT = 5;
+
+	private static final byte GET_HASHES = 6;
+
+	private static final byte HASHES = 7;
+
+	// requests outstanding on one connection, enough to keep the link busy while a chunk is verified
+	private static final int PIPELINE = 2;
+
+	// chunks failing verification before the member is dropped
+	private static final int MAX_STRIKES = 3;
+
+	// time between attempts to connect to a member not ready yet
+	private static final long RETRY_INTERVAL = 1000;
+
+	private SwarmTransfer transfer;
+
+	private SocketChannel channel;
+
+	private InetAddress remoteAddress;
+
+	// known from the start by the side opening the connection, from the hello of the other side otherwise
+	private volatile String remoteUid;
+
+	private volatile boolean established;
+
+	private DataInputStream dis;
+
+	private DataOutputStream dos;
+
+	private RecordCipher sealCipher;
+
+	private RecordCipher openCipher;
+
+	// key agreement of this connection, a fresh key pair each
+	private KeyExchange keyExchange;
+
+	// chunks held by the other side, guarded by the swarm
+	private BitSet remoteChunks;
+
+	// chunks requested on this connection, not yet received
+	private LinkedHashSet<Integer> outstanding;
+
+	// messages waiting to be sent, before any chunk
+	private ArrayDeque<byte[]> messages;
+
+	// chunks requested by the other side
+	private ArrayDeque<Integer> uploads;
+
+	private Writer writer;
+
+	// the other side asked for the chunk hashes before they were known here
+	private boolean hashesWanted;
+
+	private boolean closing;
+
+	private volatile boolean closed;
+
+	private int strikes;
+
+	private volatile long lastActivity;
+
+	private ByteBuffer record;
+
+	private ByteBuffer staging;
+
+	/**
+	 * Constructor of the side opening the connection
+	 * @param transfer Swarm
+	 * @param remoteUid uid of the member
+	 * @param remoteAddress Address of the member
+	 */
+	public SwarmConnection(SwarmTransfer transfer, String remoteUid, InetAddress remoteAddress) {
+		this(transfer, remoteAddress);
+		this.remoteUid = remoteUid;
+	}
+
+	/**
+	 * Constructor of the side accepting the connection
+	 * @param transfer Swarm
+	 * @param channel Connection routed by the transfer server, in blocking mode
+	 * @param remoteAddress Address of the member
+	 */
+	public SwarmConnection(SwarmTransfer transfer, SocketChannel channel, InetAddress remoteAddress) {
+		this(transfer, remoteAddress);
+		this.channel = channel;
+	}
+
+	/**
+	 * Constructor of the state shared by both sides
+	 * @param transfer Swarm
+	 * @param remoteAddress Address of the member
+	 */
+	private SwarmConnection(SwarmTransfer transfer, InetAddress remoteAddress) {
+		this.transfer = transfer;
+		this.remoteAddress = remoteAddress;
+		this.remoteChunks = new BitSet(transfer.getChunkCount());
+		this.outstanding = new LinkedHashSet<>();
+		this.messages = new ArrayDeque<>();
+		this.uploads = new ArrayDeque<>();
+		this.lastActivity = System.currentTimeMillis();
+		this.keyExchange = new KeyExchange();
+	}
+
+	/**
+	 * Main entry of the thread
+	 */
+	public void run() {
+		try {
+			if (channel == null) {
+				connect();
+			} else {
+				open();
+				writeHello();
+				readHello();
+			}
+			channel.socket().setSoTimeout(0);
+
+			if (!transfer.connectionEstablished(this))
+				return;
+
+			established = true;
+			writer = new Writer();
+			writer.start();
+
+			enqueue(bitfieldMessage(transfer.getCompletedChunks()));
+			if (transfer.getMerkleTree() == null)
+				enqueue(new byte[] { GET_HASHES });
+			fillRequests();
+
+			while (true) {
+				byte type = dis.readByte();
+				lastActivity = System.currentTimeMillis();
+				handleMessage(type);
+			}
+		} catch (IOException ioe) {
+			if (established && !closed && !isClosing())
+				Utility.logln("    connection to member " + remoteUid + " lost: " + ioe.getMessage());
+		} finally {
+			close();
+			transfer.connectionClosed(this);
+		}
+	}
+
+	/**
+	 * Open the connection to the member, retried until it is ready to accept it
+	 * The transfer server of the member closes connections of a swarm it has not joined yet
+	 * @throws IOException If the member is not ready in time
+	 */
+	private void connect() throws IOException {
+		long deadline = System.currentTimeMillis() + SwarmTransfer.CONNECT_TIMEOUT;
+		while (true) {
+			try {
+				channel = SocketChannel.open(new InetSocketAddress(remoteAddress, ChatApp.DEFAULT_PORT - 2));
+				open();
+
+				// stream header, the swarm ID takes the place of the transfer ID
+				dos.writeUTF(transfer.getFileName());
+				dos.writeLong(transfer.getFileSize());
+				dos.writeInt(transfer.getChunkSize());
+				dos.writeUTF(transfer.getSwarmId());
+				dos.flush();
+
+				readHello();
+				writeHello();
+				return;
+			} catch (IOException ioe) {
+				closeChannel();
+				if (closed || System.currentTimeMillis() + RETRY_INTERVAL > deadline)
+					throw ioe;
+			}
+
+			try {
+				Thread.sleep(RETRY_INTERVAL);
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while connecting to member " + remoteUid);
+			}
+		}
+	}
+
+	/**
+	 * Set up the streams of the connection
+	 * @throws IOException If the connection is closed
+	 */
+	private void open() throws IOException {
+		channel.socket().setTcpNoDelay(true);
+		channel.socket().setSoTimeout((int) SwarmTransfer.CONNECT_TIMEOUT);
+		dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), RecordCipher.RECORD_SIZE));
+		dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), RecordCipher.RECORD_SIZE));
+	}
+
+	/**
+	 * Say hello: uid and public key of this side
+	 * @throws IOException If unable to send
+	 */
+	private void writeHello() throws IOException {
+		byte[] publicKey = keyExchange.getEncodedPublicKey();
+		dos.writeByte(HELLO);
+		dos.writeUTF(transfer.getApp().getuid());
+		dos.writeShort(publicKey.length);
+		dos.write(publicKey);
+		dos.flush();
+	}
+
+	/**
+	 * Read the hello of the other side and derive the keys of both directions
+	 * @throws IOException If the hello is not valid
+	 */
+	private void readHello() throws IOException {
+		if (dis.readByte() != HELLO)
+			throw new IOException("Invalid hello");
+
+		String uid = dis.readUTF();
+		byte[] publicKey = new byte[dis.readUnsignedShort()];
+		dis.readFully(publicKey);
+		if (remoteUid != null && !remoteUid.equals(uid))
+			throw new IOException("Unexpected member " + uid + " instead of " + remoteUid);
+
+		byte[] sharedSecret;
+		try {
+			sharedSecret = keyExchange.agree(publicKey);
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Invalid public key from member " + uid, gse);
+		}
+
+		remoteUid = uid;
+		sealCipher = RecordCipher.forTransfer(sharedSecret, transfer.getSwarmId() + "|" + transfer.getApp().getuid());
+		openCipher = RecordCipher.forTransfer(sharedSecret, transfer.getSwarmId() + "|" + remoteUid);
+	}
+
+	/**
+	 * Handle one message from the other side
+	 * @param type Type of the message, already read
+	 * @throws IOException If the message is not valid
+	 */
+	private void handleMessage(byte type) throws IOException {
+		switch (type) {
+		case BITFIELD:
+			int length = dis.readInt();
+			if (length < 0 || length > (transfer.getChunkCount() + 7) / 8)
+				throw new IOException("Invalid bitfield of " + length + " bytes");
+			byte[] bitmap = new byte[length];
+			dis.readFully(bitmap);
+			transfer.remoteChunksReceived(this, BitSet.valueOf(bitmap));
+			update();
+			break;
+		case HAVE:
+			transfer.remoteChunkReceived(this, readChunkIndex());
+			update();
+			break;
+		case REQUEST:
+			int requested = readChunkIndex();
+			if (transfer.hasChunk(requested)) {
+				upload(requested);
+			} else {
+				enqueue(chunkMessage(REJECT, requested));
+			}
+			break;
+		case PIECE:
+			receivePiece(readChunkIndex(), dis.readInt());
+			fillRequests();
+			break;
+		case REJECT:
+			int refused = readChunkIndex();
+			if (removeOutstanding(refused))
+				transfer.chunkRefused(this, refused);
+			fillRequests();
+			break;
+		case GET_HASHES:
+			synchronized (this) {
+				hashesWanted = true;
+			}
+			if (transfer.getMerkleTree() != null)
+				hashesKnown();
+			break;
+		case HASHES:
+			int count = dis.readInt();
+			if (count != transfer.getChunkCount())
+				throw new IOException("Invalid hashes of " + count + " chunks");
+			byte[][] leaves = new byte[count][MerkleTree.HASH_SIZE];
+			for (byte[] leaf: leaves) {
+				dis.readFully(leaf);
+			}
+			transfer.setMerkleTree(leaves);
+			fillRequests();
+			break;
+		default:
+			throw new IOException("Unknown message " + type);
+		}
+	}
+
+	/**
+	 * Read a chunk index
+	 * @return Chunk index
+	 * @throws IOException If the index is out of range
+	 */
+	private int readChunkIndex() throws IOException {
+		int chunkIndex = dis.readInt();
+		if (chunkIndex < 0 || chunkIndex >= transfer.getChunkCount())
+			throw new IOException("Invalid chunk index " + chunkIndex);
+		return chunkIndex;
+	}
+
+	/**
+	 * Receive the sealed records of a requested chunk and open them straight into the partial file
+	 * A record failing authentication rejects the whole chunk, the rest of the message is still read
+	 * @param chunkIndex Index of the chunk
+	 * @param length Plaintext length of the chunk
+	 * @throws IOException If something went wrong while receiving or writing
+	 */
+	private void receivePiece(int chunkIndex, int length) throws IOException {
+		if (length != transfer.getChunkLength(chunkIndex) || !removeOutstanding(chunkIndex))
+			throw new IOException("Unexpected chunk " + chunkIndex + " with " + length + " bytes");
+
+		if (record == null) {
+			record = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+			staging = ByteBuffer.allocate(RecordCipher.RECORD_SIZE);
+		}
+
+		MappedFileWriter writer = transfer.getWriter();
+		long position = (long) chunkIndex * transfer.getChunkSize();
+		long end = position + length;
+		boolean authentic = true;
+
+		for (int recordIndex = 0; position < end; recordIndex++) {
+			int plainLength = (int) Math.min(RecordCipher.RECORD_SIZE, end - position);
+			record.clear();
+			record.limit(RecordCipher.sealedLength(plainLength));
+			dis.readFully(record.array(), 0, record.limit());
+
+			if (authentic) {
+				try {
+					ByteBuffer region = writer.regionAt(position, plainLength);
+					int offset = region.position();
+					if (region.remaining() == plainLength) {
+						openCipher.open(chunkIndex, recordIndex, record, region);
+						writer.commit(region, position, offset, plainLength);
+					} else {
+						staging.clear();
+						openCipher.open(chunkIndex, recordIndex, record, staging);
+						staging.flip();
+						StripeReceiver.writeAt(writer, staging, position);
+					}
+				} catch (AEADBadTagException abte) {
+					authentic = false;
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Unable to open record " + recordIndex + " of chunk " + chunkIndex, gse);
+				}
+			}
+
+			position += plainLength;
+		}
+
+		transfer.chunkReceived(this, chunkIndex, authentic);
+	}
+
+	/**
+	 * Send one requested chunk, called by the writer thread
+	 * @param chunkIndex Index of the chunk
+	 * @param data Buffer used to read the file
+	 * @param sealed Buffer used to seal the records
+	 * @throws IOException If unable to read or send
+	 */
+	private void sendPiece(int chunkIndex, ByteBuffer data, ByteBuffer sealed) throws IOException {
+		FileChannel fileChannel = transfer.getFileChannel();
+		int length = transfer.getChunkLength(chunkIndex);
+		long position = (long) chunkIndex * transfer.getChunkSize();
+		long end = position + length;
+
+		dos.writeByte(PIECE);
+		dos.writeInt(chunkIndex);
+		dos.writeInt(length);
+
+		try {
+			for (int recordIndex = 0; position < end; recordIndex++) {
+				data.clear();
+				data.limit((int) Math.min(data.capacity(), end - position));
+				while (data.hasRemaining()) {
+					if (fileChannel.read(data, position + data.position()) < 0)
+						throw new EOFException("File '" + transfer.getFileName() + "' was truncated while sending");
+				}
+				data.flip();
+
+				sealed.clear();
+				sealCipher.seal(chunkIndex, recordIndex, data, sealed);
+				sealed.flip();
+				transfer.throttle(remoteAddress, sealed.remaining());
+				dos.write(sealed.array(), 0, sealed.limit());
+
+				position += data.limit();
+			}
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Unable to seal chunk " + chunkIndex, gse);
+		}
+
+		transfer.chunkUploaded(length);
+	}
+
+	/**
+	 * Request chunks from the other side until the pipeline is full
+	 */
+	public void fillRequests() {
+		if (!established || isClosing())
+			return;
+
+		while (getOutstandingCount() < PIPELINE) {
+			int chunkIndex = transfer.pickChunk(this);
+			if (chunkIndex < 0)
+				break;
+
+			enqueue(chunkMessage(REQUEST, chunkIndex));
+		}
+	}
+
+	/**
+	 * Request more chunks, and end the connection once neither side needs anything from the other
+	 */
+	public void update() {
+		fillRequests();
+		if (transfer.isFinishedWith(this))
+			finish();
+	}
+
+	/**
+	 * Announce a chunk held to the other side
+	 * @param chunkIndex Index of the chunk
+	 */
+	public void sendHave(int chunkIndex) {
+		enqueue(chunkMessage(HAVE, chunkIndex));
+	}
+
+	/**
+	 * Callback once the chunk hashes are known, sends them if the other side asked for them
+	 */
+	public void hashesKnown() {
+		boolean wanted;
+		synchronized (this) {
+			wanted = hashesWanted;
+			hashesWanted = false;
+		}
+
+		if (wanted) {
+			MerkleTree tree = transfer.getMerkleTree();
+			ByteBuffer message = ByteBuffer.allocate(5 + tree.getLeafCount() * MerkleTree.HASH_SIZE);
+			message.put(HASHES).putInt(tree.getLeafCount());
+			for (int index = 0; index < tree.getLeafCount(); index++) {
+				message.put(tree.getLeaf(index));
+			}
+			enqueue(message.array());
+		}
+		fillRequests();
+	}
+
+	/**
+	 * Count a chunk from the other side which could not be used, the connection is closed after too many
+	 */
+	public void strike() {
+		if (++strikes >= MAX_STRIKES) {
+			Utility.logln("    dropping member " + remoteUid + " after " + strikes + " bad chunk(s)");
+			close();
+		}
+	}
+
+	/**
+	 * Build a bitfield message
+	 * @param chunks Chunks held
+	 * @return Message
+	 */
+	private static byte[] bitfieldMessage(BitSet chunks) {
+		byte[] bitmap = chunks.toByteArray();
+		ByteBuffer message = ByteBuffer.allocate(5 + bitmap.length);
+		message.put(BITFIELD).putInt(bitmap.length).put(bitmap);
+		return message.array();
+	}
+
+	/**
+	 * Build a message carrying a chunk index
+	 * @param type Type of the message
+	 * @param chunkIndex Index of the chunk
+	 * @return Message
+	 */
+	private static byte[] chunkMessage(byte type, int chunkIndex) {
+		return ByteBuffer.allocate(5).put(type).putInt(chunkIndex).array();
+	}
+
+	/**
+	 * Queue a message for the writer thread
+	 * @param message Message
+	 */
+	private synchronized void enqueue(byte[] message) {
+		messages.add(message);
+		notifyAll();
+	}
+
+	/**
+	 * Queue a chunk requested by the other side for the writer thread
+	 * @param chunkIndex Index of the chunk
+	 */
+	private synchronized void upload(int chunkIndex) {
+		uploads.add(chunkIndex);
+		notifyAll();
+	}
+
+	/**
+	 * Record a chunk requested on this connection, called by the swarm while picking it
+	 * @param chunkIndex Index of the chunk
+	 */
+	public synchronized void addOutstanding(int chunkIndex) {
+		outstanding.add(chunkIndex);
+	}
+
+	/**
+	 * Forget a chunk requested on this connection
+	 * @param chunkIndex Index of the chunk
+	 * @return True if it was requested
+	 */
+	private synchronized boolean removeOutstanding(int chunkIndex) {
+		return outstanding.remove(chunkIndex);
+	}
+
+	/**
+	 * Get number of chunks requested and not yet received
+	 * @return Number of chunks
+	 */
+	private synchronized int getOutstandingCount() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Take the chunks requested and not yet received, once the connection is closed
+	 * @return Chunk indexes
+	 */
+	public synchronized List<Integer> takeOutstanding() {
+		ArrayList<Integer> taken = new ArrayList<>(outstanding);
+		outstanding.clear();
+		return taken;
+	}
+
+	/**
+	 * End the connection gracefully: the writer sends what is queued, then shuts the output down
+	 */
+	public synchronized void finish() {
+		closing = true;
+		notifyAll();
+	}
+
+	/**
+	 * Is the connection ending gracefully
+	 * @return True if ending
+	 */
+	private synchronized boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * Close the connection at once
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		closeChannel();
+	}
+
+	/**
+	 * Close the channel
+	 */
+	private void closeChannel() {
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException ioe) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Get uid of the other side
+	 * @return uid, null until the hello of the other side is read
+	 */
+	public String getRemoteUid() {
+		return this.remoteUid;
+	}
+
+	/**
+	 * Get address of the other side
+	 * @return Address
+	 */
+	public InetAddress getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	/**
+	 * Get chunks held by the other side, only used while holding the lock of the swarm
+	 * @return Chunks held
+	 */
+	public BitSet getRemoteChunks() {
+		return this.remoteChunks;
+	}
+
+	/**
+	 * Have both sides said hello
+	 * @return True if established
+	 */
+	public boolean isEstablished() {
+		return this.established;
+	}
+
+	/**
+	 * Get time of the last message from the other side
+	 * @return Time (System.currentTimeMillis)
+	 */
+	public long getLastActivity() {
+		return this.lastActivity;
+	}
+
+	/**
+	 * Writer sends the queued messages, then the requested chunks, and flushes whenever it runs out of work
+	 * It never flushes while holding the lock, so two members uploading to each other can not block each other
+	 */
+	private class Writer extends Thread {
+
+		/**
+		 * Main entry of the thread
+		 */
+		public void run() {
+			ByteBuffer data = ByteBuffer.allocate(RecordCipher.RECORD_SIZE);
+			ByteBuffer sealed = ByteBuffer.allocate(RecordCipher.sealedLength(RecordCipher.RECORD_SIZE));
+
+			try {
+				while (true) {
+					byte[] message;
+					Integer chunkIndex = null;
+					boolean ending;
+					synchronized (SwarmConnection.this) {
+						message = messages.poll();
+						if (message == null)
+							chunkIndex = uploads.poll();
+						ending = closed || (closing && message == null && chunkIndex == null);
+					}
+
+					if (ending)
+						break;
+
+					if (message != null) {
+						dos.write(message);
+					} else if (chunkIndex != null) {
+						sendPiece(chunkIndex, data, sealed);
+					} else {
+						dos.flush();
+						synchronized (SwarmConnection.this) {
+							while (messages.isEmpty() && uploads.isEmpty() && !closing && !closed) {
+								SwarmConnection.this.wait();
+							}
+						}
+					}
+				}
+
+				if (!closed) {
+					// the other side reads to the end of the stream, then closes its side
+					dos.flush();
+					channel.shutdownOutput();
+				}
+			} catch (IOException | InterruptedException e) {
+				close();
+			}
+		}
+	}
+}
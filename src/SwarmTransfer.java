@@ -0,0 +1,919 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * SwarmTransfer distributes one file to a group of peers, BitTorrent-style
+ * The originator hashes the file and invites the members, each member downloads chunks from the
+ * originator and from the other members, and serves the chunks it already holds while still downloading
+ * Chunks are picked rarest first, and the originator is only asked for chunks no other connected
+ * member holds, so the originator uploads roughly one copy of the file whatever the number of members
+ * Every chunk is verified against the Merkle tree of the originator, whose root comes with the invitation
+ * https://en.wikipedia.org/wiki/BitTorrent
+ * @author conqtc
+ *
+ */
+public class SwarmTransfer extends Thread {
+
+	// time given to invited peers to answer, and to members to connect to each other
+	public static final long CONNECT_TIMEOUT = 30000;
+
+	// a member holding the whole file closes connections idle for this long
+	private static final long IDLE_TIMEOUT = 30000;
+
+	// minimum percent increase before the progress is logged
+	private static final int MINIMUM_STEP = 18;
+
+	private ChatApp app;
+
+	private String swarmId;
+
+	// true on the peer distributing the file, which holds every chunk from the start
+	private boolean originator;
+
+	// originator, null on the originator itself
+	private Peer origin;
+
+	// address of every other member, keyed by uid, the originator included on members
+	private LinkedHashMap<String, InetAddress> members;
+
+	// peers invited by the originator
+	private ArrayList<Peer> invited;
+
+	// invitations not yet answered, keyed by the transfer ID of their FREQ message (originator only)
+	private HashMap<String, Peer> invitations;
+
+	// time each member joined, keyed by uid (originator only)
+	private HashMap<String, Long> joined;
+
+	// members which connected at least once, by uid
+	private HashSet<String> seenMembers;
+
+	// members seen holding the whole file, by uid
+	private HashSet<String> completedMembers;
+
+	// invitation received from the originator (members only)
+	private TransferParameters invitation;
+
+	private File file;
+
+	private String fileName;
+
+	private long fileSize;
+
+	private int chunkSize;
+
+	private int chunkCount;
+
+	// root of the Merkle tree, chunk hashes received from any member are checked against it
+	private byte[] rootHash;
+
+	private volatile MerkleTree merkleTree;
+
+	// file chunks are served from: the original file, or the partial file of a member
+	private FileChannel fileChannel;
+
+	private MappedFileWriter writer;
+
+	// chunks verified, persisted next to the partial file (members only)
+	private TransferCheckpoint checkpoint;
+
+	private File partialFile;
+
+	// chunks held and verified
+	private BitSet completed;
+
+	// chunks requested from a member, not yet verified
+	private BitSet requested;
+
+	// number of connected members holding each chunk
+	private int[] availability;
+
+	private ArrayList<SwarmConnection> connections;
+
+	private boolean done;
+
+	private AtomicLong uploadedBytes;
+
+	// bytes of the chunks received from the originator and from the other members
+	private AtomicLong originBytes;
+
+	private AtomicLong memberBytes;
+
+	// bytes kept from an earlier attempt
+	private long resumedBytes;
+
+	private AtomicInteger corruptedChunks;
+
+	private int lastPercent;
+
+	// members sorted by uid, a member asks the originator for the chunks whose index modulo their number is its position
+	private ArrayList<String> partitionOwners;
+
+	private Random random;
+
+	/**
+	 * Constructor of the originator
+	 * @param app ChatApp reference object
+	 * @param file File to distribute
+	 * @param peers Peers invited to the swarm
+	 */
+	public SwarmTransfer(ChatApp app, File file, List<Peer> peers) {
+		this(app);
+		this.originator = true;
+		this.file = file;
+		this.fileName = file.getName();
+		this.chunkSize = Settings.chunkSize();
+		this.invited = new ArrayList<>(peers);
+		// the same file from the same originator always gets the same ID, so members resume an earlier attempt
+		this.swarmId = UUID.nameUUIDFromBytes(("swarm|" + app.getuid() + "|" + file.getAbsolutePath() + "|" +
+		                                       file.length() + "|" + file.lastModified()).getBytes()).toString();
+		for (Peer peer: peers) {
+			members.put(peer.getUID(), peer.getAddress());
+		}
+	}
+
+	/**
+	 * Constructor of a member, from the invitation of the originator
+	 * @param app ChatApp reference object
+	 * @param origin Originator
+	 * @param invitation Parameters of the FREQ message
+	 * @throws IOException If the invitation is not valid
+	 */
+	public SwarmTransfer(ChatApp app, Peer origin, TransferParameters invitation) throws IOException {
+		this(app);
+		this.origin = origin;
+		this.invitation = invitation;
+		this.swarmId = invitation.get(TransferParameters.SWARM, "");
+		this.fileName = new File(URLDecoder.decode(invitation.get(TransferParameters.NAME, ""), StandardCharsets.UTF_8)).getName();
+		this.fileSize = invitation.getLong(TransferParameters.SIZE, -1);
+		this.chunkSize = invitation.getInt(TransferParameters.CHUNK, 0);
+		this.rootHash = MerkleTree.fromHex(invitation.get(TransferParameters.ROOT, null));
+		if (swarmId.isEmpty() || fileName.isEmpty() || fileSize <= 0 || rootHash == null ||
+		    chunkSize != Settings.clampChunkSize(chunkSize) || !invitation.has(TransferParameters.ID))
+			throw new IOException("Invalid swarm invitation");
+
+		members.put(origin.getUID(), origin.getAddress());
+		for (String member: invitation.getList(TransferParameters.MEMBERS)) {
+			int index = member.indexOf('/');
+			if (index <= 0)
+				throw new IOException("Invalid swarm member '" + member + "'");
+
+			String uid = member.substring(0, index);
+			if (!uid.equals(app.getuid()))
+				members.put(uid, InetAddress.getByName(member.substring(index + 1)));
+		}
+		allocateChunks();
+
+		// members take different chunks from the originator, then exchange them
+		this.partitionOwners = new ArrayList<>(members.keySet());
+		this.partitionOwners.remove(origin.getUID());
+		this.partitionOwners.add(app.getuid());
+		Collections.sort(this.partitionOwners);
+	}
+
+	/**
+	 * Constructor of the state shared by the originator and the members
+	 * @param app ChatApp reference object
+	 */
+	private SwarmTransfer(ChatApp app) {
+		this.app = app;
+		this.members = new LinkedHashMap<>();
+		this.invitations = new HashMap<>();
+		this.joined = new HashMap<>();
+		this.seenMembers = new HashSet<>();
+		this.completedMembers = new HashSet<>();
+		this.connections = new ArrayList<>();
+		this.uploadedBytes = new AtomicLong();
+		this.originBytes = new AtomicLong();
+		this.memberBytes = new AtomicLong();
+		this.corruptedChunks = new AtomicInteger();
+		this.random = new Random();
+	}
+
+	/**
+	 * Allocate the chunk state once the file size is known
+	 */
+	private void allocateChunks() {
+		this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		this.completed = new BitSet(chunkCount);
+		this.requested = new BitSet(chunkCount);
+		this.availability = new int[chunkCount];
+	}
+
+	/**
+	 * Main entry of the thread
+	 */
+	public void run() {
+		TransferServer server = null;
+		try {
+			server = app.getTransferServer();
+			if (originator) {
+				seed(server);
+			} else {
+				download(server);
+			}
+		} catch (Exception e) {
+			app.appendMessageToTheChat("(x) Swarm transfer of '" + fileName + "' failed: " + e.getMessage(), false);
+		} finally {
+			if (server != null)
+				server.unregisterSwarm(this);
+
+			for (SwarmConnection connection: finish()) {
+				connection.close();
+			}
+			closeFiles();
+			app.swarmFinished(this);
+		}
+	}
+
+	/**
+	 * Hash the file, invite the peers and serve chunks until every member holds the whole file
+	 * Members join by answering the FREQ message of their invitation with the swarm ID,
+	 * peers answering without it receive the file on their own, as any other transfer
+	 * @param server Transfer server routing the connections of the members
+	 * @throws Exception If unable to read the file
+	 */
+	private void seed(TransferServer server) throws Exception {
+		fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		fileSize = fileChannel.size();
+		allocateChunks();
+		completed.set(0, chunkCount);
+
+		Utility.logln("\n(i) Distributing '" + fileName + "' to a swarm of " + invited.size() + " peer(s)");
+		Utility.logln("    file size: " + fileSize + " bytes (~" + fileSize / 1048576 + " MB), " + chunkCount + " chunk(s)");
+		long hashStart = System.nanoTime();
+		merkleTree = MerkleTree.build(fileChannel, fileSize, chunkSize);
+		rootHash = merkleTree.getRoot();
+		Utility.logln("    hashed " + chunkCount + " chunk(s) (" + Utility.formatRate(fileSize, System.nanoTime() - hashStart) +
+		              "), root " + MerkleTree.toHex(rootHash).substring(0, 16) + "...");
+
+		server.registerSwarm(this);
+
+		long startTime = System.nanoTime();
+		synchronized (this) {
+			// answers wait for the lock, so every invitation is recorded before its answer is handled
+			for (Peer peer: invited) {
+				FileTransferThread fileTransfer = app.requestFileTransfer(peer, file, invitationFor(peer));
+				if (fileTransfer != null)
+					invitations.put(fileTransfer.getTransferId(), peer);
+			}
+
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (!isSeedingDone(deadline)) {
+				wait(1000);
+			}
+		}
+		long elapsed = System.nanoTime() - startTime;
+
+		int complete = 0;
+		for (String uid: joined.keySet()) {
+			if (completedMembers.contains(uid))
+				complete++;
+		}
+		app.appendMessageToTheChat("(i) Swarm of '" + fileName + "' done! (" + complete + "/" + joined.size() + " member(s) complete in " +
+		                           String.format("%.1f", elapsed / 1e9) + " s, " + uploadedBytes.get() / 1048576 + " MB uploaded, " +
+		                           String.format("%.2f", (double) uploadedBytes.get() / fileSize) + " copies of the file)", false);
+	}
+
+	/**
+	 * Build the swarm parameters added to the FREQ message of a peer
+	 * @param peer Invited peer
+	 * @return Swarm parameters
+	 */
+	private TransferParameters invitationFor(Peer peer) {
+		ArrayList<String> others = new ArrayList<>();
+		for (Map.Entry<String, InetAddress> member: members.entrySet()) {
+			if (!member.getKey().equals(peer.getUID()))
+				others.add(member.getKey() + "/" + member.getValue().getHostAddress());
+		}
+
+		TransferParameters parameters = new TransferParameters();
+		parameters.put(TransferParameters.SWARM, swarmId);
+		parameters.put(TransferParameters.NAME, URLEncoder.encode(fileName, StandardCharsets.UTF_8));
+		parameters.put(TransferParameters.SIZE, fileSize);
+		parameters.put(TransferParameters.ROOT, MerkleTree.toHex(rootHash));
+		parameters.put(TransferParameters.MEMBERS, String.join(TransferParameters.LIST_SEPARATOR, others));
+		return parameters;
+	}
+
+	/**
+	 * Is the originator done: every invitation answered, and every member complete or gone
+	 * @param deadline Time (System.currentTimeMillis) to stop waiting for answers
+	 * @return True if done
+	 */
+	private boolean isSeedingDone(long deadline) {
+		long now = System.currentTimeMillis();
+		if (!invitations.isEmpty() && now < deadline)
+			return false;
+
+		for (Map.Entry<String, Long> member: joined.entrySet()) {
+			String uid = member.getKey();
+			if (completedMembers.contains(uid))
+				continue;
+
+			if (isConnected(uid))
+				return false;
+
+			// a member which never connected is given some time to do so
+			if (!seenMembers.contains(uid) && now < member.getValue() + CONNECT_TIMEOUT)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Callback when an invited peer answers its FREQ message
+	 * @param transferId Transfer ID of the FREQ message
+	 * @param joinedSwarm True if the peer joined the swarm, false if it declined or receives the file on its own
+	 * @return True if the transfer ID is an invitation of this swarm
+	 */
+	public synchronized boolean invitationAnswered(String transferId, boolean joinedSwarm) {
+		Peer peer = invitations.remove(transferId);
+		if (peer == null)
+			return false;
+
+		if (joinedSwarm)
+			joined.put(peer.getUID(), System.currentTimeMillis());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Join the swarm: prepare the partial file, accept the invitation and connect to the other members
+	 * Members connect to the originator, and to each other by uid order so that two members open one connection
+	 * @param server Transfer server routing the connections of the members
+	 * @throws Exception If something went wrong while receiving
+	 */
+	private void download(TransferServer server) throws Exception {
+		try {
+			prepare();
+			server.registerSwarm(this);
+		} catch (Exception e) {
+			TransferParameters cancel = new TransferParameters();
+			cancel.put(TransferParameters.ID, invitation.get(TransferParameters.ID, ""));
+			cancel.put(TransferParameters.REASON, String.valueOf(e.getMessage()).replace(TransferParameters.PAIR_SEPARATOR, ","));
+			app.sendMessageTo(origin.getAddress(), UDPMessenger.MessageType.FCAN, cancel.toString());
+			throw e;
+		}
+
+		TransferParameters reply = new TransferParameters();
+		reply.put(TransferParameters.ID, invitation.get(TransferParameters.ID, ""));
+		reply.put(TransferParameters.SWARM, swarmId);
+		reply.put(TransferParameters.KEY, app.getExchangeKey());
+		app.sendMessageTo(origin.getAddress(), UDPMessenger.MessageType.FACT, reply.toString());
+
+		long startTime = System.nanoTime();
+		for (Map.Entry<String, InetAddress> member: members.entrySet()) {
+			if (member.getKey().equals(origin.getUID()) || member.getKey().compareTo(app.getuid()) < 0)
+				addConnection(new SwarmConnection(this, member.getKey(), member.getValue()));
+		}
+
+		synchronized (this) {
+			// members stay while connected, serving the chunks they hold to the others
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (!connections.isEmpty() || (!isComplete() && System.currentTimeMillis() < deadline)) {
+				wait(1000);
+				if (isComplete())
+					closeIdleConnections();
+			}
+		}
+		long elapsed = System.nanoTime() - startTime;
+
+		writer.close();
+		if (!isComplete()) {
+			// keep the partial file and its checkpoint, the same file distributed again resumes from here
+			checkpoint.close();
+			throw new IOException("no member left to receive from (" + checkpoint.getCompletedCount() + "/" + chunkCount +
+			                      " chunks kept, send again to resume)");
+		}
+
+		// complete, the partial file takes its final name
+		checkpoint.delete();
+		ContentStore.commit(partialFile, fileName, (chunkSize == ContentStore.CHUNK_SIZE && resumedBytes == 0) ? rootHash : null);
+
+		long received = originBytes.get() + memberBytes.get();
+		app.appendMessageToTheChat("(i) File '" + fileName + "' received! (swarm, " + Utility.formatRate(received, elapsed) + ", " +
+		                           originBytes.get() / 1048576 + " MB from the originator, " +
+		                           memberBytes.get() / 1048576 + " MB from other members, " +
+		                           uploadedBytes.get() / 1048576 + " MB uploaded, verified" +
+		                           (resumedBytes > 0 ? ", resumed after " + resumedBytes / 1048576 + " MB" : "") +
+		                           (corruptedChunks.get() > 0 ? ", " + corruptedChunks.get() + " corrupted chunk(s) received again" : "") + ")", false);
+	}
+
+	/**
+	 * Prepare the partial file and its checkpoint, resumed if both are kept from an earlier attempt
+	 * @throws IOException If unable to create the file
+	 */
+	private void prepare() throws IOException {
+		File folder = new File(ChatApp.FILE_FOLDER);
+		if (!folder.exists())
+			folder.mkdir();
+
+		Utility.logln("\n(i) Receiving '" + fileName + "' from a swarm of " + (members.size() + 1) + " peer(s)");
+		Utility.logln("    file size " + fileSize + " bytes (~" + fileSize / 1048576 + " MB), " + chunkCount + " chunk(s)");
+
+		partialFile = new File(ChatApp.FILE_FOLDER, fileName + FileReceiveThread.PARTIAL_EXTENSION);
+		File checkpointFile = new File(ChatApp.FILE_FOLDER, partialFile.getName() + TransferCheckpoint.EXTENSION);
+		if (!partialFile.exists())
+			checkpointFile.delete();
+
+		checkpoint = TransferCheckpoint.open(checkpointFile, swarmId, fileSize, chunkSize);
+		writer = new MappedFileWriter(partialFile, fileSize, Settings.mapWindowSize(), Settings.mapFlushPolicy(), Settings.mappedReceive());
+		if (checkpoint.isResumed()) {
+			resumedBytes = checkpoint.countCompletedBytes(0, fileSize);
+			writer.setPrewritten(checkpoint::countCompletedBytes);
+			completed.or(BitSet.valueOf(checkpoint.toBitmap()));
+			Utility.logln("    resuming: " + checkpoint.getCompletedCount() + "/" + chunkCount + " chunk(s) already received");
+		}
+		fileChannel = writer.getChannel();
+	}
+
+	/**
+	 * Take a connection of a member routed to this swarm by the transfer server
+	 * @param channel Connection, in blocking mode
+	 * @param header Stream header already read from the connection
+	 */
+	public void attach(SocketChannel channel, StripeReceiver.Header header) {
+		try {
+			InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+			if (header.getFileSize() == fileSize && header.getChunkSize() == chunkSize && members.containsValue(address)) {
+				addConnection(new SwarmConnection(this, channel, address));
+				return;
+			}
+		} catch (IOException ioe) {
+			// closed below
+		}
+
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Add and start a connection, unless the swarm is over
+	 * @param connection Connection
+	 */
+	private synchronized void addConnection(SwarmConnection connection) {
+		if (done) {
+			connection.close();
+			return;
+		}
+
+		connections.add(connection);
+		connection.start();
+	}
+
+	/**
+	 * Callback once the other side of a connection has said hello
+	 * @param connection Connection
+	 * @return True if the other side is a member not yet connected
+	 */
+	public synchronized boolean connectionEstablished(SwarmConnection connection) {
+		String uid = connection.getRemoteUid();
+		InetAddress address = members.get(uid);
+		if (address == null || !address.equals(connection.getRemoteAddress()))
+			return false;
+
+		for (SwarmConnection other: connections) {
+			if (other != connection && other.isEstablished() && uid.equals(other.getRemoteUid()))
+				return false;
+		}
+
+		seenMembers.add(uid);
+		return true;
+	}
+
+	/**
+	 * Callback when a connection is closed, its requests go back to the other connections
+	 * @param connection Connection
+	 */
+	public synchronized void connectionClosed(SwarmConnection connection) {
+		if (!connections.remove(connection))
+			return;
+
+		BitSet chunks = connection.getRemoteChunks();
+		for (int index = chunks.nextSetBit(0); index >= 0; index = chunks.nextSetBit(index + 1)) {
+			availability[index]--;
+		}
+		for (int chunkIndex: connection.takeOutstanding()) {
+			requested.clear(chunkIndex);
+		}
+
+		for (SwarmConnection other: connections) {
+			other.fillRequests();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Callback when the other side of a connection announces the chunks it holds
+	 * @param connection Connection
+	 * @param chunks Chunks held
+	 */
+	public synchronized void remoteChunksReceived(SwarmConnection connection, BitSet chunks) {
+		for (int index = chunks.nextSetBit(0); index >= 0 && index < chunkCount; index = chunks.nextSetBit(index + 1)) {
+			remoteChunkReceived(connection, index);
+		}
+	}
+
+	/**
+	 * Callback when the other side of a connection announces one more chunk
+	 * @param connection Connection
+	 * @param chunkIndex Index of the chunk
+	 */
+	public synchronized void remoteChunkReceived(SwarmConnection connection, int chunkIndex) {
+		BitSet chunks = connection.getRemoteChunks();
+		if (chunks.get(chunkIndex))
+			return;
+
+		chunks.set(chunkIndex);
+		availability[chunkIndex]++;
+
+		if (chunks.cardinality() == chunkCount && completedMembers.add(connection.getRemoteUid())) {
+			if (originator)
+				Utility.logln("    member " + connection.getRemoteUid() + " holds the whole file (" + completedMembers.size() + "/" +
+				              Math.max(joined.size(), completedMembers.size()) + ")");
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Callback when the other side of a connection refuses a request: it does not hold the chunk
+	 * @param connection Connection
+	 * @param chunkIndex Index of the chunk
+	 */
+	public synchronized void chunkRefused(SwarmConnection connection, int chunkIndex) {
+		requested.clear(chunkIndex);
+		if (connection.getRemoteChunks().get(chunkIndex)) {
+			connection.getRemoteChunks().clear(chunkIndex);
+			availability[chunkIndex]--;
+		}
+	}
+
+	/**
+	 * Pick the next chunk to request on a connection: the rarest chunk it holds which is neither held nor requested here
+	 * The originator is only asked for chunks no other connected member holds, and which belong to this member's
+	 * partition or to the partition of a member not connected here, other chunks come from their owner
+	 * @param connection Connection
+	 * @return Chunk index, -1 if there is none or the chunk hashes are not known yet
+	 */
+	public synchronized int pickChunk(SwarmConnection connection) {
+		if (merkleTree == null || done)
+			return -1;
+
+		boolean fromOrigin = !originator && connection.getRemoteUid().equals(origin.getUID());
+		boolean[] sharedByOwner = new boolean[fromOrigin ? partitionOwners.size() : 0];
+		for (int owner = 0; owner < sharedByOwner.length; owner++) {
+			sharedByOwner[owner] = isConnected(partitionOwners.get(owner));
+		}
+
+		BitSet chunks = connection.getRemoteChunks();
+		int picked = -1;
+		int rarest = Integer.MAX_VALUE;
+		int start = random.nextInt(chunkCount);
+		for (int step = 0; step < chunkCount; step++) {
+			int index = (start + step) % chunkCount;
+			if (!chunks.get(index) || completed.get(index) || requested.get(index))
+				continue;
+			if (fromOrigin && (availability[index] > 1 || sharedByOwner[index % sharedByOwner.length]))
+				continue;
+
+			if (availability[index] < rarest) {
+				rarest = availability[index];
+				picked = index;
+			}
+		}
+
+		if (picked >= 0) {
+			requested.set(picked);
+			connection.addOutstanding(picked);
+		}
+		return picked;
+	}
+
+	/**
+	 * Callback when a requested chunk is written, it is verified on the hashing pool off the network-read thread
+	 * @param connection Connection which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 * @param authentic False if a record failed authentication
+	 */
+	public void chunkReceived(SwarmConnection connection, int chunkIndex, boolean authentic) {
+		if (!authentic) {
+			chunkRejected(connection, chunkIndex, "failed authentication");
+			return;
+		}
+
+		MerkleTree.execute(() -> verifyChunk(connection, chunkIndex));
+	}
+
+	/**
+	 * Verify a written chunk against its hash
+	 * @param connection Connection which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 */
+	private void verifyChunk(SwarmConnection connection, int chunkIndex) {
+		try {
+			long position = (long) chunkIndex * chunkSize;
+			byte[] hash = MerkleTree.hashRegion(fileChannel, position, getChunkLength(chunkIndex));
+			if (merkleTree.matches(chunkIndex, hash)) {
+				chunkCompleted(connection, chunkIndex);
+			} else {
+				chunkRejected(connection, chunkIndex, "is corrupted");
+			}
+		} catch (IOException ioe) {
+			chunkRejected(connection, chunkIndex, "could not be verified (" + ioe.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Record a verified chunk and announce it to every connected member
+	 * @param connection Connection which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 * @throws IOException If unable to update the checkpoint
+	 */
+	private synchronized void chunkCompleted(SwarmConnection connection, int chunkIndex) throws IOException {
+		checkpoint.markCompleted(chunkIndex);
+		completed.set(chunkIndex);
+		requested.clear(chunkIndex);
+
+		if (connection.getRemoteUid().equals(origin.getUID())) {
+			originBytes.addAndGet(getChunkLength(chunkIndex));
+		} else {
+			memberBytes.addAndGet(getChunkLength(chunkIndex));
+		}
+		reportProgress();
+
+		for (SwarmConnection other: connections) {
+			other.sendHave(chunkIndex);
+		}
+		for (SwarmConnection other: connections) {
+			other.update();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Give a chunk which can not be used back to the other connections, a member sending too many of them is dropped
+	 * @param connection Connection which received the chunk
+	 * @param chunkIndex Index of the chunk
+	 * @param reason Why the chunk is rejected
+	 */
+	private synchronized void chunkRejected(SwarmConnection connection, int chunkIndex, String reason) {
+		requested.clear(chunkIndex);
+		corruptedChunks.incrementAndGet();
+		Utility.logln("    chunk " + chunkIndex + " from member " + connection.getRemoteUid() + " " + reason + ", asking for it again");
+		connection.strike();
+
+		for (SwarmConnection other: connections) {
+			other.fillRequests();
+		}
+	}
+
+	/**
+	 * Set the chunk hashes received from a member, checked against the root of the invitation
+	 * @param leaves Hash of each chunk
+	 * @throws IOException If the leaves do not build the root of the invitation
+	 */
+	public void setMerkleTree(byte[][] leaves) throws IOException {
+		if (merkleTree != null)
+			return;
+
+		MerkleTree tree = new MerkleTree(leaves);
+		if (leaves.length != chunkCount || !MessageDigest.isEqual(tree.getRoot(), rootHash))
+			throw new IOException("Chunk hashes do not match the root hash of the swarm");
+
+		List<SwarmConnection> others;
+		synchronized (this) {
+			if (merkleTree != null)
+				return;
+
+			Utility.logln("    verifying chunks against root " + MerkleTree.toHex(rootHash).substring(0, 16) + "...");
+			merkleTree = tree;
+			others = new ArrayList<>(connections);
+		}
+
+		for (SwarmConnection other: others) {
+			other.hashesKnown();
+		}
+	}
+
+	/**
+	 * Is a connection no longer needed: both sides hold the whole file
+	 * @param connection Connection
+	 * @return True if it can be closed
+	 */
+	public synchronized boolean isFinishedWith(SwarmConnection connection) {
+		return isComplete() && connection.getRemoteChunks().cardinality() == chunkCount;
+	}
+
+	/**
+	 * Close connections of members which have not asked for anything for a while, once the whole file is held
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (SwarmConnection connection: connections) {
+			if (now - connection.getLastActivity() > IDLE_TIMEOUT)
+				connection.close();
+		}
+	}
+
+	/**
+	 * Mark the swarm as over
+	 * @return Connections still open
+	 */
+	private synchronized List<SwarmConnection> finish() {
+		done = true;
+		return new ArrayList<>(connections);
+	}
+
+	/**
+	 * Close the files of the swarm
+	 */
+	private void closeFiles() {
+		try {
+			if (originator && fileChannel != null)
+				fileChannel.close();
+			if (writer != null)
+				writer.close();
+		} catch (IOException ioe) {
+			// nothing to do
+		}
+		if (checkpoint != null)
+			checkpoint.close();
+	}
+
+	/**
+	 * Wait until the bandwidth scheduler lets chunk data through to a member
+	 * @param address Member address
+	 * @param bytes Number of bytes about to be sent
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void throttle(InetAddress address, long bytes) throws InterruptedIOException {
+		try {
+			// a quantum at a time, as FileTransferThread.throttle
+			for (long granted = 0; granted < bytes; granted += BandwidthScheduler.QUANTUM)
+				app.getBandwidthScheduler().acquire(address, Math.min(BandwidthScheduler.QUANTUM, bytes - granted));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+		}
+	}
+
+	/**
+	 * Callback when a chunk has been uploaded to a member
+	 * @param length Length of the chunk
+	 */
+	public void chunkUploaded(int length) {
+		uploadedBytes.addAndGet(length);
+	}
+
+	/**
+	 * Does this side hold a chunk
+	 * @param chunkIndex Index of the chunk
+	 * @return True if held and verified
+	 */
+	public synchronized boolean hasChunk(int chunkIndex) {
+		return completed.get(chunkIndex);
+	}
+
+	/**
+	 * Get a copy of the chunks held
+	 * @return Chunks held
+	 */
+	public synchronized BitSet getCompletedChunks() {
+		return (BitSet) completed.clone();
+	}
+
+	/**
+	 * Does this side hold the whole file
+	 * @return True if complete
+	 */
+	private synchronized boolean isComplete() {
+		return completed.cardinality() == chunkCount;
+	}
+
+	/**
+	 * Log the progress each time it grows by the minimum step
+	 */
+	private void reportProgress() {
+		int percent = (int) (100L * completed.cardinality() / chunkCount);
+		if (percent >= lastPercent + MINIMUM_STEP) {
+			lastPercent = percent;
+			Utility.logln("    " + percent + "% received: " + completed.cardinality() + "/" + chunkCount + " chunk(s), " +
+			              originBytes.get() / 1048576 + " MB from the originator, " + memberBytes.get() / 1048576 + " MB from other members");
+		}
+	}
+
+	/**
+	 * Is a uid connected
+	 * @param uid Member uid
+	 * @return True if an established connection to it is open
+	 */
+	private boolean isConnected(String uid) {
+		for (SwarmConnection connection: connections) {
+			if (connection.isEstablished() && uid.equals(connection.getRemoteUid()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the ChatApp reference object
+	 * @return ChatApp
+	 */
+	public ChatApp getApp() {
+		return this.app;
+	}
+
+	/**
+	 * Get swarm ID
+	 * @return Swarm ID
+	 */
+	public String getSwarmId() {
+		return this.swarmId;
+	}
+
+	/**
+	 * Is this side the originator
+	 * @return True on the originator
+	 */
+	public boolean isOriginator() {
+		return this.originator;
+	}
+
+	/**
+	 * Get Merkle tree of the file
+	 * @return Merkle tree, null until a member has sent the chunk hashes
+	 */
+	public MerkleTree getMerkleTree() {
+		return this.merkleTree;
+	}
+
+	/**
+	 * Get the file chunks are served from
+	 * @return File channel, read with positional reads only
+	 */
+	public FileChannel getFileChannel() {
+		return this.fileChannel;
+	}
+
+	/**
+	 * Get the writer of the partial file
+	 * @return Writer, null on the originator
+	 */
+	public MappedFileWriter getWriter() {
+		return this.writer;
+	}
+
+	/**
+	 * Get name of the file
+	 * @return File name
+	 */
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Get size of the file
+	 * @return File size in bytes
+	 */
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	/**
+	 * Get chunk size
+	 * @return Chunk size in bytes
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * Get number of chunks of the file
+	 * @return Number of chunks
+	 */
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+
+	/**
+	 * Get expected length of a chunk, the last one may be shorter
+	 * @param chunkIndex Index of the chunk
+	 * @return Length in bytes, -1 if the index is out of range
+	 */
+	public int getChunkLength(int chunkIndex) {
+		if (chunkIndex < 0 || chunkIndex >= chunkCount)
+			return -1;
+
+		return (int) Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize);
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * TimerWheel runs delayed tasks on one thread, however many are pending: a hashed timing wheel
+ * Time is cut into ticks, each slot of the wheel holds the tasks due in its tick, tasks further away than one turn count down the turns left
+ * Scheduling and cancelling are O(1), each tick only looks at one slot, so thousands of retransmission timers cost next to nothing
+ * Tasks run on the wheel thread with no lock of the wheel held, they must be short: a task may schedule other tasks
+ * @author conqtc
+ *
+ */
+public class TimerWheel {
+
+	/**
+	 * Timeout is a task scheduled on the wheel, it can be cancelled until it runs
+	 */
+	public static class Timeout {
+
+		private Runnable task;
+
+		// turns of the wheel left before the task is due
+		private long rounds;
+
+		private int slot;
+
+		// tasks of the same slot, doubly linked so a cancelled task leaves its slot at once
+		private Timeout previous;
+
+		private Timeout next;
+
+		private boolean scheduled;
+
+		// also set when the task is due but has not run yet
+		private volatile boolean cancelled;
+
+		private TimerWheel wheel;
+
+		/**
+		 * Cancel the task, nothing happens if it already ran
+		 */
+		public void cancel() {
+			cancelled = true;
+			wheel.cancel(this);
+		}
+	}
+
+	private long tickNanos;
+
+	private Timeout[] slots;
+
+	// tick the wheel is at, the slot of a tick is tick % slots.length
+	private long tick;
+
+	private long start;
+
+	private int pending;
+
+	private Thread thread;
+
+	/**
+	 * Constructor, the thread is started at once
+	 * @param name Name of the thread
+	 * @param tickMillis Length of a tick in milliseconds, tasks run at most one tick late
+	 * @param slotCount Number of slots, the delays of most tasks should fit in one turn
+	 */
+	public TimerWheel(String name, long tickMillis, int slotCount) {
+		this.tickNanos = tickMillis * 1000000L;
+		this.slots = new Timeout[slotCount];
+		this.start = System.nanoTime();
+
+		this.thread = new Thread(() -> run(), name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedule a task
+	 * @param task Task to run
+	 * @param delayMillis Delay in milliseconds, rounded up to the end of a tick
+	 * @return Timeout to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout();
+		timeout.task = task;
+		timeout.wheel = this;
+
+		// first tick ending after the delay, so a task never runs early
+		long due = (System.nanoTime() - start + delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+		synchronized (this) {
+			due = Math.max(due, tick + 1);
+			timeout.rounds = (due - tick - 1) / slots.length;
+			timeout.slot = (int) (due % slots.length);
+
+			Timeout head = slots[timeout.slot];
+			timeout.next = head;
+			if (head != null)
+				head.previous = timeout;
+			slots[timeout.slot] = timeout;
+			timeout.scheduled = true;
+			pending++;
+		}
+		return timeout;
+	}
+
+	/**
+	 * Get the number of tasks waiting
+	 * @return Number of tasks
+	 */
+	public synchronized int getPending() {
+		return this.pending;
+	}
+
+	/**
+	 * Stop the wheel, tasks waiting never run
+	 */
+	public void stop() {
+		thread.interrupt();
+	}
+
+	/**
+	 * Take a task out of its slot
+	 * @param timeout Task
+	 */
+	private synchronized void cancel(Timeout timeout) {
+		if (!timeout.scheduled)
+			return;
+
+		unlink(timeout);
+	}
+
+	/**
+	 * Unlink a task from its slot
+	 * @param timeout Task
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+		pending--;
+	}
+
+	/**
+	 * Main entry of the wheel thread, one slot per tick
+	 */
+	private void run() {
+		Timeout due = null;
+		try {
+			while (true) {
+				// wait for the end of the current tick
+				long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+
+				synchronized (this) {
+					tick++;
+					// tasks due move to a list of their own, the others lose a turn
+					Timeout timeout = slots[(int) (tick % slots.length)];
+					while (timeout != null) {
+						Timeout next = timeout.next;
+						if (timeout.rounds == 0) {
+							unlink(timeout);
+							timeout.next = due;
+							due = timeout;
+						} else {
+							timeout.rounds--;
+						}
+						timeout = next;
+					}
+				}
+
+				while (due != null) {
+					Timeout timeout = due;
+					due = timeout.next;
+					timeout.next = null;
+					if (timeout.cancelled)
+						continue;
+
+					try {
+						timeout.task.run();
+					} catch (RuntimeException re) {
+						// a failing task must not stop the wheel
+						Utility.loglnErr("Error while running a timer: " + re);
+					}
+				}
+			}
+		} catch (InterruptedException ie) {
+			// stopped
+		}
+	}
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+
+/**
+ * TransferCheckpoint keeps track of the chunks of a partial file already received
+ * It is persisted as a compact bitmap next to the partial file, so an interrupted
+ * transfer can be resumed with the missing chunks only
+ * File format: magic, transfer id (UTF), file size, chunk size, chunk count, bitmap
+ * @author conqtc
+ *
+ */
+public class TransferCheckpoint {
+
+	public static final String EXTENSION = ".checkpoint";
+
+	private static final int MAGIC = 0x43484b50;	// "CHKP"
+
+	private File path;
+
+	private RandomAccessFile file;
+
+	private long bitmapOffset;
+
+	// bit i set when chunk i is completely written
+	private byte[] bitmap;
+
+	private int completedCount;
+
+	private int chunkCount;
+
+	private int chunkSize;
+
+	private long fileSize;
+
+	private boolean resumed;
+
+	/**
+	 * Constructor, use open instead
+	 * @param path Checkpoint file
+	 * @param fileSize Size of the file
+	 * @param chunkSize Size of each chunk
+	 */
+	private TransferCheckpoint(File path, long fileSize, int chunkSize) {
+		this.path = path;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		this.bitmap = new byte[(chunkCount + 7) / 8];
+	}
+
+	/**
+	 * Open the checkpoint of a transfer
+	 * An existing checkpoint is reused if it belongs to the same transfer, otherwise a new one is started
+	 * @param path Checkpoint file
+	 * @param transferId Transfer ID
+	 * @param fileSize Size of the file
+	 * @param chunkSize Size of each chunk
+	 * @return Checkpoint
+	 * @throws IOException If unable to read or create the checkpoint file
+	 */
+	public static TransferCheckpoint open(File path, String transferId, long fileSize, int chunkSize) throws IOException {
+		TransferCheckpoint checkpoint = new TransferCheckpoint(path, fileSize, chunkSize);
+
+		if (path.exists() && checkpoint.load(transferId)) {
+			checkpoint.resumed = true;
+			return checkpoint;
+		}
+
+		// start over
+		checkpoint.file = new RandomAccessFile(path, "rw");
+		checkpoint.file.setLength(0);
+		checkpoint.file.writeInt(MAGIC);
+		checkpoint.file.writeUTF(transferId);
+		checkpoint.file.writeLong(fileSize);
+		checkpoint.file.writeInt(chunkSize);
+		checkpoint.file.writeInt(checkpoint.chunkCount);
+		checkpoint.bitmapOffset = checkpoint.file.getFilePointer();
+		checkpoint.file.write(checkpoint.bitmap);
+		return checkpoint;
+	}
+
+	/**
+	 * Load an existing checkpoint file
+	 * @param transferId Expected transfer ID
+	 * @return True if the file belongs to the same transfer
+	 * @throws IOException If unable to open the file
+	 */
+	private boolean load(String transferId) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		try {
+			if (file.readInt() != MAGIC || !file.readUTF().equals(transferId) || file.readLong() != fileSize ||
+			    file.readInt() != chunkSize || file.readInt() != chunkCount) {
+				file.close();
+				return false;
+			}
+
+			bitmapOffset = file.getFilePointer();
+			file.readFully(bitmap);
+		} catch (EOFException eofe) {
+			file.close();
+			return false;
+		}
+
+		for (int index = 0; index < chunkCount; index++) {
+			if (isCompleted(index))
+				completedCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Was this checkpoint loaded from an earlier attempt
+	 * @return True if resumed
+	 */
+	public boolean isResumed() {
+		return this.resumed;
+	}
+
+	/**
+	 * Mark a chunk as completed, the bitmap byte is updated on disk straight away
+	 * @param chunkIndex Index of the chunk
+	 * @return True if the chunk was not completed before
+	 * @throws IOException If unable to update the checkpoint file
+	 */
+	public synchronized boolean markCompleted(int chunkIndex) throws IOException {
+		if (isCompleted(chunkIndex))
+			return false;
+
+		int byteIndex = chunkIndex >> 3;
+		bitmap[byteIndex] |= (byte) (1 << (chunkIndex & 7));
+		completedCount++;
+
+		file.seek(bitmapOffset + byteIndex);
+		file.write(bitmap[byteIndex]);
+		return true;
+	}
+
+	/**
+	 * Is a chunk completed
+	 * @param chunkIndex Index of the chunk
+	 * @return True if completed
+	 */
+	public synchronized boolean isCompleted(int chunkIndex) {
+		return (bitmap[chunkIndex >> 3] & (1 << (chunkIndex & 7))) != 0;
+	}
+
+	/**
+	 * Get number of completed chunks
+	 * @return Number of chunks
+	 */
+	public synchronized int getCompletedCount() {
+		return this.completedCount;
+	}
+
+	/**
+	 * Get number of chunks of the file
+	 * @return Number of chunks
+	 */
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+
+	/**
+	 * Get a copy of the bitmap of completed chunks, bit i of byte i/8 for chunk i (BitSet order)
+	 * @return Bitmap
+	 */
+	public synchronized byte[] toBitmap() {
+		return bitmap.clone();
+	}
+
+	/**
+	 * Count bytes of completed chunks within a region of the file
+	 * @param start File position of the region
+	 * @param length Length of the region
+	 * @return Number of bytes already written in the region
+	 */
+	public synchronized long countCompletedBytes(long start, long length) {
+		long end = start + length;
+		long count = 0;
+		for (int index = (int) (start / chunkSize); index < chunkCount && (long) index * chunkSize < end; index++) {
+			if (!isCompleted(index))
+				continue;
+
+			long chunkStart = (long) index * chunkSize;
+			long chunkEnd = Math.min(chunkStart + chunkSize, fileSize);
+			count += Math.min(chunkEnd, end) - Math.max(chunkStart, start);
+		}
+		return count;
+	}
+
+	/**
+	 * Close the checkpoint file, it stays on disk for a later resume
+	 */
+	public synchronized void close() {
+		try {
+			file.close();
+		} catch (IOException ioe) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Close and delete the checkpoint file, once the transfer is complete
+	 */
+	public synchronized void delete() {
+		close();
+		path.delete();
+	}
+}
@@ -0,0 +1,296 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TransferManager queues the file transfers of both directions and runs as many of them at once as the limits allow
+ * Sending and receiving have limits of their own, in total and per peer, so two peers sending to each other
+ * never wait for each other's slots
+ * A job holds its slot from the request until the end of the transfer, queued jobs start in order as slots free up
+ * Jobs run on virtual threads where the platform has them (Java 21 and later), on a cached pool of threads otherwise
+ * @author conqtc
+ *
+ */
+public class TransferManager {
+
+	// finished jobs still listed, older ones are forgotten
+	private static final int FINISHED_LIMIT = 20;
+
+	public static enum Direction {
+		SEND,		// file or directory sent to a peer
+		RECEIVE		// file or directory received from a peer
+	}
+
+	public static enum State {
+		QUEUED,		// waiting for a slot
+		ACTIVE,		// running
+		DONE,		// finished successfully
+		FAILED		// finished with an error
+	}
+
+	/**
+	 * Transfer is what a job runs, a sender or a receiver
+	 */
+	public static interface Transfer extends Runnable {
+
+		/**
+		 * Get name of the file transferred
+		 * @return File name, may change once the transfer knows more
+		 */
+		String getFileName();
+
+		/**
+		 * Get the other end of the transfer
+		 * @return Peer
+		 */
+		Peer getPeer();
+
+		/**
+		 * Get bytes transferred so far
+		 * @return Number of bytes
+		 */
+		long getBytesTransferred();
+
+		/**
+		 * Get the error the transfer failed with
+		 * @return Error, null if it did not fail
+		 */
+		String getError();
+	}
+
+	/**
+	 * Job is one transfer queued, running or finished
+	 */
+	public static class Job {
+
+		private int number;
+
+		private Direction direction;
+
+		private Transfer transfer;
+
+		private volatile State state;
+
+		// System.nanoTime when queued, started and finished
+		private long queuedTime;
+
+		private volatile long startTime;
+
+		private volatile long endTime;
+
+		/**
+		 * Get state of the job
+		 * @return State
+		 */
+		public State getState() {
+			return this.state;
+		}
+	}
+
+	private ExecutorService executor;
+
+	// most jobs active at once in each direction, in total and per peer
+	private int maxActive;
+
+	private int maxPeerActive;
+
+	private ArrayList<Job> queued;
+
+	private ArrayList<Job> active;
+
+	private ArrayDeque<Job> finished;
+
+	private int jobCount;
+
+	/**
+	 * Constructor
+	 * @param maxActive Most jobs active at once in each direction
+	 * @param maxPeerActive Most jobs active at once in each direction with the same peer
+	 */
+	public TransferManager(int maxActive, int maxPeerActive) {
+		this.executor = newExecutor();
+		this.maxActive = Math.max(1, maxActive);
+		this.maxPeerActive = Math.max(1, maxPeerActive);
+		this.queued = new ArrayList<>();
+		this.active = new ArrayList<>();
+		this.finished = new ArrayDeque<>();
+	}
+
+	/**
+	 * Queue a transfer, it starts as soon as the limits allow
+	 * @param direction Direction of the transfer
+	 * @param transfer Transfer
+	 * @return Job
+	 */
+	public synchronized Job submit(Direction direction, Transfer transfer) {
+		Job job = newJob(direction, transfer);
+		queued.add(job);
+		schedule();
+
+		if (job.state == State.QUEUED) {
+			Utility.logln("(i) " + describeTransfer(job) + " queued, " + (queued.size() - 1) + " job(s) ahead");
+		}
+		return job;
+	}
+
+	/**
+	 * Start a transfer straight away whatever the limits, e.g. the invitations of a swarm which are answered together
+	 * It still takes a slot while it runs
+	 * @param direction Direction of the transfer
+	 * @param transfer Transfer
+	 * @return Job
+	 */
+	public synchronized Job start(Direction direction, Transfer transfer) {
+		Job job = newJob(direction, transfer);
+		run(job);
+		return job;
+	}
+
+	/**
+	 * Describe the jobs, active ones first, then queued and finished ones
+	 * @return Description, one line per job
+	 */
+	public synchronized String describe() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("sending ").append(countActive(Direction.SEND, null)).append('/').append(maxActive);
+		builder.append(", receiving ").append(countActive(Direction.RECEIVE, null)).append('/').append(maxActive);
+		builder.append(" active, at most ").append(maxPeerActive).append(" per peer each way");
+
+		ArrayList<Job> jobs = new ArrayList<>(active);
+		jobs.addAll(queued);
+		jobs.addAll(finished);
+		if (jobs.isEmpty())
+			builder.append("\n    no transfer yet");
+
+		long now = System.nanoTime();
+		for (Job job: jobs) {
+			builder.append("\n    #").append(job.number).append(' ').append(describeTransfer(job)).append(" - ");
+			long bytes = job.transfer.getBytesTransferred();
+			switch (job.state) {
+			case QUEUED:
+				builder.append("queued for ").append((now - job.queuedTime) / 1000000000L).append(" s");
+				break;
+			case ACTIVE:
+				builder.append("active, ").append(bytes / 1048576).append(" MB, ").append(Utility.formatRate(bytes, now - job.startTime));
+				break;
+			case DONE:
+				builder.append("done, ").append(bytes / 1048576).append(" MB in ");
+				builder.append(String.format("%.1f s", (job.endTime - job.startTime) / 1e9)).append(", ");
+				builder.append(Utility.formatRate(bytes, job.endTime - job.startTime));
+				break;
+			case FAILED:
+				builder.append("failed after ").append(bytes / 1048576).append(" MB: ").append(job.transfer.getError());
+				break;
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Create a job
+	 * @param direction Direction of the transfer
+	 * @param transfer Transfer
+	 * @return Job, queued
+	 */
+	private Job newJob(Direction direction, Transfer transfer) {
+		Job job = new Job();
+		job.number = ++jobCount;
+		job.direction = direction;
+		job.transfer = transfer;
+		job.state = State.QUEUED;
+		job.queuedTime = System.nanoTime();
+		return job;
+	}
+
+	/**
+	 * Start the queued jobs the limits allow, in order
+	 * A job held back by the limit of its peer does not hold back the jobs of other peers
+	 */
+	private void schedule() {
+		Iterator<Job> iterator = queued.iterator();
+		while (iterator.hasNext()) {
+			Job job = iterator.next();
+			if (countActive(job.direction, null) >= maxActive || countActive(job.direction, job.transfer.getPeer()) >= maxPeerActive)
+				continue;
+
+			iterator.remove();
+			run(job);
+		}
+	}
+
+	/**
+	 * Run a job on the executor
+	 * @param job Job
+	 */
+	private void run(Job job) {
+		job.state = State.ACTIVE;
+		job.startTime = System.nanoTime();
+		active.add(job);
+
+		executor.execute(() -> {
+			try {
+				job.transfer.run();
+			} finally {
+				finished(job);
+			}
+		});
+	}
+
+	/**
+	 * Callback when a job is over, its slot goes to the next queued job
+	 * @param job Job
+	 */
+	private synchronized void finished(Job job) {
+		job.endTime = System.nanoTime();
+		job.state = (job.transfer.getError() == null) ? State.DONE : State.FAILED;
+		active.remove(job);
+
+		finished.addFirst(job);
+		while (finished.size() > FINISHED_LIMIT) {
+			finished.removeLast();
+		}
+		schedule();
+	}
+
+	/**
+	 * Count the active jobs of a direction
+	 * @param direction Direction
+	 * @param peer Peer, null for all peers
+	 * @return Number of active jobs
+	 */
+	private int countActive(Direction direction, Peer peer) {
+		int count = 0;
+		for (Job job: active) {
+			if (job.direction == direction && (peer == null || job.transfer.getPeer().getAddress().equals(peer.getAddress())))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Describe the transfer of a job
+	 * @param job Job
+	 * @return Description, e.g. "send 'a.bin' to peer"
+	 */
+	private static String describeTransfer(Job job) {
+		if (job.direction == Direction.SEND)
+			return "send '" + job.transfer.getFileName() + "' to " + job.transfer.getPeer().toString();
+		return "receive '" + job.transfer.getFileName() + "' from " + job.transfer.getPeer().toString();
+	}
+
+	/**
+	 * Create the executor running the jobs
+	 * Virtual threads are looked up at runtime, so the code still builds and runs on Java 17
+	 * @return Executor, one virtual thread per job if available, a cached thread pool otherwise
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "transfer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
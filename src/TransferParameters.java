@@ -0,0 +1,258 @@
+import java.util.*;
+
+/**
+ * TransferParameters encapsulates the parameters negotiated by the file transfer
+ * handshake (FREQ/FACT messages)
+ * Format: key=value;key=value;...
+ * Legacy peers send the exchange key only, which is treated as the "key" parameter
+ * @author conqtc
+ *
+ */
+public class TransferParameters {
+
+	public static final String PAIR_SEPARATOR = ";";
+
+	public static final String VALUE_SEPARATOR = "=";
+
+	public static final String LIST_SEPARATOR = ",";
+
+	// exchange key used for the key exchange
+	public static final String KEY = "key";
+
+	// X25519 public key (hex) of the key agreement the AES-GCM key is derived from, see KeyExchange
+	// AES-GCM payload is offered and chosen only along with it
+	public static final String ECDH = "ecdh";
+
+	// payload modes offered by the sender (list) or chosen by the receiver (single value)
+	public static final String PAYLOAD = "payload";
+
+	// maximum number of parallel stripes (connections) offered or accepted
+	public static final String STRIPES = "stripes";
+
+	// size of each chunk in bytes, the unit carried by one frame of a stripe
+	public static final String CHUNK = "chunk";
+
+	// transfer ID, stable for the same file sent to the same peer so an interrupted transfer can be resumed
+	public static final String ID = "id";
+
+	// hash algorithm of the Merkle tree used to verify each chunk, absent if chunks are not verified
+	public static final String HASH = "hash";
+
+	// compression codecs offered by the sender (list) or accepted by the receiver, absent if chunks are never compressed
+	public static final String COMPRESS = "compress";
+
+	// reason of a cancelled transfer (FCAN message)
+	public static final String REASON = "reason";
+
+	// swarm ID of a file distributed to a group of peers, echoed by receivers joining the swarm
+	public static final String SWARM = "swarm";
+
+	// other members of a swarm (list of uid/address)
+	public static final String MEMBERS = "members";
+
+	// name (URL encoded) and size of the file distributed by a swarm, known before any connection
+	// the name also lets the receiver of a delta offer look for an older copy, and name content already held
+	public static final String NAME = "name";
+
+	public static final String SIZE = "size";
+
+	// root hash (hex) of the Merkle tree of a swarm, chunk hashes received from any member are checked against it
+	public static final String ROOT = "root";
+
+	// a directory tree is sent, streamed entry by entry over one connection (1 if offered or accepted)
+	public static final String DIRECTORY = "directory";
+
+	// the file is sent as an rsync style delta of an older copy the receiver has (1 if offered or accepted)
+	public static final String DELTA = "delta";
+
+	// content hash (hex) of the file offered, see ContentStore, echoed by a receiver already holding the content:
+	// the transfer completes without any connection
+	public static final String CONTENT = "content";
+
+	public static enum PayloadMode {
+		XOR,		// payload is xor-ed with the common key, sent through user space buffers
+		PLAIN,		// payload is sent as-is, allows kernel zero-copy (sendfile)
+		AES_GCM		// payload is sealed in authenticated AES-GCM records, see RecordCipher
+	}
+
+	private LinkedHashMap<String, String> values;
+
+	/**
+	 * Constructor
+	 */
+	public TransferParameters() {
+		this.values = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Parse parameters from the content of a FREQ/FACT message
+	 * @param text Message content
+	 * @return TransferParameters object, never null
+	 */
+	public static TransferParameters parse(String text) {
+		TransferParameters parameters = new TransferParameters();
+		if (Utility.stringIsNullOrEmpty(text))
+			return parameters;
+
+		// legacy format: exchange key only
+		if (!text.contains(VALUE_SEPARATOR)) {
+			parameters.put(KEY, text.trim());
+			return parameters;
+		}
+
+		for (String pair: text.split(PAIR_SEPARATOR)) {
+			int index = pair.indexOf(VALUE_SEPARATOR);
+			if (index <= 0)
+				continue;
+
+			parameters.put(pair.substring(0, index).trim(), pair.substring(index + 1).trim());
+		}
+
+		return parameters;
+	}
+
+	/**
+	 * Copy these parameters
+	 * @return New TransferParameters object with the same values
+	 */
+	public TransferParameters copy() {
+		TransferParameters parameters = new TransferParameters();
+		parameters.values.putAll(this.values);
+		return parameters;
+	}
+
+	/**
+	 * Set all parameters of another object
+	 * @param other Parameters to set
+	 * @return This object for chaining
+	 */
+	public TransferParameters putAll(TransferParameters other) {
+		this.values.putAll(other.values);
+		return this;
+	}
+
+	/**
+	 * Set a parameter
+	 * @param name Name of the parameter
+	 * @param value Value of the parameter
+	 * @return This object for chaining
+	 */
+	public TransferParameters put(String name, Object value) {
+		this.values.put(name, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * Remove a parameter
+	 * @param name Name of the parameter
+	 * @return This object for chaining
+	 */
+	public TransferParameters remove(String name) {
+		this.values.remove(name);
+		return this;
+	}
+
+	/**
+	 * Check if a parameter exists
+	 * @param name Name of the parameter
+	 * @return True if exists, false otherwise
+	 */
+	public boolean has(String name) {
+		return this.values.containsKey(name);
+	}
+
+	/**
+	 * Get a parameter
+	 * @param name Name of the parameter
+	 * @param defaultValue Value returned if the parameter does not exist
+	 * @return Value of the parameter
+	 */
+	public String get(String name, String defaultValue) {
+		String value = this.values.get(name);
+		return (value != null) ? value : defaultValue;
+	}
+
+	/**
+	 * Get a parameter as integer
+	 * @param name Name of the parameter
+	 * @param defaultValue Value returned if the parameter does not exist or is not a number
+	 * @return Value of the parameter
+	 */
+	public int getInt(String name, int defaultValue) {
+		try {
+			return Integer.parseInt(this.values.get(name));
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a parameter as long
+	 * @param name Name of the parameter
+	 * @param defaultValue Value returned if the parameter does not exist or is not a number
+	 * @return Value of the parameter
+	 */
+	public long getLong(String name, long defaultValue) {
+		try {
+			return Long.parseLong(this.values.get(name));
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a list parameter
+	 * @param name Name of the parameter
+	 * @return List of values, empty if the parameter does not exist
+	 */
+	public List<String> getList(String name) {
+		ArrayList<String> list = new ArrayList<>();
+		String value = this.values.get(name);
+		if (Utility.stringIsNullOrEmpty(value))
+			return list;
+
+		for (String item: value.split(LIST_SEPARATOR)) {
+			if (!item.trim().isEmpty())
+				list.add(item.trim());
+		}
+
+		return list;
+	}
+
+	/**
+	 * Get payload mode as string
+	 * @param mode Payload mode
+	 * @return Mode as string
+	 */
+	public static String payloadModeAsString(PayloadMode mode) {
+		return mode.name().toLowerCase();
+	}
+
+	/**
+	 * Get payload mode from string
+	 * @param mode String
+	 * @return Payload mode, XOR if unknown
+	 */
+	public static PayloadMode payloadModeFromString(String mode) {
+		for (PayloadMode value: PayloadMode.values()) {
+			if (value.name().equalsIgnoreCase(mode))
+				return value;
+		}
+
+		return PayloadMode.XOR;
+	}
+
+	/**
+	 * Format parameters to be sent as message content
+	 */
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, String> entry: this.values.entrySet()) {
+			if (builder.length() > 0)
+				builder.append(PAIR_SEPARATOR);
+			builder.append(entry.getKey()).append(VALUE_SEPARATOR).append(entry.getValue());
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,218 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * TransferPipeline connects the stages of a transfer endpoint, e.g. disk reader, crypto and socket writer,
+ * through bounded queues of slots holding pooled direct buffers, so the stages overlap instead of taking turns on one thread
+ * A slot goes round: free queue, first stage, second stage, ..., last stage, free queue again
+ * Each stage records the time it waits for its input and the depth of its input queue:
+ * the stage which hardly ever waits is the one the others wait for, i.e. the limit of the transfer
+ * @author conqtc
+ *
+ */
+public class TransferPipeline {
+
+	// size of each buffer, one sealed AES-GCM record fits
+	public static final int BUFFER_SIZE = RecordCipher.sealedLength(RecordCipher.RECORD_SIZE);
+
+	// slots of each pipeline, bounds the data in flight between the stages
+	public static final int SLOT_COUNT = 16;
+
+	// direct buffers kept for the next pipelines, at most POOL_LIMIT of them, none allocated before the first pipeline
+	private static final int POOL_LIMIT = 256;
+
+	private static final BufferPool POOL = new BufferPool(BUFFER_SIZE, POOL_LIMIT, 0);
+
+	// how often a waiting stage checks if the pipeline is closed
+	private static final long POLL_INTERVAL = 100;
+
+	private String[] stageNames;
+
+	// input queue of each stage, the first stage takes free slots
+	private ArrayList<ArrayBlockingQueue<Slot>> queues;
+
+	private ArrayList<Slot> slots;
+
+	private AtomicLongArray waitNanos;
+
+	private AtomicLongArray takes;
+
+	private AtomicLongArray depths;
+
+	private volatile boolean closed;
+
+	// stages still using the buffers, the last one to leave gives them back to the pool
+	private AtomicInteger activeStages;
+
+	private long startTime;
+
+	/**
+	 * Slot is one buffer going through the stages, with what the stages need to know about it
+	 */
+	public static class Slot {
+
+		// data as filled by the first stage, a direct buffer of BUFFER_SIZE bytes
+		ByteBuffer data;
+
+		// second buffer of the same size, e.g. for sealed records, null if not asked for
+		ByteBuffer output;
+
+		// chunk and record of the data
+		int chunkIndex;
+
+		int recordIndex;
+
+		// first and last part of a frame, and the frame it belongs to
+		boolean first;
+
+		boolean last;
+
+		int frameLength;
+
+		ChunkCompressor.Codec codec;
+
+		// bytes of the file this part stands for
+		int plainLength;
+
+		// buffer to go on to the next stage, data or output
+		ByteBuffer result;
+
+		// no more slot after this one
+		boolean end;
+
+		// error of an earlier stage, ends the pipeline
+		Exception error;
+
+		/**
+		 * Clear what is known about the previous data
+		 */
+		private void reset() {
+			data.clear();
+			if (output != null)
+				output.clear();
+			chunkIndex = 0;
+			recordIndex = 0;
+			first = false;
+			last = false;
+			frameLength = 0;
+			codec = ChunkCompressor.Codec.NONE;
+			plainLength = 0;
+			result = null;
+			end = false;
+			error = null;
+		}
+	}
+
+	/**
+	 * Constructor, the buffers are taken from the pool
+	 * @param stageNames Name of each stage, in order
+	 * @param outputBuffers True to give each slot a second buffer
+	 */
+	public TransferPipeline(String[] stageNames, boolean outputBuffers) {
+		this.stageNames = stageNames;
+		this.queues = new ArrayList<>();
+		for (int stage = 0; stage < stageNames.length; stage++) {
+			queues.add(new ArrayBlockingQueue<>(SLOT_COUNT));
+		}
+		this.waitNanos = new AtomicLongArray(stageNames.length);
+		this.takes = new AtomicLongArray(stageNames.length);
+		this.depths = new AtomicLongArray(stageNames.length);
+		this.activeStages = new AtomicInteger(stageNames.length);
+
+		this.slots = new ArrayList<>();
+		for (int index = 0; index < SLOT_COUNT; index++) {
+			Slot slot = new Slot();
+			slot.data = POOL.acquire();
+			slot.output = outputBuffers ? POOL.acquire() : null;
+			slots.add(slot);
+			queues.get(0).add(slot);
+		}
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Take the next slot for a stage, a free one for the first stage, cleared
+	 * @param stage Index of the stage
+	 * @return Slot
+	 * @throws InterruptedIOException If the pipeline is closed
+	 */
+	public Slot take(int stage) throws InterruptedIOException {
+		ArrayBlockingQueue<Slot> queue = queues.get(stage);
+		depths.addAndGet(stage, queue.size());
+		takes.incrementAndGet(stage);
+
+		long waitStart = System.nanoTime();
+		try {
+			Slot slot;
+			while ((slot = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+				if (closed)
+					throw new InterruptedIOException("Pipeline closed");
+			}
+			if (stage == 0)
+				slot.reset();
+			return slot;
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted while waiting for the " + stageNames[stage] + " stage input");
+		} finally {
+			waitNanos.addAndGet(stage, System.nanoTime() - waitStart);
+		}
+	}
+
+	/**
+	 * Hand a slot over to the next stage, the last stage gives it back to the first one
+	 * The queues hold every slot, so this never waits
+	 * @param stage Index of the stage done with the slot
+	 * @param slot Slot
+	 */
+	public void put(int stage, Slot slot) {
+		queues.get((stage + 1) % queues.size()).add(slot);
+	}
+
+	/**
+	 * Close the pipeline, stages waiting for input give up
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Callback when a stage is done, each stage leaves once whatever the outcome
+	 * Buffers go back to the pool once every stage has left, a stage may still be busy when another one fails
+	 */
+	public void leave() {
+		if (activeStages.decrementAndGet() > 0)
+			return;
+
+		closed = true;
+		for (Slot slot: slots) {
+			POOL.release(slot.data);
+			if (slot.output != null)
+				POOL.release(slot.output);
+		}
+		slots.clear();
+	}
+
+	/**
+	 * Describe where the stages waited, the stage waiting least is the limit
+	 * @return Description, e.g. "waits: disk 0.0 s (depth 2.1), crypto 0.9 s (depth 0.3), network 1.4 s (depth 0.1) - disk bound"
+	 */
+	public String describe() {
+		StringBuilder builder = new StringBuilder("waits: ");
+		int limit = 0;
+		for (int stage = 0; stage < stageNames.length; stage++) {
+			if (stage > 0)
+				builder.append(", ");
+			double depth = (double) depths.get(stage) / Math.max(1, takes.get(stage));
+			builder.append(stageNames[stage]).append(' ').append(String.format("%.1f s (depth %.1f)", waitNanos.get(stage) / 1e9, depth));
+			if (waitNanos.get(stage) < waitNanos.get(limit))
+				limit = stage;
+		}
+
+		builder.append(" over ").append(String.format("%.1f s", (System.nanoTime() - startTime) / 1e9));
+		builder.append(" - ").append(stageNames[limit]).append(" bound");
+		return builder.toString();
+	}
+}
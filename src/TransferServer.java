@@ -0,0 +1,337 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TransferServer is the long-lived endpoint accepting file transfer connections on ChatApp.DEFAULT_PORT - 2
+ * One selector thread accepts every connection and reads its stream header without blocking,
+ * then hands the connection over to the receiver registered under the transfer ID of the header
+ * Connections of legacy senders carry no transfer ID, they are routed by the address of the sender
+ * Connections between members of a swarm carry the swarm ID instead, they are routed to the swarm
+ * Memory is bounded: a limited number of transfers, a limited number of connections waiting for
+ * their header, each with a small fixed buffer, and a deadline to complete it
+ * @author conqtc
+ *
+ */
+public class TransferServer extends Thread {
+
+	// connections accepted but not yet routed to a transfer
+	private static final int MAX_PENDING_CONNECTIONS = 64;
+
+	// largest stream header accepted, long file names included
+	private static final int MAX_HEADER_SIZE = 4096;
+
+	// time given to a connection to send its stream header
+	private static final long HEADER_TIMEOUT = 10000;
+
+	private ServerSocketChannel serverChannel;
+
+	private Selector selector;
+
+	// receivers of striped transfers, keyed by transfer ID
+	private ConcurrentHashMap<String, FileReceiveThread> transfers;
+
+	// receivers of legacy single stream transfers, keyed by sender address
+	private ConcurrentHashMap<InetAddress, FileReceiveThread> legacyTransfers;
+
+	// swarms this peer takes part in, keyed by swarm ID
+	private ConcurrentHashMap<String, SwarmTransfer> swarms;
+
+	private int pendingConnections;
+
+	private volatile boolean keepAccepting;
+
+	/**
+	 * Handshake holds the bytes of a stream header received so far
+	 */
+	private static class Handshake {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+
+		private long deadline = System.currentTimeMillis() + HEADER_TIMEOUT;
+
+		// set once the header is complete
+		private StripeReceiver.Header header;
+
+		private FileReceiveThread receiver;
+
+		private SwarmTransfer swarm;
+	}
+
+	/**
+	 * Constructor, binds the server channel
+	 * @throws IOException If unable to bind the port
+	 */
+	public TransferServer() throws IOException {
+		this.transfers = new ConcurrentHashMap<>();
+		this.legacyTransfers = new ConcurrentHashMap<>();
+		this.swarms = new ConcurrentHashMap<>();
+		this.selector = Selector.open();
+		try {
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.bind(new InetSocketAddress(ChatApp.DEFAULT_PORT - 2));
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ioe) {
+			selector.close();
+			if (serverChannel != null)
+				serverChannel.close();
+			throw ioe;
+		}
+		this.keepAccepting = true;
+		setDaemon(true);
+	}
+
+	/**
+	 * Register a receiver, so that connections of its transfer are routed to it
+	 * @param receiver Receiver
+	 * @throws IOException If too many transfers are being received or the transfer is already being received
+	 */
+	public synchronized void register(FileReceiveThread receiver) throws IOException {
+		if (getTransferCount() >= Settings.maxIncomingTransfers())
+			throw new IOException("Too many files being received, try again later");
+
+		FileReceiveThread existing;
+		if (receiver.getTransferId() != null) {
+			existing = transfers.putIfAbsent(receiver.getTransferId(), receiver);
+		} else {
+			existing = legacyTransfers.putIfAbsent(receiver.getPeer().getAddress(), receiver);
+		}
+
+		if (existing != null)
+			throw new IOException("This file is already being received");
+	}
+
+	/**
+	 * Unregister a receiver once its transfer is over
+	 * @param receiver Receiver
+	 */
+	public synchronized void unregister(FileReceiveThread receiver) {
+		if (receiver.getTransferId() != null) {
+			transfers.remove(receiver.getTransferId(), receiver);
+		} else {
+			legacyTransfers.remove(receiver.getPeer().getAddress(), receiver);
+		}
+	}
+
+	/**
+	 * Register a swarm, so that connections of its members are routed to it
+	 * @param swarm Swarm
+	 * @throws IOException If too many transfers are being received or the swarm is already registered
+	 */
+	public synchronized void registerSwarm(SwarmTransfer swarm) throws IOException {
+		if (!swarm.isOriginator() && getTransferCount() >= Settings.maxIncomingTransfers())
+			throw new IOException("Too many files being received, try again later");
+
+		if (swarms.putIfAbsent(swarm.getSwarmId(), swarm) != null)
+			throw new IOException("This file is already being distributed");
+	}
+
+	/**
+	 * Unregister a swarm once it is over
+	 * @param swarm Swarm
+	 */
+	public synchronized void unregisterSwarm(SwarmTransfer swarm) {
+		swarms.remove(swarm.getSwarmId(), swarm);
+	}
+
+	/**
+	 * Get number of transfers being received
+	 * @return Number of transfers
+	 */
+	public int getTransferCount() {
+		return transfers.size() + legacyTransfers.size() + swarms.size();
+	}
+
+	/**
+	 * Main entry of the thread
+	 */
+	public void run() {
+		ArrayList<SelectionKey> routed = new ArrayList<>();
+
+		try {
+			while (keepAccepting) {
+				// keys selected by the flush below are handled without waiting
+				if (selector.selectedKeys().isEmpty())
+					selector.select(1000);
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable() && readHeader(key)) {
+						routed.add(key);
+					}
+				}
+
+				if (!routed.isEmpty()) {
+					// cancelled keys are flushed by the next selection, only then can the channels block again
+					selector.selectNow();
+					for (SelectionKey key: routed) {
+						handOver(key);
+					}
+					routed.clear();
+				}
+
+				expireHandshakes();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (keepAccepting)
+				Utility.loglnErr("Error while accepting file transfers: " + e.getMessage());
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Accept a new connection
+	 * @throws IOException If the server channel fails
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+
+		// legacy senders start with the raw stream, the address is all there is to route it
+		InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+		FileReceiveThread legacy = legacyTransfers.get(address);
+		if (legacy != null) {
+			legacy.attachLegacy(channel);
+			return;
+		}
+
+		if (pendingConnections >= MAX_PENDING_CONNECTIONS) {
+			closeQuietly(channel);
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Handshake());
+		pendingConnections++;
+	}
+
+	/**
+	 * Read the stream header of a connection, the connection leaves the selector once it is complete
+	 * @param key Selection key of the connection
+	 * @return True if the header is complete and its transfer found
+	 */
+	private boolean readHeader(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Handshake handshake = (Handshake) key.attachment();
+
+		try {
+			if (channel.read(handshake.buffer) < 0)
+				throw new EOFException("Connection closed before the stream header");
+
+			StripeReceiver.Header header = StripeReceiver.Header.parse(handshake.buffer);
+			if (header == null) {
+				if (!handshake.buffer.hasRemaining())
+					throw new IOException("Stream header too long");
+				return false;
+			}
+
+			FileReceiveThread receiver = transfers.get(header.getTransferId());
+			SwarmTransfer swarm = (receiver == null) ? swarms.get(header.getTransferId()) : null;
+			if (receiver == null && swarm == null)
+				throw new IOException("Unknown transfer " + header.getTransferId());
+
+			handshake.header = header;
+			handshake.receiver = receiver;
+			handshake.swarm = swarm;
+			unregisterHandshake(key);
+			return true;
+		} catch (IOException ioe) {
+			unregisterHandshake(key);
+			closeQuietly(channel);
+			return false;
+		}
+	}
+
+	/**
+	 * Hand a connection with a complete header over to its receiver
+	 * @param key Cancelled selection key of the connection
+	 */
+	private void handOver(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Handshake handshake = (Handshake) key.attachment();
+
+		try {
+			channel.configureBlocking(true);
+			if (handshake.swarm != null) {
+				handshake.swarm.attach(channel, handshake.header);
+			} else {
+				handshake.receiver.attach(channel, handshake.header);
+			}
+		} catch (IOException ioe) {
+			closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * Close connections which did not send their stream header in time
+	 */
+	private void expireHandshakes() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key: selector.keys()) {
+			if (key.attachment() instanceof Handshake && ((Handshake) key.attachment()).deadline < now) {
+				unregisterHandshake(key);
+				closeQuietly(key.channel());
+			}
+		}
+	}
+
+	/**
+	 * Remove a connection from the selector
+	 * @param key Selection key of the connection
+	 */
+	private void unregisterHandshake(SelectionKey key) {
+		if (key.isValid()) {
+			key.cancel();
+			pendingConnections--;
+		}
+	}
+
+	/**
+	 * Stop accepting connections, transfers already running go on
+	 */
+	public void close() {
+		keepAccepting = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Close the server channel and the connections still waiting for their header
+	 */
+	private void shutdown() {
+		try {
+			for (SelectionKey key: selector.keys()) {
+				closeQuietly(key.channel());
+			}
+			selector.close();
+		} catch (IOException | ClosedSelectorException e) {
+			// nothing to do
+		}
+		closeQuietly(serverChannel);
+	}
+
+	/**
+	 * Close a channel, ignoring errors
+	 * @param channel Channel to close
+	 */
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * TransferTuner sizes the send buffers of a transfer to the bandwidth-delay product, from the round-trip time
+ * and the throughput measured while the transfer runs
+ * A send buffer smaller than the bandwidth-delay product caps a stream at buffer / RTT, so the buffer is
+ * raised to twice the product measured; the cap lifts and the next measurement raises it again until the link is the limit
+ * The kernel grows its buffers on its own until one is set, so a buffer is only set where the kernel has not reached it yet
+ * The receiving side keeps the kernel receive buffers: setting one stops the kernel from growing it, and the most it can be set to
+ * (net.core.rmem_max) is usually far below what the kernel grows it to, and the receiver can not tell the round-trip time apart from the sender's start
+ * https://en.wikipedia.org/wiki/Bandwidth-delay_product
+ * @author conqtc
+ *
+ */
+public class TransferTuner {
+
+	// smallest and largest send buffer set
+	public static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+	public static final int MAX_BUFFER_SIZE = 32 * 1048576;
+
+	// smallest and largest write buffer, the fixed write buffer was DATA_CHUNK_SIZE (4 KB)
+	public static final int MIN_STEP_SIZE = 64 * 1024;
+
+	public static final int MAX_STEP_SIZE = 8 * 1048576;
+
+	// headroom over the bandwidth-delay product, so the window never runs dry between two measurements
+	private static final int BUFFER_FACTOR = 2;
+
+	// weight of a new throughput sample in the smoothed throughput
+	private static final double RATE_WEIGHT = 0.5;
+
+	// smallest round-trip time measured, in nanoseconds, 0 until measured
+	private long rtt;
+
+	// smoothed throughput of one stream, in bytes per second
+	private double streamRate;
+
+	// send buffer chosen, 0 while the kernel is left to size it
+	private volatile int bufferSize;
+
+	// send buffer the kernel gave the first socket
+	private int defaultBufferSize;
+
+	// bytes written at once by the buffered send path
+	private volatile int stepSize;
+
+	/**
+	 * Constructor
+	 */
+	public TransferTuner() {
+		this.stepSize = MIN_STEP_SIZE;
+	}
+
+	/**
+	 * Add a round-trip time measured, e.g. the time to connect, the smallest one is kept
+	 * @param nanos Round-trip time in nanoseconds
+	 */
+	public synchronized void rttSample(long nanos) {
+		if (nanos > 0 && (rtt == 0 || nanos < rtt))
+			rtt = nanos;
+	}
+
+	/**
+	 * Add a throughput measured and size the buffers again
+	 * @param bytes Bytes sent since the previous sample
+	 * @param nanos Time since the previous sample
+	 * @param streams Number of streams sharing the throughput
+	 * @return True if the send buffer or the write buffer changed, to be applied
+	 */
+	public synchronized boolean rateSample(long bytes, long nanos, int streams) {
+		if (nanos <= 0 || streams <= 0 || bytes <= 0)
+			return false;
+
+		double rate = bytes * 1e9 / nanos / streams;
+		streamRate = (streamRate == 0) ? rate : streamRate * (1 - RATE_WEIGHT) + rate * RATE_WEIGHT;
+		if (rtt == 0)
+			return false;
+
+		// sizes move by powers of two, so small variations of the throughput do not resize anything
+		long product = getBandwidthDelayProduct();
+		int buffer = clampPowerOfTwo(product * BUFFER_FACTOR, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+		int newBufferSize = (buffer > Math.max(defaultBufferSize, bufferSize)) ? buffer : bufferSize;
+		int newStepSize = clampPowerOfTwo(Math.max(product, newBufferSize), MIN_STEP_SIZE, MAX_STEP_SIZE);
+		if (newBufferSize == bufferSize && newStepSize == stepSize)
+			return false;
+
+		bufferSize = newBufferSize;
+		stepSize = newStepSize;
+		Utility.logln("    tuned: " + describe());
+		return true;
+	}
+
+	/**
+	 * Apply the send buffer chosen to a socket, before it connects if possible so the window scale covers it
+	 * A socket whose buffer the kernel already grew past the one chosen is left alone
+	 * @param channel Socket channel
+	 * @throws IOException If unable to read or set the option
+	 */
+	public void apply(SocketChannel channel) throws IOException {
+		int current = channel.getOption(StandardSocketOptions.SO_SNDBUF);
+		synchronized (this) {
+			if (defaultBufferSize == 0)
+				defaultBufferSize = current;
+		}
+
+		int size = bufferSize;
+		if (size > 0 && current < size)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+	}
+
+	/**
+	 * Get the bytes in flight on one stream to keep the link busy
+	 * @return Bandwidth-delay product in bytes, 0 until measured
+	 */
+	public synchronized long getBandwidthDelayProduct() {
+		return (long) (streamRate * rtt / 1e9);
+	}
+
+	/**
+	 * Get the size of the write buffer, the most bytes written at once by the buffered send path
+	 * @return Step size in bytes
+	 */
+	public int getStepSize() {
+		return this.stepSize;
+	}
+
+	/**
+	 * Describe the values measured and chosen
+	 * @return Description, e.g. "rtt 0.40 ms, 110.0 MB/s per stream, bandwidth-delay product 45 KB, send buffer 128 KB (kernel default 16 KB), step 128 KB"
+	 */
+	public synchronized String describe() {
+		return "rtt " + String.format("%.2f", rtt / 1e6) + " ms, " + String.format("%.1f", streamRate / 1048576) + " MB/s per stream, " +
+		       "bandwidth-delay product " + getBandwidthDelayProduct() / 1024 + " KB, send buffer " +
+		       (bufferSize > 0 ? bufferSize / 1024 + " KB (kernel default " + defaultBufferSize / 1024 + " KB)" :
+		                         defaultBufferSize / 1024 + " KB (kernel default, grown by the kernel)") +
+		       ", step " + stepSize / 1024 + " KB";
+	}
+
+	/**
+	 * Round a size up to a power of two within bounds
+	 * @param size Size
+	 * @param min Lower bound
+	 * @param max Upper bound
+	 * @return Power of two between min and max
+	 */
+	private static int clampPowerOfTwo(long size, int min, int max) {
+		if (size <= min)
+			return min;
+		if (size >= max)
+			return max;
+		long power = Long.highestOneBit(size);
+		return (int) Math.min(max, (power == size) ? power : power << 1);
+	}
+}
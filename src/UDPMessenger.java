@@ -1,8 +1,17 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Encapsulated class to construct and send UDP messages
+ * Binary messages to the same address within the batch window are coalesced into one datagram as long as the path MTU allows,
+ * back to back, the receiver unpacks them in order; a flusher thread sends each batch once its window is over
+ * A binary message longer than a datagram is cut into fragments which fit, the receiver puts them back together
+ * The path MTU to each peer is probed by PathMtuDiscovery
+ * Messages to the multicast group, when set (see MulticastGroup), are sent out of each of its interfaces
+ * Messages sent with sendReliableTo go through ReliableDelivery, which numbers them per peer and sends them again until acknowledged
  * @author conqtc
  *
  */
@@ -17,13 +26,83 @@ public class UDPMessenger {
 		FREQ,	// File request to send
 		FACT,	// Accepted, go ahead and send
 		FCAN,	// Not ok, please cancel the file transfer
+		SACK,	// Acknowledge reliable messages received
+		FRAG,	// Fragment of a message longer than a datagram
+		MTUP,	// Path MTU probe, padded to the size probed
+		MTUA,	// Answer of a path MTU probe
 		UNKW
 	}
 
+	// timer wheel of 10 ms ticks, one turn is a little over 5 s
+	public static final long TIMER_TICK = 10;
+	
+	private static final int TIMER_SLOTS = 512;
+	
 	private DatagramSocket socket;
 	
 	private ChatApp app;
 	
+	// messages are encoded into one buffer and sent through one packet, both reused
+	private ByteBuffer sendBuffer;
+	
+	private DatagramPacket sendPacket;
+	
+	private ByteBuffer fragmentBuffer;
+	
+	// sequence of the last message sent, stamped on each with the uid so receivers drop the copies (see DuplicateFilter)
+	private int sequence;
+	
+	// id of the last message sent in fragments
+	private int fragmentId;
+	
+	private boolean binary;
+	
+	// addresses which sent text messages, older peers answered in text
+	private Set<InetAddress> textPeers;
+	
+	// time a batch waits for more messages, 0 to send each message at once
+	private long batchWindow;
+	
+	// batch being filled for each address, batches sent are kept for reuse
+	private HashMap<InetAddress, Batch> batches;
+	
+	private ArrayDeque<Batch> spareBatches;
+	
+	private Thread flusher;
+	
+	private boolean closed;
+	
+	private long messageCount;
+	
+	private long datagramCount;
+	
+	private long fragmentCount;
+	
+	private TimerWheel timerWheel;
+	
+	private ReliableDelivery reliableDelivery;
+	
+	private PathMtuDiscovery pathMtuDiscovery;
+	
+	/**
+	 * Batch is the messages waiting to go to one address in the same datagram
+	 */
+	private static class Batch {
+		
+		private InetAddress address;
+		
+		private int port;
+		
+		// limited to the datagram size of the address
+		private ByteBuffer buffer = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		
+		// System.nanoTime when the batch is sent
+		private long deadline;
+		
+		// holds a chat or control message, file transfers hold back when it is sent
+		private boolean urgent;
+	}
+	
 	/**
 	 * Constructor
 	 * @param app ChatApp reference object
@@ -32,10 +111,40 @@ public class UDPMessenger {
 	public UDPMessenger(ChatApp app) throws SocketException {
 		socket = new DatagramSocket();
 		this.app = app;
+		this.sendBuffer = ByteBuffer.allocate(WireFormat.MAX_FRAGMENTED_SIZE);
+		this.fragmentBuffer = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		this.sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+		this.binary = Settings.binaryMessages();
+		// from the clock, so after a restart receivers see the sequence ahead of what they remember
+		this.sequence = (int) System.currentTimeMillis();
+		this.textPeers = ConcurrentHashMap.newKeySet();
+		this.batchWindow = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Settings.batchWindow()));
+		this.batches = new HashMap<>();
+		this.spareBatches = new ArrayDeque<>();
+		this.timerWheel = new TimerWheel("udp-timer", TIMER_TICK, TIMER_SLOTS);
+		this.reliableDelivery = new ReliableDelivery(this, app, timerWheel);
+		this.pathMtuDiscovery = new PathMtuDiscovery(this, timerWheel, binary && Settings.pathMtuDiscovery());
+		
+		this.flusher = new Thread(() -> runFlusher(), "udp-batch");
+		flusher.setDaemon(true);
+		flusher.start();
 	}
 	
 	/**
-	 * Construct UDP message with structure
+	 * Callback when a message is received, an address sending text is answered in text
+	 * @param address Address of the sender
+	 * @param binary True if the message was binary
+	 */
+	public void messageReceived(InetAddress address, boolean binary) {
+		if (binary) {
+			textPeers.remove(address);
+		} else {
+			textPeers.add(address);
+		}
+	}
+	
+	/**
+	 * Construct UDP message with structure, the text format of older peers
 	 * @param type Type of message
 	 * @param message Content of the message
 	 * @return String represent structed message
@@ -75,6 +184,14 @@ public class UDPMessenger {
 			return "FACT";
 		case FCAN:
 			return "FCAN";
+		case SACK:
+			return "SACK";
+		case FRAG:
+			return "FRAG";
+		case MTUP:
+			return "MTUP";
+		case MTUA:
+			return "MTUA";
 		case UNKW:
 			return "UNKW";
 		}
@@ -105,6 +222,14 @@ public class UDPMessenger {
 			return MessageType.FACT;
 		case "FCAN":
 			return MessageType.FCAN;
+		case "SACK":
+			return MessageType.SACK;
+		case "FRAG":
+			return MessageType.FRAG;
+		case "MTUP":
+			return MessageType.MTUP;
+		case "MTUA":
+			return MessageType.MTUA;
 		}
 		
 		return MessageType.UNKW;
@@ -112,7 +237,8 @@ public class UDPMessenger {
 	}
 	
 	/**
-	 * Send message to specific address
+	 * Send message to specific address, in the binary format unless it is set to text or the address sent text
+	 * Binary messages are batched, sending errors of a batch are reported when it is sent
 	 * @param address Address to be sent
 	 * @param port Port of the address
 	 * @param type Message type
@@ -120,22 +246,332 @@ public class UDPMessenger {
 	 * @throws SocketException If socket is not yet initialized (null)
 	 * @throws IOException If something goes wrong while sending
 	 */
-	public void sendMessageTo(InetAddress address, int port, MessageType type, String message) throws SocketException, IOException {
+	public synchronized void sendMessageTo(InetAddress address, int port, MessageType type, String message) throws SocketException, IOException {
 		if (socket == null) 
 			throw new SocketException("Socket is not yet initialized");
 		
+		if (!binary || textPeers.contains(address)) {
+			sendText(address, port, type, message);
+			return;
+		}
+		
    		// construct data
-      	byte[] data = constructUDPMessage(type, message).getBytes();
+		WireFormat.encode(sendBuffer, type, ++sequence, app.getuid(), app.getAlias(), message);
+		queue(address, port, sendBuffer, true);
+	}
+	
+	/**
+	 * Send the same message to several addresses, e.g. every broadcast address, with the same sequence
+	 * so a peer reached through more than one of them handles it once
+	 * @param addresses Addresses to be sent
+	 * @param port Port of the addresses
+	 * @param type Message type
+	 * @param message Content of the message
+	 * @throws SocketException If socket is not yet initialized (null)
+	 * @throws IOException If something goes wrong while sending to one of the addresses, the others are sent anyway
+	 */
+	public synchronized void sendMessageTo(List<InetAddress> addresses, int port, MessageType type, String message) throws SocketException, IOException {
+		if (socket == null) 
+			throw new SocketException("Socket is not yet initialized");
+		
+		WireFormat.encode(sendBuffer, type, ++sequence, app.getuid(), app.getAlias(), message);
+		IOException failure = null;
+		for (InetAddress address: addresses) {
+			try {
+				if (!binary || textPeers.contains(address)) {
+					sendText(address, port, type, message);
+				} else {
+					// the batch took the message from the buffer, it is read again
+					sendBuffer.rewind();
+					queue(address, port, sendBuffer, true);
+				}
+			} catch (IOException ioe) {
+				failure = ioe;
+			}
+		}
+		
+		if (failure != null)
+			throw failure;
+	}
+	
+	/**
+	 * Send a message in the text format, alone in its datagram
+	 * @param address Address to be sent
+	 * @param port Port of the address
+	 * @param type Message type
+	 * @param message Content of the message
+	 * @throws IOException If something goes wrong while sending
+	 */
+	private void sendText(InetAddress address, int port, MessageType type, String message) throws IOException {
+		// text can not be batched, it goes after the binary messages queued before it
+		messageCount++;
+		Batch batch = batches.get(address);
+		if (batch != null)
+			sendBatch(batch);
+		byte[] data = constructUDPMessage(type, message).getBytes();
+		send(address, port, data, data.length, true);
+	}
+	
+	/**
+	 * Send message to specific address reliably: in order, and sent again until acknowledged
+	 * Addresses sending text are older peers, they get the message as sendMessageTo does, once
+	 * @param address Address to be sent, not a broadcast address
+	 * @param port Port of the address
+	 * @param type Message type
+	 * @param message Content of the message
+	 * @throws SocketException If socket is not yet initialized (null)
+	 * @throws IOException If the message does not fit in a datagram or too many messages are waiting for the address
+	 */
+	public synchronized void sendReliableTo(InetAddress address, int port, MessageType type, String message) throws SocketException, IOException {
+		if (!binary || textPeers.contains(address)) {
+			sendMessageTo(address, port, type, message);
+			return;
+		}
+		
+		if (socket == null) 
+			throw new SocketException("Socket is not yet initialized");
+		
+		reliableDelivery.send(address, port, type, message);
+	}
+	
+	/**
+	 * Send the acknowledgement of reliable messages received
+	 * @param address Address of the peer
+	 * @param port Port of the peer
+	 * @param session Session of the peer
+	 * @param cumulative Last sequence received with every one before it
+	 * @param selective Bitmap of the sequences received after a gap
+	 * @throws IOException If something goes wrong while sending
+	 */
+	synchronized void sendAck(InetAddress address, int port, int session, int cumulative, long selective) throws IOException {
+		WireFormat.encodeAck(sendBuffer, session, cumulative, selective, app.getuid(), app.getAlias());
+		queue(address, port, sendBuffer, false);
+	}
+	
+	/**
+	 * Send a path MTU probe alone in its datagram
+	 * @param address Address of the peer
+	 * @param port Port of the peer
+	 * @param size Size of the datagram
+	 * @throws IOException If the datagram is too large to be sent or something goes wrong while sending
+	 */
+	synchronized void sendProbe(InetAddress address, int port, int size) throws IOException {
+		if (socket == null) 
+			throw new SocketException("Socket is not yet initialized");
+		
+		// the size probed is the sequence, the message is padding
+		WireFormat.encode(sendBuffer, MessageType.MTUP, size, app.getuid(), app.getAlias(), "");
+		int padding = size - sendBuffer.limit();
+		if (padding > 0)
+			WireFormat.encode(sendBuffer, MessageType.MTUP, size, app.getuid(), app.getAlias(), " ".repeat(padding));
+		
+		messageCount++;
+		send(address, port, sendBuffer.array(), sendBuffer.limit(), false);
+	}
+	
+	/**
+	 * Answer a path MTU probe received
+	 * @param address Address of the peer
+	 * @param port Port of the peer
+	 * @param size Size of the probe
+	 * @throws IOException If something goes wrong while sending
+	 */
+	synchronized void answerProbe(InetAddress address, int port, int size) throws IOException {
+		WireFormat.encode(sendBuffer, MessageType.MTUA, size, app.getuid(), app.getAlias(), "");
+		queue(address, port, sendBuffer, false);
+	}
+	
+	/**
+	 * Queue a binary message on the batch of its address, in fragments if it does not fit in a datagram
+	 * @param address Address to be sent
+	 * @param port Port of the address
+	 * @param data Message, flipped, backed by an array from offset 0
+	 * @param urgent True for a chat or control message, false for acknowledgements, probes and retransmissions
+	 * @throws IOException If something goes wrong while sending
+	 */
+	synchronized void queue(InetAddress address, int port, ByteBuffer data, boolean urgent) throws IOException {
+		messageCount++;
+		int size = pathMtuDiscovery.datagramSize(address);
+		if (data.remaining() <= size) {
+			batch(address, port, data, size, urgent);
+			return;
+		}
+		
+		// every fragment but the last fills a datagram
+		int id = ++fragmentId;
+		int total = data.remaining();
+		int pieceSize = size - WireFormat.FRAGMENT_HEADER_SIZE;
+		for (int offset = 0; offset < total; offset += pieceSize) {
+			WireFormat.encodeFragment(fragmentBuffer, id, total, offset, data.array(), data.position() + offset, Math.min(pieceSize, total - offset));
+			batch(address, port, fragmentBuffer, size, urgent);
+			fragmentCount++;
+		}
+	}
+	
+	/**
+	 * Add a message to the batch of its address, sent alone if batches are off
+	 * @param address Address to be sent
+	 * @param port Port of the address
+	 * @param data Message of one datagram at most, flipped, backed by an array from offset 0
+	 * @param size Datagram size of the address
+	 * @param urgent True for a chat or control message
+	 * @throws IOException If something goes wrong while sending
+	 */
+	private void batch(InetAddress address, int port, ByteBuffer data, int size, boolean urgent) throws IOException {
+		Batch batch = batches.get(address);
+		if (batch != null && (batch.port != port || batch.buffer.remaining() < data.remaining())) {
+			sendBatch(batch);
+			batch = null;
+		}
+		
+		if (batchWindow == 0) {
+			// sent alone
+			send(address, port, data.array(), data.limit(), urgent);
+			return;
+		}
+		
+		if (batch == null) {
+			batch = spareBatches.isEmpty() ? new Batch() : spareBatches.pop();
+			batch.address = address;
+			batch.port = port;
+			batch.buffer.limit(size);
+			batch.deadline = System.nanoTime() + batchWindow;
+			batch.urgent = false;
+			batches.put(address, batch);
+			// the flusher waits for the earliest deadline
+			notifyAll();
+		}
+		batch.buffer.put(data);
+		batch.urgent |= urgent;
+	}
+	
+	/**
+	 * Get the reliable delivery of the messages sent with sendReliableTo
+	 * @return Reliable delivery
+	 */
+	public ReliableDelivery getReliableDelivery() {
+		return this.reliableDelivery;
+	}
+	
+	/**
+	 * Get the path MTU discovery sizing the datagrams to each peer
+	 * @return Path MTU discovery
+	 */
+	public PathMtuDiscovery getPathMtuDiscovery() {
+		return this.pathMtuDiscovery;
+	}
+	
+	/**
+	 * Describe what was sent
+	 * @return Description, e.g. "sent 1200 message(s) in 90 datagram(s), 6 fragment(s), reliable: ..., path MTU: ..."
+	 */
+	public synchronized String describe() {
+		return "sent " + messageCount + " message(s) in " + datagramCount + " datagram(s), " + fragmentCount + " fragment(s), " + reliableDelivery.describe() + ", " + pathMtuDiscovery.describe() +
+		       (app.getMulticastGroup() != null ? ", " + app.getMulticastGroup().describe() : "");
+	}
+	
+	/**
+	 * Send a batch and keep it for reuse
+	 * @param batch Batch
+	 * @throws IOException If something goes wrong while sending
+	 */
+	private void sendBatch(Batch batch) throws IOException {
+		batches.remove(batch.address);
+		batch.buffer.flip();
+		try {
+			send(batch.address, batch.port, batch.buffer.array(), batch.buffer.limit(), batch.urgent);
+		} finally {
+			batch.buffer.clear();
+			spareBatches.push(batch);
+		}
+	}
+	
+	/**
+	 * Send one datagram
+	 * @param address Address to be sent
+	 * @param port Port of the address
+	 * @param data Data
+	 * @param length Length of the data
+	 * @param urgent True if it holds a chat or control message
+	 * @throws IOException If something goes wrong while sending
+	 */
+	private void send(InetAddress address, int port, byte[] data, int length, boolean urgent) throws IOException {
+      	// chat and control messages go first, file transfers hold back for a moment
+      	if (urgent) {
+      		app.getBandwidthScheduler().sendUrgent(length);
+      	} else {
+      		app.getBandwidthScheduler().charge(length);
+      	}
       	
       	// send it
-      	DatagramPacket sendPacket = new DatagramPacket(data, data.length, address, port);
-      	socket.send(sendPacket);
+      	sendPacket.setData(data, 0, length);
+      	sendPacket.setAddress(address);
+      	sendPacket.setPort(port);
+      	MulticastGroup group = app.getMulticastGroup();
+      	if (group != null && address.equals(group.getGroup())) {
+      		group.send(socket, sendPacket);
+      	} else {
+      		socket.send(sendPacket);
+      	}
+      	datagramCount++;
+	}
+	
+	/**
+	 * Main entry of the flusher thread, sends each batch once its window is over
+	 */
+	private synchronized void runFlusher() {
+		ArrayList<Batch> due = new ArrayList<>();
+		while (!closed) {
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			for (Batch batch: batches.values()) {
+				if (batch.deadline <= now) {
+					due.add(batch);
+				} else {
+					next = Math.min(next, batch.deadline);
+				}
+			}
+			
+			for (Batch batch: due) {
+				try {
+					sendBatch(batch);
+				} catch (IOException ioe) {
+					app.appendMessageToTheChat("Unable to send to address " + batch.address.toString() + ": " + ioe.getMessage(), false);
+				}
+			}
+			due.clear();
+			
+			try {
+				if (next == Long.MAX_VALUE) {
+					wait();
+				} else {
+					TimeUnit.NANOSECONDS.timedWait(this, next - now);
+				}
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
 	}
 	
 	/**
-	 * "Destructor" used to clean up objects nicely
+	 * "Destructor" used to clean up objects nicely, batches waiting are sent first
 	 */
 	public void destructor() {
+		// messages not acknowledged yet are not sent again, probes are not waited for
+		timerWheel.stop();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			
+			for (Batch batch: new ArrayList<>(batches.values())) {
+				try {
+					sendBatch(batch);
+				} catch (IOException ioe) {
+					// nothing to do
+				}
+			}
+		}
+		
 		if (socket != null)
 			socket.close();
 	}
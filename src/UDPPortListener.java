@@ -1,134 +1,116 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 /**
- * UDPPortListener is a thread to listen to ChatApp.PORT
- * and dispatch message handler to dedicated components
+ * UDPPortListener is a thread to listen to ChatApp.PORT, and to the multicast group when set
+ * and hand the messages over to the message pipeline, which decodes them and runs their handlers on threads of its own
  */
 class UDPPortListener extends Thread
 {
-	private boolean keepListening;
-	
+	// receive buffers, one per slot of the pipeline and the one packets are dropped from
+	private static final int POOL_CAPACITY = MessagePipeline.SLOT_COUNT + 1;
+
+	// kernel receive buffer, holds a burst of broadcasts while the listener is busy
+	private static final int RECEIVE_BUFFER_SIZE = 1048576;
+
 	private ChatApp app;
 
+	private DatagramChannel channel;
+
+	private BufferPool pool;
+
+	private MessagePipeline pipeline;
+
    /**
-    * Constructor
-    * @param port port we want to listen to
+    * Constructor, binds the port
+    * @param app ChatApp reference object
+    * @throws IOException If unable to bind the port
     */
 	public UDPPortListener(ChatApp app) throws IOException
 	{
 		this.app = app;
-		this.keepListening = true;
+		this.pool = new BufferPool(WireFormat.MAX_MESSAGE_SIZE, POOL_CAPACITY);
+		this.pipeline = new MessagePipeline(app, pool);
+
+		int port = ChatApp.DEFAULT_PORT;
+
+		if (ChatApp._LOCAL_TEST_) {
+			if (app.getAlias().equals("sender"))
+				port = port + 1;
+		}
+
+		// create new channel on the port, blocking: the thread has nothing else to do
+		MulticastGroup group = app.getMulticastGroup();
+		if (group == null) {
+			this.channel = DatagramChannel.open();
+		} else {
+			// of the family of the group, other instances on the host may join it on the same port
+			this.channel = DatagramChannel.open(group.getProtocolFamily());
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		}
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(port));
+
+		// broadcasts and messages sent to this host still come in, the group is one more address listened to
+		if (group != null)
+			group.join(channel);
 	}
 
 
 	/**
-	* The thread starts to run in here
+	* The thread starts to run in here, it only pulls packets from the socket
 	*/
 	public void run()
 	{
+		pipeline.start();
+		ByteBuffer overflow = pool.acquire();
+
 		try {
-			int port = ChatApp.DEFAULT_PORT;
-			
-			if (ChatApp._LOCAL_TEST_) {
-				if (app.getAlias().equals("sender"))
-					port = port + 1;
-			}
+			// loop until the channel is closed
+			while (true) {
+				MessagePipeline.Slot slot = pipeline.freeSlot();
+				if (slot == null) {
+					// every slot is waiting to be decoded, the packet is pulled anyway so the socket buffer keeps draining
+					overflow.clear();
+					channel.receive(overflow);
+					pipeline.dropped();
+					continue;
+				}
 
-	      	// create new socket on the port
-	        DatagramSocket serverSocket = new DatagramSocket(port);
-
-	        // loop as long as the flag is true
-	        while (keepListening) {
-	        	// receive packet incoming to the port
-				byte[] receiveData = new byte[ChatApp.DATA_CHUNK_SIZE];
-	            DatagramPacket receivedPacket = new DatagramPacket(receiveData, receiveData.length);
-	            
-	            serverSocket.receive(receivedPacket);
-	            handleIncomingMessage(receivedPacket);
-	        }
-
-			// close the socket nicely
-			serverSocket.close();
-      	} catch (IOException e) {
-      		// something went wrong
-      		Utility.loglnErr("Error while listening to UDP port: " + e.getMessage());
-      	}
+				InetSocketAddress sender = (InetSocketAddress) channel.receive(slot.buffer);
+				slot.buffer.flip();
+				slot.address = sender.getAddress();
+				pipeline.received(slot);
+			}
+		} catch (ClosedChannelException cce) {
+			// stopped
+		} catch (IOException e) {
+			// something went wrong
+			Utility.loglnErr("Error while listening to UDP port: " + e.getMessage());
+		} finally {
+			pipeline.stop();
+			pool.release(overflow);
+		}
 	}
 	
 	/**
-	 * Stop listening
+	 * Stop listening, closing the channel ends the receive in progress
 	 */
 	public void stopListening() {
-		this.keepListening = false;
-	}
-
-	/**
-	 * Handle incoming message
-	 * UUID | uid | alias | type | message
-	 * @param receivedPacket Packet received
-	 */
-	private void handleIncomingMessage(DatagramPacket receivedPacket) {
-		// 
-		String data = (new String(receivedPacket.getData())).trim();
-		
-		String[] messageParts = data.split("\\" + ChatApp.SEPARATOR);
-		
-		if (!isValidMessage(messageParts)) {
-			return;	// invalid message, do nothing
-		}
-		
-		Peer peer = new Peer(messageParts[1], messageParts[2], receivedPacket.getAddress());
-		
-		// handle message types
-		UDPMessenger.MessageType type = UDPMessenger.messageTypeFromString(messageParts[3]);
-		
-		switch (type) {
-		case NOTF:
-			app.handleNotificationMessage(peer);
-			break;
-		case ACKM:
-			app.handleAcknowledgeMessage(peer);
-			break;
-		case MESG:
-			app.handleChatMessage(peer, messageParts[4]);
-			break;
-		case BYED:
-			app.handleByeMessage(peer);
-			break;
-		case QUIT:
-			app.handleQuitMessage(peer);
-			break;
-		case FREQ:
-			app.handleFileRequestMessage(peer, messageParts[4]);
-			break;
-		case FACT:
-			app.handleFileAcceptedMessage(peer, messageParts[4]);
-			break;
-		case FCAN:
-			app.handleFileCancelMessage(peer, messageParts[4]);
-			break;
-		case UNKW:
-			break;
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			// nothing to do
 		}
-		
 	}
 
 	/**
-	 * Check if a message is valid of not
-	 * @param messageParts Parts of the message after splitted
-	 * @return True if valid, false if not
+	 * Describe what was received, dropped and handled
+	 * @return Description
 	 */
-	private boolean isValidMessage(String[] messageParts) {
-		if (messageParts == null)
-			return false;
-		
-		if (messageParts.length < 5)
-			return false;
-		
-		if (!messageParts[0].equals(ChatApp.UUID))	// not one of us
-			return false;
-		
-		return true;
+	public String describe() {
+		return pipeline.describe();
 	}
-}
\ No newline at end of file
+}
@@ -153,4 +153,18 @@ public class Utility {
     	System.out.print(message);
     	this.nextLine();
     }
+
+    /**
+     * Format a transfer rate
+     * @param bytes Number of bytes transferred
+     * @param nanos Elapsed time in nano seconds
+     * @return Rate as string, e.g. "12.5 MB/s"
+     */
+    public static String formatRate(long bytes, long nanos) {
+    	if (nanos <= 0)
+    		return "n/a";
+    	
+    	double megabytesPerSecond = (bytes / 1048576.0) / (nanos / 1e9);
+    	return String.format("%.1f MB/s", megabytesPerSecond);
+    }
 }
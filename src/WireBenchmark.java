@@ -0,0 +1,185 @@
+import java.lang.management.*;
+import java.nio.*;
+
+/**
+ * WireBenchmark measures the cost of encoding and decoding a UDP message, in the text format and in the binary format,
+ * as bytes allocated and time per message, on one thread from memory to memory so the network is left out
+ * Usage: java WireBenchmark [messages]
+ * @author conqtc
+ *
+ */
+public class WireBenchmark {
+
+	// rounds run before measuring, so the JIT has compiled the hot loops
+	private static final int WARM_UP_ROUNDS = 3;
+
+	private static final int MEASURED_ROUNDS = 5;
+
+	private static final String UID = "b7e2c41d";
+
+	private static final String ALIAS = "alice";
+
+	private static final String MESSAGE = "see you at the station at 6, the train leaves at 6:20";
+
+	// sink for the decoded values, so the JIT can not drop the work
+	private static long checksum;
+
+	/**
+	 * Main entry
+	 * @param args Optional number of messages per round, 1000000 by default
+	 * @throws Exception If a message can not be encoded
+	 */
+	public static void main(String[] args) throws Exception {
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+		System.out.println("(i) UDP message cost, " + messages + " messages per round, best of " + MEASURED_ROUNDS + " rounds");
+		report("text encode", messages, WireBenchmark::textEncode);
+		report("text decode", messages, WireBenchmark::textDecode);
+		report("text decode (in place)", messages, WireBenchmark::textDecodeInPlace);
+		report("binary encode", messages, WireBenchmark::binaryEncode);
+		report("binary decode", messages, WireBenchmark::binaryDecode);
+		report("binary decode, message field", messages, WireBenchmark::binaryDecodeMessage);
+	}
+
+	/**
+	 * Run a benchmark and print the bytes allocated and the time per message of its best round
+	 * @param name Name of the benchmark
+	 * @param messages Messages per round
+	 * @param round One round of the benchmark
+	 * @throws Exception If the round fails
+	 */
+	private static void report(String name, int messages, Round round) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (int index = 0; index < WARM_UP_ROUNDS; index++) {
+			round.run(messages);
+		}
+
+		long bestTime = Long.MAX_VALUE;
+		long bestAllocated = Long.MAX_VALUE;
+		for (int index = 0; index < MEASURED_ROUNDS; index++) {
+			long allocatedStart = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			round.run(messages);
+			bestTime = Math.min(bestTime, System.nanoTime() - start);
+			bestAllocated = Math.min(bestAllocated, threads.getCurrentThreadAllocatedBytes() - allocatedStart);
+		}
+
+		System.out.println(String.format("    %-32s %8.1f bytes/message  %7.1f ns/message", name,
+		                                 (double) bestAllocated / messages, (double) bestTime / messages));
+	}
+
+	/**
+	 * Build messages the way UDPMessenger.constructUDPMessage does, then get their bytes
+	 * @param messages Number of messages
+	 */
+	private static void textEncode(int messages) {
+		for (int index = 0; index < messages; index++) {
+			String text = ChatApp.UUID + ChatApp.SEPARATOR + UID + ChatApp.SEPARATOR + ALIAS + ChatApp.SEPARATOR +
+			              UDPMessenger.messageTypeAsString(UDPMessenger.MessageType.MESG) + ChatApp.SEPARATOR + MESSAGE;
+			checksum += text.getBytes().length;
+		}
+	}
+
+	/**
+	 * Decode messages the way the listener did before the binary format: a new receive buffer per packet,
+	 * the whole buffer turned into a String, trimmed and split
+	 * @param messages Number of messages
+	 */
+	private static void textDecode(int messages) {
+		byte[] packet = textPacket();
+		for (int index = 0; index < messages; index++) {
+			byte[] receiveData = new byte[ChatApp.DATA_CHUNK_SIZE];
+			System.arraycopy(packet, 0, receiveData, 0, packet.length);
+
+			String data = (new String(receiveData)).trim();
+			String[] messageParts = data.split("\\" + ChatApp.SEPARATOR);
+			checksum += UDPMessenger.messageTypeFromString(messageParts[3]).ordinal() + messageParts[4].length();
+		}
+	}
+
+	/**
+	 * Decode text messages in place, as older peers are decoded now, the message field included
+	 * @param messages Number of messages
+	 */
+	private static void textDecodeInPlace(int messages) {
+		ByteBuffer buffer = ByteBuffer.wrap(textPacket());
+		WireFormat.Message message = new WireFormat.Message();
+		for (int index = 0; index < messages; index++) {
+			WireFormat.decode(buffer, message);
+			checksum += message.getType().ordinal() + message.getField(WireFormat.MESSAGE).length();
+		}
+	}
+
+	/**
+	 * Encode messages in the binary format into one reused buffer
+	 * @param messages Number of messages
+	 * @throws Exception If a message does not fit
+	 */
+	private static void binaryEncode(int messages) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		for (int index = 0; index < messages; index++) {
+			WireFormat.encode(buffer, UDPMessenger.MessageType.MESG, index, UID, ALIAS, MESSAGE);
+			checksum += buffer.limit();
+		}
+	}
+
+	/**
+	 * Decode binary messages in place, the fields left in the buffer
+	 * @param messages Number of messages
+	 * @throws Exception If the message does not fit
+	 */
+	private static void binaryDecode(int messages) throws Exception {
+		ByteBuffer buffer = binaryPacket();
+		WireFormat.Message message = new WireFormat.Message();
+		for (int index = 0; index < messages; index++) {
+			WireFormat.decode(buffer, message);
+			checksum += message.getType().ordinal() + message.getSequence();
+		}
+	}
+
+	/**
+	 * Decode binary messages in place and turn the message field into a String, as a chat message handler does
+	 * @param messages Number of messages
+	 * @throws Exception If the message does not fit
+	 */
+	private static void binaryDecodeMessage(int messages) throws Exception {
+		ByteBuffer buffer = binaryPacket();
+		WireFormat.Message message = new WireFormat.Message();
+		for (int index = 0; index < messages; index++) {
+			WireFormat.decode(buffer, message);
+			checksum += message.getType().ordinal() + message.getField(WireFormat.MESSAGE).length();
+		}
+	}
+
+	/**
+	 * Create a text message as sent by older peers
+	 * @return Bytes of the message
+	 */
+	private static byte[] textPacket() {
+		return (ChatApp.UUID + ChatApp.SEPARATOR + UID + ChatApp.SEPARATOR + ALIAS + ChatApp.SEPARATOR + "MESG" + ChatApp.SEPARATOR + MESSAGE).getBytes();
+	}
+
+	/**
+	 * Create a binary message
+	 * @return Buffer holding the message
+	 * @throws Exception If the message does not fit
+	 */
+	private static ByteBuffer binaryPacket() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		WireFormat.encode(buffer, UDPMessenger.MessageType.MESG, 1, UID, ALIAS, MESSAGE);
+		return buffer;
+	}
+
+	/**
+	 * Round is one round of a benchmark
+	 */
+	private static interface Round {
+
+		/**
+		 * Run the round
+		 * @param messages Number of messages
+		 * @throws Exception If the round fails
+		 */
+		void run(int messages) throws Exception;
+	}
+}
@@ -0,0 +1,634 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * WireFormat is the binary format of the UDP control and chat messages
+ *     short magic | byte version | byte type | int sequence [| int session] | uid | alias | message
+ * each field being an unsigned short length followed by its UTF-8 bytes
+ * The high bit of the type marks a reliable message (see ReliableDelivery): its sequence is per peer and the session of the sender follows;
+ * a SACK carries the cumulative acknowledgement as its sequence and the selective acknowledgements as an 8 byte bitmap in its message field
+ * A message longer than a datagram is sent in fragments (see UDPMessenger), each a piece of the encoded message:
+ *     short magic | byte version | byte FRAG | int message id | int total length | int offset | unsigned short length | bytes
+ * A path MTU probe (MTUP) carries the size probed as its sequence and padding as its message, its answer (MTUA) the same sequence
+ * Messages are encoded straight into a reusable buffer and decoded in place: decoding only finds where the fields are,
+ * a field becomes a String when a handler asks for it, so neither side allocates per message
+ * The text format of older peers (UUID|uid|alias|type|message) is decoded the same way, both formats are accepted
+ * Binary messages carry their own length, so a datagram may hold several of them back to back (see UDPMessenger batches)
+ * @author conqtc
+ *
+ */
+public class WireFormat {
+
+	// first bytes of a binary message, text messages start with ChatApp.UUID
+	public static final short MAGIC = (short) 0xCA75;
+
+	public static final byte VERSION = 1;
+
+	// magic, version, type and sequence
+	public static final int HEADER_SIZE = 8;
+
+	// bit of the type marking a reliable message
+	public static final int FLAG_RELIABLE = 0x80;
+
+	// session of a reliable message, after the header
+	public static final int SESSION_SIZE = 4;
+
+	// largest datagram received, longer ones are cut by the receive buffer
+	public static final int MAX_MESSAGE_SIZE = ChatApp.DATA_CHUNK_SIZE;
+
+	// largest message encoded, sent in fragments when longer than a datagram
+	public static final int MAX_FRAGMENTED_SIZE = 65536;
+
+	// magic, version, type, message id, total length, offset and length of a fragment
+	public static final int FRAGMENT_HEADER_SIZE = 18;
+
+	// index of each field
+	public static final int UID = 0;
+
+	public static final int ALIAS = 1;
+
+	public static final int MESSAGE = 2;
+
+	private static final int FIELD_COUNT = 3;
+
+	private static final byte TEXT_SEPARATOR = (byte) ChatApp.SEPARATOR.charAt(0);
+
+	// values() copies the array on each call
+	private static final UDPMessenger.MessageType[] TYPES = UDPMessenger.MessageType.values();
+
+	/**
+	 * Message is a message decoded in place, its fields stay in the receive buffer until asked for
+	 * One instance is reused for every message received
+	 */
+	public static class Message {
+
+		private ByteBuffer buffer;
+
+		private boolean binary;
+
+		private UDPMessenger.MessageType type;
+
+		// sequence number of the sender, 0 for text messages
+		private int sequence;
+
+		private boolean reliable;
+
+		// session of the sender of a reliable message, 0 otherwise
+		private int session;
+
+		// length of the whole message and position of the piece in it, for a fragment
+		private int fragmentTotal;
+
+		private int fragmentOffset;
+
+		// position and length of each field in the buffer
+		private int[] offsets = new int[FIELD_COUNT];
+
+		private int[] lengths = new int[FIELD_COUNT];
+
+		// position after the message, where the next message of a batch starts
+		private int end;
+
+		// text messages were encoded with the default charset of the sender, binary ones are UTF-8
+		private Charset charset;
+
+		/**
+		 * Get type of the message
+		 * @return Message type
+		 */
+		public UDPMessenger.MessageType getType() {
+			return this.type;
+		}
+
+		/**
+		 * Get sequence number of the message
+		 * @return Sequence number, 0 for text messages
+		 */
+		public int getSequence() {
+			return this.sequence;
+		}
+
+		/**
+		 * Check if the message is reliable, its sequence being per peer
+		 * @return True if reliable
+		 */
+		public boolean isReliable() {
+			return this.reliable;
+		}
+
+		/**
+		 * Get session of the sender of a reliable message
+		 * @return Session, 0 if not reliable
+		 */
+		public int getSession() {
+			return this.session;
+		}
+
+		/**
+		 * Get the selective acknowledgements of a SACK, bit i set if sequence + 2 + i was received
+		 * @return Bitmap, 0 if none
+		 */
+		public long getSelectiveAcks() {
+			if (lengths[MESSAGE] != 8)
+				return 0;
+
+			return buffer.getLong(offsets[MESSAGE]);
+		}
+
+		/**
+		 * Get the length of the message a fragment is a piece of
+		 * @return Length in bytes, 0 if not a fragment
+		 */
+		public int getFragmentTotal() {
+			return this.fragmentTotal;
+		}
+
+		/**
+		 * Get the position of a fragment in its message
+		 * @return Offset in bytes
+		 */
+		public int getFragmentOffset() {
+			return this.fragmentOffset;
+		}
+
+		/**
+		 * Copy the bytes of a field, e.g. the piece of a fragment, without turning them into a String
+		 * @param field Field, MESSAGE for a fragment
+		 * @param destination Array to copy into
+		 * @param offset Position in the array
+		 */
+		public void copyField(int field, byte[] destination, int offset) {
+			buffer.get(offsets[field], destination, offset, lengths[field]);
+		}
+
+		/**
+		 * Get the length of a field in bytes
+		 * @param field Field
+		 * @return Length
+		 */
+		public int getFieldLength(int field) {
+			return lengths[field];
+		}
+
+		/**
+		 * Get the position after the message
+		 * @return Position where the next message of the datagram starts, the limit if none
+		 */
+		public int getEnd() {
+			return this.end;
+		}
+
+		/**
+		 * Check if the message came in the binary format
+		 * @return True if binary, false if text
+		 */
+		public boolean isBinary() {
+			return this.binary;
+		}
+
+		/**
+		 * Get a field of the message, valid until the next message is received into the buffer
+		 * @param field UID, ALIAS or MESSAGE
+		 * @return Field value
+		 */
+		public String getField(int field) {
+			if (buffer.hasArray())
+				return new String(buffer.array(), buffer.arrayOffset() + offsets[field], lengths[field], charset);
+
+			byte[] bytes = new byte[lengths[field]];
+			buffer.get(offsets[field], bytes);
+			return new String(bytes, charset);
+		}
+	}
+
+	/**
+	 * Encode a message in the binary format
+	 * @param out Buffer to encode into, flipped for sending
+	 * @param type Type of the message
+	 * @param sequence Sequence number of the message
+	 * @param uid UID of the sender
+	 * @param alias Alias of the sender
+	 * @param message Content of the message
+	 * @throws IOException If the message does not fit into the buffer
+	 */
+	public static void encode(ByteBuffer out, UDPMessenger.MessageType type, int sequence, String uid, String alias, String message) throws IOException {
+		out.clear();
+		try {
+			putHeader(out, typeCode(type), sequence);
+			putField(out, uid);
+			putField(out, alias);
+			putField(out, message);
+		} catch (BufferOverflowException boe) {
+			throw new IOException("Message longer than " + out.capacity() + " bytes");
+		}
+		out.flip();
+	}
+
+	/**
+	 * Encode a reliable message in the binary format
+	 * @param out Buffer to encode into, flipped for sending
+	 * @param type Type of the message
+	 * @param sequence Sequence number of the message to this peer
+	 * @param session Session of the sender with this peer
+	 * @param uid UID of the sender
+	 * @param alias Alias of the sender
+	 * @param message Content of the message
+	 * @throws IOException If the message does not fit into the buffer
+	 */
+	public static void encodeReliable(ByteBuffer out, UDPMessenger.MessageType type, int sequence, int session, String uid, String alias, String message) throws IOException {
+		out.clear();
+		try {
+			putHeader(out, (byte) (typeCode(type) | FLAG_RELIABLE), sequence);
+			out.putInt(session);
+			putField(out, uid);
+			putField(out, alias);
+			putField(out, message);
+		} catch (BufferOverflowException boe) {
+			throw new IOException("Message longer than " + out.capacity() + " bytes");
+		}
+		out.flip();
+	}
+
+	/**
+	 * Encode the acknowledgement of reliable messages received
+	 * @param out Buffer to encode into, flipped for sending
+	 * @param session Session of the peer the messages came from
+	 * @param cumulative Last sequence number received with every one before it
+	 * @param selective Sequence numbers received after a gap, bit i for cumulative + 2 + i
+	 * @param uid UID of the sender
+	 * @param alias Alias of the sender
+	 * @throws IOException If the acknowledgement does not fit into the buffer
+	 */
+	public static void encodeAck(ByteBuffer out, int session, int cumulative, long selective, String uid, String alias) throws IOException {
+		out.clear();
+		try {
+			putHeader(out, (byte) (typeCode(UDPMessenger.MessageType.SACK) | FLAG_RELIABLE), cumulative);
+			out.putInt(session);
+			putField(out, uid);
+			putField(out, alias);
+			out.putShort((short) 8);
+			out.putLong(selective);
+		} catch (BufferOverflowException boe) {
+			throw new IOException("Acknowledgement longer than " + out.capacity() + " bytes");
+		}
+		out.flip();
+	}
+
+	/**
+	 * Encode a fragment of a message longer than a datagram
+	 * @param out Buffer to encode into, flipped for sending
+	 * @param id Message id, the same for every fragment of the message
+	 * @param total Length of the whole message
+	 * @param offset Position of the piece in the message
+	 * @param data Array holding the message
+	 * @param position Position of the piece in the array
+	 * @param length Length of the piece
+	 * @throws IOException If the fragment does not fit into the buffer
+	 */
+	public static void encodeFragment(ByteBuffer out, int id, int total, int offset, byte[] data, int position, int length) throws IOException {
+		out.clear();
+		try {
+			putHeader(out, typeCode(UDPMessenger.MessageType.FRAG), id);
+			out.putInt(total);
+			out.putInt(offset);
+			out.putShort((short) length);
+			out.put(data, position, length);
+		} catch (BufferOverflowException boe) {
+			throw new IOException("Fragment longer than " + out.capacity() + " bytes");
+		}
+		out.flip();
+	}
+
+	/**
+	 * Write the header of a binary message
+	 * @param out Buffer
+	 * @param code Code of the type with its flags
+	 * @param sequence Sequence number
+	 */
+	private static void putHeader(ByteBuffer out, byte code, int sequence) {
+		out.putShort(MAGIC);
+		out.put(VERSION);
+		out.put(code);
+		out.putInt(sequence);
+	}
+
+	/**
+	 * Decode a message of either format, in place
+	 * @param in Buffer holding the message between its position and its limit
+	 * @param message Message to decode into
+	 * @return True if valid, false if not one of us or malformed
+	 */
+	public static boolean decode(ByteBuffer in, Message message) {
+		message.buffer = in;
+		if (in.remaining() >= 2 && in.getShort(in.position()) == MAGIC)
+			return decodeBinary(in, message);
+		return decodeText(in, message);
+	}
+
+	/**
+	 * Decode a message in the binary format
+	 * @param in Buffer holding the message
+	 * @param message Message to decode into
+	 * @return True if valid
+	 */
+	private static boolean decodeBinary(ByteBuffer in, Message message) {
+		int position = in.position();
+		int limit = in.limit();
+		// a newer version may lay its fields out differently
+		if (limit - position < HEADER_SIZE || in.get(position + 2) != VERSION)
+			return false;
+
+		byte code = in.get(position + 3);
+		message.binary = true;
+		message.charset = StandardCharsets.UTF_8;
+		message.type = typeFromCode((byte) (code & ~FLAG_RELIABLE));
+		message.sequence = in.getInt(position + 4);
+		message.reliable = (code & FLAG_RELIABLE) != 0;
+		message.session = 0;
+		message.fragmentTotal = 0;
+		message.fragmentOffset = 0;
+		position += HEADER_SIZE;
+
+		if (message.type == UDPMessenger.MessageType.FRAG)
+			return decodeFragment(in, message, position, limit);
+
+		if (message.reliable) {
+			if (limit - position < SESSION_SIZE)
+				return false;
+
+			message.session = in.getInt(position);
+			position += SESSION_SIZE;
+		}
+
+		for (int field = 0; field < FIELD_COUNT; field++) {
+			if (limit - position < 2)
+				return false;
+
+			int length = in.getShort(position) & 0xFFFF;
+			position += 2;
+			if (length > limit - position)
+				return false;
+
+			message.offsets[field] = position;
+			message.lengths[field] = length;
+			position += length;
+		}
+		message.end = position;
+		return true;
+	}
+
+	/**
+	 * Decode the rest of a fragment, its piece is the message field
+	 * @param in Buffer holding the fragment
+	 * @param message Message to decode into, the header decoded
+	 * @param position Position after the header
+	 * @param limit Limit of the buffer
+	 * @return True if valid
+	 */
+	private static boolean decodeFragment(ByteBuffer in, Message message, int position, int limit) {
+		if (limit - position < FRAGMENT_HEADER_SIZE - HEADER_SIZE)
+			return false;
+
+		int total = in.getInt(position);
+		int offset = in.getInt(position + 4);
+		int length = in.getShort(position + 8) & 0xFFFF;
+		position += FRAGMENT_HEADER_SIZE - HEADER_SIZE;
+		if (length > limit - position || total <= 0 || total > MAX_FRAGMENTED_SIZE || offset < 0 || length > total - offset)
+			return false;
+
+		message.fragmentTotal = total;
+		message.fragmentOffset = offset;
+		message.lengths[UID] = 0;
+		message.lengths[ALIAS] = 0;
+		message.offsets[MESSAGE] = position;
+		message.lengths[MESSAGE] = length;
+		message.end = position + length;
+		return true;
+	}
+
+	/**
+	 * Decode a message in the text format, UUID | uid | alias | type | message
+	 * The message is everything after the fourth separator, trailing blanks removed as the old trim() did
+	 * @param in Buffer holding the message
+	 * @param message Message to decode into
+	 * @return True if valid
+	 */
+	private static boolean decodeText(ByteBuffer in, Message message) {
+		int position = in.position();
+		int limit = in.limit();
+		while (limit > position && (in.get(limit - 1) & 0xFF) <= ' ') {
+			limit--;
+		}
+
+		// UUID, uid, alias and type end at a separator
+		int uuidEnd = indexOf(in, position, limit, TEXT_SEPARATOR);
+		if (uuidEnd < 0 || !equalsAscii(in, position, uuidEnd - position, ChatApp.UUID))	// not one of us
+			return false;
+
+		int start = uuidEnd + 1;
+		for (int field = 0; field < 2; field++) {
+			int end = indexOf(in, start, limit, TEXT_SEPARATOR);
+			if (end < 0)
+				return false;
+
+			message.offsets[field] = start;
+			message.lengths[field] = end - start;
+			start = end + 1;
+		}
+
+		int typeEnd = indexOf(in, start, limit, TEXT_SEPARATOR);
+		if (typeEnd < 0)
+			return false;
+
+		message.binary = false;
+		message.charset = Charset.defaultCharset();
+		message.type = typeFromName(in, start, typeEnd - start);
+		message.sequence = 0;
+		message.reliable = false;
+		message.session = 0;
+		message.fragmentTotal = 0;
+		message.fragmentOffset = 0;
+		message.offsets[MESSAGE] = typeEnd + 1;
+		message.lengths[MESSAGE] = limit - typeEnd - 1;
+		message.end = in.limit();
+		return true;
+	}
+
+	/**
+	 * Write a field, its length then its UTF-8 bytes, without going through a byte array
+	 * @param out Buffer
+	 * @param value Field value
+	 */
+	private static void putField(ByteBuffer out, String value) {
+		if (out.remaining() < 2)
+			throw new BufferOverflowException();
+
+		int start = out.position();
+		out.position(start + 2);
+		int index = 0;
+		if (out.hasArray()) {
+			// the leading run of ASCII goes straight into the array, most fields are ASCII only
+			byte[] array = out.array();
+			int offset = out.arrayOffset() + out.position();
+			int end = Math.min(value.length(), out.remaining());
+			char c;
+			while (index < end && (c = value.charAt(index)) < 0x80) {
+				array[offset + index++] = (byte) c;
+			}
+			out.position(out.position() + index);
+		}
+
+		for (; index < value.length(); index++) {
+			char c = value.charAt(index);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++index));
+				out.put((byte) (0xF0 | (codePoint >> 18)));
+				out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				// lone surrogate, replaced as String.getBytes() does
+				out.put((byte) '?');
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+
+		int length = out.position() - start - 2;
+		if (length > 0xFFFF)
+			throw new BufferOverflowException();
+		out.putShort(start, (short) length);
+	}
+
+	/**
+	 * Find a byte
+	 * @param in Buffer
+	 * @param from First position searched
+	 * @param to Position after the last one searched
+	 * @param value Byte
+	 * @return Position of the byte, -1 if not found
+	 */
+	private static int indexOf(ByteBuffer in, int from, int to, byte value) {
+		for (int position = from; position < to; position++) {
+			if (in.get(position) == value)
+				return position;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare bytes with an ASCII string
+	 * @param in Buffer
+	 * @param position Position of the bytes
+	 * @param length Number of bytes
+	 * @param value String
+	 * @return True if equal
+	 */
+	private static boolean equalsAscii(ByteBuffer in, int position, int length, String value) {
+		if (length != value.length())
+			return false;
+
+		for (int index = 0; index < length; index++) {
+			if (in.get(position + index) != (byte) value.charAt(index))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the type named in a text message
+	 * @param in Buffer
+	 * @param position Position of the name
+	 * @param length Length of the name
+	 * @return Message type, UNKW if unknown
+	 */
+	private static UDPMessenger.MessageType typeFromName(ByteBuffer in, int position, int length) {
+		for (UDPMessenger.MessageType type: TYPES) {
+			if (equalsAscii(in, position, length, type.name()))
+				return type;
+		}
+		return UDPMessenger.MessageType.UNKW;
+	}
+
+	/**
+	 * Get the code of a type on the wire
+	 * @param type Type of message
+	 * @return Code
+	 */
+	public static byte typeCode(UDPMessenger.MessageType type) {
+		switch (type) {
+		case NOTF:
+			return 1;
+		case ACKM:
+			return 2;
+		case MESG:
+			return 3;
+		case BYED:
+			return 4;
+		case QUIT:
+			return 5;
+		case FREQ:
+			return 6;
+		case FACT:
+			return 7;
+		case FCAN:
+			return 8;
+		case SACK:
+			return 9;
+		case FRAG:
+			return 10;
+		case MTUP:
+			return 11;
+		case MTUA:
+			return 12;
+		case UNKW:
+			return 0;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Get type from its code on the wire
+	 * @param code Code
+	 * @return Message type, UNKW if unknown
+	 */
+	public static UDPMessenger.MessageType typeFromCode(byte code) {
+		switch (code) {
+		case 1:
+			return UDPMessenger.MessageType.NOTF;
+		case 2:
+			return UDPMessenger.MessageType.ACKM;
+		case 3:
+			return UDPMessenger.MessageType.MESG;
+		case 4:
+			return UDPMessenger.MessageType.BYED;
+		case 5:
+			return UDPMessenger.MessageType.QUIT;
+		case 6:
+			return UDPMessenger.MessageType.FREQ;
+		case 7:
+			return UDPMessenger.MessageType.FACT;
+		case 8:
+			return UDPMessenger.MessageType.FCAN;
+		case 9:
+			return UDPMessenger.MessageType.SACK;
+		case 10:
+			return UDPMessenger.MessageType.FRAG;
+		case 11:
+			return UDPMessenger.MessageType.MTUP;
+		case 12:
+			return UDPMessenger.MessageType.MTUA;
+		}
+
+		return UDPMessenger.MessageType.UNKW;
+	}
+}